@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Feeds the debouncer of the forecast and detail loaders the changes of a sync: a burst must
+    run the requery once, changes further apart than the quiet period each run it, and a steady
+    stream of changes must still run it every maximum delay.  Logs the requeries avoided.
+ */
+public class TestChangeDebouncer extends AndroidTestCase {
+    private static final String LOG_TAG = TestChangeDebouncer.class.getSimpleName();
+
+    private static final long QUIET_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 400;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final AtomicInteger mRuns = new AtomicInteger();
+    private ChangeDebouncer mDebouncer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("DebouncerThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDebouncer = new ChangeDebouncer(mHandler, new Runnable() {
+            @Override
+            public void run() {
+                mRuns.incrementAndGet();
+            }
+        }, QUIET_MILLIS, MAX_DELAY_MILLIS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    // Sends the changes on the thread of the debouncer, one every interval, and waits until
+    // they are all handled.
+    private int change(int count, long intervalMillis) {
+        mRuns.set(0);
+        long start = SystemClock.uptimeMillis() + 10;
+        for (int i = 0; i < count; i++) {
+            mHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    mDebouncer.onChange();
+                }
+            }, start + i * intervalMillis);
+        }
+        SystemClock.sleep(10 + count * intervalMillis + MAX_DELAY_MILLIS + QUIET_MILLIS);
+        return mRuns.get();
+    }
+
+    public void testBurstRunsOnce() {
+        // A sync of a dozen locations, each a write.
+        int runs = change(12, 5);
+        assertEquals("Error: a burst of changes must run the task once", 1, runs);
+        Log.i(LOG_TAG, "burst: 12 changes, " + runs + " requery, " + (12 - runs) + " avoided");
+    }
+
+    public void testSpacedChangesEachRun() {
+        assertEquals(3, change(3, QUIET_MILLIS * 3));
+    }
+
+    public void testStreamRunsEveryMaxDelay() {
+        // Changes closer than the quiet period for four maximum delays.
+        int count = (int) (MAX_DELAY_MILLIS * 4 / (QUIET_MILLIS / 2));
+        int runs = change(count, QUIET_MILLIS / 2);
+        assertTrue("Error: a stream of changes must not hold the task back, ran " + runs,
+                runs >= 3 && runs <= 6);
+        Log.i(LOG_TAG, "stream: " + count + " changes, " + runs + " requeries, "
+                + (count - runs) + " avoided");
+    }
+
+    public void testCancelDropsChanges() {
+        mRuns.set(0);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDebouncer.onChange();
+                mDebouncer.cancel();
+            }
+        });
+        SystemClock.sleep(MAX_DELAY_MILLIS + QUIET_MILLIS);
+        assertEquals(0, mRuns.get());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.ForecastSnapshotFile;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Publishes two weeks of forecast for a test location and checks that the display cache holds
+    exactly what Utility formats for every day, that a bind of a cached day only reads fields,
+    and that a change of units rebuilds the cache.  testBindTime logs what a list bind costs
+    when it formats every value, as it did before the cache, and when it reads them from it.
+ */
+public class TestDisplayCache extends AndroidTestCase {
+    private static final String LOG_TAG = TestDisplayCache.class.getSimpleName();
+
+    private static final String TEST_LOCATION = "displaycache";
+    private static final int NUM_DAYS = 14;
+    private static final int TIMING_RUNS = 50;
+
+    private SharedPreferences mPrefs;
+    private String mSavedLocation;
+    private String mSavedUnits;
+    private List<ForecastSnapshot.Day> mDays;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mSavedLocation = mPrefs.getString(mContext.getString(R.string.pref_location_key), null);
+        mSavedUnits = mPrefs.getString(mContext.getString(R.string.pref_units_key), null);
+        mPrefs.edit()
+                .putString(mContext.getString(R.string.pref_location_key), TEST_LOCATION)
+                .putString(mContext.getString(R.string.pref_units_key),
+                        mContext.getString(R.string.pref_units_metric))
+                .commit();
+        deleteTestRows();
+
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, TEST_LOCATION);
+        location.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, 37.4);
+        location.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, -122.1);
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, location));
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        int[] weatherIds = {200, 300, 500, 511, 520, 600, 701, 761, 781, 800, 801, 802, 900, 951};
+        ContentValues[] values = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            values[i] = new ContentValues();
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + i * DateUtils.DAY_IN_MILLIS);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 25.0 * i);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 60);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1013);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 18.5 + i);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 7.25 - i);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Clear");
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 4.5);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherIds[i]);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+        mDays = ForecastSnapshot.publish(mContext).getDays(System.currentTimeMillis());
+        assertEquals(NUM_DAYS, mDays.size());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTestRows();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        restore(editor, R.string.pref_location_key, mSavedLocation);
+        restore(editor, R.string.pref_units_key, mSavedUnits);
+        editor.commit();
+        ForecastSnapshot.clear();
+        ForecastSnapshotFile.getFile(mContext).delete();
+        DisplayCache.invalidate();
+        super.tearDown();
+    }
+
+    private void restore(SharedPreferences.Editor editor, int key, String value) {
+        if (value == null) {
+            editor.remove(mContext.getString(key));
+        } else {
+            editor.putString(mContext.getString(key), value);
+        }
+    }
+
+    private void deleteTestRows() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN (SELECT "
+                        + WeatherContract.LocationEntry._ID + " FROM "
+                        + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                        + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?)",
+                new String[]{TEST_LOCATION});
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TEST_LOCATION});
+    }
+
+    public void testMatchesUtility() {
+        DisplayCache cache = DisplayCache.rebuild(mContext, ForecastSnapshot.get(mContext));
+        assertSame("Error: the cache must be shared", cache, DisplayCache.get(mContext));
+        boolean localGraphics = Utility.usingLocalGraphics(mContext);
+        for (ForecastSnapshot.Day snapshotDay : mDays) {
+            DisplayCache.Day day = cache.getDay(mContext, snapshotDay);
+            assertSame("Error: a cached day must not be worked out again",
+                    day, cache.getDay(mContext, snapshotDay));
+            assertEquals(Utility.getFriendlyDayString(mContext, snapshotDay.date, false),
+                    day.dayText);
+            assertEquals(Utility.getFriendlyDayString(mContext, snapshotDay.date, true),
+                    day.longDayText);
+            assertEquals(Utility.getFullFriendlyDayString(mContext, snapshotDay.date),
+                    day.fullDayText);
+            String description = Utility.getStringForWeatherCondition(mContext,
+                    snapshotDay.weatherId);
+            assertEquals(description, day.description);
+            assertEquals(mContext.getString(R.string.a11y_forecast, description),
+                    day.descriptionA11y);
+            assertEquals(Utility.formatTemperature(mContext, snapshotDay.high), day.highText);
+            assertEquals(Utility.formatTemperature(mContext, snapshotDay.low), day.lowText);
+            assertEquals(Utility.getIconResourceForWeatherCondition(snapshotDay.weatherId),
+                    day.iconResId);
+            assertEquals(Utility.getArtResourceForWeatherCondition(snapshotDay.weatherId),
+                    day.artResId);
+            assertEquals(localGraphics ? null
+                    : Utility.getArtUrlForWeatherCondition(mContext, snapshotDay.weatherId),
+                    day.artUrl);
+        }
+
+        // A row that changed since the snapshot is formatted from its own values.
+        ForecastSnapshot.Day first = mDays.get(0);
+        DisplayCache.Day changed = cache.getDay(mContext, first.date, first.weatherId,
+                first.high + 10, first.low);
+        assertEquals(Utility.formatTemperature(mContext, first.high + 10), changed.highText);
+
+        for (float degrees = 0; degrees < 360; degrees += 10) {
+            assertEquals(Utility.getFormattedWind(mContext, 4.5f, degrees),
+                    cache.formatWind(4.5f, degrees));
+        }
+    }
+
+    public void testUnitsChangeRebuilds() {
+        DisplayCache metric = DisplayCache.get(mContext);
+        mPrefs.edit().putString(mContext.getString(R.string.pref_units_key),
+                mContext.getString(R.string.pref_units_imperial)).commit();
+        DisplayCache imperial = DisplayCache.get(mContext);
+        assertNotSame(metric, imperial);
+        ForecastSnapshot.Day first = mDays.get(0);
+        assertEquals(Utility.formatTemperature(mContext, first.high),
+                imperial.getDay(mContext, first).highText);
+        assertEquals(Utility.getFormattedWind(mContext, 4.5f, 90),
+                imperial.formatWind(4.5f, 90));
+
+        // A republished snapshot rebuilds it as well.
+        DisplayCache republished =
+                DisplayCache.rebuild(mContext, ForecastSnapshot.publish(mContext));
+        assertNotSame(imperial, republished);
+        assertSame(republished, DisplayCache.get(mContext));
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public void testBindTime() {
+        DisplayCache cache = DisplayCache.get(mContext);
+        long[] formatting = new long[TIMING_RUNS];
+        long[] cached = new long[TIMING_RUNS];
+        int sink = 0;
+        for (int run = 0; run < TIMING_RUNS; run++) {
+            // What ForecastAdapter.onBindViewHolder worked out per row before the cache.
+            long start = System.nanoTime();
+            for (int i = 0; i < NUM_DAYS; i++) {
+                ForecastSnapshot.Day day = mDays.get(i);
+                int image = i == 0
+                        ? Utility.getArtResourceForWeatherCondition(day.weatherId)
+                        : Utility.getIconResourceForWeatherCondition(day.weatherId);
+                boolean local = Utility.usingLocalGraphics(mContext);
+                String url = local ? null
+                        : Utility.getArtUrlForWeatherCondition(mContext, day.weatherId);
+                String date = Utility.getFriendlyDayString(mContext, day.date, i == 0);
+                String description = Utility.getStringForWeatherCondition(mContext,
+                        day.weatherId);
+                String descriptionA11y = mContext.getString(R.string.a11y_forecast, description);
+                String high = Utility.formatTemperature(mContext, day.high);
+                String highA11y = mContext.getString(R.string.a11y_high_temp, high);
+                String low = Utility.formatTemperature(mContext, day.low);
+                String lowA11y = mContext.getString(R.string.a11y_low_temp, low);
+                sink += image + (url == null ? 0 : 1) + date.length() + descriptionA11y.length()
+                        + highA11y.length() + lowA11y.length();
+            }
+            formatting[run] = System.nanoTime() - start;
+
+            // And what it reads now.
+            start = System.nanoTime();
+            for (int i = 0; i < NUM_DAYS; i++) {
+                ForecastSnapshot.Day row = mDays.get(i);
+                DisplayCache.Day day = cache.getDay(mContext, row.date, row.weatherId, row.high,
+                        row.low);
+                int image = i == 0 ? day.artResId : day.iconResId;
+                String date = i == 0 ? day.longDayText : day.dayText;
+                sink += image + (day.artUrl == null ? 0 : 1) + date.length()
+                        + day.descriptionA11y.length() + day.highA11y.length()
+                        + day.lowA11y.length();
+            }
+            cached[run] = System.nanoTime() - start;
+        }
+        assertTrue(sink != 0);
+        Log.i(LOG_TAG, "Binding " + NUM_DAYS + " rows, median of " + TIMING_RUNS
+                + ": formatting " + median(formatting) / 1000 + " us, display cache "
+                + median(cached) / 1000 + " us");
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that the compiled insert behind bulkInsert and the primitive row batch of
+    WeatherRows write exactly what an insert of the same ContentValues writes, and that rows
+    the compiled insert cannot take still go in.  A day that is written again keeps its id, and
+    only counts, and notifies, when one of its values changed.  Replacing the forecast window
+    must leave only the new days and notify once.  testThroughput logs rows per second for
+    14, 1,000 and 100,000 rows through db.insert() per row, as bulkInsert used to, through
+    bulkInsert, and through WeatherRows.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final int NUM_DAYS = 14;
+    private static final int[] THROUGHPUT_SIZES = {14, 1000, 100000};
+    private static final int[] THROUGHPUT_RUNS = {50, 5, 1};
+
+    private WeatherProvider mProvider;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    // Values that read back as the same text from a REAL column, so validateCurrentRecord holds.
+    private ContentValues[] createValues(int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationRowId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * DateUtils.DAY_IN_MILLIS);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DEGREES, 10.0 * (i % 36));
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, 40.5 + i % 60);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, 1013.25 - i % 20);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20.5 + i % 10);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, 5.25 - i % 10);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, 5.5 + 0.25 * (i % 30));
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800 + i % 4);
+        }
+        return values;
+    }
+
+    private static WeatherRows toRows(ContentValues[] values) {
+        WeatherRows rows = new WeatherRows(values.length);
+        addAll(rows, values);
+        return rows;
+    }
+
+    private static void addAll(WeatherRows rows, ContentValues[] values) {
+        for (ContentValues value : values) {
+            rows.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                    value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                    value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        }
+    }
+
+    // The bulkInsert this provider had before the compiled insert.
+    private int insertEach(ContentValues[] values) {
+        SQLiteDatabase db = mProvider.getOpenHelper().getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        int count = 0;
+        try {
+            for (ContentValues value : values) {
+                value.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                if (db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value) != -1) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private Cursor queryAll() {
+        return mContext.getContentResolver().query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private void assertStored(String error, ContentValues[] expected) {
+        Cursor cursor = queryAll();
+        assertEquals(error, expected.length, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            TestUtilities.validateCurrentRecord(error + " " + i, cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    public void testCompiledInsertMatchesInsert() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        assertEquals(NUM_DAYS, insertEach(values));
+        assertStored("Error: db.insert()", values);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, createValues(NUM_DAYS)));
+        assertStored("Error: bulkInsert", values);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+        assertEquals(NUM_DAYS, toRows(createValues(NUM_DAYS)).replaceForecast(
+                mContext.getContentResolver(), -1));
+        assertStored("Error: WeatherRows", values);
+    }
+
+    public void testRowsReplaceTheSameDay() {
+        WeatherRows rows = toRows(createValues(NUM_DAYS));
+        assertEquals(NUM_DAYS, rows.replaceForecast(mContext.getContentResolver(), -1));
+        ContentValues[] changed = createValues(NUM_DAYS);
+        for (ContentValues value : changed) {
+            value.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 200);
+        }
+        // The batch is reused, as the sync reuses it.
+        rows.clear();
+        assertEquals(0, rows.size());
+        addAll(rows, changed);
+        assertEquals(NUM_DAYS, rows.replaceForecast(mContext.getContentResolver(), -1));
+        assertStored("Error: a row did not replace the one of its day", changed);
+    }
+
+    public void testLocationFilledInLater() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        WeatherRows rows = new WeatherRows(1);
+        for (ContentValues value : values) {
+            rows.add(-1, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                    value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                    value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        }
+        rows.setLocationId(mLocationRowId);
+        assertEquals(NUM_DAYS, rows.replaceForecast(mContext.getContentResolver(), -1));
+        assertStored("Error: the location was not filled in", values);
+    }
+
+    public void testOtherColumnsFallBack() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        // An explicit id is not a column of the compiled insert.
+        values[3].put(WeatherContract.WeatherEntry._ID, 4242);
+        // Nor is a date given as text.
+        values[5].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                Long.toString(TestUtilities.TEST_DATE + 5 * DateUtils.DAY_IN_MILLIS));
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, values));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null,
+                WeatherContract.WeatherEntry._ID + " = ?", new String[]{"4242"}, null);
+        TestUtilities.validateCursor("Error: the row with an id was not inserted", cursor,
+                values[3]);
+        cursor = queryAll();
+        assertEquals(NUM_DAYS, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testReplaceForecastIsOneChange() throws InterruptedException {
+        // Yesterday's forecast, as the last sync left it.
+        ContentValues[] old = createValues(NUM_DAYS);
+        assertEquals(NUM_DAYS, toRows(old).replaceForecast(mContext.getContentResolver(), -1));
+        long pruneDate = TestUtilities.TEST_DATE + 2 * DateUtils.DAY_IN_MILLIS;
+
+        // Today's: the first three days are over, and three new ones come at the end.
+        ContentValues[] expected = Arrays.copyOfRange(createValues(NUM_DAYS + 3), 3,
+                NUM_DAYS + 3);
+        for (ContentValues value : expected) {
+            value.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 500);
+        }
+
+        final AtomicInteger changes = new AtomicInteger();
+        HandlerThread thread = new HandlerThread("ContentObserverThread");
+        thread.start();
+        ContentObserver observer = new ContentObserver(new Handler(thread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes.incrementAndGet();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, observer);
+        try {
+            assertEquals(expected.length, toRows(expected).replaceForecast(
+                    mContext.getContentResolver(), pruneDate));
+            // A second notification would have arrived by the time the first one did.
+            TestUtilities.waitForPendingNotifications(mContext, thread.getLooper());
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+            thread.quit();
+        }
+        assertEquals("Error: replacing the forecast must notify exactly once", 1, changes.get());
+        assertStored("Error: the forecast was not replaced", expected);
+    }
+
+    public void testEmptyBatchStillPrunes() {
+        assertEquals(NUM_DAYS, toRows(createValues(NUM_DAYS)).replaceForecast(
+                mContext.getContentResolver(), -1));
+
+        // A sync whose forecasts all came back unchanged writes no rows, and yesterday goes all
+        // the same.
+        assertEquals(0, new WeatherRows(1).replaceForecast(mContext.getContentResolver(),
+                TestUtilities.TEST_DATE + 2 * DateUtils.DAY_IN_MILLIS));
+        assertStored("Error: the expired days were not pruned",
+                Arrays.copyOfRange(createValues(NUM_DAYS), 3, NUM_DAYS));
+    }
+
+    public void testTransactionWritesBatches() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        // The way the sync writes a forecast: one reused batch, never the whole of it.
+        WeatherRows batch = new WeatherRows(4);
+        ForecastTransaction transaction =
+                ForecastTransaction.begin(mContext.getContentResolver());
+        try {
+            for (int i = 0; i < values.length; i += 4) {
+                batch.clear();
+                addAll(batch, Arrays.copyOfRange(values, i, Math.min(i + 4, values.length)));
+                transaction.write(batch);
+            }
+            assertEquals(NUM_DAYS, transaction.commit(-1));
+        } finally {
+            transaction.close();
+        }
+        assertStored("Error: the batches were not all written", values);
+        assertEquals(NUM_DAYS, transaction.getChangedCount(TestUtilities.TEST_LOCATION));
+        assertEquals(0, transaction.getChangedCount("london"));
+    }
+
+    public void testTransactionRollsBackUnlessCommitted() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        assertEquals(NUM_DAYS, toRows(values).replaceForecast(mContext.getContentResolver(), -1));
+
+        ForecastTransaction transaction =
+                ForecastTransaction.begin(mContext.getContentResolver());
+        try {
+            assertEquals(2, transaction.write(toRows(createValues(NUM_DAYS + 2))));
+        } finally {
+            transaction.close();
+        }
+        assertStored("Error: a transaction that was not committed was kept", values);
+
+        // The thread can write a forecast again once the last one was rolled back.
+        transaction = ForecastTransaction.begin(mContext.getContentResolver());
+        try {
+            assertEquals(0, transaction.commit(-1));
+        } finally {
+            transaction.close();
+        }
+    }
+
+    private long[] queryIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID}, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    public void testUpsertKeepsIdsAndCountsChanges() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, values));
+        long[] ids = queryIds();
+
+        // The same forecast again changes nothing.
+        assertEquals(0, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, createValues(NUM_DAYS)));
+        assertEquals(0, toRows(createValues(NUM_DAYS)).replaceForecast(
+                mContext.getContentResolver(), -1));
+
+        // One warmer day changes one row, in place.
+        values = createValues(NUM_DAYS);
+        values[4].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 35.5);
+        assertEquals(1, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, values));
+        values[6].put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals(1, toRows(values).replaceForecast(mContext.getContentResolver(), -1));
+        assertStored("Error: the changed days were not written", values);
+        assertTrue("Error: an upsert must keep the id of the day", Arrays.equals(ids, queryIds()));
+    }
+
+    public void testUnchangedForecastDoesNotNotify() {
+        ContentValues[] values = createValues(NUM_DAYS);
+        assertEquals(NUM_DAYS, toRows(values).replaceForecast(mContext.getContentResolver(), -1));
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, weatherObserver);
+        assertEquals(0, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, createValues(NUM_DAYS)));
+        // Nothing is over yet either.
+        assertEquals(0, toRows(createValues(NUM_DAYS)).replaceForecast(
+                mContext.getContentResolver(), TestUtilities.TEST_DATE - 1));
+        weatherObserver.waitForPendingNotifications(mContext);
+        assertFalse("Error: writing the same forecast notified observers",
+                weatherObserver.mContentChanged);
+
+        // A change still does.
+        values = createValues(NUM_DAYS);
+        values[0].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 211);
+        assertEquals(1, toRows(values).replaceForecast(
+                mContext.getContentResolver(), TestUtilities.TEST_DATE - 1));
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long rowsPerSecond(int rows, long nanos) {
+        return nanos == 0 ? 0 : rows * 1000000000L / nanos;
+    }
+
+    public void testThroughput() {
+        Uri noNotifyUri = WeatherContract.buildNoNotifyUri(
+                WeatherContract.WeatherEntry.CONTENT_URI);
+        for (int s = 0; s < THROUGHPUT_SIZES.length; s++) {
+            int size = THROUGHPUT_SIZES[s];
+            int runs = THROUGHPUT_RUNS[s];
+            long[] insertEach = new long[runs];
+            long[] bulkInsert = new long[runs];
+            long[] rowBatch = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                // The input of every path is built before its clock starts.  Both ContentValues
+                // paths take the same array: normalizing a date twice changes nothing, and
+                // 100,000 of them are about as many as a test process has room for.
+                ContentValues[] values = createValues(size);
+                long start = System.nanoTime();
+                assertEquals(size, insertEach(values));
+                insertEach[run] = System.nanoTime() - start;
+                mContext.getContentResolver().delete(noNotifyUri, null, null);
+
+                start = System.nanoTime();
+                assertEquals(size, mContext.getContentResolver().bulkInsert(noNotifyUri, values));
+                bulkInsert[run] = System.nanoTime() - start;
+                mContext.getContentResolver().delete(noNotifyUri, null, null);
+
+                WeatherRows rows = toRows(values);
+                values = null;
+                start = System.nanoTime();
+                assertEquals(size, rows.replaceForecast(mContext.getContentResolver(), -1));
+                rowBatch[run] = System.nanoTime() - start;
+                mContext.getContentResolver().delete(noNotifyUri, null, null);
+            }
+            Log.i(LOG_TAG, size + " rows, median of " + runs + ", rows per second: db.insert() "
+                    + rowsPerSecond(size, median(insertEach)) + ", bulkInsert "
+                    + rowsPerSecond(size, median(bulkInsert)) + ", WeatherRows "
+                    + rowsPerSecond(size, median(rowBatch)));
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+    Builds a database as each shipped schema version left it, with a forecast in it, and opens it
+    with the current WeatherDbHelper.  Every version that has migration steps must end up with
+    exactly the schema a fresh install gets and keep every row; older, downgraded and unknown
+    versions are recreated empty.  When you add a schema version, add its fixture here.
+ */
+public class TestDbMigrations extends AndroidTestCase {
+
+    private static final String FIXTURE_NAME = "weather-migration-test.db";
+    private static final String FRESH_NAME = "weather-migration-fresh.db";
+
+    // The schema as version 2 shipped it: locations and the daily forecast.
+    private static final String[] SCHEMA_V2 = {
+            "CREATE TABLE location (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "location_setting TEXT UNIQUE NOT NULL, " +
+                    "city_name TEXT NOT NULL, " +
+                    "coord_lat REAL NOT NULL, " +
+                    "coord_long REAL NOT NULL " +
+                    " );",
+            "CREATE TABLE weather (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "location_id INTEGER NOT NULL, " +
+                    "date INTEGER NOT NULL, " +
+                    "short_desc TEXT NOT NULL, " +
+                    "weather_id INTEGER NOT NULL," +
+                    "min REAL NOT NULL, " +
+                    "max REAL NOT NULL, " +
+                    "humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, " +
+                    "wind REAL NOT NULL, " +
+                    "degrees REAL NOT NULL, " +
+                    " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                    " UNIQUE (date, location_id) ON CONFLICT REPLACE);"
+    };
+
+    // Version 3 added the 3 hourly forecast.
+    private static final String[] SCHEMA_V3 = {
+            SCHEMA_V2[0],
+            SCHEMA_V2[1],
+            "CREATE TABLE hourly (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "location_id INTEGER NOT NULL, " +
+                    "time INTEGER NOT NULL, " +
+                    "short_desc TEXT NOT NULL, " +
+                    "weather_id INTEGER NOT NULL," +
+                    "temp REAL NOT NULL, " +
+                    "humidity REAL NOT NULL, " +
+                    "pressure REAL NOT NULL, " +
+                    "wind REAL NOT NULL, " +
+                    "degrees REAL NOT NULL, " +
+                    " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                    " UNIQUE (location_id, time) ON CONFLICT REPLACE);"
+    };
+
+    // Version 4 indexed the forecast by location and date.
+    private static final String[] SCHEMA_V4 = {
+            SCHEMA_V3[0],
+            SCHEMA_V3[1],
+            "CREATE INDEX weather_location_date ON weather (location_id, date);",
+            SCHEMA_V3[2]
+    };
+
+    private static final int NUM_DAYS = 14;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(FIXTURE_NAME);
+        mContext.deleteDatabase(FRESH_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(FIXTURE_NAME);
+        mContext.deleteDatabase(FRESH_NAME);
+        super.tearDown();
+    }
+
+    public void testStepsCoverEveryVersion() {
+        for (int version = WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION;
+             version <= WeatherDbHelper.DATABASE_VERSION; version++) {
+            assertTrue("Error: no migration from version " + version,
+                    WeatherDbMigrations.canMigrate(version, WeatherDbHelper.DATABASE_VERSION));
+        }
+        assertFalse(WeatherDbMigrations.canMigrate(
+                WeatherDbMigrations.OLDEST_MIGRATABLE_VERSION - 1,
+                WeatherDbHelper.DATABASE_VERSION));
+    }
+
+    public void testUpgradeFromVersion2KeepsForecast() {
+        createFixture(2, SCHEMA_V2, false);
+        SQLiteDatabase db = open();
+        assertCurrentSchema(db);
+        assertForecast(db, false);
+        db.close();
+    }
+
+    public void testUpgradeFromVersion3KeepsForecast() {
+        createFixture(3, SCHEMA_V3, true);
+        SQLiteDatabase db = open();
+        assertCurrentSchema(db);
+        assertForecast(db, true);
+        db.close();
+    }
+
+    public void testUpgradeFromVersion4KeepsForecast() {
+        createFixture(4, SCHEMA_V4, true);
+        SQLiteDatabase db = open();
+        assertCurrentSchema(db);
+        assertForecast(db, true);
+        db.close();
+    }
+
+    public void testUnversionedDatabaseIsRecreated() {
+        // Sunshine before version 2 kept its dates as text.
+        createFixture(1, new String[]{
+                "CREATE TABLE weather (_id INTEGER PRIMARY KEY, date TEXT NOT NULL);"
+        }, false);
+        SQLiteDatabase db = open();
+        assertCurrentSchema(db);
+        assertEquals(0, count(db, WeatherContract.WeatherEntry.TABLE_NAME));
+        db.close();
+    }
+
+    public void testDowngradeIsRecreated() {
+        createFixture(WeatherDbHelper.DATABASE_VERSION + 1, SCHEMA_V3, true);
+        SQLiteDatabase db = open();
+        assertCurrentSchema(db);
+        assertEquals(0, count(db, WeatherContract.WeatherEntry.TABLE_NAME));
+        db.close();
+    }
+
+    private SQLiteDatabase open() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext, FIXTURE_NAME).getWritableDatabase();
+        assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+        return db;
+    }
+
+    // Writes the schema and a forecast for the North Pole, as a sync on that version would have.
+    private void createFixture(int version, String[] schema, boolean hourly) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(FIXTURE_NAME), null);
+        try {
+            for (String statement : schema) {
+                db.execSQL(statement);
+            }
+            if (schema.length > 1) {
+                long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                        TestUtilities.createNorthPoleLocationValues());
+                for (int i = 0; i < NUM_DAYS; i++) {
+                    ContentValues values = TestUtilities.createWeatherValues(locationId);
+                    values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                            TestUtilities.TEST_DATE + i * 86400000L);
+                    values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+                    assertTrue(db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            values) != -1);
+                }
+                if (hourly) {
+                    ContentValues values = new ContentValues();
+                    values.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationId);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_TIME, TestUtilities.TEST_DATE);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, "Clear");
+                    values.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 800);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_TEMP, 12.5);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 50);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, 1013);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, 3);
+                    values.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 90);
+                    assertTrue(db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null,
+                            values) != -1);
+                }
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void assertForecast(SQLiteDatabase db, boolean hourly) {
+        Cursor location = db.query(WeatherContract.LocationEntry.TABLE_NAME, null, null, null,
+                null, null, null);
+        TestUtilities.validateCursor("Error: the location did not survive the upgrade",
+                location, TestUtilities.createNorthPoleLocationValues());
+
+        Cursor weather = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                        WeatherContract.WeatherEntry.COLUMN_SHORT_DESC},
+                null, null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: the forecast did not survive the upgrade",
+                NUM_DAYS, weather.getCount());
+        for (int i = 0; weather.moveToNext(); i++) {
+            assertEquals(TestUtilities.TEST_DATE + i * 86400000L, weather.getLong(0));
+            assertEquals(800 + i, weather.getInt(1));
+            assertEquals("Asteroids", weather.getString(2));
+        }
+        weather.close();
+
+        assertEquals(hourly ? 1 : 0, count(db, WeatherContract.HourlyEntry.TABLE_NAME));
+    }
+
+    private static int count(SQLiteDatabase db, String table) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The schema, the way SQLite sees it, so that it compares equal whatever the DDL looked like.
+    private static List<String> describe(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        List<String> tables = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND name NOT IN ('android_metadata', 'sqlite_sequence') ORDER BY name", null);
+        while (cursor.moveToNext()) {
+            tables.add(cursor.getString(0));
+        }
+        cursor.close();
+        for (String table : tables) {
+            schema.add("table " + table);
+            addRows(db, schema, "  column ", "PRAGMA table_info(" + table + ")");
+            addRows(db, schema, "  foreign key ", "PRAGMA foreign_key_list(" + table + ")");
+            List<String> indexes = new ArrayList<String>();
+            cursor = db.rawQuery("PRAGMA index_list(" + table + ")", null);
+            while (cursor.moveToNext()) {
+                indexes.add(cursor.getString(cursor.getColumnIndex("name")) + " unique "
+                        + cursor.getInt(cursor.getColumnIndex("unique")));
+            }
+            cursor.close();
+            Collections.sort(indexes);
+            for (String index : indexes) {
+                schema.add("  index " + index);
+                addRows(db, schema, "    on ",
+                        "PRAGMA index_info(" + index.substring(0, index.indexOf(' ')) + ")");
+            }
+        }
+        return schema;
+    }
+
+    private static void addRows(SQLiteDatabase db, List<String> schema, String prefix,
+                                String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        while (cursor.moveToNext()) {
+            StringBuilder row = new StringBuilder(prefix);
+            for (int i = 0; i < cursor.getColumnCount(); i++) {
+                row.append(cursor.getColumnName(i)).append('=').append(cursor.getString(i))
+                        .append(' ');
+            }
+            schema.add(row.toString());
+        }
+        cursor.close();
+    }
+
+    private void assertCurrentSchema(SQLiteDatabase migrated) {
+        SQLiteDatabase fresh = new WeatherDbHelper(mContext, FRESH_NAME).getReadableDatabase();
+        try {
+            assertEquals("Error: the migrated schema differs from a fresh install",
+                    describe(fresh), describe(migrated));
+        } finally {
+            fresh.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+
+import java.util.List;
+
+/*
+    Stores a few days of forecast from today on and checks that the snapshot is read from the
+    provider once, on the first request, that every consumer after that shares it, that a publish
+    reads the provider once more and bumps the version, and that days gone by are left out.
+ */
+public class TestForecastSnapshot extends AndroidTestCase {
+
+    private static final int NUM_DAYS = 3;
+
+    private long mToday;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ForecastSnapshot.clear();
+        // Without a file the cold path below goes to the provider.
+        ForecastSnapshotFile.delete(ForecastSnapshotFile.getFile(mContext));
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] values = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    mToday + i * DateUtils.DAY_IN_MILLIS);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ForecastSnapshot.clear();
+        ForecastSnapshotFile.delete(ForecastSnapshotFile.getFile(mContext));
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testConsumersShareOneRead() {
+        int reads = ForecastSnapshot.getProviderReadCount();
+
+        // A cold process reads the provider on the first request only.
+        ForecastSnapshot cold = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        for (int consumer = 0; consumer < 4; consumer++) {
+            assertSame(cold, ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION));
+        }
+        assertEquals("Error: consumers must not query the provider again",
+                reads + 1, ForecastSnapshot.getProviderReadCount());
+
+        ForecastSnapshot published = ForecastSnapshot.publish(mContext,
+                TestUtilities.TEST_LOCATION);
+        assertEquals(reads + 2, ForecastSnapshot.getProviderReadCount());
+        assertTrue("Error: a publish must bump the version",
+                published.getVersion() > cold.getVersion());
+        assertSame(published, ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION));
+        assertEquals(reads + 2, ForecastSnapshot.getProviderReadCount());
+
+        // Another location is not served from the snapshot of this one.
+        ForecastSnapshot other = ForecastSnapshot.get(mContext, "london");
+        assertEquals(reads + 3, ForecastSnapshot.getProviderReadCount());
+        assertEquals("london", other.getLocationSetting());
+        assertTrue(other.getDays(mToday).isEmpty());
+    }
+
+    public void testDays() {
+        ForecastSnapshot snapshot = ForecastSnapshot.publish(mContext,
+                TestUtilities.TEST_LOCATION);
+        List<ForecastSnapshot.Day> days = snapshot.getDays(mToday);
+        assertEquals(NUM_DAYS, days.size());
+        for (int i = 0; i < NUM_DAYS; i++) {
+            assertEquals(mToday + i * DateUtils.DAY_IN_MILLIS, days.get(i).date);
+            assertEquals(800 + i, days.get(i).weatherId);
+        }
+        assertEquals(75, days.get(0).high, 0);
+        assertEquals(65, days.get(0).low, 0);
+        assertEquals("Asteroids", days.get(0).description);
+
+        // Once today went by, the snapshot starts at tomorrow.
+        long tomorrow = mToday + DateUtils.DAY_IN_MILLIS;
+        assertEquals(NUM_DAYS - 1, snapshot.getDays(tomorrow).size());
+        assertEquals(801, snapshot.getFirstDay(tomorrow).weatherId);
+        assertEquals(801, snapshot.getDay(tomorrow).weatherId);
+        assertNull(snapshot.getDay(mToday + NUM_DAYS * DateUtils.DAY_IN_MILLIS));
+        assertNull(snapshot.getFirstDay(mToday + NUM_DAYS * DateUtils.DAY_IN_MILLIS));
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+    Checks that a published snapshot survives the round trip through the file, that a cold
+    process serves it from the file without querying the provider, and that a file that is
+    missing, truncated, damaged or of another format is ignored.  testColdStartTime logs how long
+    a cold start waits for the forecast with the file, and without it, when it has to open the
+    database and run the join query first.
+ */
+public class TestForecastSnapshotFile extends AndroidTestCase {
+    private static final String LOG_TAG = TestForecastSnapshotFile.class.getSimpleName();
+
+    private static final int NUM_DAYS = 14;
+    private static final int TIMING_RUNS = 20;
+
+    private long mToday;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ForecastSnapshot.clear();
+        mFile = ForecastSnapshotFile.getFile(mContext);
+        ForecastSnapshotFile.delete(mFile);
+
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        ContentValues[] values = new ContentValues[NUM_DAYS];
+        for (int i = 0; i < NUM_DAYS; i++) {
+            values[i] = TestUtilities.createWeatherValues(locationRowId);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    mToday + i * DateUtils.DAY_IN_MILLIS);
+            values[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, values);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ForecastSnapshot.clear();
+        ForecastSnapshotFile.delete(mFile);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static void assertSameDays(ForecastSnapshot expected, ForecastSnapshot actual) {
+        assertEquals(expected.getLocationSetting(), actual.getLocationSetting());
+        assertEquals(expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(expected.getLongitude(), actual.getLongitude(), 0);
+        List<ForecastSnapshot.Day> expectedDays = expected.getDays(0);
+        List<ForecastSnapshot.Day> actualDays = actual.getDays(0);
+        assertEquals(expectedDays.size(), actualDays.size());
+        for (int i = 0; i < expectedDays.size(); i++) {
+            ForecastSnapshot.Day e = expectedDays.get(i);
+            ForecastSnapshot.Day a = actualDays.get(i);
+            assertEquals(e.id, a.id);
+            assertEquals(e.date, a.date);
+            assertEquals(e.weatherId, a.weatherId);
+            assertEquals(e.description, a.description);
+            assertEquals(e.high, a.high, 0);
+            assertEquals(e.low, a.low, 0);
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeFile(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void testRoundTrip() {
+        ForecastSnapshot published = ForecastSnapshot.publish(mContext,
+                TestUtilities.TEST_LOCATION);
+        assertTrue("Error: the publish did not write the file", mFile.isFile());
+        assertEquals(ForecastSnapshotFile.HEADER_SIZE
+                + NUM_DAYS * ForecastSnapshotFile.RECORD_SIZE, mFile.length());
+
+        ForecastSnapshot read = ForecastSnapshotFile.read(mFile, 1);
+        assertNotNull(read);
+        assertEquals(1, read.getVersion());
+        assertSameDays(published, read);
+        assertEquals(64.7488, read.getLatitude(), 0);
+        assertEquals(-147.353, read.getLongitude(), 0);
+    }
+
+    public void testColdProcessReadsFile() {
+        ForecastSnapshot published = ForecastSnapshot.publish(mContext,
+                TestUtilities.TEST_LOCATION);
+        ForecastSnapshot.clear();
+        int providerReads = ForecastSnapshot.getProviderReadCount();
+        int fileReads = ForecastSnapshot.getFileReadCount();
+
+        ForecastSnapshot peeked = ForecastSnapshot.peek(mContext, TestUtilities.TEST_LOCATION);
+        assertNotNull(peeked);
+        assertSameDays(published, peeked);
+        assertTrue(peeked.getVersion() > published.getVersion());
+        assertSame(peeked, ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION));
+        assertEquals(fileReads + 1, ForecastSnapshot.getFileReadCount());
+        assertEquals("Error: the file must spare the provider read",
+                providerReads, ForecastSnapshot.getProviderReadCount());
+
+        // The file only stands in for the location it was written for.
+        assertNull(ForecastSnapshot.peek(mContext, "london"));
+        assertEquals(providerReads, ForecastSnapshot.getProviderReadCount());
+
+        // Finding that out once is enough until the file changes.
+        fileReads = ForecastSnapshot.getFileReadCount();
+        assertNull(ForecastSnapshot.peek(mContext, "london"));
+        assertEquals("Error: a miss must not read the file again",
+                fileReads, ForecastSnapshot.getFileReadCount());
+    }
+
+    public void testIgnoresBadFiles() throws IOException {
+        ForecastSnapshot.clear();
+        assertNull("Error: no file, no snapshot", ForecastSnapshotFile.read(mFile, 1));
+        assertNull(ForecastSnapshot.peek(mContext, TestUtilities.TEST_LOCATION));
+
+        ForecastSnapshot.publish(mContext, TestUtilities.TEST_LOCATION);
+        byte[] good = readFile();
+        assertNotNull(ForecastSnapshotFile.read(mFile, 1));
+
+        List<byte[]> bad = new ArrayList<byte[]>();
+        bad.add(new byte[0]);
+        bad.add(Arrays.copyOf(good, ForecastSnapshotFile.HEADER_SIZE - 1));
+        // A record short.
+        bad.add(Arrays.copyOf(good, good.length - ForecastSnapshotFile.RECORD_SIZE));
+        // A record too many.
+        bad.add(Arrays.copyOf(good, good.length + ForecastSnapshotFile.RECORD_SIZE));
+        // Another magic, another format version.
+        byte[] magic = good.clone();
+        magic[0] ^= 1;
+        bad.add(magic);
+        byte[] version = good.clone();
+        version[7]++;
+        bad.add(version);
+        // A flipped bit in the last record fails the CRC.
+        byte[] damaged = good.clone();
+        damaged[good.length - 1] ^= 0x10;
+        bad.add(damaged);
+
+        for (byte[] bytes : bad) {
+            writeFile(bytes);
+            assertNull("Error: a bad file of " + bytes.length + " bytes was read",
+                    ForecastSnapshotFile.read(mFile, 1));
+            ForecastSnapshot.clear();
+            assertNull(ForecastSnapshot.peek(mContext, TestUtilities.TEST_LOCATION));
+        }
+
+        // A bad file costs a provider read, nothing more.
+        int providerReads = ForecastSnapshot.getProviderReadCount();
+        ForecastSnapshot loaded = ForecastSnapshot.get(mContext, TestUtilities.TEST_LOCATION);
+        assertEquals(providerReads + 1, ForecastSnapshot.getProviderReadCount());
+        assertEquals(NUM_DAYS, loaded.getDays(mToday).size());
+    }
+
+    public void testSnapshotThatDoesNotFitRemovesFile() {
+        ForecastSnapshot.publish(mContext, TestUtilities.TEST_LOCATION);
+        assertTrue(mFile.isFile());
+
+        List<ForecastSnapshot.Day> days = new ArrayList<ForecastSnapshot.Day>();
+        char[] longDescription = new char[ForecastSnapshotFile.MAX_DESCRIPTION_BYTES + 1];
+        Arrays.fill(longDescription, 'x');
+        days.add(new ForecastSnapshot.Day(1, mToday, 800, new String(longDescription), 20, 10));
+        ForecastSnapshot tooLong = new ForecastSnapshot(1, TestUtilities.TEST_LOCATION, 0, 0,
+                days);
+        assertFalse(ForecastSnapshotFile.write(mFile, tooLong));
+        assertFalse("Error: an older snapshot must not outlive a newer one", mFile.exists());
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    public void testColdStartTime() {
+        ForecastSnapshot.publish(mContext, TestUtilities.TEST_LOCATION);
+        String query = "SELECT " + WeatherContract.WeatherEntry.TABLE_NAME + "."
+                + WeatherContract.WeatherEntry._ID + ", "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + ", "
+                + WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", "
+                + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", "
+                + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LONG
+                + " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN "
+                + WeatherContract.LocationEntry.TABLE_NAME + " ON "
+                + WeatherContract.WeatherEntry.TABLE_NAME + "."
+                + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = "
+                + WeatherContract.LocationEntry.TABLE_NAME + "."
+                + WeatherContract.LocationEntry._ID
+                + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ORDER BY "
+                + WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        String[] args = {TestUtilities.TEST_LOCATION, Long.toString(mToday)};
+
+        long[] fromFile = new long[TIMING_RUNS];
+        long[] fromDatabase = new long[TIMING_RUNS];
+        for (int run = 0; run < TIMING_RUNS; run++) {
+            // What the list waits for with the file: one mapped read.
+            long start = System.nanoTime();
+            ForecastSnapshot snapshot = ForecastSnapshotFile.read(mFile, 1);
+            assertEquals(NUM_DAYS, snapshot.getDays(mToday).size());
+            fromFile[run] = System.nanoTime() - start;
+
+            // And without it: open the database the way a cold provider does, then run the
+            // join the loader runs and step through the rows.
+            start = System.nanoTime();
+            WeatherDbHelper helper = new WeatherDbHelper(mContext);
+            SQLiteDatabase db = helper.getReadableDatabase();
+            Cursor cursor = db.rawQuery(query, args);
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                rows++;
+            }
+            cursor.close();
+            helper.close();
+            fromDatabase[run] = System.nanoTime() - start;
+            assertEquals(NUM_DAYS, rows);
+        }
+        Log.i(LOG_TAG, NUM_DAYS + " days, median of " + TIMING_RUNS + ": snapshot file "
+                + median(fromFile) / 1000 + " us, database open and query "
+                + median(fromDatabase) / 1000 + " us");
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/*
+    Checks that a range query for a location returns exactly the steps in its window, in order,
+    that a step written again replaces the old one, and that SQLite answers the range query from
+    the (location_id, time) index.  The benchmark grows the table to 64 thousand rows spread over
+    many locations and checks that the median latency of a one day window stays flat.
+ */
+public class TestHourlyProvider extends AndroidTestCase {
+    private static final String LOG_TAG = TestHourlyProvider.class.getSimpleName();
+
+    private static final long STEP_MILLIS = 3 * 60 * 60 * 1000;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+    private static final long BASE_TIME = TestUtilities.TEST_DATE * 1000;
+
+    // The benchmark writes this many rows per location, i.e. 5 days of steps.
+    private static final int STEPS_PER_LOCATION = 40;
+    private static final int[] BENCHMARK_ROW_COUNTS = {1000, 8000, 64000};
+    private static final int QUERY_RUNS = 50;
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private static final String[] HOURLY_COLUMNS = {
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static ContentValues createHourlyValues(long locationRowId, long time, double temperature) {
+        ContentValues hourlyValues = new ContentValues();
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, time);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP, temperature);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, 1.2);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, 1.3);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, 5.5);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, 1.1);
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, "Asteroids");
+        hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, 321);
+        return hourlyValues;
+    }
+
+    private long insertLocation(String locationSetting) {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, values);
+        return Long.parseLong(uri.getLastPathSegment());
+    }
+
+    private int insertSteps(long locationRowId, int firstStep, int count) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            int step = firstStep + i;
+            values[i] = createHourlyValues(locationRowId, BASE_TIME + step * STEP_MILLIS, step);
+        }
+        return mContext.getContentResolver().bulkInsert(
+                WeatherContract.buildNoNotifyUri(WeatherContract.HourlyEntry.CONTENT_URI), values);
+    }
+
+    public void testRangeQuery() {
+        long locationRowId = insertLocation(TestUtilities.TEST_LOCATION);
+        assertEquals(STEPS_PER_LOCATION, insertSteps(locationRowId, 0, STEPS_PER_LOCATION));
+        // Another location's steps must stay out of the window.
+        insertSteps(insertLocation("london"), 0, STEPS_PER_LOCATION);
+
+        // The window is half open: the step at its end belongs to the next one.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                        TestUtilities.TEST_LOCATION, BASE_TIME + DAY_MILLIS,
+                        BASE_TIME + 2 * DAY_MILLIS),
+                HOURLY_COLUMNS, null, null, null);
+        assertEquals(8, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: steps must come back in time order",
+                    BASE_TIME + DAY_MILLIS + i * STEP_MILLIS, cursor.getLong(0));
+        }
+        cursor.close();
+
+        // Writing a step again replaces it instead of adding a row.
+        ContentValues[] update = {createHourlyValues(locationRowId, BASE_TIME, -40)};
+        mContext.getContentResolver().bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI, update);
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocation(TestUtilities.TEST_LOCATION),
+                HOURLY_COLUMNS, null, null, null);
+        assertEquals(STEPS_PER_LOCATION, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(-40, cursor.getDouble(1), 0);
+        cursor.close();
+    }
+
+    public void testRangeQueryUsesIndex() {
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getReadableDatabase();
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN SELECT " +
+                WeatherContract.HourlyEntry.COLUMN_TIME + " FROM " +
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                WeatherContract.LocationEntry.TABLE_NAME + " ON " +
+                WeatherContract.HourlyEntry.TABLE_NAME + "." +
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = " +
+                WeatherContract.LocationEntry.TABLE_NAME + "." +
+                WeatherContract.LocationEntry._ID + " WHERE " +
+                WeatherContract.LocationEntry.TABLE_NAME + "." +
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ORDER BY " +
+                WeatherContract.HourlyEntry.COLUMN_TIME + " ASC",
+                new String[] {TestUtilities.TEST_LOCATION, "0", "1"});
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnCount() - 1)).append('\n');
+        }
+        plan.close();
+        db.close();
+
+        String planText = details.toString();
+        assertTrue("Error: the hourly table must be searched by index:\n" + planText,
+                planText.matches("(?s).*SEARCH (TABLE )?hourly USING .*INDEX.*"));
+        assertFalse("Error: the hourly table must not be scanned:\n" + planText,
+                planText.matches("(?s).*SCAN (TABLE )?hourly.*"));
+    }
+
+    public void testRangeQueryLatencyStaysFlat() {
+        long targetRowId = insertLocation(TestUtilities.TEST_LOCATION);
+        insertSteps(targetRowId, 0, STEPS_PER_LOCATION);
+        int rows = STEPS_PER_LOCATION;
+        int otherLocations = 0;
+
+        long[] medians = new long[BENCHMARK_ROW_COUNTS.length];
+        for (int size = 0; size < BENCHMARK_ROW_COUNTS.length; size++) {
+            // Other locations fill the table up to the next size, a batch at a time.
+            while (rows < BENCHMARK_ROW_COUNTS[size]) {
+                long locationRowId = insertLocation("benchmark" + otherLocations++);
+                rows += insertSteps(locationRowId, 0,
+                        Math.min(INSERT_BATCH_SIZE, BENCHMARK_ROW_COUNTS[size] - rows));
+            }
+            medians[size] = measureMedianNanos();
+            Log.i(LOG_TAG, "Range query over " + rows + " hourly rows: median "
+                    + medians[size] / 1000 + " us over " + QUERY_RUNS + " runs");
+        }
+
+        // Allow for noise, but not for growth with the table: 64 times the rows must not take
+        // more than a few times as long.
+        long smallest = medians[0];
+        long largest = medians[medians.length - 1];
+        assertTrue("Error: range query latency grew from " + smallest / 1000 + " us to "
+                        + largest / 1000 + " us",
+                largest <= 3 * smallest + 1000 * 1000);
+    }
+
+    private long measureMedianNanos() {
+        Uri window = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, BASE_TIME + DAY_MILLIS, BASE_TIME + 2 * DAY_MILLIS);
+        long[] nanos = new long[QUERY_RUNS];
+        for (int run = -1; run < QUERY_RUNS; run++) {
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(window, HOURLY_COLUMNS,
+                    null, null, null);
+            // getCount fills the window, which is where the query actually runs.
+            assertEquals(8, cursor.getCount());
+            cursor.close();
+            // The first run warms up the statement cache and is not counted.
+            if (run >= 0) {
+                nanos[run] = System.nanoTime() - start;
+            }
+        }
+        Arrays.sort(nanos);
+        return nanos[QUERY_RUNS / 2];
+    }
+}
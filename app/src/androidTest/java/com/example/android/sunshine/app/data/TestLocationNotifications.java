@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.DebouncedCursorLoader;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Syncs the forecast of several locations, one write per location as the sync adapter does,
+    while every location has a list observing weather/[location] and one location has a day
+    open in the detail view, observing weather/[location]/[date].  Each observer must only be
+    told about the writes to its own rows.  The test logs how many requeries that saves over
+    notifying the whole weather table, which every observer heard.  A units change in the
+    settings followed by an expedited sync, today's row first and the full forecast after it,
+    is three separate writes; the test logs how close together they reach the list, which the
+    debounced loaders count on to query once.
+ */
+public class TestLocationNotifications extends AndroidTestCase {
+    private static final String LOG_TAG = TestLocationNotifications.class.getSimpleName();
+
+    private static final int NUM_LOCATIONS = 4;
+    private static final int NUM_DAYS = 14;
+    // The day open in the detail view, and the day the second sync changes.
+    private static final int DETAIL_DAY = 3;
+    private static final int CHANGED_DAY = 5;
+
+    private final long[] mLocationIds = new long[NUM_LOCATIONS];
+    private final List<ContentObserver> mObservers = new ArrayList<ContentObserver>();
+    private HandlerThread mThread;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            ContentValues location = TestUtilities.createNorthPoleLocationValues();
+            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, getSetting(i));
+            mLocationIds[i] = ContentUris.parseId(mContext.getContentResolver().insert(
+                    WeatherContract.LocationEntry.CONTENT_URI, location));
+        }
+        mThread = new HandlerThread("ContentObserverThread");
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ContentObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        mThread.quit();
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static String getSetting(int location) {
+        return TestUtilities.TEST_LOCATION + "-" + location;
+    }
+
+    private static long getDate(int day) {
+        return WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    private ContentValues[] createForecast(int location, int changedDay) {
+        ContentValues[] values = new ContentValues[NUM_DAYS];
+        for (int day = 0; day < NUM_DAYS; day++) {
+            values[day] = TestUtilities.createWeatherValues(mLocationIds[location]);
+            values[day].put(WeatherContract.WeatherEntry.COLUMN_DATE, getDate(day));
+            values[day].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    day == changedDay ? 500 : 800);
+        }
+        return values;
+    }
+
+    // Registered as a CursorLoader registers its cursor, for the descendants of its URI too.
+    private AtomicInteger observe(Uri uri) {
+        final AtomicInteger changes = new AtomicInteger();
+        ContentObserver observer = new ContentObserver(new Handler(mThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                changes.incrementAndGet();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.add(observer);
+        return changes;
+    }
+
+    private static void waitForChanges(final AtomicInteger changes, final int expected) {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return changes.get() >= expected;
+            }
+        }.run();
+    }
+
+    public void testObserversOnlyHearTheirLocation() {
+        AtomicInteger[] lists = new AtomicInteger[NUM_LOCATIONS];
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            lists[i] = observe(WeatherContract.WeatherEntry.buildWeatherLocation(getSetting(i)));
+        }
+        AtomicInteger detail = observe(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                getSetting(0), getDate(DETAIL_DAY)));
+        AtomicInteger table = observe(WeatherContract.WeatherEntry.CONTENT_URI);
+
+        int writes = 0;
+        // The first sync writes every day of every location, the second one changes one day.
+        for (int changedDay : new int[]{-1, CHANGED_DAY}) {
+            for (int i = 0; i < NUM_LOCATIONS; i++) {
+                assertTrue(mContext.getContentResolver().bulkInsert(
+                        WeatherContract.WeatherEntry.CONTENT_URI,
+                        createForecast(i, changedDay)) > 0);
+                writes++;
+            }
+        }
+        // Once the table heard every write and everything sent so far was delivered, a list told
+        // about another location would show.
+        waitForChanges(table, writes);
+        TestUtilities.waitForPendingNotifications(mContext, mThread.getLooper());
+
+        int requeries = 0;
+        for (int i = 0; i < NUM_LOCATIONS; i++) {
+            assertEquals("Error: the list of " + getSetting(i)
+                    + " was told about other locations", 2, lists[i].get());
+            requeries += lists[i].get();
+        }
+        assertEquals("Error: the detail view was told about another day", 1, detail.get());
+        requeries += detail.get();
+        assertEquals("Error: an observer of the table must hear every write", writes,
+                table.get());
+
+        // Notifying the table reached every list and the detail view with every write.
+        int before = writes * (NUM_LOCATIONS + 1);
+        Log.i(LOG_TAG, writes + " writes to " + NUM_LOCATIONS + " locations: " + before
+                + " requeries when the table is notified, " + requeries
+                + " when the location is, " + (before - requeries) + " avoided");
+        assertTrue(requeries < before);
+    }
+
+    private static WeatherRows toRows(ContentValues[] values) {
+        WeatherRows rows = new WeatherRows(values.length);
+        for (ContentValues value : values) {
+            rows.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                    value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                    value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        }
+        return rows;
+    }
+
+    public void testSettingsChangeAndSyncAreOneBurst() {
+        final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+        ContentObserver observer = new ContentObserver(new Handler(mThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                times.add(SystemClock.uptimeMillis());
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                WeatherContract.WeatherEntry.buildWeatherLocation(getSetting(0)), true, observer);
+        mObservers.add(observer);
+        AtomicInteger other = observe(
+                WeatherContract.WeatherEntry.buildWeatherLocation(getSetting(1)));
+
+        // The units change, as the settings announce it.
+        mContext.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI,
+                null);
+        // The expedited sync it starts: today's row, then the whole forecast.
+        ContentValues[] forecast = createForecast(0, -1);
+        assertEquals(1, toRows(new ContentValues[]{forecast[0]}).replaceForecast(
+                mContext.getContentResolver(), -1));
+        assertEquals(NUM_DAYS - 1, toRows(forecast).replaceForecast(
+                mContext.getContentResolver(), -1));
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return times.size() >= 3;
+            }
+        }.run();
+        TestUtilities.waitForPendingNotifications(mContext, mThread.getLooper());
+
+        assertEquals("Error: every write of the burst must reach the list", 3, times.size());
+        assertEquals("Error: only the settings change concerns the other list", 1, other.get());
+        long longestGap = 0;
+        for (int i = 1; i < times.size(); i++) {
+            longestGap = Math.max(longestGap, times.get(i) - times.get(i - 1));
+        }
+        Log.i(LOG_TAG, times.size() + " notifications in " + (times.get(times.size() - 1)
+                - times.get(0)) + " ms, longest gap " + longestGap + " ms, quiet period "
+                + DebouncedCursorLoader.QUIET_MILLIS + " ms");
+        assertTrue("Error: the writes are further apart than the quiet period",
+                longestGap < DebouncedCursorLoader.QUIET_MILLIS);
+    }
+
+    public void testDeleteNotifiesTheDeletedDay() {
+        assertEquals(NUM_DAYS, mContext.getContentResolver().bulkInsert(
+                WeatherContract.WeatherEntry.CONTENT_URI, createForecast(0, -1)));
+        AtomicInteger other = observe(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                getSetting(0), getDate(DETAIL_DAY)));
+        AtomicInteger deleted = observe(WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                getSetting(0), getDate(CHANGED_DAY)));
+
+        assertEquals(1, mContext.getContentResolver().delete(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(getDate(CHANGED_DAY))}));
+        waitForChanges(deleted, 1);
+        TestUtilities.waitForPendingNotifications(mContext, mThread.getLooper());
+        assertEquals(1, deleted.get());
+        assertEquals("Error: deleting a day notified another one", 0, other.get());
+    }
+}
@@ -56,6 +56,11 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                WeatherContract.HourlyEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
@@ -512,4 +517,30 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+    /*
+        The sync adapter writes through URIs built by WeatherContract.buildNoNotifyUri and notifies
+        once when it is done.  Writes through such a URI must not reach observers.
+     */
+    public void testBulkInsertWithoutNotify() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(
+                WeatherContract.buildNoNotifyUri(WeatherEntry.CONTENT_URI),
+                createBulkInsertWeatherValues(locationRowId));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        weatherObserver.waitForPendingNotifications(mContext);
+        assertFalse("Error: a write through a no-notify URI notified observers",
+                weatherObserver.mContentChanged);
+
+        // The single notification sent afterwards still reaches them.
+        mContext.getContentResolver().notifyChange(WeatherEntry.CONTENT_URI, null, false);
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+    }
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Has several reader threads query the forecast of a location, the way the list, the widgets
+    and Muzei do, while a writer ingests batches of days without a break, as a long sync does.
+    It runs once in the rollback journal mode the provider used to open the database in, and
+    once with the write-ahead log, and logs the percentiles of the reader latency of both.  The
+    database must be in WAL mode, and readers must see whole batches only.
+ */
+public class TestProviderConcurrency extends AndroidTestCase {
+    private static final String LOG_TAG = TestProviderConcurrency.class.getSimpleName();
+
+    private static final int READERS = 4;
+    private static final long RUN_MILLIS = 3000;
+    // A 14 day forecast of a dozen locations per transaction.
+    private static final int BATCH_DAYS = 14 * 12;
+
+    private WeatherProvider mProvider;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        setWriteAheadLogging(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void setWriteAheadLogging(boolean enabled) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mProvider.getOpenHelper().setWriteAheadLoggingEnabled(enabled);
+        }
+    }
+
+    private String getJournalMode() {
+        Cursor cursor = mProvider.getOpenHelper().getReadableDatabase()
+                .rawQuery("PRAGMA journal_mode", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testDatabaseIsInWalMode() {
+        assertEquals("wal", getJournalMode().toLowerCase());
+    }
+
+    public void testReadersDuringIngest() throws InterruptedException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLogging(false);
+            assertEquals("delete", getJournalMode().toLowerCase());
+            log("rollback journal", runScenario());
+            setWriteAheadLogging(true);
+        }
+        assertEquals("wal", getJournalMode().toLowerCase());
+        long[] wal = runScenario();
+        log("write-ahead log", wal);
+        assertTrue("Error: the readers made no progress", wal.length > 0);
+    }
+
+    /**
+     * @return the latency of every read, in nanoseconds, sorted.
+     */
+    private long[] runScenario() throws InterruptedException {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final Uri weatherUri = WeatherContract.buildNoNotifyUri(
+                WeatherContract.WeatherEntry.CONTENT_URI);
+        final Uri readUri = WeatherContract.WeatherEntry.buildWeatherLocation(
+                TestUtilities.TEST_LOCATION);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final CountDownLatch finished = new CountDownLatch(READERS + 1);
+
+        // Every batch rewrites the same days with a new weather id, so the table stays the same
+        // size and a reader that sees two ids has seen half a batch.
+        Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    ContentValues[] batch = new ContentValues[BATCH_DAYS];
+                    for (int generation = 0; !stop.get(); generation++) {
+                        for (int i = 0; i < BATCH_DAYS; i++) {
+                            batch[i] = TestUtilities.createWeatherValues(mLocationRowId);
+                            batch[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                                    TestUtilities.TEST_DATE + i * DateUtils.DAY_IN_MILLIS);
+                            batch[i].put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                                    generation);
+                        }
+                        resolver.bulkInsert(weatherUri, batch);
+                    }
+                } catch (Throwable t) {
+                    synchronized (failures) {
+                        failures.add(t);
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+
+        final long[][] latencies = new long[READERS][];
+        final int[] counts = new int[READERS];
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            final int reader = r;
+            readers[r] = new Thread("reader " + r) {
+                @Override
+                public void run() {
+                    long[] mine = new long[1024];
+                    int count = 0;
+                    try {
+                        while (!stop.get()) {
+                            long start = System.nanoTime();
+                            Cursor cursor = resolver.query(readUri, new String[]{
+                                    WeatherContract.WeatherEntry.COLUMN_DATE,
+                                    WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+                            }, null, null, null);
+                            int generation = -1;
+                            try {
+                                while (cursor.moveToNext()) {
+                                    int id = cursor.getInt(1);
+                                    if (generation != -1 && id != generation) {
+                                        throw new AssertionError("Read half a batch: "
+                                                + generation + " and " + id);
+                                    }
+                                    generation = id;
+                                }
+                            } finally {
+                                cursor.close();
+                            }
+                            if (count == mine.length) {
+                                mine = Arrays.copyOf(mine, count * 2);
+                            }
+                            mine[count++] = System.nanoTime() - start;
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    } finally {
+                        latencies[reader] = mine;
+                        counts[reader] = count;
+                        finished.countDown();
+                    }
+                }
+            };
+        }
+
+        // Let the first batch land, so that every read has rows to step through.
+        writer.start();
+        while (finished.getCount() == READERS + 1 && getCount() == 0) {
+            Thread.sleep(10);
+        }
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        assertTrue("Error: the threads did not stop",
+                finished.await(RUN_MILLIS * 10, TimeUnit.MILLISECONDS));
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < READERS; r++) {
+            System.arraycopy(latencies[r], 0, all, offset, counts[r]);
+            offset += counts[r];
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private int getCount() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long percentileMicros(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index] / 1000;
+    }
+
+    private static void log(String mode, long[] sorted) {
+        Log.i(LOG_TAG, mode + ", " + READERS + " readers against a writer: " + sorted.length
+                + " reads, p50 " + percentileMicros(sorted, 50) + " us, p95 "
+                + percentileMicros(sorted, 95) + " us, p99 " + percentileMicros(sorted, 99)
+                + " us, max " + (sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000)
+                + " us");
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Checks that the query cache of the provider answers exactly as SQLite does, value for value
+    and type for type, and that a write drops the cached queries of the rows it changed and no
+    others.  testHitRate replays the queries of the list, the detail view, the widgets and Muzei
+    between syncs, and logs the hit rate and the time saved for each kind of URI.
+ */
+public class TestQueryCache extends AndroidTestCase {
+    private static final String LOG_TAG = TestQueryCache.class.getSimpleName();
+
+    private static final String OTHER_LOCATION = "99706";
+    private static final int NUM_DAYS = 14;
+    private static final int ROUNDS = 20;
+    private static final int READS_PER_ROUND = 25;
+
+    private WeatherProvider mProvider;
+    private QueryCache mCache;
+    private long mLocationRowId;
+    private long mOtherLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        deleteAllRecords();
+        ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) client.getLocalContentProvider();
+        client.release();
+        mCache = mProvider.getQueryCache();
+        mCache.setEnabled(true);
+
+        mLocationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues other = TestUtilities.createNorthPoleLocationValues();
+        other.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mOtherLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                WeatherContract.LocationEntry.CONTENT_URI, other));
+        writeForecast(mLocationRowId, -1);
+        writeForecast(mOtherLocationRowId, -1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.setEnabled(true);
+        deleteAllRecords();
+        super.tearDown();
+    }
+
+    private void deleteAllRecords() {
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private static long getDate(int day) {
+        return WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+    }
+
+    // Writes the forecast as a sync does, with a warmer day if changedDay is one.
+    private void writeForecast(long locationRowId, int changedDay) {
+        ContentValues[] values = new ContentValues[NUM_DAYS];
+        for (int day = 0; day < NUM_DAYS; day++) {
+            values[day] = TestUtilities.createWeatherValues(locationRowId);
+            values[day].put(WeatherContract.WeatherEntry.COLUMN_DATE, getDate(day));
+            values[day].put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    day == changedDay ? 95.5 : 75);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                values);
+    }
+
+    // The URIs of the list and of today's detail, the widgets and Muzei.
+    private static Uri getForecastUri(String locationSetting) {
+        return WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, getDate(0));
+    }
+
+    private static Uri getDayUri(String locationSetting, int day) {
+        return WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                locationSetting, getDate(day));
+    }
+
+    private List<String> read(Uri uri) {
+        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        List<String> values = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    values.add(cursor.getColumnName(i) + " " + cursor.getType(i) + " "
+                            + cursor.getString(i) + " " + cursor.getLong(i) + " "
+                            + cursor.getDouble(i) + " " + cursor.isNull(i));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return values;
+    }
+
+    private int getHits(int match) {
+        return mCache.getStatsFor(match).hits;
+    }
+
+    public void testCachedRowsMatchDatabase() {
+        for (Uri uri : new Uri[]{getForecastUri(TestUtilities.TEST_LOCATION),
+                getDayUri(TestUtilities.TEST_LOCATION, 3)}) {
+            mCache.setEnabled(false);
+            List<String> expected = read(uri);
+            assertFalse(expected.isEmpty());
+            mCache.setEnabled(true);
+            assertEquals("Error: a query that filled the cache differs from SQLite",
+                    expected, read(uri));
+            assertEquals("Error: a cached query differs from SQLite", expected, read(uri));
+        }
+        assertEquals(1, getHits(WeatherProvider.WEATHER_WITH_LOCATION));
+        assertEquals(1, getHits(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE));
+    }
+
+    public void testFormatRealAsCursorWindow() {
+        assertEquals("75", CachedRows.formatReal(75.0));
+        assertEquals("1.1", CachedRows.formatReal(1.1));
+        assertEquals("64.7488", CachedRows.formatReal(64.7488));
+        assertEquals("-147.353", CachedRows.formatReal(-147.353));
+        assertEquals("100", CachedRows.formatReal(100.0));
+        assertEquals("0.0001", CachedRows.formatReal(0.0001));
+        assertEquals("1.234e-05", CachedRows.formatReal(0.00001234));
+        assertEquals("1.23457e+06", CachedRows.formatReal(1234567.0));
+        assertEquals("1e+06", CachedRows.formatReal(999999.5));
+        assertEquals("0", CachedRows.formatReal(0.0));
+    }
+
+    public void testWriteDropsOnlyChangedQueries() {
+        Uri forecast = getForecastUri(TestUtilities.TEST_LOCATION);
+        Uri changedDay = getDayUri(TestUtilities.TEST_LOCATION, 5);
+        Uri otherDay = getDayUri(TestUtilities.TEST_LOCATION, 3);
+        Uri otherLocation = getForecastUri(OTHER_LOCATION);
+        for (Uri uri : new Uri[]{forecast, changedDay, otherDay, otherLocation}) {
+            read(uri);
+        }
+
+        writeForecast(mLocationRowId, 5);
+        int listHits = getHits(WeatherProvider.WEATHER_WITH_LOCATION);
+        int dayHits = getHits(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+
+        assertTrue("Error: the changed day was served from the cache",
+                read(changedDay).contains("max 2 95.5 95 95.5 false"));
+        assertTrue("Error: the forecast was served from the cache",
+                read(forecast).contains("max 2 95.5 95 95.5 false"));
+        assertEquals(listHits, getHits(WeatherProvider.WEATHER_WITH_LOCATION));
+        assertEquals(dayHits, getHits(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE));
+
+        read(otherDay);
+        read(otherLocation);
+        assertEquals("Error: a day the write did not change was dropped",
+                dayHits + 1, getHits(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE));
+        assertEquals("Error: a location the write did not change was dropped",
+                listHits + 1, getHits(WeatherProvider.WEATHER_WITH_LOCATION));
+
+        // A delete, and a write that does not notify, drop the queries too.
+        mContext.getContentResolver().delete(
+                WeatherContract.buildNoNotifyUri(WeatherContract.WeatherEntry.CONTENT_URI),
+                WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(getDate(3))});
+        assertTrue("Error: a deleted day was served from the cache", read(otherDay).isEmpty());
+    }
+
+    public void testLocationChangeDropsQueries() {
+        Uri forecast = getForecastUri(TestUtilities.TEST_LOCATION);
+        read(forecast);
+        ContentValues city = new ContentValues();
+        city.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        assertEquals(1, mContext.getContentResolver().update(
+                WeatherContract.LocationEntry.CONTENT_URI, city,
+                WeatherContract.LocationEntry._ID + " = ?",
+                new String[]{Long.toString(mLocationRowId)}));
+        assertTrue("Error: the forecast of a renamed location was served from the cache",
+                read(forecast).contains("city_name 3 Santa's Village 0 0.0 false"));
+    }
+
+    // The queries of a round: the list and today's detail view, and the widgets and Muzei,
+    // which read today, several times between two syncs.
+    private long runRounds() {
+        Uri forecast = getForecastUri(TestUtilities.TEST_LOCATION);
+        Uri today = getDayUri(TestUtilities.TEST_LOCATION, 0);
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < READS_PER_ROUND; i++) {
+                read(i % 5 == 0 ? forecast : today);
+            }
+            // A sync that changes a day now and then, and another location every time.
+            writeForecast(mLocationRowId, round % 4 == 0 ? round % NUM_DAYS : -1);
+            writeForecast(mOtherLocationRowId, round % NUM_DAYS);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void logStats(String kind, int match) {
+        QueryCache.Stats stats = mCache.getStatsFor(match);
+        int queries = stats.hits + stats.misses;
+        long missMicros = stats.misses == 0 ? 0 : stats.missNanos / stats.misses / 1000;
+        long hitMicros = stats.hits == 0 ? 0 : stats.hitNanos / stats.hits / 1000;
+        Log.i(LOG_TAG, kind + ": " + queries + " queries, hit rate "
+                + (queries == 0 ? 0 : stats.hits * 100 / queries) + "%, " + missMicros
+                + " us from SQLite, " + hitMicros + " us from the cache, "
+                + stats.hits * (missMicros - hitMicros) / 1000 + " ms saved");
+    }
+
+    public void testHitRate() {
+        mCache.setEnabled(false);
+        long uncached = runRounds();
+        mCache.setEnabled(true);
+        long cached = runRounds();
+
+        logStats("weather/*", WeatherProvider.WEATHER_WITH_LOCATION);
+        logStats("weather/*/#", WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        Log.i(LOG_TAG, ROUNDS + " rounds of " + READS_PER_ROUND + " reads and a sync: "
+                + uncached / 1000000 + " ms without the cache, " + cached / 1000000
+                + " ms with it");
+        assertTrue("Error: the queries between syncs must mostly hit",
+                getHits(WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE)
+                        > ROUNDS * READS_PER_ROUND / 2);
+    }
+}
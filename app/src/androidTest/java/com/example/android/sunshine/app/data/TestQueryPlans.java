@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/*
+    Explains the plan of every query the provider runs for a location, and of the lookups its
+    writes make, on the schema a fresh install gets, and fails if one scans a table or an index
+    instead of seeking it.  The queries of a whole table, without a selection, read every row
+    anyway and are left out.
+
+    testJoinLatency fills the tables with thousands of locations and months of history, and logs
+    the latency of the list and detail queries with the index on location and date, and without.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+    private static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "weather-plan-test.db";
+
+    // "SCAN TABLE weather" before SQLite 3.24, "SCAN weather" since, with or without an index.
+    private static final Pattern SCAN = Pattern.compile("^SCAN (TABLE )?\\w+.*");
+
+    private static final int NUM_LOCATIONS = 2000;
+    private static final int NUM_DAYS = 60;
+    private static final int QUERIES = 200;
+
+    private static final String DATE_ORDER = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(DATABASE_NAME);
+        mDb = new WeatherDbHelper(mContext, DATABASE_NAME).getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private static String[] args(int count) {
+        String[] args = new String[count];
+        Arrays.fill(args, "1");
+        return args;
+    }
+
+    private List<String> explain(String sql, int argCount) {
+        List<String> plan = new ArrayList<String>();
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args(argCount));
+        try {
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detail));
+            }
+        } finally {
+            cursor.close();
+        }
+        return plan;
+    }
+
+    private List<String> assertNoScan(String shape, String sql, int argCount) {
+        List<String> plan = explain(sql, argCount);
+        Log.i(LOG_TAG, shape + ": " + plan);
+        assertFalse("Error: no plan for " + shape, plan.isEmpty());
+        for (String step : plan) {
+            assertFalse("Error: " + shape + " scans: " + plan, SCAN.matcher(step).matches());
+        }
+        return plan;
+    }
+
+    private static String buildWeatherQuery(String selection, String sortOrder) {
+        return WeatherProvider.sWeatherByLocationSettingQueryBuilder.buildQuery(null, selection,
+                null, null, sortOrder, null);
+    }
+
+    private static String buildHourlyQuery(String selection) {
+        return WeatherProvider.sHourlyByLocationSettingQueryBuilder.buildQuery(null, selection,
+                null, null, WeatherProvider.sHourlyDefaultSortOrder, null);
+    }
+
+    public void testWeatherQueriesSeek() {
+        // weather/*, as Muzei and the tests read it.
+        assertNoScan("weather/*",
+                buildWeatherQuery(WeatherProvider.sLocationSettingSelection, null), 1);
+        // weather/*?date=, the list, the widgets and the notification, in date order.
+        List<String> plan = assertNoScan("weather/*?date=", buildWeatherQuery(
+                WeatherProvider.sLocationSettingWithStartDateSelection, DATE_ORDER), 2);
+        for (String step : plan) {
+            assertFalse("Error: the forecast of a location is sorted apart: " + plan,
+                    step.contains("TEMP B-TREE"));
+        }
+        // weather/*/#, the detail view and today's widget.
+        assertNoScan("weather/*/#",
+                buildWeatherQuery(WeatherProvider.sLocationSettingAndDaySelection, null), 2);
+    }
+
+    public void testHourlyQueriesSeek() {
+        assertNoScan("hourly/*", buildHourlyQuery(WeatherProvider.sLocationSettingSelection), 1);
+        assertNoScan("hourly/*/#/#",
+                buildHourlyQuery(WeatherProvider.sLocationSettingWithTimeRangeSelection), 3);
+    }
+
+    public void testLocationQueriesSeek() {
+        // The sync looks the row of a setting up.
+        assertNoScan("location by setting", SQLiteQueryBuilder.buildQueryString(false,
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                null, null, null, null), 1);
+    }
+
+    public void testWriteLookupsSeek() {
+        assertNoScan("upsert", WeatherUpsert.UPDATE_SQL, 10);
+        assertNoScan("prune", "DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME
+                + " WHERE " + WeatherProvider.sPruneSelection, 1);
+        assertNoScan("days of the prune", WeatherChanges.buildDaysQuery(
+                WeatherProvider.sPruneSelection), 1);
+        assertNoScan("days of a day", WeatherChanges.buildDaysQuery(
+                WeatherContract.WeatherEntry.COLUMN_DATE + " = ?"), 1);
+        assertNoScan("days of a location", WeatherChanges.buildDaysQuery(
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?"), 1);
+    }
+
+    private static String getSetting(int location) {
+        return "plan-" + location;
+    }
+
+    private void fill() {
+        mDb.beginTransaction();
+        SQLiteStatement location = mDb.compileStatement("INSERT INTO "
+                + WeatherContract.LocationEntry.TABLE_NAME + " ("
+                + WeatherContract.LocationEntry._ID + ", "
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + ", "
+                + WeatherContract.LocationEntry.COLUMN_CITY_NAME + ", "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LAT + ", "
+                + WeatherContract.LocationEntry.COLUMN_COORD_LONG
+                + ") VALUES (?, ?, 'City', 64.7488, -147.353)");
+        WeatherUpsert upsert = new WeatherUpsert(mDb);
+        try {
+            for (int i = 0; i < NUM_LOCATIONS; i++) {
+                location.bindLong(1, i + 1);
+                location.bindString(2, getSetting(i));
+                location.executeInsert();
+            }
+            // Day after day, as syncs over months would have written them.
+            for (int day = 0; day < NUM_DAYS; day++) {
+                long date = upsert.normalizeDate(
+                        TestUtilities.TEST_DATE + day * DateUtils.DAY_IN_MILLIS);
+                for (int i = 0; i < NUM_LOCATIONS; i++) {
+                    assertEquals(WeatherUpsert.RESULT_INSERTED, upsert.upsert(i + 1, date,
+                            50, 1013, 5.5, 90, 20.5, 10.5, "Clear", 800));
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            location.close();
+            upsert.close();
+            mDb.endTransaction();
+        }
+    }
+
+    // The median latency of the query for random locations, in microseconds.
+    private long medianMicros(String sql, boolean withDate) {
+        Random random = new Random(42);
+        long[] nanos = new long[QUERIES];
+        long date = WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + (NUM_DAYS - 14) * DateUtils.DAY_IN_MILLIS);
+        for (int i = 0; i < QUERIES; i++) {
+            String[] args = withDate
+                    ? new String[]{getSetting(random.nextInt(NUM_LOCATIONS)), Long.toString(date)}
+                    : new String[]{getSetting(random.nextInt(NUM_LOCATIONS))};
+            long start = System.nanoTime();
+            Cursor cursor = mDb.rawQuery(sql, args);
+            cursor.getCount();
+            cursor.close();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        return nanos[QUERIES / 2] / 1000;
+    }
+
+    public void testJoinLatency() {
+        fill();
+        String list = buildWeatherQuery(
+                WeatherProvider.sLocationSettingWithStartDateSelection, DATE_ORDER);
+        String history = buildWeatherQuery(WeatherProvider.sLocationSettingSelection, DATE_ORDER);
+        String detail = buildWeatherQuery(WeatherProvider.sLocationSettingAndDaySelection, null);
+
+        long listIndexed = medianMicros(list, true);
+        long historyIndexed = medianMicros(history, false);
+        long detailIndexed = medianMicros(detail, true);
+        mDb.execSQL("DROP INDEX " + WeatherDbHelper.WEATHER_LOCATION_DATE_INDEX);
+        long listUnindexed = medianMicros(list, true);
+        long historyUnindexed = medianMicros(history, false);
+        long detailUnindexed = medianMicros(detail, true);
+
+        Log.i(LOG_TAG, NUM_LOCATIONS + " locations, " + NUM_DAYS + " days each, median of "
+                + QUERIES + " queries with the index and without: from a day " + listIndexed
+                + " us and " + listUnindexed + " us, every day " + historyIndexed + " us and "
+                + historyUnindexed + " us, one day " + detailIndexed + " us and "
+                + detailUnindexed + " us");
+        assertTrue("Error: the index does not speed up the forecast of a location",
+                historyIndexed < historyUnindexed);
+    }
+}
@@ -23,12 +23,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.test.AndroidTestCase;
 
 import com.example.android.sunshine.app.utils.PollingCheck;
 
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /*
     Students: These are functions and some test data to make it easier to test your database and
@@ -158,9 +161,43 @@ public class TestUtilities extends AndroidTestCase {
             }.run();
             mHT.quit();
         }
+
+        /**
+         * Waits until every notification sent so far has reached this observer, so that
+         * {@link #mContentChanged} still being false means there was none.
+         */
+        public void waitForPendingNotifications(Context context) {
+            TestUtilities.waitForPendingNotifications(context, mHT.getLooper());
+        }
     }
 
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
     }
+
+    /**
+     * Sends a notification of a URI nobody else observes and waits for it to reach an observer
+     * on the looper.  The notifications sent before it have been handed to the observers on the
+     * same looper by then, so a test can tell that one never came without sleeping on it.
+     */
+    static void waitForPendingNotifications(Context context, Looper looper) {
+        final CountDownLatch delivered = new CountDownLatch(1);
+        ContentObserver barrier = new ContentObserver(new Handler(looper)) {
+            @Override
+            public void onChange(boolean selfChange) {
+                delivered.countDown();
+            }
+        };
+        Uri uri = WeatherContract.BASE_CONTENT_URI.buildUpon().appendPath("barrier").build();
+        context.getContentResolver().registerContentObserver(uri, false, barrier);
+        try {
+            context.getContentResolver().notifyChange(uri, null, false);
+            assertTrue("Error: the notifications were never delivered",
+                    delivered.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            fail("unexpected InterruptedException");
+        } finally {
+            context.getContentResolver().unregisterContentObserver(barrier);
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.TimeZone;
+
+/*
+    Walks the adaptive scheduler through quiet syncs, changing forecasts, storms and device
+    states.  The requests of the day are counted by the day of the user's clock.
+ */
+public class TestAdaptiveSyncScheduler extends AndroidTestCase {
+
+    private static final int DEFAULT = SunshineSyncAdapter.SYNC_INTERVAL;
+
+    private static AdaptiveSyncScheduler.Inputs quiet() {
+        AdaptiveSyncScheduler.Inputs inputs = new AdaptiveSyncScheduler.Inputs();
+        inputs.changedRows = 0;
+        return inputs;
+    }
+
+    public void testQuietSyncsLengthenInterval() {
+        int base = DEFAULT;
+        base = AdaptiveSyncScheduler.computeBaseInterval(base, quiet());
+        assertEquals(DEFAULT * 2, base);
+        for (int i = 0; i < 10; i++) {
+            base = AdaptiveSyncScheduler.computeBaseInterval(base, quiet());
+        }
+        assertEquals("Error: the interval must not grow past the maximum",
+                AdaptiveSyncScheduler.MAX_INTERVAL, base);
+
+        AdaptiveSyncScheduler.Inputs changed = quiet();
+        changed.changedRows = 3;
+        assertEquals("Error: a change must bring the default interval back",
+                DEFAULT, AdaptiveSyncScheduler.computeBaseInterval(base, changed));
+    }
+
+    public void testRequestsCountByLocalDay() {
+        TimeZone sydney = TimeZone.getTimeZone("GMT+10:00");
+        // 2015-01-01 13:59:59 and 14:00:00 UTC, the same day in UTC but midnight in Sydney.
+        long beforeMidnight = 1420120799000L;
+        long afterMidnight = beforeMidnight + 1000;
+        assertEquals(beforeMidnight / (24 * 60 * 60 * 1000L),
+                afterMidnight / (24 * 60 * 60 * 1000L));
+        assertEquals("Error: the day must roll over at local midnight",
+                AdaptiveSyncScheduler.getLocalDay(beforeMidnight, sydney) + 1,
+                AdaptiveSyncScheduler.getLocalDay(afterMidnight, sydney));
+    }
+
+    public void testStormShortensInterval() {
+        AdaptiveSyncScheduler.Inputs storm = quiet();
+        storm.storm = true;
+        assertEquals(AdaptiveSyncScheduler.MIN_INTERVAL,
+                AdaptiveSyncScheduler.computeBaseInterval(AdaptiveSyncScheduler.MAX_INTERVAL,
+                        storm));
+        // Once the storm has passed, quiet syncs lengthen from there again.
+        assertEquals(AdaptiveSyncScheduler.MIN_INTERVAL * 2,
+                AdaptiveSyncScheduler.computeBaseInterval(AdaptiveSyncScheduler.MIN_INTERVAL,
+                        quiet()));
+    }
+
+    public void testDeviceStateStretchesInterval() {
+        AdaptiveSyncScheduler.Inputs inputs = quiet();
+        assertEquals(DEFAULT, AdaptiveSyncScheduler.computeInterval(DEFAULT, inputs));
+
+        inputs.metered = true;
+        assertEquals(DEFAULT * 2, AdaptiveSyncScheduler.computeInterval(DEFAULT, inputs));
+
+        inputs.metered = false;
+        inputs.batteryPercent = AdaptiveSyncScheduler.LOW_BATTERY_PERCENT;
+        assertEquals(DEFAULT * 2, AdaptiveSyncScheduler.computeInterval(DEFAULT, inputs));
+        inputs.charging = true;
+        assertEquals("Error: a charging device is not short on battery",
+                DEFAULT, AdaptiveSyncScheduler.computeInterval(DEFAULT, inputs));
+
+        inputs.sinceForegroundMillis = AdaptiveSyncScheduler.IDLE_MILLIS;
+        inputs.metered = true;
+        assertEquals(AdaptiveSyncScheduler.MAX_INTERVAL,
+                AdaptiveSyncScheduler.computeInterval(DEFAULT, inputs));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Dispatches a fast consumer, one that hangs past its timeout and one that throws, and checks
+    that the dispatch returns at once, that the consumers neither wait for nor break each other,
+    that the hanging one is interrupted at its deadline, and that every latency lands in the
+    trace before the listener hears about it.
+ */
+public class TestFanOutDispatcher extends AndroidTestCase {
+
+    private static final long TIMEOUT_MILLIS = 300;
+    private static final long HANG_MILLIS = 5000;
+
+    public void testConsumersAreIsolated() throws InterruptedException {
+        final AtomicBoolean fastDone = new AtomicBoolean();
+        final AtomicBoolean slowInterrupted = new AtomicBoolean();
+        final AtomicInteger completions = new AtomicInteger();
+        final CountDownLatch complete = new CountDownLatch(1);
+
+        List<FanOutDispatcher.Consumer> consumers = new ArrayList<FanOutDispatcher.Consumer>();
+        consumers.add(new FanOutDispatcher.Consumer("slow", SyncTrace.STAGE_NOTIFICATION,
+                TIMEOUT_MILLIS) {
+            @Override
+            public void consume() {
+                try {
+                    Thread.sleep(HANG_MILLIS);
+                } catch (InterruptedException e) {
+                    slowInterrupted.set(true);
+                }
+            }
+        });
+        consumers.add(new FanOutDispatcher.Consumer("failing", SyncTrace.STAGE_MUZEI,
+                TIMEOUT_MILLIS) {
+            @Override
+            public void consume() {
+                throw new IllegalStateException("art pack missing");
+            }
+        });
+        consumers.add(new FanOutDispatcher.Consumer("fast", SyncTrace.STAGE_WIDGETS,
+                TIMEOUT_MILLIS) {
+            @Override
+            public void consume() {
+                fastDone.set(true);
+            }
+        });
+
+        final SyncTrace trace = new SyncTrace();
+        final long[] slowMillis = new long[1];
+        FanOutDispatcher dispatcher = new FanOutDispatcher((PowerManager) null);
+        long start = SystemClock.elapsedRealtime();
+        dispatcher.dispatch(consumers, trace, new FanOutDispatcher.Listener() {
+            @Override
+            public void onFanOutComplete() {
+                slowMillis[0] = trace.getMillis(SyncTrace.STAGE_NOTIFICATION);
+                completions.incrementAndGet();
+                complete.countDown();
+            }
+        });
+        long dispatchMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: dispatch must not wait for the consumers, took " + dispatchMillis,
+                dispatchMillis < TIMEOUT_MILLIS);
+
+        assertTrue("Error: the fan-out never completed",
+                complete.await(HANG_MILLIS, TimeUnit.MILLISECONDS));
+        long completeMillis = SystemClock.elapsedRealtime() - start;
+        assertTrue("Error: a hanging consumer must be given up at its timeout, took "
+                + completeMillis, completeMillis < HANG_MILLIS);
+
+        assertTrue("Error: a failing consumer must not keep the others from running",
+                fastDone.get());
+        assertTrue(slowMillis[0] >= TIMEOUT_MILLIS);
+        assertTrue(trace.getMillis(SyncTrace.STAGE_WIDGETS) < TIMEOUT_MILLIS);
+
+        // The hanging consumer is interrupted; its late end must not complete the fan-out again.
+        SystemClock.sleep(TIMEOUT_MILLIS);
+        assertTrue(slowInterrupted.get());
+        assertEquals(1, completions.get());
+    }
+
+    public void testEmptyDispatchCompletes() {
+        final AtomicInteger completions = new AtomicInteger();
+        new FanOutDispatcher((PowerManager) null).dispatch(
+                new ArrayList<FanOutDispatcher.Consumer>(), new SyncTrace(),
+                new FanOutDispatcher.Listener() {
+                    @Override
+                    public void onFanOutComplete() {
+                        completions.incrementAndGet();
+                    }
+                });
+        assertEquals(1, completions.get());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+    Fetches several locations from a local stand-in for OpenWeatherMap that takes a while to
+    answer, and checks that the pool overlaps the requests: the wall time has to follow the
+    slowest fetch rather than the sum of all of them.  A location the server does not know must
+    fail on its own without taking the others down.  The locations saved in the settings must
+    all be fetched, after the preferred one.
+ */
+public class TestForecastFetchPool extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastFetchPool.class.getSimpleName();
+
+    private static final int NUM_DAYS = 14;
+    private static final long SERVER_DELAY_MILLIS = 300;
+    private static final String UNKNOWN_LOCATION = "nowhere";
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] forecast =
+                TestForecastIngest.createForecastJson(NUM_DAYS).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                SystemClock.sleep(SERVER_DELAY_MILLIS);
+                if (request.path.contains("q=" + UNKNOWN_LOCATION)) {
+                    return new StubHttpServer.Response(500, new byte[0]);
+                }
+                return new StubHttpServer.Response(200, forecast)
+                        .setHeader("Content-Type", "application/json; charset=utf-8");
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private ForecastFetchPool createPool(int maxParallel) {
+        ForecastFetcher fetcher = new ForecastFetcher(mServer.getUrl(),
+                getContext().getCacheDir(), new ForecastValidators(getContext()), null);
+        return new ForecastFetchPool(fetcher, maxParallel);
+    }
+
+    private static List<ForecastRequest> createRequests(int count) {
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        for (int i = 0; i < count; i++) {
+            requests.add(ForecastRequest.forLocation("9404" + i, NUM_DAYS));
+        }
+        return requests;
+    }
+
+    public void testWallTimeFollowsSlowestFetch() throws IOException {
+        int count = ForecastFetchPool.MAX_PARALLEL_FETCHES;
+        List<ForecastRequest> requests = createRequests(count);
+
+        long start = SystemClock.elapsedRealtime();
+        List<ForecastFetchPool.Result> results =
+                createPool(ForecastFetchPool.MAX_PARALLEL_FETCHES)
+                        .fetchAll(requests, new boolean[count]);
+        long parallelMillis = SystemClock.elapsedRealtime() - start;
+
+        long sequentialMillis = 0;
+        assertEquals(count, results.size());
+        for (int i = 0; i < count; i++) {
+            ForecastFetchPool.Result result = results.get(i);
+            assertSame("Error: results must come back in request order",
+                    requests.get(i), result.getRequest());
+            assertNotNull("Error: fetch failed: " + result.getError(), result.getResponse());
+            assertEquals(ForecastFetcher.RESULT_CHANGED, result.getResponse().getResult());
+            sequentialMillis += result.getElapsedMillis();
+            result.getResponse().release();
+        }
+
+        Log.i(LOG_TAG, String.format("%d locations: %d ms wall, %d ms summed over fetches",
+                count, parallelMillis, sequentialMillis));
+        assertTrue("Error: the fetches did not overlap (" + parallelMillis + " ms)",
+                parallelMillis < SERVER_DELAY_MILLIS * 2);
+    }
+
+    public void testPoolIsBounded() throws IOException {
+        // Twice as many locations as threads take two rounds of the server delay.
+        int count = 4;
+        long start = SystemClock.elapsedRealtime();
+        List<ForecastFetchPool.Result> results =
+                createPool(2).fetchAll(createRequests(count), new boolean[count]);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        for (ForecastFetchPool.Result result : results) {
+            result.getResponse().release();
+        }
+        assertTrue("Error: more fetches ran at once than the pool allows (" + elapsed + " ms)",
+                elapsed >= SERVER_DELAY_MILLIS * 2);
+    }
+
+    public void testFailureIsIsolated() throws IOException {
+        List<ForecastRequest> requests = createRequests(2);
+        requests.add(1, ForecastRequest.forLocation(UNKNOWN_LOCATION, NUM_DAYS));
+
+        List<ForecastFetchPool.Result> results =
+                createPool(ForecastFetchPool.MAX_PARALLEL_FETCHES)
+                        .fetchAll(requests, new boolean[requests.size()]);
+
+        assertNull(results.get(1).getResponse());
+        assertNotNull("Error: the failed location must report its error",
+                results.get(1).getError());
+        assertNotNull(results.get(0).getResponse());
+        assertNotNull(results.get(2).getResponse());
+        results.get(0).getResponse().release();
+        results.get(2).getResponse().release();
+    }
+
+    public void testSyncRequestsFollowSavedLocations() {
+        Set<String> before = Utility.getSavedLocations(mContext);
+        String preferred = Utility.getPreferredLocation(mContext);
+        try {
+            // The preferred location may be saved too, and is only fetched once.
+            Utility.setSavedLocations(mContext,
+                    new HashSet<String>(Arrays.asList("94040", "94041", preferred)));
+            List<ForecastRequest> requests =
+                    SunshineSyncAdapter.getSyncRequests(mContext, NUM_DAYS);
+            assertEquals(3, requests.size());
+            assertEquals(preferred, requests.get(0).getLocationSetting());
+            Set<String> others = new HashSet<String>();
+            for (ForecastRequest request : requests.subList(1, requests.size())) {
+                others.add(request.getLocationSetting());
+            }
+            assertEquals(new HashSet<String>(Arrays.asList("94040", "94041")), others);
+        } finally {
+            Utility.setSavedLocations(mContext, before);
+        }
+    }
+}
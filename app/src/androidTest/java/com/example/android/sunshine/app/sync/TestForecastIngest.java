@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.owmparse.OwmForecastParser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+/*
+    Compares the owmparse forecast parser the sync adapter uses with the JSONObject tree parsing
+    it used to do, on the device.  Both paths have to produce the same rows; the allocated bytes
+    and the time taken by each are written to the log so they can be compared across payload
+    sizes.  The JMH suite of the owmparse module makes the same comparison on the build host.
+ */
+public class TestForecastIngest extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastIngest.class.getSimpleName();
+
+    // 14 days is the current feed, 16 days the longest daily feed and 40/400 entries are the
+    // sizes of the 3-hourly feed for 5 and 50 days.
+    private static final int[] PAYLOAD_SIZES = {14, 16, 40, 400};
+    private static final int RUNS = 5;
+
+    static String createForecastJson(int days) {
+        StringBuilder json = new StringBuilder(256 + days * 320);
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lon\":-122.083847,\"lat\":37.386051},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0121,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+            json.append("{\"dt\":").append(1419105600L + i * 86400L)
+                    .append(",\"temp\":{\"day\":12.5,\"min\":").append(5 + i % 7)
+                    .append(".25,\"max\":").append(15 + i % 9)
+                    .append(".75,\"night\":6.1,\"eve\":11.2,\"morn\":7.3},")
+                    .append("\"pressure\":").append(1010 + i % 13).append(".42,")
+                    .append("\"humidity\":").append(60 + i % 30).append(',')
+                    .append("\"weather\":[{\"id\":").append(800 + i % 5)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}],")
+                    .append("\"speed\":").append(1 + i % 6).append(".5,")
+                    .append("\"deg\":").append(i * 17 % 360).append(',')
+                    .append("\"clouds\":0}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    // The parsing SunshineSyncAdapter did before the streaming parser, kept as the reference.
+    static Vector<ContentValues> parseTree(String forecastJsonStr) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        cityJson.getString("name");
+        cityJson.getJSONObject("coord").getDouble("lat");
+
+        Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, i);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt("humidity"));
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble("pressure"));
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble("speed"));
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble("deg"));
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble("max"));
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble("min"));
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString("main"));
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt("id"));
+            cVVector.add(weatherValues);
+        }
+        return cVVector;
+    }
+
+    // Collects rows the way the sync adapter does, keeping at most one batch alive.  Every
+    // flushed batch is also kept when a copy is requested so the two paths can be compared.
+    static class BatchingCallback implements OwmForecastParser.Callback {
+        final ArrayList<ContentValues> mBatch =
+                new ArrayList<ContentValues>(SunshineSyncAdapter.INGEST_BATCH_SIZE);
+        final List<ContentValues> mCopy;
+        String mCityName;
+
+        BatchingCallback(List<ContentValues> copy) {
+            mCopy = copy;
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double latitude, double longitude) {
+            mCityName = cityName;
+        }
+
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_DATE, index);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, humidity);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, pressure);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, windDirection);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, high);
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, low);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, description);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+            mBatch.add(weatherValues);
+            if (mBatch.size() >= SunshineSyncAdapter.INGEST_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (mCopy != null) {
+                mCopy.addAll(mBatch);
+            }
+            mBatch.clear();
+        }
+    }
+
+    public void testStreamingMatchesTree() throws IOException, JSONException {
+        String json = createForecastJson(100);
+
+        Vector<ContentValues> treeRows = parseTree(json);
+
+        List<ContentValues> streamRows = new ArrayList<ContentValues>();
+        BatchingCallback callback = new BatchingCallback(streamRows);
+        int code = new OwmForecastParser().parse(new StringReader(json), callback);
+        callback.flush();
+
+        assertEquals(200, code);
+        assertEquals("Mountain View", callback.mCityName);
+        assertEquals(treeRows.size(), streamRows.size());
+        for (int i = 0; i < treeRows.size(); i++) {
+            assertEquals("Error: row " + i + " differs between tree and streaming parse",
+                    treeRows.get(i), streamRows.get(i));
+        }
+    }
+
+    public void testErrorCodeStopsParsing() throws IOException, JSONException {
+        String json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+        int code = new OwmForecastParser().parse(new StringReader(json),
+                new BatchingCallback(null));
+        assertEquals(404, code);
+    }
+
+    public void testIncompleteDayIsRejected() throws IOException {
+        String json = "{\"cod\":\"200\",\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}},"
+                + "\"list\":[{\"pressure\":1000,\"humidity\":50}]}";
+        try {
+            new OwmForecastParser().parse(new StringReader(json),
+                    new BatchingCallback(null));
+            fail("Error: a day without temperatures should not parse");
+        } catch (JSONException expected) {
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testCompareMemoryAndLatency() throws IOException, JSONException {
+        for (int days : PAYLOAD_SIZES) {
+            String json = createForecastJson(days);
+
+            long treeNanos = Long.MAX_VALUE;
+            long streamNanos = Long.MAX_VALUE;
+            long treeBytes = 0;
+            long streamBytes = 0;
+
+            for (int run = 0; run < RUNS; run++) {
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                long start = System.nanoTime();
+                Vector<ContentValues> rows = parseTree(json);
+                treeNanos = Math.min(treeNanos, System.nanoTime() - start);
+                Debug.stopAllocCounting();
+                treeBytes = Debug.getThreadAllocSize();
+                assertEquals(days, rows.size());
+
+                BatchingCallback callback = new BatchingCallback(null);
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                start = System.nanoTime();
+                new OwmForecastParser().parse(new StringReader(json), callback);
+                callback.flush();
+                streamNanos = Math.min(streamNanos, System.nanoTime() - start);
+                Debug.stopAllocCounting();
+                streamBytes = Debug.getThreadAllocSize();
+            }
+
+            // The tree path also needs the whole body as a String while the streaming path reads
+            // it off the connection, so its real peak is at least json.length() * 2 higher.
+            Log.i(LOG_TAG, String.format("%d days (%d chars): tree %d us / %d bytes allocated, "
+                            + "stream %d us / %d bytes allocated",
+                    days, json.length(), treeNanos / 1000, treeBytes,
+                    streamNanos / 1000, streamBytes));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+    Runs the forecast fetcher against a local stand-in for OpenWeatherMap to check that responses
+    are negotiated as gzip, cached on disk and served from the cache until the TTL runs out.
+    The bytes and time saved by the cache are written to the log.
+ */
+public class TestForecastResponseCache extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestForecastResponseCache.class.getSimpleName();
+
+    private static final int NUM_DAYS = 16;
+
+    private StubHttpServer mServer;
+    private File mCacheDir;
+    private ForecastValidators mValidators;
+    private ForecastRequest mRequest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] forecast =
+                TestForecastIngest.createForecastJson(NUM_DAYS).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(200, forecast)
+                        .setHeader("Content-Type", "application/json; charset=utf-8");
+            }
+        });
+        mServer.start();
+
+        mCacheDir = new File(getContext().getCacheDir(), "test-owm-cache");
+        deleteDir(mCacheDir);
+        mValidators = new ForecastValidators(getContext());
+        mRequest = new ForecastRequest("94043", false, "0", "0",
+                ForecastRequest.UNITS_METRIC, NUM_DAYS);
+        mValidators.clear(mRequest.getKey());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mValidators.clear(mRequest.getKey());
+        deleteDir(mCacheDir);
+        super.tearDown();
+    }
+
+    private ForecastFetcher createFetcher(ForecastResponseCache cache) {
+        return new ForecastFetcher(mServer.getUrl(), getContext().getCacheDir(), mValidators,
+                cache);
+    }
+
+    public void testCacheSavesBytesAndTime() throws IOException {
+        ForecastResponseCache cache = new ForecastResponseCache(mCacheDir,
+                ForecastResponseCache.DEFAULT_MAX_SIZE_BYTES,
+                ForecastResponseCache.DEFAULT_TTL_MILLIS);
+        ForecastFetcher fetcher = createFetcher(cache);
+
+        long start = System.nanoTime();
+        ForecastFetcher.Response network = fetcher.fetch(mRequest, false);
+        long networkNanos = System.nanoTime() - start;
+        long bodyLength = network.getBody().length();
+
+        assertEquals(ForecastFetcher.RESULT_CHANGED, network.getResult());
+        assertFalse("Error: the first fetch cannot come from the cache", network.isFromCache());
+        assertTrue("Error: the response was not negotiated as gzip",
+                network.getWireBytes() > 0 && network.getWireBytes() < bodyLength);
+        network.commit();
+        network.release();
+        assertEquals(1, mServer.getRequestCount());
+
+        start = System.nanoTime();
+        ForecastFetcher.Response cached = fetcher.fetch(mRequest, false);
+        long cachedNanos = System.nanoTime() - start;
+
+        assertTrue("Error: the second fetch should come from the cache", cached.isFromCache());
+        assertEquals(0, cached.getWireBytes());
+        assertEquals(bodyLength, cached.getBody().length());
+        assertEquals("Error: the cache should have kept us off the network",
+                1, mServer.getRequestCount());
+        cached.release();
+
+        // With the validators of the ingest stored, a cached body is recognized as unchanged.
+        ForecastFetcher.Response unchanged = fetcher.fetch(mRequest, true);
+        assertEquals(ForecastFetcher.RESULT_UNCHANGED, unchanged.getResult());
+        unchanged.release();
+
+        Log.i(LOG_TAG, String.format("network: %d us, %d bytes over the wire (%d uncompressed); "
+                        + "cache: %d us, 0 bytes; %d bytes on disk",
+                networkNanos / 1000, network.getWireBytes(), bodyLength, cachedNanos / 1000,
+                cache.size()));
+    }
+
+    public void testExpiredEntryGoesToNetwork() throws IOException {
+        ForecastResponseCache cache = new ForecastResponseCache(mCacheDir,
+                ForecastResponseCache.DEFAULT_MAX_SIZE_BYTES, 0);
+        ForecastFetcher fetcher = createFetcher(cache);
+
+        ForecastFetcher.Response first = fetcher.fetch(mRequest, false);
+        first.commit();
+        first.release();
+
+        ForecastFetcher.Response second = fetcher.fetch(mRequest, false);
+        assertFalse("Error: an expired entry must not be served", second.isFromCache());
+        second.release();
+        assertEquals(2, mServer.getRequestCount());
+    }
+
+    public void testUncommittedResponseIsNotCached() throws IOException {
+        ForecastResponseCache cache = new ForecastResponseCache(mCacheDir,
+                ForecastResponseCache.DEFAULT_MAX_SIZE_BYTES,
+                ForecastResponseCache.DEFAULT_TTL_MILLIS);
+        ForecastFetcher fetcher = createFetcher(cache);
+
+        // A body that failed to ingest is released without a commit.
+        fetcher.fetch(mRequest, false).release();
+        ForecastFetcher.Response retry = fetcher.fetch(mRequest, false);
+        assertFalse("Error: a retry must not be served a body that was never ingested",
+                retry.isFromCache());
+        retry.release();
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        File body = File.createTempFile("body", ".json", getContext().getCacheDir());
+        FileOutputStream out = new FileOutputStream(body);
+        out.write(TestForecastIngest.createForecastJson(NUM_DAYS).getBytes("UTF-8"));
+        out.close();
+
+        ForecastResponseCache sizing = new ForecastResponseCache(mCacheDir, Long.MAX_VALUE,
+                ForecastResponseCache.DEFAULT_TTL_MILLIS);
+        sizing.put("sizing", body);
+        long entrySize = sizing.size();
+        sizing.remove("sizing");
+
+        // Room for two entries.  The entries are aged by their file times rather than by
+        // waiting, as file times may only have a resolution of one second.
+        ForecastResponseCache cache = new ForecastResponseCache(mCacheDir,
+                entrySize * 2 + entrySize / 2, ForecastResponseCache.DEFAULT_TTL_MILLIS);
+        long now = System.currentTimeMillis();
+        cache.put("a", body);
+        assertTrue(cache.getEntryFile("a").setLastModified(now - 2 * DateUtils.MINUTE_IN_MILLIS));
+        cache.put("b", body);
+        assertTrue(cache.getEntryFile("b").setLastModified(now - DateUtils.MINUTE_IN_MILLIS));
+        closeQuietly(cache.get("a"));
+        cache.put("c", body);
+
+        InputStream a = cache.get("a");
+        InputStream b = cache.get("b");
+        InputStream c = cache.get("c");
+        assertNotNull("Error: the recently used entry was evicted", a);
+        assertNull("Error: the least recently used entry was kept", b);
+        assertNotNull("Error: the newest entry was evicted", c);
+        closeQuietly(a);
+        closeQuietly(c);
+        body.delete();
+    }
+
+    private static void closeQuietly(InputStream in) throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
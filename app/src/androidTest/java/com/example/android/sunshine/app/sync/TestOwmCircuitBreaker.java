@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SyncResult;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+    Drives the circuit breaker with a local stand-in for OpenWeatherMap that fails on demand.
+    Syncs are simulated on a clock of their own, one a minute: failures must back off, open the
+    circuit after the threshold so that the server sees no requests at all, and a single probe
+    must close it again once the server is back.  A sync the user waits for must get through as
+    a probe, and a request OWM turned down for good must only hold back itself.  The state has
+    to survive a new breaker, as it would a new process.  A sync that failed or was held back
+    must not pass for one that found the forecast unchanged.
+ */
+public class TestOwmCircuitBreaker extends AndroidTestCase {
+
+    private static final String PREFS_NAME = "test_owm_circuit";
+    private static final long SYNC_EVERY_MILLIS = 60 * 1000;
+    private static final String LOCATION = "owmbreaker";
+
+    private StubHttpServer mServer;
+    private volatile int mFailWith;
+    private SharedPreferences mPrefs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] forecast = TestForecastIngest.createForecastJson(1).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                if (mFailWith != 0) {
+                    return new StubHttpServer.Response(mFailWith, new byte[0]);
+                }
+                return new StubHttpServer.Response(200, forecast);
+            }
+        });
+        mServer.start();
+        mPrefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mPrefs.edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        mPrefs.edit().clear().commit();
+        super.tearDown();
+    }
+
+    /**
+     * Fetches the way a sync allowed by the breaker would, and records the outcome.
+     */
+    private void sync(OwmCircuitBreaker breaker, long now) {
+        ForecastFetcher fetcher = new ForecastFetcher(mServer.getUrl(),
+                getContext().getCacheDir(), new ForecastValidators(getContext()), null);
+        OwmCircuitBreaker.Tally tally = new OwmCircuitBreaker.Tally();
+        ForecastRequest request = ForecastRequest.forLocation("94043", 1);
+        try {
+            fetcher.fetch(request, false).release();
+            tally.add(request.getKey(), OwmCircuitBreaker.OUTCOME_SUCCESS);
+        } catch (IOException e) {
+            tally.add(request.getKey(), OwmCircuitBreaker.classify(e));
+        }
+        breaker.record(tally, now);
+    }
+
+    public void testBackoffGrowsWithJitter() {
+        Random random = new Random(42);
+        long previousCeiling = 0;
+        for (int failures = 1; failures <= 12; failures++) {
+            long ceiling = Math.min(OwmCircuitBreaker.BASE_BACKOFF_MILLIS << (failures - 1),
+                    OwmCircuitBreaker.MAX_BACKOFF_MILLIS);
+            for (int i = 0; i < 20; i++) {
+                long backoff = OwmCircuitBreaker.getBackoffMillis(failures, random);
+                assertTrue("Error: backoff " + backoff + " out of range for " + failures,
+                        backoff >= ceiling / 2 && backoff <= ceiling);
+            }
+            assertTrue(ceiling >= previousCeiling);
+            previousCeiling = ceiling;
+        }
+        assertEquals(OwmCircuitBreaker.MAX_BACKOFF_MILLIS, previousCeiling);
+    }
+
+    public void testClassify() {
+        assertEquals(OwmCircuitBreaker.OUTCOME_TRANSIENT,
+                OwmCircuitBreaker.classify(new SocketTimeoutException()));
+        assertEquals(OwmCircuitBreaker.OUTCOME_TRANSIENT,
+                OwmCircuitBreaker.classify(new OwmHttpException(503)));
+        assertEquals(OwmCircuitBreaker.OUTCOME_TRANSIENT,
+                OwmCircuitBreaker.classify(new OwmHttpException(429)));
+        assertEquals(OwmCircuitBreaker.OUTCOME_PERMANENT,
+                OwmCircuitBreaker.classify(new OwmHttpException(401)));
+        assertEquals(OwmCircuitBreaker.OUTCOME_PERMANENT,
+                OwmCircuitBreaker.classify(new JSONException("truncated")));
+        assertEquals("Error: an unknown location is an answer from a working server",
+                OwmCircuitBreaker.OUTCOME_SUCCESS,
+                OwmCircuitBreaker.classify(new OwmHttpException(404)));
+    }
+
+    public void testCircuitOpensAndProbeRecovers() {
+        OwmCircuitBreaker breaker = new OwmCircuitBreaker(mPrefs, new Random(7));
+        mFailWith = 503;
+        long now = 0;
+        int attempts = 0;
+
+        while (breaker.getState() != OwmCircuitBreaker.STATE_OPEN) {
+            if (breaker.checkAttempt(now) == OwmCircuitBreaker.ATTEMPT_ALL) {
+                sync(breaker, now);
+                attempts++;
+            }
+            now += SYNC_EVERY_MILLIS;
+            assertTrue("Error: the circuit never opened", attempts <= 10);
+        }
+        assertEquals(OwmCircuitBreaker.FAILURE_THRESHOLD, attempts);
+        assertEquals(attempts, mServer.getRequestCount());
+
+        // An open circuit keeps every sync off the network until its backoff is over.
+        long reopensAt = breaker.getNextAttemptAt();
+        for (; now < reopensAt; now += SYNC_EVERY_MILLIS) {
+            assertEquals(OwmCircuitBreaker.ATTEMPT_NONE, breaker.checkAttempt(now));
+        }
+        assertEquals(attempts, mServer.getRequestCount());
+
+        // A failed probe opens the circuit again for longer.
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE, breaker.checkAttempt(now));
+        sync(breaker, now);
+        assertEquals(OwmCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertTrue(breaker.getNextAttemptAt() - now
+                >= OwmCircuitBreaker.getBackoffMillis(attempts + 1, new Random(0)) / 2);
+
+        // The server recovers, and one probe closes the circuit.
+        mFailWith = 0;
+        now = breaker.getNextAttemptAt();
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE, breaker.checkAttempt(now));
+        sync(breaker, now);
+        assertEquals(OwmCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureCount());
+        assertEquals(OwmCircuitBreaker.ATTEMPT_ALL, breaker.checkAttempt(now));
+    }
+
+    public void testPermanentFailureDoesNotOpen() {
+        OwmCircuitBreaker breaker = new OwmCircuitBreaker(mPrefs, new Random(7));
+        mFailWith = 401;
+        long now = 0;
+        for (int i = 0; i < OwmCircuitBreaker.FAILURE_THRESHOLD + 1; i++) {
+            sync(breaker, now);
+            now = breaker.getNextAttemptAt();
+        }
+        assertEquals("Error: a rejected key is not an outage",
+                OwmCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals("Error: a request that failed for good held back every sync",
+                OwmCircuitBreaker.ATTEMPT_ALL, breaker.checkAttempt(now));
+        assertTrue(breaker.isHeldBack(ForecastRequest.forLocation("94043", 1).getKey(), now));
+    }
+
+    public void testPermanentFailureHoldsBackOnlyItsRequest() {
+        OwmCircuitBreaker breaker = new OwmCircuitBreaker(mPrefs, new Random(7));
+        OwmCircuitBreaker.Tally tally = new OwmCircuitBreaker.Tally();
+        tally.add("failed", OwmCircuitBreaker.OUTCOME_PERMANENT);
+        tally.add("fine", OwmCircuitBreaker.OUTCOME_SUCCESS);
+        breaker.record(tally, 0);
+
+        assertEquals(OwmCircuitBreaker.ATTEMPT_ALL, breaker.checkAttempt(0));
+        assertTrue(breaker.isHeldBack("failed", 0));
+        assertFalse(breaker.isHeldBack("fine", 0));
+        assertFalse(breaker.isHeldBack("failed", OwmCircuitBreaker.PERMANENT_BACKOFF_MILLIS));
+
+        // The user retried, and this time OWM took it.
+        tally = new OwmCircuitBreaker.Tally();
+        tally.add("failed", OwmCircuitBreaker.OUTCOME_SUCCESS);
+        breaker.record(tally, 1);
+        assertFalse(breaker.isHeldBack("failed", 1));
+    }
+
+    public void testUserWaitingSyncProbes() {
+        OwmCircuitBreaker breaker = new OwmCircuitBreaker(mPrefs, new Random(7));
+        // One failure backs off before the circuit opens.
+        breaker.record(OwmCircuitBreaker.OUTCOME_TRANSIENT, 0);
+        assertEquals(OwmCircuitBreaker.STATE_CLOSED, breaker.getState());
+        assertEquals(OwmCircuitBreaker.ATTEMPT_NONE, breaker.checkAttempt(1, false));
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE, breaker.checkAttempt(1, true));
+
+        for (int i = 1; i < OwmCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.record(OwmCircuitBreaker.OUTCOME_TRANSIENT, 0);
+        }
+        assertEquals(OwmCircuitBreaker.STATE_OPEN, breaker.getState());
+        assertEquals(OwmCircuitBreaker.ATTEMPT_NONE, breaker.checkAttempt(1, false));
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE, breaker.checkAttempt(1, true));
+        assertEquals(OwmCircuitBreaker.STATE_HALF_OPEN, breaker.getState());
+
+        // The probe goes through, which closes the circuit for everyone.
+        breaker.record(OwmCircuitBreaker.OUTCOME_SUCCESS, 1);
+        assertEquals(OwmCircuitBreaker.ATTEMPT_ALL, breaker.checkAttempt(1, false));
+    }
+
+    public void testStateSurvivesRestart() {
+        OwmCircuitBreaker breaker = new OwmCircuitBreaker(mPrefs, new Random(7));
+        for (int i = 0; i < OwmCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            breaker.record(OwmCircuitBreaker.OUTCOME_TRANSIENT, 0);
+        }
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE,
+                breaker.checkAttempt(breaker.getNextAttemptAt()));
+
+        // The probe dies with the process; the next one picks up where it left off.
+        OwmCircuitBreaker restarted = new OwmCircuitBreaker(mPrefs, new Random(7));
+        assertEquals(OwmCircuitBreaker.STATE_HALF_OPEN, restarted.getState());
+        assertEquals(OwmCircuitBreaker.FAILURE_THRESHOLD, restarted.getFailureCount());
+        assertEquals(OwmCircuitBreaker.ATTEMPT_PROBE,
+                restarted.checkAttempt(restarted.getNextAttemptAt()));
+    }
+
+    private static List<ForecastRequest> createRequests() {
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        requests.add(ForecastRequest.forLocation(LOCATION, SunshineSyncAdapter.NUM_DAYS));
+        return requests;
+    }
+
+    public void testSyncWithoutForecastReportsNoData() {
+        Context context = getContext();
+        TestSyncBenchmark.resetSyncState(context);
+        OwmEndpoints.setBaseUrl(mServer.getUrl());
+        SunshineSyncAdapter adapter = new SunshineSyncAdapter(context, false);
+        try {
+            // Every request fails, so nothing is known about the forecast.
+            mFailWith = 503;
+            SyncResult failed = new SyncResult();
+            assertEquals(SunshineSyncAdapter.SYNC_NO_DATA, adapter.performSync(createRequests(),
+                    SunshineSyncAdapter.FETCH_MODE_PER_LOCATION, false, failed, null));
+            assertTrue(failed.hasError());
+
+            // The failure holds the next sync back, which fetches nothing either.
+            mFailWith = 0;
+            int requestCount = mServer.getRequestCount();
+            SyncResult blocked = new SyncResult();
+            assertEquals(SunshineSyncAdapter.SYNC_NO_DATA, adapter.performSync(createRequests(),
+                    SunshineSyncAdapter.FETCH_MODE_PER_LOCATION, false, blocked, null));
+            assertTrue(blocked.hasError());
+            assertEquals(requestCount, mServer.getRequestCount());
+        } finally {
+            OwmEndpoints.setBaseUrl(null);
+            TestSyncBenchmark.resetSyncState(context);
+            TestSyncToday.restoreLocationStatus(context, LOCATION);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+    Compares refreshing many locations one request at a time with the OWM group endpoint, against
+    a local stand-in for OpenWeatherMap that takes a little while to answer every request.  The
+    request counts and wall times for 1, 10 and 50 locations are written to the log.  The group
+    response has to be split back into the cities that were asked for, and cities of a failed
+    group request must come back missing so the sync adapter fetches them on their own.
+ */
+public class TestOwmGroupFetch extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestOwmGroupFetch.class.getSimpleName();
+
+    private static final int[] LOCATION_COUNTS = {1, 10, 50};
+    private static final long SERVER_DELAY_MILLIS = 50;
+    private static final long FIRST_CITY_ID = 5375000;
+
+    private StubHttpServer mServer;
+    private volatile boolean mGroupFails;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] forecast = TestForecastIngest.createForecastJson(14).getBytes("UTF-8");
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                SystemClock.sleep(SERVER_DELAY_MILLIS);
+                if (!request.path.startsWith("/group")) {
+                    return new StubHttpServer.Response(200, forecast);
+                }
+                if (mGroupFails) {
+                    return new StubHttpServer.Response(500, new byte[0]);
+                }
+                try {
+                    return new StubHttpServer.Response(200,
+                            createGroupJson(getIds(request.path)).getBytes("UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    static String createGroupJson(List<Long> cityIds) {
+        StringBuilder json = new StringBuilder(64 + cityIds.size() * 360);
+        json.append("{\"cnt\":").append(cityIds.size()).append(",\"list\":[");
+        for (int i = 0; i < cityIds.size(); i++) {
+            long cityId = cityIds.get(i);
+            if (i > 0) json.append(',');
+            json.append("{\"coord\":{\"lon\":-122.08,\"lat\":37.39},")
+                    .append("\"sys\":{\"country\":\"US\"},")
+                    .append("\"weather\":[{\"id\":").append(800 + i % 5)
+                    .append(",\"main\":\"Clear\",\"description\":\"clear sky\",")
+                    .append("\"icon\":\"01d\"}],")
+                    .append("\"main\":{\"temp\":").append(10 + i % 20).append(".5,")
+                    .append("\"pressure\":1013,\"humidity\":").append(50 + i % 40)
+                    .append(",\"temp_min\":9,\"temp_max\":31},")
+                    .append("\"wind\":{\"speed\":3.1,\"deg\":200},")
+                    .append("\"dt\":1485789600,\"id\":").append(cityId)
+                    .append(",\"name\":\"City ").append(cityId).append("\"}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static List<Long> getIds(String path) throws UnsupportedEncodingException {
+        List<Long> cityIds = new ArrayList<Long>();
+        for (String param : path.substring(path.indexOf('?') + 1).split("&")) {
+            if (param.startsWith("id=")) {
+                for (String id : URLDecoder.decode(param.substring(3), "UTF-8").split(",")) {
+                    cityIds.add(Long.parseLong(id));
+                }
+            }
+        }
+        return cityIds;
+    }
+
+    private static List<Long> createIds(int count) {
+        List<Long> cityIds = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++) {
+            cityIds.add(FIRST_CITY_ID + i);
+        }
+        return cityIds;
+    }
+
+    public void testParseSplitsCities() throws IOException, JSONException {
+        List<OwmGroupParser.CurrentConditions> cities =
+                new ArrayList<OwmGroupParser.CurrentConditions>();
+        int code = new OwmGroupParser().parse(
+                new StringReader(createGroupJson(createIds(3))), cities);
+
+        assertEquals(200, code);
+        assertEquals(3, cities.size());
+        OwmGroupParser.CurrentConditions second = cities.get(1);
+        assertEquals(FIRST_CITY_ID + 1, second.cityId);
+        assertEquals("City " + (FIRST_CITY_ID + 1), second.cityName);
+        assertEquals(11.5, second.temperature);
+        assertEquals(51, second.humidity);
+        assertEquals(801, second.weatherId);
+        assertEquals("Clear", second.description);
+    }
+
+    public void testGroupSavesRequests() throws IOException {
+        ForecastFetcher fetcher = new ForecastFetcher(mServer.getUrl(),
+                getContext().getCacheDir(), new ForecastValidators(getContext()), null);
+
+        for (int count : LOCATION_COUNTS) {
+            List<ForecastRequest> requests = new ArrayList<ForecastRequest>(count);
+            for (int i = 0; i < count; i++) {
+                requests.add(ForecastRequest.forLocation("city" + i, 14));
+            }
+            int before = mServer.getRequestCount();
+            long start = SystemClock.elapsedRealtime();
+            List<ForecastFetchPool.Result> results =
+                    new ForecastFetchPool(fetcher).fetchAll(requests, new boolean[count]);
+            long perLocationMillis = SystemClock.elapsedRealtime() - start;
+            int perLocationRequests = mServer.getRequestCount() - before;
+            for (ForecastFetchPool.Result result : results) {
+                result.getResponse().release();
+            }
+
+            OwmGroupFetcher groupFetcher = new OwmGroupFetcher(mServer.getUrl() + "group");
+            before = mServer.getRequestCount();
+            start = SystemClock.elapsedRealtime();
+            Map<Long, OwmGroupParser.CurrentConditions> conditions =
+                    groupFetcher.fetch(createIds(count), ForecastRequest.UNITS_METRIC);
+            long groupMillis = SystemClock.elapsedRealtime() - start;
+            int groupRequests = mServer.getRequestCount() - before;
+
+            Log.i(LOG_TAG, String.format("%d locations: per location %d requests in %d ms, "
+                            + "group %d requests in %d ms", count, perLocationRequests,
+                    perLocationMillis, groupRequests, groupMillis));
+
+            assertEquals("Error: every city must be in the group result",
+                    count, conditions.size());
+            int expectedGroups = (count + OwmGroupFetcher.MAX_IDS_PER_REQUEST - 1)
+                    / OwmGroupFetcher.MAX_IDS_PER_REQUEST;
+            assertEquals(expectedGroups, groupRequests);
+            assertEquals(groupRequests, groupFetcher.getRequestCount());
+            assertEquals(count, perLocationRequests);
+        }
+    }
+
+    public void testFailedGroupLeavesCitiesMissing() {
+        mGroupFails = true;
+        OwmGroupFetcher groupFetcher = new OwmGroupFetcher(mServer.getUrl() + "group");
+        Map<Long, OwmGroupParser.CurrentConditions> conditions =
+                groupFetcher.fetch(createIds(25), ForecastRequest.UNITS_METRIC);
+
+        assertTrue("Error: cities of a failed group request must be left to a full fetch",
+                conditions.isEmpty());
+        assertEquals(2, groupFetcher.getRequestCount());
+    }
+}
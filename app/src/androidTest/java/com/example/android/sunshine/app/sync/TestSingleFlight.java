@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks that identical calls overlapping in time or following each other within the window
+    run once and share the result, while calls for other keys and calls after the window run on
+    their own.  A call that fails, by throwing or by returning null, must not absorb a retry.
+ */
+public class TestSingleFlight extends AndroidTestCase {
+
+    private static final long CALL_MILLIS = 200;
+    private static final long WINDOW_MILLIS = 300;
+
+    private final AtomicInteger mRuns = new AtomicInteger();
+
+    private final SingleFlight.Call<Integer> mSlowCall = new SingleFlight.Call<Integer>() {
+        @Override
+        public Integer call() {
+            SystemClock.sleep(CALL_MILLIS);
+            return mRuns.incrementAndGet();
+        }
+    };
+
+    public void testConcurrentCallsAttach() throws InterruptedException {
+        final SingleFlight<Integer> flights = new SingleFlight<Integer>(WINDOW_MILLIS);
+        final int callers = 5;
+        final Integer[] results = new Integer[callers];
+
+        List<Thread> threads = new ArrayList<Thread>(callers);
+        for (int i = 0; i < callers; i++) {
+            final int index = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = flights.execute("94043", mSlowCall);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("Error: overlapping identical calls must run once", 1, mRuns.get());
+        for (Integer result : results) {
+            assertEquals("Error: attached callers must share the result", Integer.valueOf(1),
+                    result);
+        }
+        assertEquals(1, flights.getExecutedCount());
+        assertEquals(callers - 1, flights.getCoalescedCount());
+    }
+
+    public void testWindowAbsorbsBurst() {
+        SingleFlight<Integer> flights = new SingleFlight<Integer>(WINDOW_MILLIS);
+        flights.execute("94043", mSlowCall);
+        assertTrue("Error: a request right after a call must be coalesced",
+                flights.coalesce("94043"));
+        assertEquals(Integer.valueOf(1), flights.execute("94043", mSlowCall));
+        assertEquals(1, mRuns.get());
+
+        SystemClock.sleep(WINDOW_MILLIS);
+        assertFalse("Error: the window must expire", flights.coalesce("94043"));
+        assertEquals(Integer.valueOf(2), flights.execute("94043", mSlowCall));
+        assertEquals(2, flights.getExecutedCount());
+        assertEquals(2, flights.getCoalescedCount());
+    }
+
+    public void testOtherKeysRun() {
+        SingleFlight<Integer> flights = new SingleFlight<Integer>(WINDOW_MILLIS);
+        flights.execute("94043", mSlowCall);
+        flights.execute("london", mSlowCall);
+        assertEquals(2, mRuns.get());
+        assertEquals(0, flights.getCoalescedCount());
+    }
+
+    public void testFailureIsNotKept() {
+        SingleFlight<Integer> flights = new SingleFlight<Integer>(WINDOW_MILLIS);
+        try {
+            flights.execute("94043", new SingleFlight.Call<Integer>() {
+                @Override
+                public Integer call() {
+                    throw new IllegalStateException("fetch failed");
+                }
+            });
+            fail("Error: the failure of the call must reach the caller");
+        } catch (IllegalStateException expected) {
+        }
+        assertFalse("Error: a failed call must not absorb a retry", flights.coalesce("94043"));
+        assertEquals(Integer.valueOf(1), flights.execute("94043", mSlowCall));
+    }
+
+    public void testNullResultIsNotKept() {
+        // A sync that catches its errors reports them by returning null.
+        SingleFlight<Integer> flights = new SingleFlight<Integer>(WINDOW_MILLIS);
+        assertNull(flights.execute("94043", new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() {
+                return null;
+            }
+        }));
+        assertFalse("Error: a failed call must not absorb a retry", flights.coalesce("94043"));
+        assertEquals(Integer.valueOf(1), flights.execute("94043", mSlowCall));
+        assertEquals(2, flights.getExecutedCount());
+    }
+
+    public void testSyncKeyIgnoresSavedLocationOrder() {
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        requests.add(ForecastRequest.forLocation("94043", SunshineSyncAdapter.NUM_DAYS));
+        requests.add(ForecastRequest.forLocation("london", SunshineSyncAdapter.NUM_DAYS));
+        requests.add(ForecastRequest.forLocation("paris", SunshineSyncAdapter.NUM_DAYS));
+        String key = SunshineSyncAdapter.getSyncKey(requests,
+                SunshineSyncAdapter.FETCH_MODE_PER_LOCATION);
+
+        List<ForecastRequest> reordered = new ArrayList<ForecastRequest>();
+        reordered.add(requests.get(0));
+        reordered.add(requests.get(2));
+        reordered.add(requests.get(1));
+        assertEquals(key, SunshineSyncAdapter.getSyncKey(reordered,
+                SunshineSyncAdapter.FETCH_MODE_PER_LOCATION));
+
+        assertFalse("Error: syncs in another mode fetch something else",
+                key.equals(SunshineSyncAdapter.getSyncKey(requests,
+                        SunshineSyncAdapter.FETCH_MODE_GROUP)));
+        reordered.add(0, reordered.remove(1));
+        assertFalse("Error: another preferred location is another sync",
+                key.equals(SunshineSyncAdapter.getSyncKey(reordered,
+                        SunshineSyncAdapter.FETCH_MODE_PER_LOCATION)));
+    }
+}
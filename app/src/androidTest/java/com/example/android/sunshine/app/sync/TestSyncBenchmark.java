@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SyncResult;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.owmstub.FaultProfile;
+import com.example.android.sunshine.owmstub.OwmStubServer;
+import com.example.android.sunshine.owmstub.ResponseCorpus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Runs the whole sync, from the requests through the provider to the widgets, Muzei, the
+    notification and the wear face, against the owmstub server in this process.  Each scenario
+    syncs a number of times from a cold state and writes the median and 95th percentile of the
+    time to commit and of the time until the fan-out is done to the log, with the rows per
+    second and the bytes the server sent.  Nothing leaves the device, so it runs offline.
+ */
+public class TestSyncBenchmark extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncBenchmark.class.getSimpleName();
+
+    private static final String LOCATION_PREFIX = "owmbench";
+    private static final int RUNS = 10;
+    private static final long RUN_TIMEOUT_SECONDS = 120;
+    // The most locations a scenario syncs.
+    private static final int MAX_LOCATIONS = 8;
+
+    private OwmStubServer mServer;
+    private SunshineSyncAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new OwmStubServer(new ResponseCorpus(null), FaultProfile.NONE);
+        mServer.start();
+        OwmEndpoints.setBaseUrl(mServer.getBaseUrl());
+        mAdapter = new SunshineSyncAdapter(getContext(), false);
+        deleteBenchmarkRows();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OwmEndpoints.setBaseUrl(null);
+        mServer.shutdown();
+        deleteBenchmarkRows();
+        resetSyncState(getContext());
+        restoreLocationStatus();
+        super.tearDown();
+    }
+
+    public void testCleanNetwork() throws InterruptedException {
+        Result result = runScenario("clean", FaultProfile.NONE, MAX_LOCATIONS, 14);
+        assertEquals("Error: every day of every location must be written",
+                MAX_LOCATIONS * 14, result.lastInserted);
+    }
+
+    public void testLongForecasts() throws InterruptedException {
+        Result result = runScenario("1000 days", FaultProfile.NONE, 2, 1000);
+        assertEquals(2 * 1000, result.lastInserted);
+    }
+
+    public void testSlowNetwork() throws InterruptedException {
+        runScenario("200 ms, 256 kB/s", new FaultProfile.Builder()
+                .latency(200, 50)
+                .bandwidth(256 * 1024)
+                .build(), MAX_LOCATIONS, 14);
+    }
+
+    public void testFlakyServer() throws InterruptedException {
+        runScenario("20% 503", new FaultProfile.Builder()
+                .errors(0.2, 503)
+                .build(), MAX_LOCATIONS, 14);
+    }
+
+    /**
+     * Syncs {@link #RUNS} times after one warm-up run, each from a cold state, and logs the
+     * numbers of the scenario.
+     */
+    private Result runScenario(String name, FaultProfile profile, int locations, int days)
+            throws InterruptedException {
+        mServer.setProfile(profile);
+        long[] commitNanos = new long[RUNS];
+        long[] totalNanos = new long[RUNS];
+        long rows = 0;
+        Result result = new Result();
+        for (int run = -1; run < RUNS; run++) {
+            resetSyncState(getContext());
+            deleteBenchmarkRows();
+            if (run == 0) {
+                mServer.resetCounts();
+            }
+            final CountDownLatch done = new CountDownLatch(1);
+            long start = System.nanoTime();
+            int inserted = mAdapter.performSync(createRequests(locations, days),
+                    SunshineSyncAdapter.FETCH_MODE_PER_LOCATION, false, new SyncResult(),
+                    new FanOutDispatcher.Listener() {
+                        @Override
+                        public void onFanOutComplete() {
+                            done.countDown();
+                        }
+                    });
+            long committed = System.nanoTime();
+            assertTrue("Error: run " + run + " of " + name + " never finished",
+                    done.await(RUN_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            long finished = System.nanoTime();
+            result.lastInserted = inserted;
+            // The first run warms up the connections, the statements and the JIT.
+            if (run >= 0) {
+                commitNanos[run] = committed - start;
+                totalNanos[run] = finished - start;
+                rows += Math.max(inserted, 0);
+            }
+        }
+
+        long commitTotal = 0;
+        for (long nanos : commitNanos) {
+            commitTotal += nanos;
+        }
+        Arrays.sort(commitNanos);
+        Arrays.sort(totalNanos);
+        Log.i(LOG_TAG, name + ", " + locations + " locations x " + days + " days, "
+                + RUNS + " runs: commit median " + commitNanos[RUNS / 2] / 1000000
+                + " ms, p95 " + commitNanos[RUNS * 95 / 100] / 1000000
+                + " ms; end to end median " + totalNanos[RUNS / 2] / 1000000
+                + " ms, p95 " + totalNanos[RUNS * 95 / 100] / 1000000
+                + " ms; " + (commitTotal == 0 ? 0 : rows * 1000000000L / commitTotal)
+                + " rows/s; " + mServer.getRequestCount() + " requests, "
+                + mServer.getErrorCount() + " faults, " + mServer.getBytesSent()
+                + " bytes sent");
+        return result;
+    }
+
+    private static List<ForecastRequest> createRequests(int locations, int days) {
+        // performSync edits the list it is given.
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>(locations);
+        for (int i = 0; i < locations; i++) {
+            requests.add(ForecastRequest.forLocation(LOCATION_PREFIX + i, days));
+        }
+        return requests;
+    }
+
+    /**
+     * Forgets everything a sync remembers between runs: the state of the circuit, the
+     * validators and city ids of the last ingest, and the cached responses.
+     */
+    static void resetSyncState(Context context) {
+        for (String prefsName : new String[] {OwmCircuitBreaker.PREFS_NAME,
+                ForecastValidators.PREFS_NAME, ForecastCities.PREFS_NAME}) {
+            context.getSharedPreferences(prefsName, Context.MODE_PRIVATE).edit().clear().commit();
+        }
+        File cacheDir = new File(context.getCacheDir(), ForecastResponseCache.CACHE_DIR);
+        File[] entries = cacheDir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                entry.delete();
+            }
+        }
+    }
+
+    /**
+     * The first location of a run stands in for the preferred one, so its status is put back to
+     * that of the real preferred location, and the statuses of the others are dropped.
+     */
+    private void restoreLocationStatus() {
+        Context context = getContext();
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        for (int i = 0; i < MAX_LOCATIONS; i++) {
+            editor.remove(Utility.getLocationStatusKey(context, LOCATION_PREFIX + i));
+        }
+        editor.putInt(context.getString(R.string.pref_location_status_key),
+                Utility.getLocationStatus(context, Utility.getPreferredLocation(context)))
+                .commit();
+    }
+
+    private void deleteBenchmarkRows() {
+        String[] selectionArgs = {LOCATION_PREFIX + "%"};
+        String locationIds = "(SELECT " + WeatherContract.LocationEntry._ID + " FROM "
+                + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?)";
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN " + locationIds,
+                selectionArgs);
+        getContext().getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " IN " + locationIds,
+                selectionArgs);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs);
+
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI, null,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " LIKE ?",
+                selectionArgs, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    private static class Result {
+        int lastInserted;
+    }
+}
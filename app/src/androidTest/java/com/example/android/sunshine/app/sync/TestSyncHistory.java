@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.utils.StubHttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/*
+    Fills the sync history past its capacity to check that it wraps around without growing, keeps
+    the newest runs in order across instances, starts over from a file it cannot read, and sums
+    the stages up as percentiles.  The fetcher has to charge its requests to a trace.
+ */
+public class TestSyncHistory extends AndroidTestCase {
+
+    private static final int CAPACITY = 8;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_sync_history.bin");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    private static SyncHistory.Record createRecord(int run) {
+        int[] stageMillis = new int[SyncTrace.STAGE_COUNT];
+        for (int stage = 0; stage < stageMillis.length; stage++) {
+            stageMillis[stage] = run * 10 + stage;
+        }
+        return new SyncHistory.Record(1000L * run, OwmCircuitBreaker.OUTCOME_SUCCESS, run, 1,
+                run * 100L, run * 400L, stageMillis);
+    }
+
+    public void testRingWrapsAround() {
+        SyncHistory history = new SyncHistory(mFile, CAPACITY);
+        int runs = CAPACITY * 2 + 3;
+        for (int run = 1; run <= runs; run++) {
+            history.add(createRecord(run));
+        }
+        long size = mFile.length();
+        history.add(createRecord(runs + 1));
+        assertEquals("Error: a full history must not grow", size, mFile.length());
+
+        // A new instance reads what the other one wrote, as a new process would.
+        List<SyncHistory.Record> records = new SyncHistory(mFile, CAPACITY).getRecords();
+        assertEquals(CAPACITY, records.size());
+        assertEquals(runs + 2, new SyncHistory(mFile, CAPACITY).getTotalCount());
+        for (int i = 0; i < records.size(); i++) {
+            SyncHistory.Record record = records.get(i);
+            int run = runs + 1 - i;
+            assertEquals("Error: runs must come back newest first", 1000L * run,
+                    record.startedAt);
+            assertEquals(run, record.insertedCount);
+            assertEquals(run * 100L, record.wireBytes);
+            assertEquals(run * 10 + SyncTrace.STAGE_PARSE,
+                    record.stageMillis[SyncTrace.STAGE_PARSE]);
+        }
+    }
+
+    public void testUnreadableFileStartsOver() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write("not a sync history".getBytes("UTF-8"));
+        out.close();
+
+        SyncHistory history = new SyncHistory(mFile, CAPACITY);
+        assertTrue(history.getRecords().isEmpty());
+        history.add(createRecord(1));
+        assertEquals(1, history.getRecords().size());
+
+        // Another capacity is another layout.
+        assertTrue(new SyncHistory(mFile, CAPACITY * 2).getRecords().isEmpty());
+    }
+
+    public void testPercentiles() {
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[values.length - 1 - i] = i + 1;
+        }
+        assertEquals(50, SyncHistory.getPercentile(values, 50));
+        assertEquals(95, SyncHistory.getPercentile(values, 95));
+        assertEquals(7, SyncHistory.getPercentile(new long[] {7}, 95));
+        assertEquals(0, SyncHistory.getPercentile(new long[0], 50));
+
+        SyncHistory history = new SyncHistory(mFile, CAPACITY);
+        for (int run = 1; run <= 4; run++) {
+            history.add(createRecord(run));
+        }
+        StringWriter report = new StringWriter();
+        history.dump(new PrintWriter(report));
+        assertTrue(report.toString().contains("4 runs kept of 4 written"));
+        assertEquals(20 + SyncTrace.STAGE_TOTAL, SyncHistory.getStagePercentile(
+                history.getRecords(), SyncTrace.STAGE_TOTAL, 50));
+    }
+
+    public void testFetcherChargesTrace() throws Exception {
+        final byte[] forecast = TestForecastIngest.createForecastJson(7).getBytes("UTF-8");
+        StubHttpServer server = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                return new StubHttpServer.Response(200, forecast);
+            }
+        });
+        server.start();
+        try {
+            ForecastFetcher fetcher = new ForecastFetcher(server.getUrl(),
+                    getContext().getCacheDir(), new ForecastValidators(getContext()), null);
+            SyncTrace trace = new SyncTrace();
+            fetcher.setTrace(trace);
+            fetcher.fetch(ForecastRequest.forLocation("94043", 7), false).release();
+            fetcher.fetch(ForecastRequest.forLocation("london", 7), false).release();
+            trace.finish();
+
+            assertEquals(2, trace.getRequestCount());
+            assertEquals(2L * forecast.length, trace.getBodyBytes());
+            assertEquals(server.getBytesSent(), trace.getWireBytes());
+            assertTrue(trace.sum(SyncTrace.STAGE_CONNECT, SyncTrace.STAGE_DOWNLOAD)
+                    <= trace.sum(SyncTrace.STAGE_TOTAL));
+        } finally {
+            server.shutdown();
+        }
+    }
+}
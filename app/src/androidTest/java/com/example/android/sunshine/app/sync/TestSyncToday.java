@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.utils.StubHttpServer;
+import com.example.android.sunshine.owmstub.SyntheticForecast;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs an expedited sync of a location without a forecast against a local stand-in for
+    OpenWeatherMap that holds the full forecast back until the weather URI has been notified.
+    Today's row must be in the provider, and an observer of the list must have heard of it,
+    before the full forecast is answered; the time to the first change and to the end of the
+    sync are written to the log.  A sync nobody waits for must not make the extra request, and
+    a sync that leaves the daily forecast as it was must not ask for the 3 hour one again.  A
+    forecast downloaded again with the values already stored, or a group refresh whose current
+    weather is what today's row already says, is reported as no change.  A saved location whose
+    forecast changed while the preferred one's did not is counted, but does not bring the 3 hour
+    forecast of the preferred location again.
+ */
+public class TestSyncToday extends AndroidTestCase {
+    private static final String LOG_TAG = TestSyncToday.class.getSimpleName();
+
+    private static final String LOCATION = "owmtoday";
+    private static final String SAVED_LOCATION = "owmsaved";
+    // How long the server holds the full forecast back for the first change.
+    private static final long HOLD_SECONDS = 10;
+    private static final long SYNC_TIMEOUT_SECONDS = 60;
+
+    private StubHttpServer mServer;
+    private HandlerThread mObserverThread;
+    private ContentObserver mObserver;
+    private final CountDownLatch mFirstChange = new CountDownLatch(1);
+    private volatile long mFirstChangeAt;
+    private volatile boolean mHoldFullForecast = true;
+    private final AtomicInteger mTodayRequests = new AtomicInteger();
+    private final AtomicInteger mFullRequests = new AtomicInteger();
+    private final AtomicInteger mHourlyRequests = new AtomicInteger();
+    private final AtomicInteger mGroupRequests = new AtomicInteger();
+    // How many days the forecast of the saved location has moved on, to change it on its own.
+    private volatile int mSavedDaysAhead;
+    // What the server saw when it answered the full forecast.
+    private volatile boolean mChangedBeforeFull;
+    private volatile boolean mTodayBeforeFull;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TestSyncBenchmark.resetSyncState(getContext());
+        deleteRows();
+
+        final long now = System.currentTimeMillis() / 1000;
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                Uri uri = Uri.parse("http://localhost" + request.path);
+                if (request.path.startsWith("/forecast/daily?")) {
+                    int days = Integer.parseInt(uri.getQueryParameter("cnt"));
+                    if (SAVED_LOCATION.equals(uri.getQueryParameter("q"))) {
+                        return createResponse(SyntheticForecast.daily(SAVED_LOCATION, days,
+                                now + mSavedDaysAhead * DateUtils.DAY_IN_MILLIS / 1000));
+                    }
+                    if (days == 1) {
+                        mTodayRequests.incrementAndGet();
+                    } else {
+                        mFullRequests.incrementAndGet();
+                        if (mHoldFullForecast) {
+                            mChangedBeforeFull = await(mFirstChange, HOLD_SECONDS);
+                            mTodayBeforeFull = hasToday();
+                        }
+                    }
+                    return createResponse(SyntheticForecast.daily(LOCATION, days, now));
+                }
+                if (request.path.startsWith("/forecast?")) {
+                    mHourlyRequests.incrementAndGet();
+                    return createResponse(SyntheticForecast.hourly(LOCATION, now));
+                }
+                if (request.path.startsWith("/group?")) {
+                    mGroupRequests.incrementAndGet();
+                    return createResponse(SyntheticForecast.group(Collections.singletonList(
+                            SyntheticForecast.getCityId(LOCATION)), now));
+                }
+                return new StubHttpServer.Response(404, new byte[0]);
+            }
+        });
+        mServer.start();
+        OwmEndpoints.setBaseUrl(mServer.getUrl());
+
+        mObserverThread = new HandlerThread("TodayObserver");
+        mObserverThread.start();
+        mObserver = new ContentObserver(new Handler(mObserverThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (mFirstChange.getCount() > 0) {
+                    mFirstChangeAt = SystemClock.elapsedRealtime();
+                    mFirstChange.countDown();
+                }
+            }
+        };
+        getContext().getContentResolver().registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI, true, mObserver);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().getContentResolver().unregisterContentObserver(mObserver);
+        mObserverThread.quit();
+        OwmEndpoints.setBaseUrl(null);
+        mServer.shutdown();
+        deleteRows();
+        TestSyncBenchmark.resetSyncState(getContext());
+        restoreLocationStatus(getContext(), LOCATION);
+        restoreLocationStatus(getContext(), SAVED_LOCATION);
+        super.tearDown();
+    }
+
+    private static StubHttpServer.Response createResponse(String json) {
+        try {
+            return new StubHttpServer.Response(200, json.getBytes("UTF-8"))
+                    .setHeader("Content-Type", "application/json; charset=utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean await(CountDownLatch latch, long seconds) {
+        try {
+            return latch.await(seconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private boolean hasToday() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION,
+                        System.currentTimeMillis()), null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount() == 1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countDays() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION), null, null, null,
+                null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Syncs the location as the preferred one, waits for the fan-out, and returns the number of
+    // rows the sync changed.
+    private int sync(boolean expedited) throws InterruptedException {
+        return sync(expedited, SunshineSyncAdapter.FETCH_MODE_PER_LOCATION);
+    }
+
+    private int sync(boolean expedited, int fetchMode) throws InterruptedException {
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        requests.add(ForecastRequest.forLocation(LOCATION, SunshineSyncAdapter.NUM_DAYS));
+        return sync(requests, expedited, fetchMode);
+    }
+
+    private int sync(List<ForecastRequest> requests, boolean expedited, int fetchMode)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        int changed = new SunshineSyncAdapter(getContext(), false).performSync(requests,
+                fetchMode, expedited, new SyncResult(),
+                new FanOutDispatcher.Listener() {
+                    @Override
+                    public void onFanOutComplete() {
+                        done.countDown();
+                    }
+                });
+        assertTrue("Error: the sync never finished",
+                done.await(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return changed;
+    }
+
+    public void testTodayLandsBeforeFullForecast() throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        sync(true);
+        long end = SystemClock.elapsedRealtime();
+
+        assertEquals("Error: today must be asked for on its own", 1, mTodayRequests.get());
+        assertTrue("Error: nothing was notified before the full forecast was answered",
+                mChangedBeforeFull);
+        assertTrue("Error: today's row was not in before the full forecast was answered",
+                mTodayBeforeFull);
+        assertEquals("Error: the full forecast must follow", SunshineSyncAdapter.NUM_DAYS,
+                countDays());
+        Log.i(LOG_TAG, "First change after " + (mFirstChangeAt - start) + " ms, sync done after "
+                + (end - start) + " ms");
+    }
+
+    public void testSyncNobodyWaitsForFetchesOnce() throws InterruptedException {
+        mHoldFullForecast = false;
+        sync(false);
+
+        assertEquals("Error: only an expedited sync asks for today on its own", 0,
+                mTodayRequests.get());
+        assertEquals(1, mFullRequests.get());
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, countDays());
+    }
+
+    public void testUnchangedForecastKeepsHourly() throws InterruptedException {
+        mHoldFullForecast = false;
+        sync(false);
+        assertEquals("Error: a new forecast must bring its 3 hour steps", 1,
+                mHourlyRequests.get());
+
+        sync(false);
+        assertEquals("Error: the 3 hour forecast was asked for with the daily one unchanged", 1,
+                mHourlyRequests.get());
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, countDays());
+    }
+
+    public void testRewrittenForecastIsNoChange() throws InterruptedException {
+        mHoldFullForecast = false;
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, sync(false));
+
+        // Without validators or cache the same forecast is downloaded and parsed again.
+        TestSyncBenchmark.resetSyncState(getContext());
+        assertEquals("Error: rows written with the values they had must not count", 0,
+                sync(false));
+        assertEquals(2, mFullRequests.get());
+    }
+
+    public void testGroupRefreshWithSameWeatherIsNoChange() throws InterruptedException {
+        mHoldFullForecast = false;
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, sync(false));
+
+        // The current weather is today's condition, within today's high and low.
+        assertEquals("Error: a group refresh that changes nothing must not count", 0,
+                sync(false, SunshineSyncAdapter.FETCH_MODE_GROUP));
+        assertEquals(1, mGroupRequests.get());
+        assertEquals("Error: a recent forecast must only be refreshed", 1, mFullRequests.get());
+        assertEquals(SunshineSyncAdapter.NUM_DAYS, countDays());
+    }
+
+    public void testSavedLocationChangeLeavesPreferredAlone() throws InterruptedException {
+        mHoldFullForecast = false;
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        requests.add(ForecastRequest.forLocation(LOCATION, SunshineSyncAdapter.NUM_DAYS));
+        requests.add(ForecastRequest.forLocation(SAVED_LOCATION, SunshineSyncAdapter.NUM_DAYS));
+        assertEquals(2 * SunshineSyncAdapter.NUM_DAYS, sync(new ArrayList<ForecastRequest>(
+                requests), false, SunshineSyncAdapter.FETCH_MODE_PER_LOCATION));
+        assertEquals(1, mHourlyRequests.get());
+
+        // Both are downloaded again; only the saved location has a new day.
+        TestSyncBenchmark.resetSyncState(getContext());
+        mSavedDaysAhead = 1;
+        assertEquals("Error: the new day of the saved location must count", 1,
+                sync(requests, false, SunshineSyncAdapter.FETCH_MODE_PER_LOCATION));
+        assertEquals(2, mFullRequests.get());
+        assertEquals("Error: the preferred location is unchanged, so is its 3 hour forecast", 1,
+                mHourlyRequests.get());
+    }
+
+    /**
+     * A location synced as the preferred one sets the status the UI shows, so that status is put
+     * back to that of the real preferred location, and the one of the location is dropped.
+     */
+    static void restoreLocationStatus(Context context, String locationSetting) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(Utility.getLocationStatusKey(context, locationSetting))
+                .putInt(context.getString(R.string.pref_location_status_key),
+                        Utility.getLocationStatus(context, Utility.getPreferredLocation(context)))
+                .commit();
+    }
+
+    private void deleteRows() {
+        deleteRows(LOCATION);
+        deleteRows(SAVED_LOCATION);
+    }
+
+    private void deleteRows(String locationSetting) {
+        String[] selectionArgs = {locationSetting};
+        String locationIds = "(SELECT " + WeatherContract.LocationEntry._ID + " FROM "
+                + WeatherContract.LocationEntry.TABLE_NAME + " WHERE "
+                + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?)";
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " IN " + locationIds,
+                selectionArgs);
+        getContext().getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " IN " + locationIds,
+                selectionArgs);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                selectionArgs);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Runs a task once a burst of changes is over: when no change came for the quiet period, or at
+ * the latest the maximum delay after the first change of the burst, so that a steady stream of
+ * changes still gets through.
+ *
+ * Call it on the thread of the handler, which the task runs on too.
+ */
+final class ChangeDebouncer {
+    private final Handler mHandler;
+    private final Runnable mTask;
+    private final long mQuietMillis;
+    private final long mMaxDelayMillis;
+    // The uptime of the first change the task has not run for yet, or -1.
+    private long mFirstChange = -1;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            mFirstChange = -1;
+            mTask.run();
+        }
+    };
+
+    ChangeDebouncer(Handler handler, Runnable task, long quietMillis, long maxDelayMillis) {
+        mHandler = handler;
+        mTask = task;
+        mQuietMillis = quietMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    void onChange() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstChange == -1) {
+            mFirstChange = now;
+        }
+        mHandler.removeCallbacks(mRun);
+        mHandler.postAtTime(mRun, Math.min(now + mQuietMillis, mFirstChange + mMaxDelayMillis));
+    }
+
+    /**
+     * Drops the changes the task has not run for.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mRun);
+        mFirstChange = -1;
+    }
+}
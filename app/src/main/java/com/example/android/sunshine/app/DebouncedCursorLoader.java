@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * A CursorLoader that queries again once a burst of changes to its URI is over, rather than
+ * once per change.  A sync writes and notifies the forecast of every location at once, but
+ * separate writes still come close together: a units or art pack change in the settings
+ * notifies the whole list, and the sync it starts follows; an expedited sync writes today's
+ * row and the full forecast moments later.  The screens only need the last state.
+ *
+ * The first load is not delayed.
+ */
+public class DebouncedCursorLoader extends CursorLoader {
+    // Longer than the gap between such writes, too short for the user to notice.
+    public static final long QUIET_MILLIS = 300;
+    private static final long MAX_DELAY_MILLIS = 1000;
+
+    private final ChangeDebouncer mDebouncer = new ChangeDebouncer(
+            new Handler(Looper.getMainLooper()), new Runnable() {
+                @Override
+                public void run() {
+                    DebouncedCursorLoader.super.onContentChanged();
+                }
+            }, QUIET_MILLIS, MAX_DELAY_MILLIS);
+
+    public DebouncedCursorLoader(Context context, Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    // Called on the main thread by the observer of the cursor.
+    @Override
+    public void onContentChanged() {
+        mDebouncer.onChange();
+    }
+
+    @Override
+    protected void onReset() {
+        mDebouncer.cancel();
+        super.onReset();
+    }
+}
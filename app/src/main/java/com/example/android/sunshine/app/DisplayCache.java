@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The display strings and resources of every day of the forecast snapshot, worked out once for
+ * the current units, art pack, locale and day, so that binding a day to a view is a matter of
+ * copying fields.  The sync rebuilds the cache each time it publishes a snapshot; a cache whose
+ * snapshot, settings, locale or day no longer match is rebuilt the next time it is asked for.
+ *
+ * Rows the snapshot does not hold, or holds with other values, are formatted on the spot by
+ * {@link #getDay}, exactly as they would be if they were cached.
+ */
+public final class DisplayCache {
+
+    private static final Object sLock = new Object();
+    private static DisplayCache sCurrent;
+    // Whether the snapshot file is being read for the cache on a background thread.
+    private static boolean sLoading;
+
+    /**
+     * The display values of one day.
+     */
+    public static final class Day {
+        // What the values were worked out from.
+        final long date;
+        final int weatherId;
+        final double high;
+        final double low;
+
+        /** "Wednesday", or "Mon Jun 3" for days a week or more away. */
+        public final String dayText;
+        /** As {@link #dayText}, but "Today, June 24" for today. */
+        public final String longDayText;
+        /** "Wednesday, June 26". */
+        public final String fullDayText;
+        public final String description;
+        public final String descriptionA11y;
+        public final String iconA11y;
+        public final String highText;
+        public final String highA11y;
+        public final String lowText;
+        public final String lowA11y;
+        public final int iconResId;
+        public final int artResId;
+        /** Where to load the art from, or null when the local graphics are in use. */
+        public final String artUrl;
+
+        Day(Context context, boolean localGraphics, long date, int weatherId, double high,
+            double low) {
+            this.date = date;
+            this.weatherId = weatherId;
+            this.high = high;
+            this.low = low;
+            dayText = Utility.getFriendlyDayString(context, date, false);
+            longDayText = Utility.getFriendlyDayString(context, date, true);
+            fullDayText = Utility.getFullFriendlyDayString(context, date);
+            description = Utility.getStringForWeatherCondition(context, weatherId);
+            descriptionA11y = context.getString(R.string.a11y_forecast, description);
+            iconA11y = context.getString(R.string.a11y_forecast_icon, description);
+            highText = Utility.formatTemperature(context, high);
+            highA11y = context.getString(R.string.a11y_high_temp, highText);
+            lowText = Utility.formatTemperature(context, low);
+            lowA11y = context.getString(R.string.a11y_low_temp, lowText);
+            iconResId = Utility.getIconResourceForWeatherCondition(weatherId);
+            artResId = Utility.getArtResourceForWeatherCondition(weatherId);
+            artUrl = localGraphics ? null : Utility.getArtUrlForWeatherCondition(context, weatherId);
+        }
+
+        boolean matches(long date, int weatherId, double high, double low) {
+            return this.date == date && this.weatherId == weatherId
+                    && Double.compare(this.high, high) == 0 && Double.compare(this.low, low) == 0;
+        }
+    }
+
+    // What the cache was built for; a change in any of them rebuilds it.
+    private final long mSnapshotVersion;
+    private final boolean mMetric;
+    private final String mArtPack;
+    private final Locale mLocale;
+    private final int mJulianDay;
+
+    // By date, ascending, so that a bind finds its day without boxing the date.
+    private final long[] mDates;
+    private final Day[] mDays;
+
+    private final String mWindFormat;
+    private final float mWindFactor;
+
+    private DisplayCache(Context context, long snapshotVersion, boolean metric, String artPack,
+                         Locale locale, int julianDay, List<ForecastSnapshot.Day> days) {
+        mSnapshotVersion = snapshotVersion;
+        mMetric = metric;
+        mArtPack = artPack;
+        mLocale = locale;
+        mJulianDay = julianDay;
+        boolean localGraphics = usesLocalGraphics(context, artPack);
+        mDates = new long[days.size()];
+        mDays = new Day[days.size()];
+        for (int i = 0; i < mDays.length; i++) {
+            ForecastSnapshot.Day day = days.get(i);
+            mDates[i] = day.date;
+            mDays[i] = new Day(context, localGraphics, day.date, day.weatherId, day.high,
+                    day.low);
+        }
+        mWindFormat = context.getString(metric ? R.string.format_wind_kmh
+                : R.string.format_wind_mph);
+        mWindFactor = metric ? 1f : Utility.MPH_PER_KMH;
+    }
+
+    /**
+     * @return the cache for the forecast the list, the widgets and the detail view show right
+     * now, rebuilt first if the snapshot, the units, the art pack, the locale or the day
+     * changed.  Only the snapshot this process already holds is used, so this never touches
+     * the disk and is safe on the UI thread.  Without one, the snapshot file is read on a
+     * background thread for the next call, and the cache returned meanwhile holds no days:
+     * {@link #getDay} formats them on the spot.
+     */
+    public static DisplayCache get(Context context) {
+        ForecastSnapshot snapshot = ForecastSnapshot.getLoaded(context);
+        if (snapshot == null) {
+            loadInBackground(context.getApplicationContext());
+        }
+        return get(context, snapshot);
+    }
+
+    private static void loadInBackground(final Context context) {
+        synchronized (sLock) {
+            if (sLoading) {
+                return;
+            }
+            sLoading = true;
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ForecastSnapshot snapshot = ForecastSnapshot.peek(context);
+                    if (snapshot != null) {
+                        get(context, snapshot);
+                    }
+                } finally {
+                    synchronized (sLock) {
+                        sLoading = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Builds the cache for a snapshot that was just published, so that no view has to.
+     */
+    public static DisplayCache rebuild(Context context, ForecastSnapshot snapshot) {
+        return get(context, snapshot);
+    }
+
+    private static DisplayCache get(Context context, ForecastSnapshot snapshot) {
+        long version = snapshot == null ? -1 : snapshot.getVersion();
+        boolean metric = Utility.isMetric(context);
+        String artPack = PreferenceManager.getDefaultSharedPreferences(context).getString(
+                context.getString(R.string.pref_art_pack_key),
+                context.getString(R.string.pref_art_pack_sunshine));
+        Locale locale = Locale.getDefault();
+        int julianDay = getJulianDay();
+        synchronized (sLock) {
+            DisplayCache current = sCurrent;
+            if (current != null && current.mSnapshotVersion == version
+                    && current.mMetric == metric && current.mArtPack.equals(artPack)
+                    && current.mLocale.equals(locale) && current.mJulianDay == julianDay) {
+                return current;
+            }
+        }
+        List<ForecastSnapshot.Day> days = snapshot == null
+                ? Collections.<ForecastSnapshot.Day>emptyList()
+                : snapshot.getDays(System.currentTimeMillis());
+        DisplayCache built = new DisplayCache(context.getApplicationContext(), version, metric,
+                artPack, locale, julianDay, days);
+        synchronized (sLock) {
+            // A newer snapshot that got here first wins.
+            if (sCurrent == null || sCurrent.mSnapshotVersion <= version) {
+                sCurrent = built;
+            }
+        }
+        return built;
+    }
+
+    /**
+     * Drops the cache, so that the next request builds it again.  Call when a setting that
+     * changes how the forecast reads changes.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sCurrent = null;
+        }
+    }
+
+    /**
+     * @return the display values of the given day, from the cache if it holds the day with the
+     * same values, or else worked out now.
+     */
+    public Day getDay(Context context, long date, int weatherId, double high, double low) {
+        int index = Arrays.binarySearch(mDates, date);
+        if (index >= 0 && mDays[index].matches(date, weatherId, high, low)) {
+            return mDays[index];
+        }
+        return new Day(context, usesLocalGraphics(context, mArtPack), date, weatherId, high,
+                low);
+    }
+
+    /**
+     * @return the display values of a day of the snapshot.
+     */
+    public Day getDay(Context context, ForecastSnapshot.Day day) {
+        return getDay(context, day.date, day.weatherId, day.high, day.low);
+    }
+
+    /**
+     * @return whether the art is the app's own drawables rather than loaded from a URL.
+     */
+    public boolean usesLocalGraphics(Context context) {
+        return usesLocalGraphics(context, mArtPack);
+    }
+
+    /**
+     * @return the wind as {@link Utility#getFormattedWind} puts it, in the units the cache was
+     * built for.
+     */
+    public String formatWind(float windSpeed, float degrees) {
+        return String.format(mWindFormat, mWindFactor * windSpeed,
+                Utility.getWindDirection(degrees));
+    }
+
+    private static boolean usesLocalGraphics(Context context, String artPack) {
+        return artPack.equals(context.getString(R.string.pref_art_pack_sunshine));
+    }
+
+    private static int getJulianDay() {
+        Time time = new Time();
+        time.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), time.gmtoff);
+    }
+}
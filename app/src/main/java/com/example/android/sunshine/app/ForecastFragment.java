@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.res.TypedArray;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -28,7 +29,6 @@ import android.preference.PreferenceManager;
 import android.support.design.widget.AppBarLayout;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.support.v4.view.ViewCompat;
 import android.support.v7.widget.LinearLayoutManager;
@@ -45,9 +45,12 @@ import android.view.ViewTreeObserver;
 import android.widget.AbsListView;
 import android.widget.TextView;
 
+import com.example.android.sunshine.app.data.ForecastSnapshot;
 import com.example.android.sunshine.app.data.WeatherContract;
 import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 
+import java.util.List;
+
 /**
  * Encapsulates fetching the forecast and displaying it as a {@link android.support.v7.widget.RecyclerView} layout.
  */
@@ -248,6 +251,24 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
         mForecastAdapter.setUseTodayLayout(mUseTodayLayout);
 
+        // Tells the system when the forecast is first on screen, whether from the snapshot or
+        // the loader, so that "Fully drawn" in the log and am start -W measure time to content.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mRecyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+                @TargetApi(Build.VERSION_CODES.KITKAT)
+                @Override
+                public boolean onPreDraw() {
+                    if (mRecyclerView.getChildCount() > 0) {
+                        mRecyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        if (null != getActivity()) {
+                            getActivity().reportFullyDrawn();
+                        }
+                    }
+                    return true;
+                }
+            });
+        }
+
         return rootView;
     }
 
@@ -259,10 +280,34 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         if ( mHoldForTransition ) {
             getActivity().supportPostponeEnterTransition();
         }
+        if (null == getLoaderManager().getLoader(FORECAST_LOADER)) {
+            showSnapshot();
+        }
         getLoaderManager().initLoader(FORECAST_LOADER, null, this);
         super.onActivityCreated(savedInstanceState);
     }
 
+    // On a cold start the loader has to open the database and run its query before the list can
+    // show anything.  Until it finishes, show the snapshot the last sync left next to the
+    // database; reading it is one small mapped read, so it is done right here.
+    private void showSnapshot() {
+        ForecastSnapshot snapshot = ForecastSnapshot.peek(getActivity());
+        if (null == snapshot) {
+            return;
+        }
+        List<ForecastSnapshot.Day> days = snapshot.getDays(System.currentTimeMillis());
+        if (days.isEmpty()) {
+            return;
+        }
+        MatrixCursor cursor = new MatrixCursor(FORECAST_COLUMNS, days.size());
+        for (ForecastSnapshot.Day day : days) {
+            cursor.addRow(new Object[]{day.id, day.date, day.description, day.high, day.low,
+                    snapshot.getLocationSetting(), day.weatherId, snapshot.getLatitude(),
+                    snapshot.getLongitude()});
+        }
+        mForecastAdapter.swapCursor(cursor);
+    }
+
     // since we read the location when we create the loader, all we need to do is restart things
     void onLocationChanged() {
         getLoaderManager().restartLoader(FORECAST_LOADER, null, this);
@@ -316,7 +361,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
                 locationSetting, System.currentTimeMillis());
 
-        return new CursorLoader(getActivity(),
+        return new DebouncedCursorLoader(getActivity(),
                 weatherForLocationUri,
                 FORECAST_COLUMNS,
                 null,
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.preference.EditTextPreference;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Edits the locations that are synced besides the preferred one, one per line.  They are kept
+ * as the string set {@link Utility#getSavedLocations} reads rather than as the text typed in, so
+ * the summary and the sync both see them the same way whatever order they were typed in.
+ */
+public class SavedLocationsPreference extends EditTextPreference {
+
+    public SavedLocationsPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    @Override
+    protected String getPersistedString(String defaultReturnValue) {
+        List<String> saved = new ArrayList<String>(Utility.getSavedLocations(getContext()));
+        Collections.sort(saved);
+        return TextUtils.join("\n", saved);
+    }
+
+    @Override
+    protected boolean persistString(String value) {
+        Set<String> saved = new HashSet<String>();
+        if (value != null) {
+            for (String line : value.split("\n")) {
+                String locationSetting = line.trim();
+                if (locationSetting.length() > 0) {
+                    saved.add(locationSetting);
+                }
+            }
+        }
+        Utility.setSavedLocations(getContext(), saved);
+        return true;
+    }
+
+    @Override
+    public void setText(String text) {
+        super.setText(text);
+        // What was kept, without the blank lines and repeats that may have been typed.
+        String saved = getPersistedString(null);
+        setSummary(saved.length() == 0
+                ? getContext().getString(R.string.pref_saved_locations_none)
+                : saved.replace("\n", ", "));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.widget.TextView;
+
+import com.example.android.sunshine.app.sync.SunshineSyncService;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Debug screen that shows the same report as
+ * {@code adb shell dumpsys activity service .sync.SunshineSyncService}: p50/p95 of every sync
+ * stage over the recent runs, followed by the runs themselves.  Only reachable from the menu of
+ * debug builds.
+ */
+public class SyncHistoryActivity extends AppCompatActivity {
+
+    private TextView mReportView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_sync_history);
+        mReportView = (TextView) findViewById(R.id.sync_history_report);
+
+        // The history lives in a file, so it is read off the UI thread.
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                StringWriter report = new StringWriter();
+                PrintWriter writer = new PrintWriter(report);
+                SunshineSyncService.dumpReport(getApplicationContext(), writer);
+                writer.flush();
+                return report.toString();
+            }
+
+            @Override
+            protected void onPostExecute(String report) {
+                mReportView.setText(report);
+            }
+        }.execute();
+    }
+}
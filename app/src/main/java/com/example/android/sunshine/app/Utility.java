@@ -27,11 +27,15 @@ import com.example.android.sunshine.app.sync.SunshineSyncAdapter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 public class Utility {
     // We'll default our latlong to 0. Yay, "Earth!"
     public static float DEFAULT_LATLONG = 0F;
+    // What a wind speed in km/h is multiplied by to get it in mph.
+    static final float MPH_PER_KMH = .621371192237334f;
 
     public static boolean isLocationLatLonAvailable(Context context) {
         SharedPreferences prefs
@@ -197,9 +201,13 @@ public class Utility {
             windFormat = R.string.format_wind_kmh;
         } else {
             windFormat = R.string.format_wind_mph;
-            windSpeed = .621371192237334f * windSpeed;
+            windSpeed = MPH_PER_KMH * windSpeed;
         }
 
+        return String.format(context.getString(windFormat), windSpeed, getWindDirection(degrees));
+    }
+
+    static String getWindDirection(float degrees) {
         // From wind direction in degrees, determine compass direction as a string (e.g NW)
         // You know what's fun, writing really long if/else statements with tons of possible
         // conditions.  Seriously, try it!
@@ -221,7 +229,7 @@ public class Utility {
         } else if (degrees >= 292.5 && degrees < 337.5) {
             direction = "NW";
         }
-        return String.format(context.getString(windFormat), windSpeed, direction);
+        return direction;
     }
 
     /**
@@ -599,4 +607,51 @@ public class Utility {
         spe.putInt(c.getString(R.string.pref_location_status_key), SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
         spe.apply();
     }
+
+    /**
+     *
+     * @param c Context used to get the SharedPreferences
+     * @param locationSetting the location the status was recorded for
+     * @return the location status integer type of the last sync of that location
+     */
+    @SuppressWarnings("ResourceType")
+    static public @SunshineSyncAdapter.LocationStatus
+    int getLocationStatus(Context c, String locationSetting){
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        return sp.getInt(getLocationStatusKey(c, locationSetting),
+                SunshineSyncAdapter.LOCATION_STATUS_UNKNOWN);
+    }
+
+    /**
+     * @return the preference key holding the status of the given location, which is
+     * pref_location_status_key, a dot and the location trimmed and in lower case, so that every
+     * spelling of a location shares one status, as it shares one request.  The status of the
+     * preferred location is also kept under pref_location_status_key, which the UI listens to.
+     */
+    static public String getLocationStatusKey(Context c, String locationSetting) {
+        return c.getString(R.string.pref_location_status_key) + "."
+                + locationSetting.trim().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return the locations the user saved besides the preferred one, which are synced along
+     * with it.
+     */
+    public static Set<String> getSavedLocations(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Set<String> saved = prefs.getStringSet(context.getString(R.string.pref_saved_locations_key),
+                null);
+        // The returned set must not be modified, so hand out a copy.
+        return saved != null ? new HashSet<String>(saved) : new HashSet<String>();
+    }
+
+    /**
+     * Replaces the locations synced besides the preferred one, as the settings edit them.
+     */
+    public static void setSavedLocations(Context context, Set<String> saved) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        prefs.edit()
+                .putStringSet(context.getString(R.string.pref_saved_locations_key), saved)
+                .apply();
+    }
 }
\ No newline at end of file
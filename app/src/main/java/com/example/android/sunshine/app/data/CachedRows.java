@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+
+/**
+ * The rows of a query, read out of its cursor into one array, so that the query cache can hand
+ * out any number of cursors over them without going back to SQLite.  The rows never change;
+ * every cursor only has its own position.
+ *
+ * The cursors convert between types the way the CursorWindow of a SQLite cursor does, so that
+ * a caller cannot tell the two apart.
+ */
+final class CachedRows {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The %g of the CursorWindow keeps six significant digits.
+    private static final MathContext SIX_DIGITS = new MathContext(6, RoundingMode.HALF_EVEN);
+
+    private final String[] mColumns;
+    // Row after row, as Long, Double, String, byte[] or null.
+    private final Object[] mValues;
+    private final int mCount;
+
+    private CachedRows(String[] columns, Object[] values, int count) {
+        mColumns = columns;
+        mValues = values;
+        mCount = count;
+    }
+
+    /**
+     * Reads every row of the cursor.  The caller still closes it.
+     */
+    static CachedRows read(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        int count = cursor.getCount();
+        Object[] values = new Object[count * columns.length];
+        int i = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (int column = 0; column < columns.length; column++) {
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values[i++] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i++] = cursor.getLong(column);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        values[i++] = cursor.getDouble(column);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        values[i++] = cursor.getBlob(column);
+                        break;
+                    default:
+                        values[i++] = cursor.getString(column);
+                        break;
+                }
+            }
+        }
+        return new CachedRows(columns, values, count);
+    }
+
+    /**
+     * @return the number of values held, which is what the rows cost the cache.
+     */
+    int size() {
+        return mValues.length;
+    }
+
+    Cursor newCursor() {
+        return new RowsCursor();
+    }
+
+    // As the CursorWindow formats a REAL read as a string: printf("%g").
+    static String formatReal(double value) {
+        if (Double.isNaN(value)) {
+            return "nan";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "inf" : "-inf";
+        }
+        if (value == 0) {
+            return Double.doubleToRawLongBits(value) < 0 ? "-0" : "0";
+        }
+        BigDecimal rounded = new BigDecimal(value).round(SIX_DIGITS);
+        int exponent = rounded.precision() - rounded.scale() - 1;
+        if (exponent < -4 || exponent >= 6) {
+            String mantissa = rounded.movePointLeft(exponent).stripTrailingZeros()
+                    .toPlainString();
+            int magnitude = Math.abs(exponent);
+            return mantissa + (exponent < 0 ? "e-" : "e+") + (magnitude < 10 ? "0" : "")
+                    + magnitude;
+        }
+        return rounded.stripTrailingZeros().toPlainString();
+    }
+
+    private final class RowsCursor extends AbstractCursor {
+
+        @Override
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mColumns.length) {
+                throw new IllegalStateException("Invalid column " + column);
+            }
+            if (mPos < 0 || mPos >= mCount) {
+                throw new IllegalStateException("Invalid row " + mPos);
+            }
+            return mValues[mPos * mColumns.length + column];
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof String) {
+                return (String) value;
+            }
+            if (value instanceof Long) {
+                return value.toString();
+            }
+            if (value instanceof Double) {
+                return formatReal((Double) value);
+            }
+            throw new SQLiteException("Unable to convert BLOB to string");
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Long) {
+                return (Long) value;
+            }
+            if (value instanceof Double) {
+                return ((Double) value).longValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Long.parseLong(((String) value).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            throw new SQLiteException("Unable to convert BLOB to long");
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            throw new SQLiteException("Unable to convert BLOB to double");
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            if (value instanceof String) {
+                return ((String) value).getBytes(UTF_8);
+            }
+            throw new SQLiteException("Unable to convert number to BLOB");
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            }
+            if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            }
+            if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            }
+            if (value instanceof String) {
+                return FIELD_TYPE_STRING;
+            }
+            return FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable copy of the forecast for the preferred location, as it stood when a sync last
+ * committed it.  The sync reads the forecast once and publishes it here; the widgets, Muzei and
+ * the notification then read this copy instead of each querying the provider for the same rows.
+ *
+ * Every published snapshot gets a higher version than the one before, and is also written to
+ * a {@link ForecastSnapshotFile} next to the database.  A process that has not seen a sync yet,
+ * or whose preferred location changed since, reads the snapshot from that file, or failing that
+ * from the provider, the first time it is asked for.
+ */
+public final class ForecastSnapshot {
+    private static final String LOG_TAG = ForecastSnapshot.class.getSimpleName();
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+    };
+    // these indices must match the projection
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_MIN_TEMP = 5;
+    private static final int INDEX_COORD_LAT = 6;
+    private static final int INDEX_COORD_LONG = 7;
+
+    private static final Object sLock = new Object();
+    private static ForecastSnapshot sCurrent;
+    // The location the file was last found not to hold, so that peeking again for it does not
+    // read the file again.  Forgotten whenever the file or the current snapshot changes.
+    private static String sFileMiss;
+    private static long sLastVersion;
+    private static final AtomicInteger sProviderReadCount = new AtomicInteger();
+    private static final AtomicInteger sFileReadCount = new AtomicInteger();
+
+    /**
+     * The forecast of one day.
+     */
+    public static final class Day {
+        public final long id;
+        public final long date;
+        public final int weatherId;
+        public final String description;
+        public final double high;
+        public final double low;
+
+        Day(long id, long date, int weatherId, String description, double high, double low) {
+            this.id = id;
+            this.date = date;
+            this.weatherId = weatherId;
+            this.description = description;
+            this.high = high;
+            this.low = low;
+        }
+    }
+
+    private final long mVersion;
+    private final String mLocationSetting;
+    private final double mLatitude;
+    private final double mLongitude;
+    // Ordered by date.
+    private final List<Day> mDays;
+
+    ForecastSnapshot(long version, String locationSetting, double latitude, double longitude,
+                     List<Day> days) {
+        mVersion = version;
+        mLocationSetting = locationSetting;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mDays = Collections.unmodifiableList(days);
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    /**
+     * @return the latitude of the location, or 0 if the snapshot holds no days.
+     */
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * @return the longitude of the location, or 0 if the snapshot holds no days.
+     */
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * @return the days from the day of the given time on, in order.  Days that went by since
+     * the snapshot was taken are left out.
+     */
+    public List<Day> getDays(long now) {
+        long today = WeatherContract.normalizeDate(now);
+        for (int i = 0; i < mDays.size(); i++) {
+            if (mDays.get(i).date >= today) {
+                return mDays.subList(i, mDays.size());
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the first day from the day of the given time on, or null if there is none.
+     */
+    public Day getFirstDay(long now) {
+        List<Day> days = getDays(now);
+        return days.isEmpty() ? null : days.get(0);
+    }
+
+    /**
+     * @return the day of the given time, or null if the snapshot does not hold it.
+     */
+    public Day getDay(long time) {
+        Day first = getFirstDay(time);
+        return first != null && first.date == WeatherContract.normalizeDate(time) ? first : null;
+    }
+
+    /**
+     * Reads the forecast of the preferred location and makes it the current snapshot.  Call once
+     * the forecast is committed, before telling the consumers.  This should not be called from
+     * the UI thread because it queries the provider.
+     */
+    public static ForecastSnapshot publish(Context context) {
+        return publish(context, Utility.getPreferredLocation(context));
+    }
+
+    static ForecastSnapshot publish(Context context, String locationSetting) {
+        ForecastSnapshot loaded = load(context, locationSetting, 0);
+        ForecastSnapshot published;
+        synchronized (sLock) {
+            sCurrent = new ForecastSnapshot(++sLastVersion, locationSetting, loaded.mLatitude,
+                    loaded.mLongitude, loaded.mDays);
+            published = sCurrent;
+            sFileMiss = null;
+        }
+        // Syncs publish one at a time, so the last one to commit also writes the file last.
+        ForecastSnapshotFile.write(ForecastSnapshotFile.getFile(context), published);
+        Log.d(LOG_TAG, "Published version " + published.mVersion + " for " + locationSetting
+                + " with " + published.mDays.size() + " days");
+        return published;
+    }
+
+    /**
+     * @return the current snapshot of the preferred location, read from the file or else loaded
+     * from the provider if this process has none for it yet.  The load may query the provider,
+     * so this should not be called from the UI thread.
+     */
+    public static ForecastSnapshot get(Context context) {
+        return get(context, Utility.getPreferredLocation(context));
+    }
+
+    static ForecastSnapshot get(Context context, String locationSetting) {
+        ForecastSnapshot snapshot = peek(context, locationSetting);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // A location the last sync did not publish, or no sync wrote the file yet.
+        return install(load(context, locationSetting, nextVersion()));
+    }
+
+    /**
+     * @return the current snapshot of the preferred location, read from the file the last sync
+     * wrote if this process has none for it yet, or null if there is no such file.  Unlike
+     * {@link #get(Context)} this never touches the database, so a cold start can show the
+     * forecast from the UI thread while the provider opens.  A file that does not hold the
+     * location is only read once, until the next publish.
+     */
+    public static ForecastSnapshot peek(Context context) {
+        return peek(context, Utility.getPreferredLocation(context));
+    }
+
+    static ForecastSnapshot peek(Context context, String locationSetting) {
+        synchronized (sLock) {
+            if (sCurrent != null && sCurrent.mLocationSetting.equals(locationSetting)) {
+                return sCurrent;
+            }
+            if (locationSetting.equals(sFileMiss)) {
+                return null;
+            }
+        }
+        ForecastSnapshot fromFile =
+                ForecastSnapshotFile.read(ForecastSnapshotFile.getFile(context), nextVersion());
+        if (fromFile == null || !fromFile.mLocationSetting.equals(locationSetting)) {
+            synchronized (sLock) {
+                sFileMiss = locationSetting;
+            }
+            return null;
+        }
+        sFileReadCount.incrementAndGet();
+        return install(fromFile);
+    }
+
+    /**
+     * @return the current snapshot of the preferred location if this process holds one, or
+     * null.  Reads neither the file nor the database.
+     */
+    public static ForecastSnapshot getLoaded(Context context) {
+        String locationSetting = Utility.getPreferredLocation(context);
+        synchronized (sLock) {
+            return sCurrent != null && sCurrent.mLocationSetting.equals(locationSetting)
+                    ? sCurrent : null;
+        }
+    }
+
+    private static long nextVersion() {
+        synchronized (sLock) {
+            return ++sLastVersion;
+        }
+    }
+
+    // Makes the snapshot current unless one for its location got there first, such as one a
+    // sync published in the meantime.
+    private static ForecastSnapshot install(ForecastSnapshot snapshot) {
+        synchronized (sLock) {
+            if (sCurrent == null || !sCurrent.mLocationSetting.equals(snapshot.mLocationSetting)) {
+                sCurrent = snapshot;
+            }
+            return sCurrent;
+        }
+    }
+
+    /**
+     * Drops the current snapshot of this process, so that the next one is read from the file
+     * or the provider.  The file stays.
+     */
+    public static void clear() {
+        synchronized (sLock) {
+            sCurrent = null;
+            sFileMiss = null;
+        }
+    }
+
+    /**
+     * @return how many times a snapshot was read from the provider in this process.
+     */
+    public static int getProviderReadCount() {
+        return sProviderReadCount.get();
+    }
+
+    /**
+     * @return how many times a snapshot was read from the file in this process.
+     */
+    public static int getFileReadCount() {
+        return sFileReadCount.get();
+    }
+
+    private static ForecastSnapshot load(Context context, String locationSetting, long version) {
+        sProviderReadCount.incrementAndGet();
+        List<Day> days = new ArrayList<Day>();
+        double latitude = 0;
+        double longitude = 0;
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                FORECAST_COLUMNS, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return new ForecastSnapshot(version, locationSetting, latitude, longitude, days);
+        }
+        try {
+            while (cursor.moveToNext()) {
+                if (days.isEmpty()) {
+                    latitude = cursor.getDouble(INDEX_COORD_LAT);
+                    longitude = cursor.getDouble(INDEX_COORD_LONG);
+                }
+                days.add(new Day(cursor.getLong(INDEX_ID), cursor.getLong(INDEX_DATE),
+                        cursor.getInt(INDEX_WEATHER_ID), cursor.getString(INDEX_SHORT_DESC),
+                        cursor.getDouble(INDEX_MAX_TEMP), cursor.getDouble(INDEX_MIN_TEMP)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return new ForecastSnapshot(version, locationSetting, latitude, longitude, days);
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The forecast snapshot of the preferred location on disk, next to the database, so that a cold
+ * process can show it before SQLite has opened the database and run its first query.  The sync
+ * writes it every time it publishes a snapshot; reading it back is a single mapped read.
+ *
+ * The file is a 128 byte header followed by one 64 byte record per day, big endian:
+ * <pre>
+ *   header  magic, format version, header size, record size, record count, CRC32 of the
+ *           records (ints), time written (long), latitude, longitude (doubles), location
+ *           setting (short length, then up to 78 bytes of UTF-8)
+ *   record  _id, date (longs), weather id (int), high, low (doubles), description (byte
+ *           length, then up to 27 bytes of UTF-8)
+ * </pre>
+ * A reader that finds anything else, or records that do not match the CRC, ignores the file.
+ * Writers replace it with a rename, so a reader never sees half of one.
+ */
+public final class ForecastSnapshotFile {
+    private static final String LOG_TAG = ForecastSnapshotFile.class.getSimpleName();
+
+    static final String FILE_NAME = "forecast_snapshot.bin";
+
+    // "SSNP"
+    static final int MAGIC = 0x53534e50;
+    // Bump whenever the layout changes; readers ignore files of any other version.
+    static final int FORMAT_VERSION = 1;
+
+    static final int HEADER_SIZE = 128;
+    static final int RECORD_SIZE = 64;
+
+    // The header fields, by offset.
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_FORMAT_VERSION = 4;
+    private static final int OFFSET_HEADER_SIZE = 8;
+    private static final int OFFSET_RECORD_SIZE = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_CRC = 20;
+    private static final int OFFSET_WRITTEN_AT = 24;
+    private static final int OFFSET_LATITUDE = 32;
+    private static final int OFFSET_LONGITUDE = 40;
+    private static final int OFFSET_LOCATION_SETTING = 48;
+    static final int MAX_LOCATION_SETTING_BYTES = HEADER_SIZE - OFFSET_LOCATION_SETTING - 2;
+
+    // The record fields, by offset.
+    private static final int OFFSET_ID = 0;
+    private static final int OFFSET_DATE = 8;
+    private static final int OFFSET_WEATHER_ID = 16;
+    private static final int OFFSET_HIGH = 20;
+    private static final int OFFSET_LOW = 28;
+    private static final int OFFSET_DESCRIPTION = 36;
+    static final int MAX_DESCRIPTION_BYTES = RECORD_SIZE - OFFSET_DESCRIPTION - 1;
+
+    // Far more than any feed serves; keeps a damaged count from mapping a huge file.
+    static final int MAX_RECORDS = 1024;
+
+    private ForecastSnapshotFile() {
+    }
+
+    /**
+     * @return where the snapshot of this app lives, next to its database.
+     */
+    public static File getFile(Context context) {
+        return new File(context.getDatabasePath(WeatherDbHelper.DATABASE_NAME).getParentFile(),
+                FILE_NAME);
+    }
+
+    /**
+     * Writes the snapshot to the file, replacing what was there.  A snapshot that does not fit
+     * the format removes the file instead, so that readers fall back to the provider rather than
+     * show an older forecast.
+     *
+     * @return whether the file now holds the snapshot.
+     */
+    static boolean write(File file, ForecastSnapshot snapshot) {
+        byte[] image = encode(snapshot);
+        if (image == null) {
+            Log.w(LOG_TAG, "Snapshot of " + snapshot.getLocationSetting() + " does not fit");
+            delete(file);
+            return false;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            return false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(image);
+            out.close();
+            out = null;
+            if (temp.renameTo(file)) {
+                return true;
+            }
+            Log.w(LOG_TAG, "Could not rename " + temp + " to " + file);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        temp.delete();
+        return false;
+    }
+
+    /**
+     * Reads the snapshot back from the file.  Cheap enough for the UI thread: the file is a few
+     * hundred bytes and is mapped, not copied through a stream.
+     *
+     * @return the snapshot with the given version, or null if there is no file or it is not a
+     * snapshot this reader understands.
+     */
+    static ForecastSnapshot read(File file, long version) {
+        if (!file.isFile()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > HEADER_SIZE + (long) MAX_RECORDS * RECORD_SIZE) {
+                Log.w(LOG_TAG, "Ignoring " + file + " of " + size + " bytes");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return decode(buffer, version);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the file, so that readers go to the provider.
+     */
+    static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(LOG_TAG, "Could not delete " + file);
+        }
+    }
+
+    // Returns null if the snapshot does not fit the format.
+    static byte[] encode(ForecastSnapshot snapshot) {
+        List<ForecastSnapshot.Day> days = snapshot.getDays(0);
+        byte[] locationSetting = toUtf8(snapshot.getLocationSetting());
+        if (days.size() > MAX_RECORDS || locationSetting.length > MAX_LOCATION_SETTING_BYTES) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + days.size() * RECORD_SIZE);
+        for (int i = 0; i < days.size(); i++) {
+            ForecastSnapshot.Day day = days.get(i);
+            byte[] description = toUtf8(day.description);
+            if (description.length > MAX_DESCRIPTION_BYTES) {
+                return null;
+            }
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            buffer.putLong(record + OFFSET_ID, day.id);
+            buffer.putLong(record + OFFSET_DATE, day.date);
+            buffer.putInt(record + OFFSET_WEATHER_ID, day.weatherId);
+            buffer.putDouble(record + OFFSET_HIGH, day.high);
+            buffer.putDouble(record + OFFSET_LOW, day.low);
+            buffer.put(record + OFFSET_DESCRIPTION, (byte) description.length);
+            buffer.position(record + OFFSET_DESCRIPTION + 1);
+            buffer.put(description);
+        }
+        byte[] image = buffer.array();
+
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_FORMAT_VERSION, FORMAT_VERSION);
+        buffer.putInt(OFFSET_HEADER_SIZE, HEADER_SIZE);
+        buffer.putInt(OFFSET_RECORD_SIZE, RECORD_SIZE);
+        buffer.putInt(OFFSET_COUNT, days.size());
+        buffer.putInt(OFFSET_CRC, crc(image, HEADER_SIZE, image.length - HEADER_SIZE));
+        buffer.putLong(OFFSET_WRITTEN_AT, System.currentTimeMillis());
+        buffer.putDouble(OFFSET_LATITUDE, snapshot.getLatitude());
+        buffer.putDouble(OFFSET_LONGITUDE, snapshot.getLongitude());
+        buffer.putShort(OFFSET_LOCATION_SETTING, (short) locationSetting.length);
+        buffer.position(OFFSET_LOCATION_SETTING + 2);
+        buffer.put(locationSetting);
+        return image;
+    }
+
+    // Returns null if the buffer does not hold a snapshot of this format.
+    static ForecastSnapshot decode(ByteBuffer buffer, long version) {
+        int limit = buffer.limit();
+        if (limit < HEADER_SIZE
+                || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_FORMAT_VERSION) != FORMAT_VERSION
+                || buffer.getInt(OFFSET_HEADER_SIZE) != HEADER_SIZE
+                || buffer.getInt(OFFSET_RECORD_SIZE) != RECORD_SIZE) {
+            return null;
+        }
+        int count = buffer.getInt(OFFSET_COUNT);
+        if (count < 0 || count > MAX_RECORDS || limit != HEADER_SIZE + count * RECORD_SIZE) {
+            return null;
+        }
+        int locationSettingLength = buffer.getShort(OFFSET_LOCATION_SETTING);
+        if (locationSettingLength < 0 || locationSettingLength > MAX_LOCATION_SETTING_BYTES) {
+            return null;
+        }
+        byte[] image = new byte[limit];
+        buffer.position(0);
+        buffer.get(image);
+        if (crc(image, HEADER_SIZE, limit - HEADER_SIZE) != buffer.getInt(OFFSET_CRC)) {
+            return null;
+        }
+
+        List<ForecastSnapshot.Day> days = new ArrayList<ForecastSnapshot.Day>(count);
+        for (int i = 0; i < count; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            int descriptionLength = image[record + OFFSET_DESCRIPTION] & 0xff;
+            if (descriptionLength > MAX_DESCRIPTION_BYTES) {
+                return null;
+            }
+            days.add(new ForecastSnapshot.Day(
+                    buffer.getLong(record + OFFSET_ID),
+                    buffer.getLong(record + OFFSET_DATE),
+                    buffer.getInt(record + OFFSET_WEATHER_ID),
+                    fromUtf8(image, record + OFFSET_DESCRIPTION + 1, descriptionLength),
+                    buffer.getDouble(record + OFFSET_HIGH),
+                    buffer.getDouble(record + OFFSET_LOW)));
+        }
+        return new ForecastSnapshot(version,
+                fromUtf8(image, OFFSET_LOCATION_SETTING + 2, locationSettingLength),
+                buffer.getDouble(OFFSET_LATITUDE), buffer.getDouble(OFFSET_LONGITUDE), days);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] toUtf8(String s) {
+        try {
+            return (s == null ? "" : s).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
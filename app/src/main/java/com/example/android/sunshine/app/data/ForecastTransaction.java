@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A forecast written through the provider in batches of bounded size, in one transaction, so
+ * that a sync never has to hold the rows of every location at once and a reader still sees
+ * either the forecast as it was or as it is after {@link #commit}, never a mix.  The observers
+ * of the weather are notified once, on commit, if anything changed.
+ *
+ * Every call must come from the thread that began the transaction, and {@link #close} must be
+ * called whatever happens, as in:
+ *
+ * <pre>
+ * ForecastTransaction transaction = ForecastTransaction.begin(resolver);
+ * try {
+ *     transaction.write(rows);
+ *     transaction.commit(pruneDate);
+ * } finally {
+ *     transaction.close();
+ * }
+ * </pre>
+ */
+public final class ForecastTransaction {
+
+    // The settings of the locations the forecast changed, and how many rows of each, in the
+    // result of the commit.
+    static final String EXTRA_CHANGED_SETTINGS = "changed_settings";
+    static final String EXTRA_CHANGED_COUNTS = "changed_counts";
+
+    private final ContentResolver mResolver;
+    private boolean mOpen = true;
+    private final Map<String, Integer> mChangedBySetting = new HashMap<String, Integer>();
+
+    private ForecastTransaction(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public static ForecastTransaction begin(ContentResolver resolver) {
+        resolver.call(WeatherContract.BASE_CONTENT_URI, WeatherContract.METHOD_BEGIN_FORECAST,
+                null, null);
+        return new ForecastTransaction(resolver);
+    }
+
+    /**
+     * Writes a batch of rows.  Like a bulk insert, a row updates the one of the same location
+     * and date in place.  The batch can be cleared and reused once this returns.
+     *
+     * @return the number of rows of the batch that were added or changed.
+     */
+    public int write(WeatherRows rows) {
+        checkOpen();
+        if (rows.size() == 0) {
+            return 0;
+        }
+        return getCount(mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_WRITE_FORECAST, null, rows.toBundle()));
+    }
+
+    /**
+     * Deletes every day up to the prune date and commits what was written.
+     *
+     * @param pruneDate the last day to delete, or -1 to delete none
+     * @return the number of rows that were added or changed by every batch written.
+     */
+    public int commit(long pruneDate) {
+        checkOpen();
+        mOpen = false;
+        Bundle result = mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_COMMIT_FORECAST, Long.toString(pruneDate), null);
+        if (result != null && result.containsKey(EXTRA_CHANGED_SETTINGS)) {
+            String[] settings = result.getStringArray(EXTRA_CHANGED_SETTINGS);
+            int[] counts = result.getIntArray(EXTRA_CHANGED_COUNTS);
+            for (int i = 0; i < settings.length; i++) {
+                mChangedBySetting.put(settings[i], counts[i]);
+            }
+        }
+        return getCount(result);
+    }
+
+    /**
+     * @return the number of rows of the location that the committed forecast added or changed.
+     * The days the commit pruned do not count.
+     */
+    public int getChangedCount(String locationSetting) {
+        if (mOpen) {
+            throw new IllegalStateException("Forecast transaction not committed");
+        }
+        Integer changed = mChangedBySetting.get(locationSetting);
+        return changed == null ? 0 : changed;
+    }
+
+    /**
+     * Rolls back what was written, unless it was committed.
+     */
+    public void close() {
+        if (mOpen) {
+            mOpen = false;
+            mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_ABORT_FORECAST, null, null);
+        }
+    }
+
+    private void checkOpen() {
+        if (!mOpen) {
+            throw new IllegalStateException("Forecast transaction already ended");
+        }
+    }
+
+    private static int getCount(Bundle result) {
+        return result == null ? 0 : result.getInt(WeatherRows.EXTRA_COUNT);
+    }
+}
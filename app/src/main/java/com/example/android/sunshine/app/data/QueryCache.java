@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The results of the weather queries of a location that the list, the detail view, the widgets,
+ * Muzei and the notification repeat, today and the days from today, kept in memory until a
+ * write changes their rows.  The provider drops the queries of a location, and of its days,
+ * when their rows change, and every query of the weather when a location changes.
+ *
+ * A query that ran while a write was being committed is not kept, as it may have read the rows
+ * from before the write.  Thread-safe.
+ */
+final class QueryCache {
+
+    // In values; a day of the detail view is about twenty.
+    private static final int MAX_SIZE = 16 * 1024;
+    // A result larger than this would push out most of the others.
+    private static final int MAX_ENTRY_SIZE = MAX_SIZE / 8;
+
+    private static final class Entry {
+        final CachedRows rows;
+        final String locationSetting;
+        // The days the query reads.
+        final long firstDay;
+        final long lastDay;
+
+        Entry(CachedRows rows, String locationSetting, long firstDay, long lastDay) {
+            this.rows = rows;
+            this.locationSetting = locationSetting;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+    }
+
+    // The counts of a kind of query, by match code.
+    static final class Stats {
+        int hits;
+        int misses;
+        long hitNanos;
+        long missNanos;
+    }
+
+    private final LruCache<String, Entry> mEntries = new LruCache<String, Entry>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(String key, Entry entry) {
+            return entry.rows.size();
+        }
+    };
+    private final SparseArray<Stats> mStats = new SparseArray<Stats>();
+    // Counts the invalidations, so that a query can tell whether one happened while it ran.
+    private int mGeneration;
+    private volatile boolean mEnabled = true;
+
+    static boolean isCacheable(int match) {
+        return match == WeatherProvider.WEATHER_WITH_LOCATION
+                || match == WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE;
+    }
+
+    // The provider ignores the selection of these URIs, so it is not part of the key.
+    private static String getKey(int match, Uri uri, String[] projection, String sortOrder) {
+        return match + "\n" + uri + "\n" + Arrays.toString(projection) + "\n" + sortOrder;
+    }
+
+    /**
+     * @return a cursor over the cached result of the query, or null if there is none.
+     */
+    synchronized Cursor get(int match, Uri uri, String[] projection, String sortOrder) {
+        if (!mEnabled || !isCacheable(match)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Entry entry = mEntries.get(getKey(match, uri, projection, sortOrder));
+        if (entry == null) {
+            return null;
+        }
+        Cursor cursor = entry.rows.newCursor();
+        Stats stats = getStats(match);
+        stats.hits++;
+        stats.hitNanos += System.nanoTime() - start;
+        return cursor;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put} with the result of a query run after this.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Keeps the result of a query that {@link #get} had none for, unless a write was committed
+     * while it ran.
+     *
+     * @param cursor the result, which is read and closed if its kind of query is cached
+     * @param start the System.nanoTime() the query started at
+     * @return the cursor to hand out for the query.
+     */
+    Cursor put(int match, Uri uri, String[] projection, String sortOrder, Cursor cursor,
+               int generation, long start) {
+        if (!mEnabled || !isCacheable(match)) {
+            return cursor;
+        }
+        // Read the rows outside the lock; it is what takes the time.
+        CachedRows rows = CachedRows.read(cursor);
+        cursor.close();
+        Entry entry;
+        if (match == WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE) {
+            long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+            entry = new Entry(rows, WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                    date, date);
+        } else {
+            entry = new Entry(rows, WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                    WeatherContract.WeatherEntry.getStartDateFromUri(uri), Long.MAX_VALUE);
+        }
+        synchronized (this) {
+            Stats stats = getStats(match);
+            stats.misses++;
+            stats.missNanos += System.nanoTime() - start;
+            if (generation == mGeneration && rows.size() <= MAX_ENTRY_SIZE) {
+                mEntries.put(getKey(match, uri, projection, sortOrder), entry);
+            }
+        }
+        return rows.newCursor();
+    }
+
+    /**
+     * Drops every weather query, for a change that may have touched any location.
+     */
+    synchronized void invalidateWeather() {
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    /**
+     * Drops the queries of a location that read any day from the first to the last.
+     */
+    synchronized void invalidateWeather(String locationSetting, long firstDay, long lastDay) {
+        mGeneration++;
+        for (Map.Entry<String, Entry> cached : mEntries.snapshot().entrySet()) {
+            Entry entry = cached.getValue();
+            if (entry.locationSetting.equals(locationSetting)
+                    && entry.firstDay <= lastDay && firstDay <= entry.lastDay) {
+                mEntries.remove(cached.getKey());
+            }
+        }
+    }
+
+    private Stats getStats(int match) {
+        Stats stats = mStats.get(match);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(match, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @return a copy of the counts of a kind of query.
+     */
+    synchronized Stats getStatsFor(int match) {
+        Stats stats = new Stats();
+        Stats counted = mStats.get(match);
+        if (counted != null) {
+            stats.hits = counted.hits;
+            stats.misses = counted.misses;
+            stats.hitNanos = counted.hitNanos;
+            stats.missNanos = counted.missNanos;
+        }
+        return stats;
+    }
+
+    // For tests that compare queries with and without the cache.
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        mEntries.evictAll();
+        mStats.clear();
+    }
+}
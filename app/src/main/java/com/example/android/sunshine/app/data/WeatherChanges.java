@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The weather rows a write changed, by location and day, so that the provider can notify
+ * weather/[location] or weather/[location]/[date] instead of the whole table, and drop only the
+ * cached queries of those rows.  A loader of the forecast of one location, or of one day, is
+ * then only told about its own rows; an observer of the whole table still sees every change, as
+ * cursors and loaders observe the descendants of their URI.
+ *
+ * A write that cannot tell which rows it touched, or that touched too many locations to be
+ * worth a notification each, falls back to the whole table.  Not thread-safe.
+ */
+final class WeatherChanges {
+
+    // More locations than this and one notification of the table is cheaper than one each.
+    private static final int MAX_LOCATIONS = 8;
+
+    // The first and the last changed day of each location row.
+    private final Map<Long, long[]> mDays = new HashMap<Long, long[]>();
+    private boolean mWholeTable;
+    // The setting of each location row, once resolved.
+    private Map<Long, String> mSettings;
+
+    void add(long locationId, long date) {
+        if (mWholeTable) {
+            return;
+        }
+        long[] days = mDays.get(locationId);
+        if (days == null) {
+            if (mDays.size() == MAX_LOCATIONS) {
+                addWholeTable();
+                return;
+            }
+            mDays.put(locationId, new long[]{date, date});
+        } else {
+            days[0] = Math.min(days[0], date);
+            days[1] = Math.max(days[1], date);
+        }
+    }
+
+    /**
+     * Adds every row the selection matches.  Run it in the transaction of the write, before the
+     * write, so that the rows are the ones it deletes or changes.
+     */
+    void addRows(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (mWholeTable) {
+            return;
+        }
+        if (selection == null) {
+            addWholeTable();
+            return;
+        }
+        Cursor cursor = db.rawQuery(buildDaysQuery(selection), selectionArgs);
+        try {
+            while (cursor.moveToNext() && !mWholeTable) {
+                add(cursor.getLong(0), cursor.getLong(1));
+                add(cursor.getLong(0), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the query for the first and the last day of each location the selection takes,
+     * one row per location, however many days that is.
+     */
+    static String buildDaysQuery(String selection) {
+        // Grouped by an expression rather than the column, so that a selection by date seeks
+        // the index that leads with the date instead of scanning the one that leads with the
+        // location for its order.
+        return SQLiteQueryBuilder.buildQueryString(false, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        "MIN(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")",
+                        "MAX(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")"},
+                selection, "+" + WeatherContract.WeatherEntry.COLUMN_LOC_KEY, null, null, null);
+    }
+
+    void addWholeTable() {
+        mWholeTable = true;
+        mDays.clear();
+    }
+
+    boolean isEmpty() {
+        return !mWholeTable && mDays.isEmpty();
+    }
+
+    /**
+     * Looks up the settings of the changed locations, once the write is committed.  A row of a
+     * location that is not stored has no URI but the table's.
+     */
+    void resolve(SQLiteDatabase db) {
+        if (!mWholeTable && !mDays.isEmpty() && mSettings == null) {
+            mSettings = querySettings(db, mDays.keySet());
+            if (!mSettings.keySet().containsAll(mDays.keySet())) {
+                addWholeTable();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached queries of the changed rows.  Call {@link #resolve} first.
+     */
+    void invalidate(QueryCache cache) {
+        if (mWholeTable) {
+            cache.invalidateWeather();
+            return;
+        }
+        for (Map.Entry<Long, long[]> entry : mDays.entrySet()) {
+            long[] days = entry.getValue();
+            cache.invalidateWeather(mSettings.get(entry.getKey()), days[0], days[1]);
+        }
+    }
+
+    /**
+     * Notifies the narrowest URI of each changed location.  Call {@link #resolve} first.
+     */
+    void notifyChange(ContentResolver resolver, boolean syncToNetwork) {
+        if (mWholeTable) {
+            resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null, syncToNetwork);
+            return;
+        }
+        for (Map.Entry<Long, long[]> entry : mDays.entrySet()) {
+            String setting = mSettings.get(entry.getKey());
+            long[] days = entry.getValue();
+            if (days[0] != days[1]) {
+                resolver.notifyChange(WeatherContract.WeatherEntry.buildWeatherLocation(
+                        setting), null, syncToNetwork);
+            } else {
+                // The stored date is normalized already, as in the URIs the screens build.
+                resolver.notifyChange(WeatherContract.WeatherEntry.CONTENT_URI.buildUpon()
+                        .appendPath(setting).appendPath(Long.toString(days[0]))
+                        .build(), null, syncToNetwork);
+            }
+        }
+    }
+
+    /**
+     * @return the setting of each of the location rows that is stored.
+     */
+    static Map<Long, String> querySettings(SQLiteDatabase db, Set<Long> locationIds) {
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID + " IN (");
+        String[] selectionArgs = new String[locationIds.size()];
+        int i = 0;
+        for (Long locationId : locationIds) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i++] = Long.toString(locationId);
+        }
+        selection.append(')');
+        Map<Long, String> settings = new HashMap<Long, String>();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(), selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                settings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return settings;
+    }
+}
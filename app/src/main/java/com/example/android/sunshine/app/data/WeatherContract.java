@@ -43,17 +43,53 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HOURLY = "hourly";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
+        return normalizeDate(new Time(), startDate);
+    }
+
+    // As above, reusing a Time, for writes that normalize a date per row.
+    static long normalizeDate(Time time, long startDate) {
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
     }
 
+    // Query parameter that tells the provider not to notify observers about a write.  The sync
+    // adapter writes a whole run through such URIs and sends a single notification at the end.
+    public static final String PARAM_NOTIFY = "notify";
+
+    public static Uri buildNoNotifyUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_NOTIFY, "false").build();
+    }
+
+    public static boolean shouldNotify(Uri uri) {
+        return !"false".equals(uri.getQueryParameter(PARAM_NOTIFY));
+    }
+
+    // Passed to ContentResolver.call() with BASE_CONTENT_URI: folds the write-ahead log back
+    // into the database once a sync is done writing.
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    // Passed to ContentResolver.call() with BASE_CONTENT_URI: writes a batch of weather rows and
+    // deletes the days up to the date passed as arg, in one transaction, and then notifies the
+    // observers of the weather once.  Use WeatherRows.replaceForecast() rather than calling it.
+    public static final String METHOD_REPLACE_FORECAST = "replaceForecast";
+
+    // Passed to ContentResolver.call() with BASE_CONTENT_URI: the same as
+    // METHOD_REPLACE_FORECAST, for a forecast written in several batches.  The transaction is
+    // begun, each batch written and the days up to the date passed as arg deleted on the thread
+    // of the caller, and nothing is notified until the commit.  Use ForecastTransaction rather
+    // than calling them.
+    public static final String METHOD_BEGIN_FORECAST = "beginForecast";
+    public static final String METHOD_WRITE_FORECAST = "writeForecast";
+    public static final String METHOD_COMMIT_FORECAST = "commitForecast";
+    public static final String METHOD_ABORT_FORECAST = "abortForecast";
+
     /* Inner class that defines the table contents of the location table */
     public static final class LocationEntry implements BaseColumns {
 
@@ -165,4 +201,68 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the hourly table, which holds the forecast
+       OWM gives in three hour steps */
+    public static final class HourlyEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Start of the forecast step, stored as long in milliseconds since the epoch.  Unlike
+        // the date of the weather table it is not normalized.
+        public static final String COLUMN_TIME = "time";
+        // Weather id as returned by API, to identify the icon to be used
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Short description of the weather, as provided by API.
+        public static final String COLUMN_SHORT_DESC = "short_desc";
+        // Temperature for the step (stored as float)
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity is stored as a float representing percentage
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Windspeed is stored as a float representing windspeed  mph
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildHourlyUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        /**
+         * @return the steps of the location that start in [startTime, endTime).
+         */
+        public static Uri buildHourlyLocationWithRange(
+                String locationSetting, long startTime, long endTime) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(startTime))
+                    .appendPath(Long.toString(endTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getStartTimeFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getEndTimeFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * The steps that bring weather.db from an older schema version to the current one in place, so
+ * that an app update keeps the forecast it already has instead of starting over empty.
+ *
+ * Each step takes the schema from one version to the next and is written against the schema as
+ * it was at that version: the SQL in a step never changes once it shipped, even when
+ * {@link WeatherDbHelper#onCreate} moves on.  To change the schema, bump
+ * {@link WeatherDbHelper#DATABASE_VERSION}, change onCreate, and append the step that does the
+ * same to an existing database; TestDbMigrations checks that the two agree.
+ */
+final class WeatherDbMigrations {
+    private static final String LOG_TAG = WeatherDbMigrations.class.getSimpleName();
+
+    /**
+     * One step, from version {@link #from} to the next.
+     */
+    abstract static class Migration {
+        final int from;
+
+        Migration(int from) {
+            this.from = from;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // Databases older than this, from before this schema was versioned with care, have no steps
+    // and are created anew.
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    // In order, one per version from OLDEST_MIGRATABLE_VERSION on.
+    private static final Migration[] MIGRATIONS = {
+            // 3: the 3 hourly forecast.
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE hourly (" +
+                            "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                            "location_id INTEGER NOT NULL, " +
+                            "time INTEGER NOT NULL, " +
+                            "short_desc TEXT NOT NULL, " +
+                            "weather_id INTEGER NOT NULL," +
+                            "temp REAL NOT NULL, " +
+                            "humidity REAL NOT NULL, " +
+                            "pressure REAL NOT NULL, " +
+                            "wind REAL NOT NULL, " +
+                            "degrees REAL NOT NULL, " +
+                            " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                            " UNIQUE (location_id, time) ON CONFLICT REPLACE);");
+                }
+            },
+            // 4: the index that reads the forecast of a location in date order.
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE INDEX weather_location_date ON weather " +
+                            "(location_id, date);");
+                }
+            },
+    };
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * @return whether there are steps from the given version to the other.
+     */
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION || newVersion < oldVersion) {
+            return false;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (find(version) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the steps from the given version to the other, in order.  The caller holds the
+     * transaction, as SQLiteOpenHelper does around onUpgrade, so a step that fails leaves the
+     * database as it was.
+     *
+     * @return whether the database was migrated; if not, it was not touched.
+     */
+    static boolean migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            return false;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            long start = System.currentTimeMillis();
+            find(version).migrate(db);
+            Log.i(LOG_TAG, "Migrated " + WeatherDbHelper.DATABASE_NAME + " from version "
+                    + version + " to " + (version + 1) + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        return true;
+    }
+
+    private static Migration find(int from) {
+        int index = from - OLDEST_MIGRATABLE_VERSION;
+        if (index < 0 || index >= MIGRATIONS.length) {
+            return null;
+        }
+        Migration migration = MIGRATIONS[index];
+        if (migration.from != from) {
+            throw new IllegalStateException("Migration " + index + " starts at version "
+                    + migration.from + ", not " + from);
+        }
+        return migration;
+    }
+}
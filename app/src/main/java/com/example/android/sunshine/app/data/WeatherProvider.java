@@ -23,19 +23,30 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
+    private final QueryCache mQueryCache = new QueryCache();
 
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int HOURLY = 400;
+    static final int HOURLY_WITH_LOCATION = 401;
+    static final int HOURLY_WITH_LOCATION_AND_RANGE = 402;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The builders and selections of the queries are package-private for TestQueryPlans, which
+    // explains the plan of every query shape.
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sHourlyByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,25 +60,62 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //hourly INNER JOIN location ON hourly.location_id = location._id
+        sHourlyByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sHourlyByLocationSettingQueryBuilder.setTables(
+                WeatherContract.HourlyEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.HourlyEntry.TABLE_NAME +
+                        "." + WeatherContract.HourlyEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
+    //location.location_setting = ? AND time >= ? AND time < ?
+    static final String sLocationSettingWithTimeRangeSelection =
+            WeatherContract.LocationEntry.TABLE_NAME +
+                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_TIME + " < ? ";
+
+    // The columns a sync writes to the weather table.  A row that holds exactly these is upserted.
+    private static final String[] sUpsertWeatherColumns = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    static final String sHourlyDefaultSortOrder =
+            WeatherContract.HourlyEntry.COLUMN_TIME + " ASC";
+
+    //date <= ?, the days a sync prunes from every location
+    static final String sPruneSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?";
+
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
@@ -108,6 +156,31 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getHourlyByLocationSetting(Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.HourlyEntry.getLocationSettingFromUri(uri);
+        String selection;
+        String[] selectionArgs;
+        if (sUriMatcher.match(uri) == HOURLY_WITH_LOCATION_AND_RANGE) {
+            selection = sLocationSettingWithTimeRangeSelection;
+            selectionArgs = new String[]{locationSetting,
+                    Long.toString(WeatherContract.HourlyEntry.getStartTimeFromUri(uri)),
+                    Long.toString(WeatherContract.HourlyEntry.getEndTimeFromUri(uri))};
+        } else {
+            selection = sLocationSettingSelection;
+            selectionArgs = new String[]{locationSetting};
+        }
+
+        // The (location_id, time) index already returns the steps in time order.
+        return sHourlyByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sortOrder == null ? sHourlyDefaultSortOrder : sortOrder
+        );
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +203,11 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*/#/#",
+                HOURLY_WITH_LOCATION_AND_RANGE);
         return matcher;
     }
 
@@ -164,6 +242,10 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+            case HOURLY_WITH_LOCATION_AND_RANGE:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -174,8 +256,15 @@ public class WeatherProvider extends ContentProvider {
                         String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
-        Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+        Cursor retCursor = mQueryCache.get(match, uri, projection, sortOrder);
+        if (retCursor != null) {
+            retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+            return retCursor;
+        }
+        int generation = mQueryCache.getGeneration();
+        long start = System.nanoTime();
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -213,10 +302,31 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "hourly/*/#/#" and "hourly/*"
+            case HOURLY_WITH_LOCATION_AND_RANGE:
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyByLocationSetting(uri, projection, sortOrder);
+                break;
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        retCursor = mQueryCache.put(match, uri, projection, sortOrder, retCursor, generation,
+                start);
         retCursor.setNotificationUri(getContext().getContentResolver(), uri);
         return retCursor;
     }
@@ -238,7 +348,10 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                addChange(changes, values);
+                onWeatherChanged(changes, WeatherContract.shouldNotify(uri), true);
+                return returnUri;
             }
             case LOCATION: {
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
@@ -246,12 +359,22 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                // The weather of its setting was queried as empty until now.
+                mQueryCache.invalidateWeather();
+                break;
+            }
+            case HOURLY: {
+                long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = WeatherContract.HourlyEntry.buildHourlyUri(_id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -263,24 +386,76 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+            case WEATHER: {
+                // Find the days the delete takes, in its transaction, to notify only their URIs.
+                WeatherChanges changes = new WeatherChanges();
+                db.beginTransactionNonExclusive();
+                try {
+                    changes.addRows(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    onWeatherChanged(changes, WeatherContract.shouldNotify(uri), true);
+                }
+                return rowsDeleted;
+            }
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                mQueryCache.invalidateWeather();
+                break;
+            case HOURLY:
+                rowsDeleted = db.delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
+    private void notifyChange(Uri uri) {
+        if (WeatherContract.shouldNotify(uri)) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Drops the cached queries of the changed rows and notifies their weather/[location] or
+     * weather/[location]/[date] URIs, instead of every observer of the weather table.  Call it
+     * once the write is committed.
+     */
+    private void onWeatherChanged(WeatherChanges changes, boolean notify,
+                                  boolean syncToNetwork) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        changes.resolve(mOpenHelper.getReadableDatabase());
+        changes.invalidate(mQueryCache);
+        if (notify) {
+            changes.notifyChange(getContext().getContentResolver(), syncToNetwork);
+        }
+    }
+
+    // A row that does not say its location and day could be any of them.
+    private static void addChange(WeatherChanges changes, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        if (locationId == null || date == null) {
+            changes.addWholeTable();
+        } else {
+            changes.add(locationId, date);
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -297,20 +472,43 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                WeatherChanges changes = new WeatherChanges();
+                db.beginTransactionNonExclusive();
+                try {
+                    // A row moved to another location or day changes that one too.
+                    if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                            || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                        changes.addWholeTable();
+                    } else {
+                        changes.addRows(db, selection, selectionArgs);
+                    }
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values,
+                            selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0) {
+                    onWeatherChanged(changes, WeatherContract.shouldNotify(uri), true);
+                }
+                return rowsUpdated;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                mQueryCache.invalidateWeather();
+                break;
+            case HOURLY:
+                rowsUpdated = db.update(WeatherContract.HourlyEntry.TABLE_NAME, values, selection,
+                        selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -321,27 +519,306 @@ public class WeatherProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
+                db.beginTransactionNonExclusive();
                 int returnCount = 0;
+                WeatherChanges changes = new WeatherChanges();
+                // Rows as a sync writes them are upserted, so that a day keeps its id and only
+                // counts when it changed.  Other rows go through insert(), which builds the SQL
+                // for what they hold and replaces the stored day.
+                WeatherUpsert upsert = new WeatherUpsert(db);
                 try {
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
+                        boolean changed;
+                        if (isUpsertable(value)) {
+                            changed = upsertWeather(upsert, value);
+                        } else {
+                            normalizeDate(value);
+                            changed = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                                    value) != -1;
+                        }
+                        if (changed) {
                             returnCount++;
+                            addChange(changes, value);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
+                    upsert.close();
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                // Writing the forecast that is already stored changes nothing to show.
+                onWeatherChanged(changes, WeatherContract.shouldNotify(uri), true);
                 return returnCount;
+            case HOURLY: {
+                // One transaction per batch; the steps of a location replace the ones with the
+                // same time, so a sync only needs to write what it fetched.
+                db.beginTransactionNonExclusive();
+                int hourlyCount = 0;
+                try {
+                    for (ContentValues value : values) {
+                        long _id = db.insert(WeatherContract.HourlyEntry.TABLE_NAME, null, value);
+                        if (_id != -1) {
+                            hourlyCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
+                return hourlyCount;
+            }
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * @return whether the row holds exactly the columns a sync writes, with values of the types
+     * the upsert binds.
+     */
+    private static boolean isUpsertable(ContentValues value) {
+        if (value.size() != sUpsertWeatherColumns.length) {
+            return false;
+        }
+        for (String column : sUpsertWeatherColumns) {
+            Object columnValue = value.get(column);
+            boolean valid;
+            if (column.equals(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC)) {
+                valid = columnValue instanceof String;
+            } else if (column.equals(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                    || column.equals(WeatherContract.WeatherEntry.COLUMN_DATE)
+                    || column.equals(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)) {
+                valid = columnValue instanceof Long || columnValue instanceof Integer;
+            } else {
+                valid = columnValue instanceof Number;
+            }
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Upserts a row that {@link #isUpsertable} accepted.  The caller gets its date back
+     * normalized, as from insert().
+     *
+     * @return whether the row was added or changed.
+     */
+    private static boolean upsertWeather(WeatherUpsert upsert, ContentValues value) {
+        long date = upsert.normalizeDate(
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        value.put(WeatherContract.WeatherEntry.COLUMN_DATE, date);
+        int result = upsert.upsert(
+                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY), date,
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES),
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                value.getAsString(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC),
+                value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        return result == WeatherUpsert.RESULT_INSERTED || result == WeatherUpsert.RESULT_UPDATED;
+    }
+
+    /**
+     * A forecast written in several batches inside one transaction, by the thread that began
+     * it.  The sync adapter lives in the same process, so its calls run on its own thread and
+     * the transaction of the database, which is bound to the thread, spans them.
+     */
+    private static final class ForecastWrite {
+        final SQLiteDatabase db;
+        final WeatherUpsert upsert;
+        final WeatherChanges changes = new WeatherChanges();
+        int changed;
+        // The rows added or changed of each location row.
+        final Map<Long, Integer> changedByLocation = new HashMap<Long, Integer>();
+
+        ForecastWrite(SQLiteDatabase db) {
+            this.db = db;
+            upsert = new WeatherUpsert(db);
+        }
+    }
+
+    private final ThreadLocal<ForecastWrite> mForecastWrite = new ThreadLocal<ForecastWrite>();
+
+    private void beginForecast() {
+        if (mForecastWrite.get() != null) {
+            throw new IllegalStateException("A forecast is already being written on this thread");
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        mForecastWrite.set(new ForecastWrite(db));
+    }
+
+    private ForecastWrite getForecastWrite(String method) {
+        ForecastWrite write = mForecastWrite.get();
+        if (write == null) {
+            throw new IllegalStateException("No forecast being written in call to " + method);
+        }
+        return write;
+    }
+
+    /**
+     * Upserts a batch of rows into the forecast being written.
+     *
+     * @return the number of rows of the batch that were added or changed.
+     */
+    private int writeForecast(ForecastWrite write, WeatherRows rows) {
+        int changed = 0;
+        for (int i = 0; i < rows.size; i++) {
+            long date = write.upsert.normalizeDate(rows.dates[i]);
+            int result = write.upsert.upsert(rows.locationIds[i], date, rows.humidity[i],
+                    rows.pressure[i], rows.windSpeed[i], rows.degrees[i], rows.high[i],
+                    rows.low[i], rows.descriptions[i], rows.weatherIds[i]);
+            if (result == WeatherUpsert.RESULT_INSERTED
+                    || result == WeatherUpsert.RESULT_UPDATED) {
+                changed++;
+                write.changes.add(rows.locationIds[i], date);
+                Integer locationChanged = write.changedByLocation.get(rows.locationIds[i]);
+                write.changedByLocation.put(rows.locationIds[i],
+                        locationChanged == null ? 1 : locationChanged + 1);
+            }
+        }
+        write.changed += changed;
+        return changed;
+    }
+
+    /**
+     * Deletes the days up to the prune date and commits the forecast being written.  The
+     * observers of the changed locations are told about the change once each, if there was one.
+     *
+     * @param pruneDate the last day to delete, or -1 to delete none
+     * @return the forecast written, which counts the rows added or changed by every batch.
+     */
+    private ForecastWrite commitForecast(long pruneDate) {
+        ForecastWrite write = getForecastWrite(WeatherContract.METHOD_COMMIT_FORECAST);
+        try {
+            if (pruneDate != -1) {
+                String[] pruneArgs = new String[]{Long.toString(pruneDate)};
+                write.changes.addRows(write.db, sPruneSelection, pruneArgs);
+                write.db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sPruneSelection,
+                        pruneArgs);
+            }
+            write.db.setTransactionSuccessful();
+        } finally {
+            endForecast(write);
+        }
+        // Nothing is notified if nothing changed.  Not a change a sync has to upload.
+        onWeatherChanged(write.changes, true, false);
+        return write;
+    }
+
+    /**
+     * Rolls back the forecast being written, if there is one.  Nothing is notified.
+     */
+    private void abortForecast() {
+        ForecastWrite write = mForecastWrite.get();
+        if (write != null) {
+            endForecast(write);
+        }
+    }
+
+    private void endForecast(ForecastWrite write) {
+        mForecastWrite.remove();
+        write.upsert.close();
+        write.db.endTransaction();
+    }
+
+    /**
+     * Upserts a batch of rows and deletes the days up to the prune date, in one transaction, so
+     * that a reader sees either the forecast as it was or as it is now, never a mix.
+     *
+     * @param pruneDate the last day to delete, or -1 to delete none
+     * @return the number of rows that were added or changed.
+     */
+    private int replaceForecast(WeatherRows rows, long pruneDate) {
+        beginForecast();
+        try {
+            writeForecast(getForecastWrite(WeatherContract.METHOD_REPLACE_FORECAST), rows);
+            return commitForecast(pruneDate).changed;
+        } finally {
+            abortForecast();
+        }
+    }
+
+    private static Bundle toCountBundle(int count) {
+        Bundle result = new Bundle();
+        result.putInt(WeatherRows.EXTRA_COUNT, count);
+        return result;
+    }
+
+    /**
+     * @return the count of the forecast written, and the count of each location by its
+     * setting, as {@link ForecastTransaction#commit} reads them.
+     */
+    private Bundle toCommitBundle(ForecastWrite write) {
+        Bundle result = toCountBundle(write.changed);
+        if (write.changedByLocation.isEmpty()) {
+            return result;
+        }
+        Map<Long, String> settings = WeatherChanges.querySettings(
+                mOpenHelper.getReadableDatabase(), write.changedByLocation.keySet());
+        String[] changedSettings = new String[settings.size()];
+        int[] changedCounts = new int[settings.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> entry : settings.entrySet()) {
+            changedSettings[i] = entry.getValue();
+            changedCounts[i++] = write.changedByLocation.get(entry.getKey());
+        }
+        result.putStringArray(ForecastTransaction.EXTRA_CHANGED_SETTINGS, changedSettings);
+        result.putIntArray(ForecastTransaction.EXTRA_CHANGED_COUNTS, changedCounts);
+        return result;
+    }
+
+    private static WeatherRows getRows(String method, Bundle extras) {
+        WeatherRows rows = WeatherRows.fromBundle(extras);
+        if (rows == null) {
+            throw new IllegalArgumentException("No weather rows in call to " + method);
+        }
+        return rows;
+    }
+
+    // For tests that change how the database is opened.
+    WeatherDbHelper getOpenHelper() {
+        return mOpenHelper;
+    }
+
+    // For tests that read the counts of the cache, or query without it.
+    QueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_CHECKPOINT.equals(method)) {
+            mOpenHelper.checkpoint();
+            return null;
+        }
+        if (WeatherContract.METHOD_REPLACE_FORECAST.equals(method)) {
+            return toCountBundle(replaceForecast(getRows(method, extras),
+                    arg == null ? -1 : Long.parseLong(arg)));
+        }
+        if (WeatherContract.METHOD_BEGIN_FORECAST.equals(method)) {
+            beginForecast();
+            return null;
+        }
+        if (WeatherContract.METHOD_WRITE_FORECAST.equals(method)) {
+            return toCountBundle(writeForecast(getForecastWrite(method),
+                    getRows(method, extras)));
+        }
+        if (WeatherContract.METHOD_COMMIT_FORECAST.equals(method)) {
+            return toCommitBundle(commitForecast(arg == null ? -1 : Long.parseLong(arg)));
+        }
+        if (WeatherContract.METHOD_ABORT_FORECAST.equals(method)) {
+            abortForecast();
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
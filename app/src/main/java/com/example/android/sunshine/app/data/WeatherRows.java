@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * A batch of rows for the weather table, held column by column in primitive arrays, so that the
+ * sync can hand the provider what it parsed without a ContentValues, and the boxing that comes
+ * with one, per row.  The provider binds the columns straight into a compiled insert.
+ *
+ * A batch is reused: {@link #clear} keeps the arrays for the next one.  Not thread-safe.
+ */
+public final class WeatherRows {
+
+    // The keys of the batch in the extras of ContentResolver.call().
+    private static final String EXTRA_SIZE = "size";
+    private static final String EXTRA_LOCATION_IDS = "location_ids";
+    private static final String EXTRA_DATES = "dates";
+    private static final String EXTRA_HUMIDITY = "humidity";
+    private static final String EXTRA_PRESSURE = "pressure";
+    private static final String EXTRA_WIND_SPEED = "wind_speed";
+    private static final String EXTRA_DEGREES = "degrees";
+    private static final String EXTRA_HIGH = "high";
+    private static final String EXTRA_LOW = "low";
+    private static final String EXTRA_DESCRIPTIONS = "descriptions";
+    private static final String EXTRA_WEATHER_IDS = "weather_ids";
+    // The number of rows written, in the result of the call.
+    static final String EXTRA_COUNT = "count";
+
+    int size;
+    long[] locationIds;
+    long[] dates;
+    double[] humidity;
+    double[] pressure;
+    double[] windSpeed;
+    double[] degrees;
+    double[] high;
+    double[] low;
+    String[] descriptions;
+    int[] weatherIds;
+
+    public WeatherRows(int capacity) {
+        capacity = Math.max(1, capacity);
+        locationIds = new long[capacity];
+        dates = new long[capacity];
+        humidity = new double[capacity];
+        pressure = new double[capacity];
+        windSpeed = new double[capacity];
+        degrees = new double[capacity];
+        high = new double[capacity];
+        low = new double[capacity];
+        descriptions = new String[capacity];
+        weatherIds = new int[capacity];
+    }
+
+    /**
+     * Adds a row.  The date is normalized by the provider, as it is for every other write.
+     *
+     * @param locationId the row of the location, or -1 if it is not known yet; see
+     * {@link #setLocationId}
+     */
+    public void add(long locationId, long date, double humidity, double pressure,
+                    double windSpeed, double degrees, double high, double low,
+                    String description, int weatherId) {
+        if (size == dates.length) {
+            grow();
+        }
+        locationIds[size] = locationId;
+        dates[size] = date;
+        this.humidity[size] = humidity;
+        this.pressure[size] = pressure;
+        this.windSpeed[size] = windSpeed;
+        this.degrees[size] = degrees;
+        this.high[size] = high;
+        this.low[size] = low;
+        descriptions[size] = description;
+        weatherIds[size] = weatherId;
+        size++;
+    }
+
+    /**
+     * Sets the location of every row added so far, for rows that were parsed before the city.
+     */
+    public void setLocationId(long locationId) {
+        Arrays.fill(locationIds, 0, size, locationId);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        // Let go of the descriptions; the numbers are simply overwritten.
+        Arrays.fill(descriptions, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Writes the rows and deletes every day up to the prune date through the provider, in one
+     * transaction, and notifies the observers of each changed location once.  A reader sees
+     * either the forecast as it was or as it is after the call, never the new days next to the
+     * expired ones.  Like a bulk insert, a row updates the one of the same location and date
+     * in place.
+     *
+     * Nothing is notified if no row was added, changed or deleted.
+     *
+     * @param pruneDate the last day to delete, or -1 to delete none
+     * @return the number of rows that were added or changed.
+     */
+    public int replaceForecast(ContentResolver resolver, long pruneDate) {
+        Bundle result = resolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST, Long.toString(pruneDate), toBundle());
+        return result == null ? 0 : result.getInt(EXTRA_COUNT);
+    }
+
+    private void grow() {
+        int capacity = dates.length * 2;
+        locationIds = Arrays.copyOf(locationIds, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        humidity = Arrays.copyOf(humidity, capacity);
+        pressure = Arrays.copyOf(pressure, capacity);
+        windSpeed = Arrays.copyOf(windSpeed, capacity);
+        degrees = Arrays.copyOf(degrees, capacity);
+        high = Arrays.copyOf(high, capacity);
+        low = Arrays.copyOf(low, capacity);
+        descriptions = Arrays.copyOf(descriptions, capacity);
+        weatherIds = Arrays.copyOf(weatherIds, capacity);
+    }
+
+    // In the same process the bundle is handed over as is, so the arrays are not copied.
+    Bundle toBundle() {
+        Bundle extras = new Bundle();
+        extras.putInt(EXTRA_SIZE, size);
+        extras.putLongArray(EXTRA_LOCATION_IDS, locationIds);
+        extras.putLongArray(EXTRA_DATES, dates);
+        extras.putDoubleArray(EXTRA_HUMIDITY, humidity);
+        extras.putDoubleArray(EXTRA_PRESSURE, pressure);
+        extras.putDoubleArray(EXTRA_WIND_SPEED, windSpeed);
+        extras.putDoubleArray(EXTRA_DEGREES, degrees);
+        extras.putDoubleArray(EXTRA_HIGH, high);
+        extras.putDoubleArray(EXTRA_LOW, low);
+        extras.putStringArray(EXTRA_DESCRIPTIONS, descriptions);
+        extras.putIntArray(EXTRA_WEATHER_IDS, weatherIds);
+        return extras;
+    }
+
+    /**
+     * @return the batch held by the extras of a call, or null if they hold none.
+     */
+    static WeatherRows fromBundle(Bundle extras) {
+        if (extras == null || !extras.containsKey(EXTRA_SIZE)) {
+            return null;
+        }
+        WeatherRows rows = new WeatherRows(0);
+        rows.locationIds = extras.getLongArray(EXTRA_LOCATION_IDS);
+        rows.dates = extras.getLongArray(EXTRA_DATES);
+        rows.humidity = extras.getDoubleArray(EXTRA_HUMIDITY);
+        rows.pressure = extras.getDoubleArray(EXTRA_PRESSURE);
+        rows.windSpeed = extras.getDoubleArray(EXTRA_WIND_SPEED);
+        rows.degrees = extras.getDoubleArray(EXTRA_DEGREES);
+        rows.high = extras.getDoubleArray(EXTRA_HIGH);
+        rows.low = extras.getDoubleArray(EXTRA_LOW);
+        rows.descriptions = extras.getStringArray(EXTRA_DESCRIPTIONS);
+        rows.weatherIds = extras.getIntArray(EXTRA_WEATHER_IDS);
+        rows.size = extras.getInt(EXTRA_SIZE);
+        return rows;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+import android.util.Log;
+
+/**
+ * Writes weather rows as an upsert: the row of a location and day that is already stored keeps
+ * its id and is only written when one of its values differs, and a new day is inserted.  The
+ * table's ON CONFLICT REPLACE would delete and insert the row instead, giving it a new id and
+ * rewriting its indexes, even when nothing changed.
+ *
+ * The SQLite of the Android versions this app runs on has no ON CONFLICT DO UPDATE, so this is
+ * a compiled UPDATE that only matches a row whose values differ, followed by an INSERT OR
+ * IGNORE when it matched none.  The caller holds the transaction and closes the upsert.
+ */
+final class WeatherUpsert {
+    private static final String LOG_TAG = WeatherUpsert.class.getSimpleName();
+
+    static final int RESULT_FAILED = -1;
+    static final int RESULT_UNCHANGED = 0;
+    static final int RESULT_UPDATED = 1;
+    static final int RESULT_INSERTED = 2;
+
+    // ?1 to ?8 are the values, ?9 and ?10 the key.  The key columns are not set, so the unique
+    // index on them is left alone.
+    static final String UPDATE_SQL =
+            "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME + " SET "
+                    + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " = ?1, "
+                    + WeatherContract.WeatherEntry.COLUMN_PRESSURE + " = ?2, "
+                    + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " = ?3, "
+                    + WeatherContract.WeatherEntry.COLUMN_DEGREES + " = ?4, "
+                    + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " = ?5, "
+                    + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " = ?6, "
+                    + WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " = ?7, "
+                    + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " = ?8"
+                    + " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ?9"
+                    + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?10"
+                    + " AND (" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + " IS NOT ?1"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_PRESSURE + " IS NOT ?2"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + " IS NOT ?3"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_DEGREES + " IS NOT ?4"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " IS NOT ?5"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " IS NOT ?6"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + " IS NOT ?7"
+                    + " OR " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + " IS NOT ?8)";
+
+    // The same numbering as the update.
+    static final String INSERT_SQL =
+            "INSERT OR IGNORE INTO " + WeatherContract.WeatherEntry.TABLE_NAME + " ("
+                    + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_DEGREES + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_SHORT_DESC + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + ", "
+                    + WeatherContract.WeatherEntry.COLUMN_DATE
+                    + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10)";
+
+    private final SQLiteStatement mUpdate;
+    private final SQLiteStatement mInsert;
+    private final Time mTime = new Time();
+
+    WeatherUpsert(SQLiteDatabase db) {
+        mUpdate = db.compileStatement(UPDATE_SQL);
+        mInsert = db.compileStatement(INSERT_SQL);
+    }
+
+    /**
+     * @return the date normalized as every write normalizes it, reusing one Time for the batch.
+     */
+    long normalizeDate(long date) {
+        return WeatherContract.normalizeDate(mTime, date);
+    }
+
+    /**
+     * Writes one row.
+     *
+     * @param date the day, already normalized
+     * @return one of the RESULT_ constants.
+     */
+    int upsert(long locationId, long date, double humidity, double pressure, double windSpeed,
+               double degrees, double high, double low, String description, int weatherId) {
+        if (description == null) {
+            // The column is NOT NULL, which INSERT OR IGNORE would skip without a word.
+            Log.e(LOG_TAG, "No description for the weather of " + date);
+            return RESULT_FAILED;
+        }
+        try {
+            bind(mUpdate, locationId, date, humidity, pressure, windSpeed, degrees,
+                    high, low, description, weatherId);
+            if (mUpdate.executeUpdateDelete() > 0) {
+                return RESULT_UPDATED;
+            }
+            // Either the day is new, or it is stored with the same values, which the insert
+            // leaves alone.
+            bind(mInsert, locationId, date, humidity, pressure, windSpeed, degrees,
+                    high, low, description, weatherId);
+            return mInsert.executeInsert() == -1 ? RESULT_UNCHANGED : RESULT_INSERTED;
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error writing weather row", e);
+            return RESULT_FAILED;
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, long locationId, long date,
+                             double humidity, double pressure, double windSpeed,
+                             double degrees, double high, double low, String description,
+                             int weatherId) {
+        statement.bindDouble(1, humidity);
+        statement.bindDouble(2, pressure);
+        statement.bindDouble(3, windSpeed);
+        statement.bindDouble(4, degrees);
+        statement.bindDouble(5, high);
+        statement.bindDouble(6, low);
+        statement.bindString(7, description);
+        statement.bindLong(8, weatherId);
+        statement.bindLong(9, locationId);
+        statement.bindLong(10, date);
+    }
+
+    void close() {
+        mUpdate.close();
+        mInsert.close();
+    }
+}
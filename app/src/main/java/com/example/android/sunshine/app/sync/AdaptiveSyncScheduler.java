@@ -0,0 +1,230 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Picks the periodic sync interval from how the forecast and the device behave, instead of
+ * syncing every {@link SunshineSyncAdapter#SYNC_INTERVAL} seconds no matter what.
+ *
+ * The forecast sets a base: every sync in a row that changed no weather rows doubles it, up to
+ * {@link #MAX_INTERVAL}; a sync that changed rows brings it back to the default interval, and a
+ * thunderstorm in today's or tomorrow's forecast drops it to {@link #MIN_INTERVAL}.  The device
+ * then stretches that base: a metered network, a low battery that is not charging and a user who
+ * has not opened the app for a while each double it.
+ *
+ * Every decision is logged with its inputs and the number of requests sent to OpenWeatherMap
+ * that day, as the user's clock counts days, so the cadence can be compared with the fixed one.
+ */
+public class AdaptiveSyncScheduler {
+    private static final String LOG_TAG = AdaptiveSyncScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "sync_schedule";
+    private static final String KEY_BASE_INTERVAL = "base_interval";
+    private static final String KEY_INTERVAL = "interval";
+    private static final String KEY_LAST_FOREGROUND = "last_foreground";
+    private static final String KEY_FETCH_DAY = "fetch_day";
+    private static final String KEY_FETCH_COUNT = "fetch_count";
+
+    // Intervals are in seconds, like the ones handed to the sync framework.
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 60 * 12;
+
+    static final int LOW_BATTERY_PERCENT = 15;
+    // Without a visit for this long, nobody is looking at fresh forecasts.
+    static final long IDLE_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * What a decision is based on.
+     */
+    static class Inputs {
+        int changedRows;
+        boolean storm;
+        boolean metered;
+        int batteryPercent = 100;
+        boolean charging;
+        long sinceForegroundMillis;
+
+        @Override
+        public String toString() {
+            return "changedRows=" + changedRows + " storm=" + storm + " metered=" + metered
+                    + " battery=" + batteryPercent + "%" + (charging ? " charging" : "")
+                    + " sinceForeground=" + (sinceForegroundMillis / 60000) + "min";
+        }
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    public AdaptiveSyncScheduler(Context context) {
+        mContext = context;
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the periodic sync interval in effect, in seconds.
+     */
+    public static int getInterval(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+    }
+
+    /**
+     * @return the flex time that goes with the given interval, in seconds.
+     */
+    public static int getFlexTime(int interval) {
+        return interval / 3;
+    }
+
+    /**
+     * Remembers that the user is looking at the app.  Call from the UI when it comes to the
+     * foreground.
+     */
+    public static void recordForeground(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_LAST_FOREGROUND, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * Adds the requests a sync sent to OpenWeatherMap, failed ones included, to the count of
+     * the day.  This should not be called from the UI thread because it uses commit.
+     */
+    public void recordRequests(int count) {
+        long day = getLocalDay(System.currentTimeMillis(), TimeZone.getDefault());
+        mPrefs.edit()
+                .putLong(KEY_FETCH_DAY, day)
+                .putInt(KEY_FETCH_COUNT, getRequestsOn(day) + count)
+                .commit();
+    }
+
+    private int getRequestsOn(long day) {
+        return mPrefs.getLong(KEY_FETCH_DAY, -1) == day ? mPrefs.getInt(KEY_FETCH_COUNT, 0) : 0;
+    }
+
+    /**
+     * @return the number of the day the given time falls on in the given time zone, counted
+     * from the epoch.
+     */
+    static long getLocalDay(long millis, TimeZone zone) {
+        return (millis + zone.getOffset(millis)) / DAY_IN_MILLIS;
+    }
+
+    /**
+     * Decides on the next interval after a sync, and reschedules the periodic sync if it
+     * changed.  This should not be called from the UI thread because it uses commit.
+     *
+     * @param changedRows the number of weather rows the sync added or changed.  Rows OWM sent
+     *                    again with the values they already had do not count.
+     */
+    public void onSyncComplete(int changedRows) {
+        Inputs inputs = readDeviceState();
+        inputs.changedRows = changedRows;
+        inputs.storm = hasStormAhead();
+
+        int previousBase = mPrefs.getInt(KEY_BASE_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        int previous = mPrefs.getInt(KEY_INTERVAL, SunshineSyncAdapter.SYNC_INTERVAL);
+        int base = computeBaseInterval(previousBase, inputs);
+        int interval = computeInterval(base, inputs);
+
+        int requestsToday =
+                getRequestsOn(getLocalDay(System.currentTimeMillis(), TimeZone.getDefault()));
+
+        mPrefs.edit()
+                .putInt(KEY_BASE_INTERVAL, base)
+                .putInt(KEY_INTERVAL, interval)
+                .commit();
+
+        Log.i(LOG_TAG, "Schedule: " + inputs + " -> interval " + interval + "s (base " + base
+                + "s, was " + previous + "s, fixed " + SunshineSyncAdapter.SYNC_INTERVAL
+                + "s); requests today: " + requestsToday);
+
+        if (interval != previous) {
+            SunshineSyncAdapter.configurePeriodicSync(mContext, interval, getFlexTime(interval));
+        }
+    }
+
+    /**
+     * @return the interval the forecast alone asks for.
+     */
+    static int computeBaseInterval(int previousBase, Inputs inputs) {
+        if (inputs.storm) {
+            return MIN_INTERVAL;
+        }
+        if (inputs.changedRows == 0) {
+            return Math.min(Math.max(previousBase, MIN_INTERVAL) * 2, MAX_INTERVAL);
+        }
+        return SunshineSyncAdapter.SYNC_INTERVAL;
+    }
+
+    /**
+     * @return the base interval stretched by the state of the device.
+     */
+    static int computeInterval(int base, Inputs inputs) {
+        int interval = base;
+        if (inputs.metered) {
+            interval *= 2;
+        }
+        if (!inputs.charging && inputs.batteryPercent <= LOW_BATTERY_PERCENT) {
+            interval *= 2;
+        }
+        if (inputs.sinceForegroundMillis >= IDLE_MILLIS) {
+            interval *= 2;
+        }
+        return Math.max(MIN_INTERVAL, Math.min(interval, MAX_INTERVAL));
+    }
+
+    private Inputs readDeviceState() {
+        Inputs inputs = new Inputs();
+
+        ConnectivityManager cm =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        inputs.metered = ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+
+        // ACTION_BATTERY_CHANGED is sticky, so no receiver is needed to read the last value.
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                inputs.batteryPercent = level * 100 / scale;
+            }
+            inputs.charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+
+        long lastForeground = mPrefs.getLong(KEY_LAST_FOREGROUND, 0);
+        // Before the first visit is recorded, assume the user is around.
+        inputs.sinceForegroundMillis = lastForeground == 0
+                ? 0 : System.currentTimeMillis() - lastForeground;
+        return inputs;
+    }
+
+    /**
+     * @return true if today's or tomorrow's forecast for the preferred location is a
+     * thunderstorm (OWM codes 2xx).
+     */
+    private boolean hasStormAhead() {
+        List<ForecastSnapshot.Day> days =
+                ForecastSnapshot.get(mContext).getDays(System.currentTimeMillis());
+        for (int day = 0; day < 2 && day < days.size(); day++) {
+            if (days.get(day).weatherId / 100 == 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,258 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tells everything that shows the forecast outside of the app (widgets, Muzei, the
+ * notification, the wear face) that new data was committed, without holding up the sync.
+ *
+ * Every consumer runs on a thread of its own, so a slow one, such as the notification waiting
+ * for its art, does not delay the others, and an exception in one does not reach the others or
+ * the sync.  A consumer that does not finish within its timeout is interrupted and counted as
+ * timed out.  The time every consumer took from the dispatch on is charged to its stage of the
+ * sync trace, and the listener hears once all of them are done.
+ *
+ * A partial wake lock keeps the device awake for the longest timeout of a dispatch at most, since
+ * the sync framework releases its own once the sync returns.
+ */
+public class FanOutDispatcher {
+    private static final String LOG_TAG = FanOutDispatcher.class.getSimpleName();
+
+    private static final String WAKE_LOCK_TAG = "Sunshine:FanOut";
+    private static final long IDLE_THREAD_SECONDS = 30;
+
+    static final int RESULT_OK = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_TIMED_OUT = 2;
+
+    /**
+     * Something that shows the forecast and needs to hear about new data.
+     */
+    public static abstract class Consumer {
+        private final String mName;
+        private final int mStage;
+        private final long mTimeoutMillis;
+
+        /**
+         * @param stage the {@link SyncTrace} stage the time of the consumer is charged to
+         */
+        public Consumer(String name, int stage, long timeoutMillis) {
+            mName = name;
+            mStage = stage;
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        /**
+         * Brings the consumer up to date.  Runs on a thread of the dispatcher, and should give
+         * up when the thread is interrupted.
+         */
+        public abstract void consume() throws Exception;
+    }
+
+    public interface Listener {
+        /**
+         * Called on a thread of the dispatcher once every consumer of a dispatch finished,
+         * failed or timed out.
+         */
+        void onFanOutComplete();
+    }
+
+    private final PowerManager mPowerManager;
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(new FanOutThreadFactory("FanOut-"));
+    private final ScheduledThreadPoolExecutor mWatchdog =
+            new ScheduledThreadPoolExecutor(1, new FanOutThreadFactory("FanOutWatchdog-"));
+
+    public FanOutDispatcher(Context context) {
+        this((PowerManager) context.getSystemService(Context.POWER_SERVICE));
+    }
+
+    /**
+     * @param powerManager where the wake lock comes from, or null to run without one
+     */
+    FanOutDispatcher(PowerManager powerManager) {
+        mPowerManager = powerManager;
+        mWatchdog.setKeepAliveTime(IDLE_THREAD_SECONDS, TimeUnit.SECONDS);
+        mWatchdog.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Starts every consumer and returns at once.
+     *
+     * @param trace where the time of every consumer is charged, or null to only log it
+     * @param listener told once all the consumers are done, may be null
+     */
+    public void dispatch(List<Consumer> consumers, SyncTrace trace, Listener listener) {
+        Dispatch dispatch = new Dispatch(consumers.size(), trace, listener,
+                acquireWakeLock(consumers));
+        if (consumers.isEmpty()) {
+            dispatch.complete();
+            return;
+        }
+        for (Consumer consumer : consumers) {
+            Delivery delivery = new Delivery(dispatch, consumer);
+            delivery.mFuture = mExecutor.submit(delivery);
+            delivery.mWatchdog = mWatchdog.schedule(delivery.mTimeout,
+                    consumer.mTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private PowerManager.WakeLock acquireWakeLock(List<Consumer> consumers) {
+        if (mPowerManager == null || consumers.isEmpty()) {
+            return null;
+        }
+        long longest = 0;
+        for (Consumer consumer : consumers) {
+            longest = Math.max(longest, consumer.mTimeoutMillis);
+        }
+        // Not reference counted, so that releasing a lock that already timed out is harmless.
+        PowerManager.WakeLock wakeLock =
+                mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(longest);
+        return wakeLock;
+    }
+
+    /**
+     * The consumers started by one call to dispatch.
+     */
+    private static class Dispatch {
+        final long mStart = SyncTrace.now();
+        final AtomicInteger mRemaining;
+        final SyncTrace mTrace;
+        final Listener mListener;
+        final PowerManager.WakeLock mWakeLock;
+
+        Dispatch(int count, SyncTrace trace, Listener listener, PowerManager.WakeLock wakeLock) {
+            mRemaining = new AtomicInteger(count);
+            mTrace = trace;
+            mListener = listener;
+            mWakeLock = wakeLock;
+        }
+
+        void complete() {
+            if (mListener != null) {
+                try {
+                    mListener.onFanOutComplete();
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Fan-out listener failed", e);
+                }
+            }
+            if (mWakeLock != null && mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * One consumer of a dispatch.  It is settled exactly once: by finishing, by failing or by
+     * its timeout, whichever comes first.
+     */
+    private static class Delivery implements Runnable {
+        final Dispatch mDispatch;
+        final Consumer mConsumer;
+        final AtomicBoolean mSettled = new AtomicBoolean();
+        volatile Future<?> mFuture;
+        volatile ScheduledFuture<?> mWatchdog;
+
+        final Runnable mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (settle(RESULT_TIMED_OUT, null)) {
+                    Future<?> future = mFuture;
+                    if (future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }
+        };
+
+        Delivery(Dispatch dispatch, Consumer consumer) {
+            mDispatch = dispatch;
+            mConsumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mConsumer.consume();
+                settle(RESULT_OK, null);
+            } catch (Exception e) {
+                settle(RESULT_FAILED, e);
+            }
+        }
+
+        /**
+         * @return true if this settled the delivery, false if it was settled before
+         */
+        boolean settle(int result, Exception error) {
+            if (!mSettled.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> watchdog = mWatchdog;
+            if (watchdog != null && result != RESULT_TIMED_OUT) {
+                watchdog.cancel(false);
+            }
+            long elapsed = SyncTrace.now() - mDispatch.mStart;
+            if (mDispatch.mTrace != null) {
+                mDispatch.mTrace.add(mConsumer.mStage, mDispatch.mStart);
+            }
+            String message = mConsumer.mName + " " + getResultName(result) + " after "
+                    + elapsed / 1000000 + " ms";
+            if (result == RESULT_OK) {
+                Log.d(LOG_TAG, message);
+            } else {
+                Log.w(LOG_TAG, message, error);
+            }
+            if (mDispatch.mRemaining.decrementAndGet() == 0) {
+                mDispatch.complete();
+            }
+            return true;
+        }
+    }
+
+    private static String getResultName(int result) {
+        switch (result) {
+            case RESULT_OK:
+                return "done";
+            case RESULT_FAILED:
+                return "failed";
+            default:
+                return "timed out";
+        }
+    }
+
+    private static class FanOutThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        FanOutThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(mPrefix + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }
+}
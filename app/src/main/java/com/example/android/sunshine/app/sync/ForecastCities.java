@@ -0,0 +1,60 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per location setting, the OpenWeatherMap city id its forecast came back with and
+ * when the full forecast was last confirmed current.  The city id is what the group endpoint is
+ * queried by; the time decides whether a location can make do with a group refresh of today or
+ * needs its whole forecast fetched again.
+ */
+public class ForecastCities {
+    static final String PREFS_NAME = "forecast_cities";
+
+    private static final String SUFFIX_CITY_ID = ".city_id";
+    private static final String SUFFIX_FORECAST_TIME = ".forecast_time";
+
+    private final SharedPreferences mPrefs;
+
+    public ForecastCities(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return the OWM city id of the location, 0 if it is not known yet.
+     */
+    public long getCityId(String locationSetting) {
+        return mPrefs.getLong(locationSetting + SUFFIX_CITY_ID, 0);
+    }
+
+    /**
+     * @return when the full forecast of the location was last stored or confirmed unchanged,
+     * 0 if never.
+     */
+    public long getForecastTime(String locationSetting) {
+        return mPrefs.getLong(locationSetting + SUFFIX_FORECAST_TIME, 0);
+    }
+
+    /**
+     * Records that the full forecast of the location was just stored.  This should not be
+     * called from the UI thread because it uses commit.
+     *
+     * @param cityId the city id of the forecast, 0 to keep the one already known
+     */
+    public void save(String locationSetting, long cityId) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (cityId != 0) {
+            editor.putLong(locationSetting + SUFFIX_CITY_ID, cityId);
+        }
+        editor.putLong(locationSetting + SUFFIX_FORECAST_TIME, System.currentTimeMillis());
+        editor.commit();
+    }
+
+    public void clear(String locationSetting) {
+        mPrefs.edit()
+                .remove(locationSetting + SUFFIX_CITY_ID)
+                .remove(locationSetting + SUFFIX_FORECAST_TIME)
+                .commit();
+    }
+}
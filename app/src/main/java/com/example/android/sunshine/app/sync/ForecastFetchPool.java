@@ -0,0 +1,173 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the forecasts of several locations at once on a small, bounded pool of threads, so
+ * a sync over all saved locations takes about as long as its slowest fetch instead of the sum
+ * of them.  Only the downloads run on the pool; parsing and writing stay with the caller so the
+ * database keeps a single writer.
+ */
+public class ForecastFetchPool {
+    private static final String LOG_TAG = ForecastFetchPool.class.getSimpleName();
+
+    // Enough to overlap the round trips of a typical list of locations without opening a
+    // connection per location on a slow network.
+    static final int MAX_PARALLEL_FETCHES = 4;
+
+    private final ForecastFetcher mFetcher;
+    private final int mMaxParallel;
+
+    public ForecastFetchPool(ForecastFetcher fetcher) {
+        this(fetcher, MAX_PARALLEL_FETCHES);
+    }
+
+    ForecastFetchPool(ForecastFetcher fetcher, int maxParallel) {
+        mFetcher = fetcher;
+        mMaxParallel = maxParallel;
+    }
+
+    /**
+     * The outcome of fetching one location: either a response or the error that prevented it.
+     */
+    public static class Result {
+        private final ForecastRequest mRequest;
+        private ForecastFetcher.Response mResponse;
+        private IOException mError;
+        private long mElapsedMillis;
+
+        Result(ForecastRequest request) {
+            mRequest = request;
+        }
+
+        public ForecastRequest getRequest() {
+            return mRequest;
+        }
+
+        /**
+         * @return the response, or null if the fetch failed.  The caller owns it and must
+         * {@link ForecastFetcher.Response#release() release} it.
+         */
+        public ForecastFetcher.Response getResponse() {
+            return mResponse;
+        }
+
+        public IOException getError() {
+            return mError;
+        }
+
+        public long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+    }
+
+    /**
+     * Fetches every request and waits for all of them.
+     *
+     * @param requests the locations to fetch
+     * @param conditional for each request, whether it may be made conditional on the validators
+     *                    of the last ingest
+     * @return one result per request, in the order of the requests
+     * @throws InterruptedIOException if the calling thread was interrupted, typically because
+     * the sync was canceled.  Responses that already arrived are released.
+     */
+    public List<Result> fetchAll(List<ForecastRequest> requests, final boolean[] conditional)
+            throws InterruptedIOException {
+        final int count = requests.size();
+        List<Result> results = new ArrayList<Result>(count);
+        if (count == 0) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mMaxParallel, count),
+                new FetchThreadFactory());
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                final Result result = new Result(requests.get(i));
+                final boolean isConditional = conditional[i];
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        long start = SystemClock.elapsedRealtime();
+                        try {
+                            result.mResponse = mFetcher.fetch(result.mRequest, isConditional);
+                        } catch (IOException e) {
+                            result.mError = e;
+                        }
+                        result.mElapsedMillis = SystemClock.elapsedRealtime() - start;
+                        return result;
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            for (Future<Result> future : futures) {
+                future.cancel(true);
+            }
+            releaseAll(futures);
+            throw new InterruptedIOException("Forecast fetch interrupted");
+        } catch (ExecutionException e) {
+            // fetch only throws IOException, which is caught above.
+            releaseAll(futures);
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long slowest = 0;
+        long total = 0;
+        for (Result result : results) {
+            slowest = Math.max(slowest, result.mElapsedMillis);
+            total += result.mElapsedMillis;
+        }
+        Log.d(LOG_TAG, "Fetched " + count + " locations; slowest " + slowest + " ms, "
+                + total + " ms sequential");
+        return results;
+    }
+
+    private static void releaseAll(List<Future<Result>> futures) {
+        for (Future<Result> future : futures) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    ForecastFetcher.Response response = future.get().mResponse;
+                    if (response != null) {
+                        response.release();
+                    }
+                } catch (InterruptedException | ExecutionException ignored) {
+                }
+            }
+        }
+    }
+
+    private static class FetchThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread("ForecastFetch-" + mCount.incrementAndGet()) {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            };
+        }
+    }
+}
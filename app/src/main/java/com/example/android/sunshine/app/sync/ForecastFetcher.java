@@ -0,0 +1,370 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Downloads forecasts from OpenWeatherMap for the sync adapter.
+ *
+ * Requests are made conditional on the validators of the last forecast that was ingested for
+ * the same query, and the body is hashed while it is written to a spool file.  A 304 or a body
+ * identical to the last ingested one is reported without handing out a body, so the sync can
+ * skip parsing and writing entirely.
+ *
+ * Responses are requested gzip compressed, and bodies that made it into the database are kept
+ * in a {@link ForecastResponseCache} so that a fetch for the same query within the cache TTL
+ * does not touch the network at all.
+ *
+ * The 3 hour forecast of a location goes through the same path, under a key of its own; see
+ * {@link ForecastRequest#hourly()}.
+ */
+public class ForecastFetcher {
+    private static final String LOG_TAG = ForecastFetcher.class.getSimpleName();
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+
+    // A stalled connection must not hold up a sync that waits for several locations.
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    // A new forecast was downloaded and is waiting in the body file.
+    public static final int RESULT_CHANGED = 0;
+    // The server answered 304 Not Modified.
+    public static final int RESULT_NOT_MODIFIED = 1;
+    // The server sent the same body that was ingested last time.
+    public static final int RESULT_UNCHANGED = 2;
+
+    private final String mBaseUrl;
+    private final String mHourlyBaseUrl;
+    private final File mSpoolDir;
+    private final ForecastValidators mValidators;
+    private final ForecastResponseCache mCache;
+    private SyncTrace mTrace;
+    // Fetches run on the threads of a ForecastFetchPool.
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    public ForecastFetcher(Context context) {
+        this(OwmEndpoints.getDailyUrl(), OwmEndpoints.getHourlyUrl(), context.getCacheDir(),
+                new ForecastValidators(context), new ForecastResponseCache(context));
+    }
+
+    ForecastFetcher(String baseUrl, File spoolDir, ForecastValidators validators,
+                    ForecastResponseCache cache) {
+        this(baseUrl, baseUrl, spoolDir, validators, cache);
+    }
+
+    private ForecastFetcher(String baseUrl, String hourlyBaseUrl, File spoolDir,
+                            ForecastValidators validators, ForecastResponseCache cache) {
+        mBaseUrl = baseUrl;
+        mHourlyBaseUrl = hourlyBaseUrl;
+        mSpoolDir = spoolDir;
+        mValidators = validators;
+        mCache = cache;
+    }
+
+    /**
+     * Charges the connect and download time and the bytes of every request that goes over the
+     * network to the given trace from now on.
+     */
+    public void setTrace(SyncTrace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * @return the number of requests sent to the server so far, failed ones included.  Forecasts
+     * served from the response cache are not requests.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Fetches the forecast for the given request.
+     *
+     * @param request the query to fetch
+     * @param conditional whether the validators of the last ingest may be used.  Pass false
+     *                    when the database no longer holds the forecast they describe.
+     * @return the outcome of the request.  {@link Response#release()} must be called once the
+     * body is no longer needed.
+     * @throws OwmHttpException if the server answered with an error status
+     * @throws IOException if the forecast could not be downloaded
+     */
+    public Response fetch(ForecastRequest request, boolean conditional) throws IOException {
+        String key = request.getKey();
+
+        InputStream cached = mCache != null ? mCache.get(key) : null;
+        if (cached != null) {
+            Log.d(LOG_TAG, "Forecast served from cache for " + key);
+            return spoolResponse(key, conditional, cached, true, null, null);
+        }
+
+        HttpURLConnection urlConnection = null;
+        // Connect covers the DNS lookup and the connection; download everything from there on,
+        // the wait for the server included.  Failed requests are charged too.
+        int stage = SyncTrace.STAGE_CONNECT;
+        long start = SyncTrace.now();
+        try {
+            // Create the request to OpenWeatherMap, and open the connection
+            String baseUrl = request.isHourly() ? mHourlyBaseUrl : mBaseUrl;
+            mRequestCount.incrementAndGet();
+            urlConnection = (HttpURLConnection) request.buildUrl(baseUrl).openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            // Setting the header ourselves means the body is not decompressed for us, but lets
+            // us count the bytes that actually went over the air.
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+            if (conditional) {
+                String eTag = mValidators.getETag(key);
+                if (eTag != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, eTag);
+                }
+                String lastModified = mValidators.getLastModified(key);
+                if (lastModified != null) {
+                    urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+                }
+            }
+            urlConnection.connect();
+            if (mTrace != null) {
+                start = mTrace.add(stage, start);
+            }
+            stage = SyncTrace.STAGE_DOWNLOAD;
+
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(LOG_TAG, "Forecast not modified for " + key);
+                if (mCache != null) {
+                    mCache.markFresh(key);
+                }
+                if (mTrace != null) {
+                    mTrace.addRequest(0, 0);
+                }
+                return new Response(key, RESULT_NOT_MODIFIED, null, false, null, null, null, 0);
+            }
+
+            int code = urlConnection.getResponseCode();
+            if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new OwmHttpException(code);
+            }
+
+            String eTag = urlConnection.getHeaderField(HEADER_ETAG);
+            String lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+
+            CountingInputStream wire = new CountingInputStream(urlConnection.getInputStream());
+            InputStream inputStream = wire;
+            if (ENCODING_GZIP.equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                inputStream = new GZIPInputStream(wire);
+            }
+            Response response = spoolResponse(key, conditional, inputStream, false, eTag,
+                    lastModified);
+            response.mWireBytes = wire.getCount();
+            if (mTrace != null) {
+                mTrace.addRequest(response.mWireBytes, response.getBody().length());
+            }
+            return response;
+        } finally {
+            if (mTrace != null) {
+                mTrace.add(stage, start);
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+
+    private Response spoolResponse(String key, boolean conditional, InputStream inputStream,
+                                   boolean fromCache, String eTag, String lastModified)
+            throws IOException {
+        File body = File.createTempFile("forecast", ".json", mSpoolDir);
+        String bodyHash;
+        try {
+            bodyHash = spool(inputStream, body);
+        } catch (IOException e) {
+            body.delete();
+            throw e;
+        }
+
+        if (fromCache) {
+            // The cached entry keeps the validators it was stored with.
+            eTag = mValidators.getETag(key);
+            lastModified = mValidators.getLastModified(key);
+        }
+
+        int result = RESULT_CHANGED;
+        if (conditional && bodyHash.equals(mValidators.getBodyHash(key))) {
+            Log.d(LOG_TAG, "Forecast body unchanged for " + key);
+            result = RESULT_UNCHANGED;
+        }
+        return new Response(key, result, body, fromCache, eTag, lastModified, bodyHash, 0);
+    }
+
+    /**
+     * Copies the stream into the given file and returns the hex SHA-1 of its content.
+     */
+    static String spool(InputStream in, File out) throws IOException {
+        MessageDigest digest = newDigest();
+        OutputStream os = new FileOutputStream(out);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                os.write(buffer, 0, count);
+            }
+        } finally {
+            os.close();
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device is required to provide SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The outcome of {@link #fetch(ForecastRequest, boolean)}.
+     */
+    public class Response {
+        private final String mKey;
+        private final int mResult;
+        private final File mBody;
+        private final boolean mFromCache;
+        private final String mETag;
+        private final String mLastModified;
+        private final String mBodyHash;
+        private long mWireBytes;
+
+        Response(String key, int result, File body, boolean fromCache, String eTag,
+                 String lastModified, String bodyHash, long wireBytes) {
+            mKey = key;
+            mResult = result;
+            mBody = body;
+            mFromCache = fromCache;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mBodyHash = bodyHash;
+            mWireBytes = wireBytes;
+        }
+
+        /**
+         * @return one of {@link #RESULT_CHANGED}, {@link #RESULT_NOT_MODIFIED} or
+         * {@link #RESULT_UNCHANGED}
+         */
+        public int getResult() {
+            return mResult;
+        }
+
+        /**
+         * @return the uncompressed body, null for {@link #RESULT_NOT_MODIFIED}.
+         */
+        public File getBody() {
+            return mBody;
+        }
+
+        /**
+         * @return true if the body came from the disk cache instead of the network.
+         */
+        public boolean isFromCache() {
+            return mFromCache;
+        }
+
+        /**
+         * @return the number of bytes read from the network, compressed if the server sent gzip.
+         */
+        public long getWireBytes() {
+            return mWireBytes;
+        }
+
+        /**
+         * Records this response as the last ingested forecast for its query, so the next fetch
+         * can be conditional on it and served from the cache.  Only call this once the forecast
+         * is in the database.
+         */
+        public void commit() {
+            if (mResult == RESULT_NOT_MODIFIED) {
+                return;
+            }
+            mValidators.save(mKey, mETag, mLastModified, mBodyHash);
+            if (mCache != null && !mFromCache && mBody != null) {
+                mCache.put(mKey, mBody);
+            }
+        }
+
+        public void release() {
+            if (mBody != null) {
+                mBody.delete();
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
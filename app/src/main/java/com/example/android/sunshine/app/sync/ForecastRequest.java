@@ -0,0 +1,174 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.Utility;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Describes one OpenWeatherMap forecast query: which location is asked for, and in which units
+ * and for how many days, or whether it is the 3 hour forecast of the location.  Besides
+ * building the URL, it provides a normalized key that identifies the query independently of the
+ * API key, for anything that is stored per query.
+ */
+public class ForecastRequest {
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast; the 5 day / 3 hour forecast is described at
+    // http://openweathermap.org/forecast5.  The URLs come from OwmEndpoints.
+    private static final String QUERY_PARAM = "q";
+    private static final String LAT_PARAM = "lat";
+    private static final String LON_PARAM = "lon";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String DAYS_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String FORMAT = "json";
+    static final String UNITS_METRIC = "metric";
+
+    private final String mLocationSetting;
+    private final boolean mUseLatLon;
+    private final String mLatitude;
+    private final String mLongitude;
+    private final String mUnits;
+    private final int mNumDays;
+    private final boolean mHourly;
+
+    ForecastRequest(String locationSetting, boolean useLatLon, String latitude,
+                    String longitude, String units, int numDays) {
+        this(locationSetting, useLatLon, latitude, longitude, units, numDays, false);
+    }
+
+    private ForecastRequest(String locationSetting, boolean useLatLon, String latitude,
+                            String longitude, String units, int numDays, boolean hourly) {
+        mLocationSetting = locationSetting;
+        mUseLatLon = useLatLon;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mUnits = units;
+        mNumDays = numDays;
+        mHourly = hourly;
+    }
+
+    /**
+     * Builds the request for the location the user picked in the settings.
+     *
+     * We no longer need just the location String, but also potentially the latitude and
+     * longitude, in case we are syncing based on a new Place Picker API result.
+     */
+    public static ForecastRequest forPreferredLocation(Context context, int numDays) {
+        return new ForecastRequest(Utility.getPreferredLocation(context),
+                Utility.isLocationLatLonAvailable(context),
+                String.valueOf(Utility.getLocationLatitude(context)),
+                String.valueOf(Utility.getLocationLongitude(context)),
+                UNITS_METRIC, numDays);
+    }
+
+    /**
+     * Builds the request for a saved location, which is always queried by name.
+     */
+    public static ForecastRequest forLocation(String locationSetting, int numDays) {
+        return new ForecastRequest(locationSetting, false,
+                String.valueOf(Utility.DEFAULT_LATLONG), String.valueOf(Utility.DEFAULT_LATLONG),
+                UNITS_METRIC, numDays);
+    }
+
+    /**
+     * @return the same query for another number of days.
+     */
+    public ForecastRequest withNumDays(int numDays) {
+        return new ForecastRequest(mLocationSetting, mUseLatLon, mLatitude, mLongitude, mUnits,
+                numDays);
+    }
+
+    /**
+     * @return the 3 hour forecast for the same location and units.  OWM always answers it with
+     * five days, so the number of days is left out of its URL and key.
+     */
+    public ForecastRequest hourly() {
+        return new ForecastRequest(mLocationSetting, mUseLatLon, mLatitude, mLongitude, mUnits,
+                mNumDays, true);
+    }
+
+    public boolean isHourly() {
+        return mHourly;
+    }
+
+    /**
+     * @return the location setting the fetched forecast is stored under.
+     */
+    public String getLocationSetting() {
+        return mLocationSetting;
+    }
+
+    public int getNumDays() {
+        return mNumDays;
+    }
+
+    public String getUnits() {
+        return mUnits;
+    }
+
+    /**
+     * @return a key for this query: q vs lat/lon, units and cnt, or the hourly marker.  Two
+     * requests with the same key return the same document from OWM.
+     */
+    public String getKey() {
+        StringBuilder key = new StringBuilder();
+        if (mUseLatLon) {
+            key.append(LAT_PARAM).append('=').append(mLatitude)
+                    .append('&').append(LON_PARAM).append('=').append(mLongitude);
+        } else {
+            key.append(QUERY_PARAM).append('=')
+                    .append(mLocationSetting.trim().toLowerCase(Locale.US));
+        }
+        key.append('&').append(UNITS_PARAM).append('=').append(mUnits);
+        if (mHourly) {
+            return key.append("&hourly").toString();
+        }
+        return key.append('&').append(DAYS_PARAM).append('=').append(mNumDays).toString();
+    }
+
+    public URL buildUrl() throws MalformedURLException {
+        return buildUrl(mHourly ? OwmEndpoints.getHourlyUrl() : OwmEndpoints.getDailyUrl());
+    }
+
+    URL buildUrl(String baseUrl) throws MalformedURLException {
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+
+        // Instead of always building the query based off of the location string, we want to
+        // potentially build a query using a lat/lon value. This will be the case when we are
+        // syncing based off of a new location from the Place Picker API. So we need to check
+        // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
+        // service may not understand the location address provided by the Place Picker API
+        // and the user could end up with no weather! The horror!
+        if (mUseLatLon) {
+            uriBuilder.appendQueryParameter(LAT_PARAM, mLatitude)
+                    .appendQueryParameter(LON_PARAM, mLongitude);
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, mLocationSetting);
+        }
+
+        uriBuilder.appendQueryParameter(FORMAT_PARAM, FORMAT)
+                .appendQueryParameter(UNITS_PARAM, mUnits);
+        if (!mHourly) {
+            uriBuilder.appendQueryParameter(DAYS_PARAM, Integer.toString(mNumDays));
+        }
+        Uri builtUri = uriBuilder
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        return new URL(builtUri.toString());
+    }
+
+    @Override
+    public String toString() {
+        return getKey();
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Size bounded disk cache for forecast responses, keyed by {@link ForecastRequest#getKey()}.
+ *
+ * Bodies are stored gzip compressed, each behind a small header holding the time they were
+ * fetched and the key they belong to.  An entry is served while it is younger than the TTL,
+ * which is kept below the current periodic sync interval, as picked by the
+ * {@link AdaptiveSyncScheduler}, so that periodic syncs always reach the server while retries,
+ * manual syncs and restarts in between do not.  When the cache grows
+ * past its size the least recently used entries are evicted.
+ */
+public class ForecastResponseCache {
+    private static final String LOG_TAG = ForecastResponseCache.class.getSimpleName();
+
+    static final String CACHE_DIR = "owm-cache";
+    private static final String ENTRY_SUFFIX = ".gz";
+    private static final int HEADER_VERSION = 1;
+
+    // Sixteen days for a handful of locations compress to a few KB each.
+    static final long DEFAULT_MAX_SIZE_BYTES = 512 * 1024;
+    // The earliest a periodic sync can run is SYNC_INTERVAL - SYNC_FLEXTIME after the last one.
+    static final long DEFAULT_TTL_MILLIS = getTtlMillis(SunshineSyncAdapter.SYNC_INTERVAL);
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private final long mTtlMillis;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public ForecastResponseCache(Context context) {
+        this(new File(context.getCacheDir(), CACHE_DIR), DEFAULT_MAX_SIZE_BYTES,
+                getTtlMillis(AdaptiveSyncScheduler.getInterval(context)));
+    }
+
+    ForecastResponseCache(File directory, long maxSizeBytes, long ttlMillis) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * @return the TTL for the given sync interval: the earliest the next periodic sync can run.
+     */
+    static long getTtlMillis(int syncInterval) {
+        return (syncInterval - AdaptiveSyncScheduler.getFlexTime(syncInterval)) * 1000L;
+    }
+
+    /**
+     * @return a stream over the uncompressed body cached for the key, or null if there is no
+     * entry younger than the TTL.  The caller must close the stream.
+     */
+    public synchronized InputStream get(String key) {
+        File entry = getEntryFile(key);
+        if (!entry.exists()) {
+            mMissCount++;
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+            if (in.readInt() != HEADER_VERSION || !key.equals(in.readUTF())) {
+                in.close();
+                entry.delete();
+                mMissCount++;
+                return null;
+            }
+            long age = System.currentTimeMillis() - in.readLong();
+            if (age < 0 || age >= mTtlMillis) {
+                in.close();
+                mMissCount++;
+                return null;
+            }
+            // Recently used entries are the last to be evicted.
+            entry.setLastModified(System.currentTimeMillis());
+            mHitCount++;
+            return new GZIPInputStream(in);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Dropping unreadable cache entry for " + key, e);
+            closeQuietly(in);
+            entry.delete();
+            mMissCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given uncompressed body for the key, replacing any previous entry.
+     */
+    public synchronized void put(String key, File body) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(LOG_TAG, "Unable to create " + mDirectory);
+            return;
+        }
+        File entry = getEntryFile(key);
+        File tmp = new File(mDirectory, entry.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            InputStream in = new FileInputStream(body);
+            try {
+                out.writeInt(HEADER_VERSION);
+                out.writeUTF(key);
+                out.writeLong(System.currentTimeMillis());
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    gzip.write(buffer, 0, count);
+                }
+                gzip.finish();
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!tmp.renameTo(entry)) {
+                throw new IOException("Unable to rename " + tmp + " to " + entry);
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to cache forecast for " + key, e);
+            tmp.delete();
+            return;
+        }
+        trimToSize();
+    }
+
+    /**
+     * Restarts the TTL of an existing entry, used when the server confirmed that the cached
+     * body is still current.
+     */
+    public synchronized void markFresh(String key) {
+        File entry = getEntryFile(key);
+        if (!entry.exists()) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(entry, "rw");
+            if (file.readInt() == HEADER_VERSION && key.equals(file.readUTF())) {
+                file.writeLong(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to refresh cache entry for " + key, e);
+        } finally {
+            closeQuietly(file);
+        }
+        entry.setLastModified(System.currentTimeMillis());
+    }
+
+    public synchronized void remove(String key) {
+        getEntryFile(key).delete();
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of bytes all entries currently take on disk.
+     */
+    public synchronized long size() {
+        long size = 0;
+        File[] entries = listEntries();
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        return size;
+    }
+
+    private void trimToSize() {
+        File[] entries = listEntries();
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= mMaxSizeBytes) {
+            return;
+        }
+        // Least recently used first.
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < entries.length && size > mMaxSizeBytes; i++) {
+            long length = entries[i].length();
+            if (entries[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = mDirectory.listFiles();
+        if (entries == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File entry : entries) {
+            if (entry.getName().endsWith(ENTRY_SUFFIX)) {
+                entries[count++] = entry;
+            }
+        }
+        return Arrays.copyOf(entries, count);
+    }
+
+    // Package-private for the tests that age an entry through its file time.
+    File getEntryFile(String key) {
+        return new File(mDirectory, hashKey(key) + ENTRY_SUFFIX);
+    }
+
+    private static String hashKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android device is required to provide SHA-1 and UTF-8.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
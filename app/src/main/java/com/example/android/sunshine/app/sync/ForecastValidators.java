@@ -0,0 +1,64 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per {@link ForecastRequest#getKey() forecast query}, the HTTP validators and the
+ * hash of the last response that made it into the database.  They let the next sync ask OWM
+ * for the forecast only if it changed, and notice an identical body when the server ignores
+ * the conditional request.
+ */
+public class ForecastValidators {
+    static final String PREFS_NAME = "forecast_validators";
+
+    private static final String SUFFIX_ETAG = ".etag";
+    private static final String SUFFIX_LAST_MODIFIED = ".last_modified";
+    private static final String SUFFIX_BODY_HASH = ".body_hash";
+
+    private final SharedPreferences mPrefs;
+
+    public ForecastValidators(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public String getETag(String key) {
+        return mPrefs.getString(key + SUFFIX_ETAG, null);
+    }
+
+    public String getLastModified(String key) {
+        return mPrefs.getString(key + SUFFIX_LAST_MODIFIED, null);
+    }
+
+    public String getBodyHash(String key) {
+        return mPrefs.getString(key + SUFFIX_BODY_HASH, null);
+    }
+
+    /**
+     * Stores the validators of a response that was ingested (or found identical to the last
+     * ingested one).  This should not be called from the UI thread because it uses commit.
+     */
+    public void save(String key, String eTag, String lastModified, String bodyHash) {
+        SharedPreferences.Editor editor = mPrefs.edit();
+        putOrRemove(editor, key + SUFFIX_ETAG, eTag);
+        putOrRemove(editor, key + SUFFIX_LAST_MODIFIED, lastModified);
+        putOrRemove(editor, key + SUFFIX_BODY_HASH, bodyHash);
+        editor.commit();
+    }
+
+    public void clear(String key) {
+        mPrefs.edit()
+                .remove(key + SUFFIX_ETAG)
+                .remove(key + SUFFIX_LAST_MODIFIED)
+                .remove(key + SUFFIX_BODY_HASH)
+                .commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String name, String value) {
+        if (value == null) {
+            editor.remove(name);
+        } else {
+            editor.putString(name, value);
+        }
+    }
+}
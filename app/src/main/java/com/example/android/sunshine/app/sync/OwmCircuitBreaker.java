@@ -0,0 +1,282 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether a sync may go to OpenWeatherMap, from how the previous syncs went.
+ *
+ * A sync that failed for a reason that may go away (no connection, a timeout, a 5xx, a 429)
+ * holds the next one back for an exponential, jittered backoff.  After
+ * {@link #FAILURE_THRESHOLD} such failures in a row the circuit opens: syncs serve what is in
+ * the database without touching the network until the backoff is over, and then a single probe
+ * for the preferred location decides whether the circuit closes again.  A sync the user is
+ * waiting for is never held back: while the others are, it goes through as that probe.
+ *
+ * A failure that retrying will not fix (a rejected API key, a body that does not parse) does
+ * not count towards opening the circuit, since the server answered; only the request that
+ * failed is held back, for {@link #PERMANENT_BACKOFF_MILLIS}, and the other locations keep
+ * syncing.
+ *
+ * The state lives in SharedPreferences so that a restarted process does not start hammering a
+ * server the previous one had given up on.
+ */
+public class OwmCircuitBreaker {
+    static final String PREFS_NAME = "owm_circuit";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_FAILURES = "failures";
+    private static final String KEY_NEXT_ATTEMPT = "next_attempt";
+    // Followed by the key of a request, the time before which it is not sent again.
+    private static final String KEY_HELD_BACK_PREFIX = "held_back.";
+
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    // What a sync may do, as answered by checkAttempt.
+    static final int ATTEMPT_NONE = 0;
+    static final int ATTEMPT_PROBE = 1;
+    static final int ATTEMPT_ALL = 2;
+
+    // How a request, or a whole sync, went.
+    static final int OUTCOME_SUCCESS = 0;
+    static final int OUTCOME_TRANSIENT = 1;
+    static final int OUTCOME_PERMANENT = 2;
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = 30 * 1000;
+    static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+    static final long PERMANENT_BACKOFF_MILLIS = 30 * 60 * 1000;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Adds up the outcomes of the requests of one sync.
+     */
+    static class Tally {
+        private int mSuccesses;
+        private int mTransientFailures;
+        private int mPermanentFailures;
+        private final Set<String> mSucceededKeys = new HashSet<String>();
+        private final Set<String> mFailedKeys = new HashSet<String>();
+
+        /**
+         * Adds the outcome of the request with the given key, which a permanent failure holds
+         * back and a success releases.
+         */
+        void add(String key, int outcome) {
+            add(outcome);
+            if (outcome == OUTCOME_SUCCESS) {
+                mSucceededKeys.add(key);
+            } else if (outcome == OUTCOME_PERMANENT) {
+                mFailedKeys.add(key);
+            }
+        }
+
+        void add(int outcome) {
+            switch (outcome) {
+                case OUTCOME_SUCCESS:
+                    mSuccesses++;
+                    break;
+                case OUTCOME_TRANSIENT:
+                    mTransientFailures++;
+                    break;
+                default:
+                    mPermanentFailures++;
+            }
+        }
+
+        /**
+         * @return the outcome of the sync: a success as soon as one request went through,
+         * since the server is reachable then, and otherwise the failure that is worth retrying
+         * if there was one.
+         */
+        int getOutcome() {
+            if (mSuccesses > 0 || mTransientFailures + mPermanentFailures == 0) {
+                return OUTCOME_SUCCESS;
+            }
+            return mTransientFailures > 0 ? OUTCOME_TRANSIENT : OUTCOME_PERMANENT;
+        }
+
+        @Override
+        public String toString() {
+            return mSuccesses + " ok, " + mTransientFailures + " transient, "
+                    + mPermanentFailures + " permanent";
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final Random mRandom;
+
+    public OwmCircuitBreaker(Context context) {
+        this(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), new Random());
+    }
+
+    OwmCircuitBreaker(SharedPreferences prefs, Random random) {
+        mPrefs = prefs;
+        mRandom = random;
+    }
+
+    /**
+     * Same as {@link #checkAttempt(long, boolean)} for a sync nobody is waiting for.
+     */
+    public int checkAttempt(long now) {
+        return checkAttempt(now, false);
+    }
+
+    /**
+     * @param userWaiting whether the user asked for the sync or is waiting for it, in which case
+     * it may at least probe
+     * @return {@link #ATTEMPT_ALL} if the sync may fetch everything, {@link #ATTEMPT_PROBE} if it
+     * may only try the preferred location to see whether the server is back, or
+     * {@link #ATTEMPT_NONE} if it must not use the network at all.
+     */
+    public synchronized int checkAttempt(long now, boolean userWaiting) {
+        boolean backingOff = now < getNextAttemptAt();
+        if (backingOff && !userWaiting) {
+            return ATTEMPT_NONE;
+        }
+        switch (getState()) {
+            case STATE_CLOSED:
+                return backingOff ? ATTEMPT_PROBE : ATTEMPT_ALL;
+            case STATE_OPEN:
+                // A probe interrupted by process death is retried, so half-open is persisted.
+                mPrefs.edit().putInt(KEY_STATE, STATE_HALF_OPEN).commit();
+                return ATTEMPT_PROBE;
+            default:
+                return ATTEMPT_PROBE;
+        }
+    }
+
+    /**
+     * Records how a sync that was allowed to use the network went.  This should not be called
+     * from the UI thread because it uses commit.
+     *
+     * @param outcome one of the OUTCOME constants, as given by {@link Tally#getOutcome()}
+     */
+    public synchronized void record(int outcome, long now) {
+        int state = getState();
+        int failures = getFailureCount();
+        long nextAttemptAt;
+        switch (outcome) {
+            case OUTCOME_SUCCESS:
+                state = STATE_CLOSED;
+                failures = 0;
+                nextAttemptAt = 0;
+                break;
+            case OUTCOME_TRANSIENT:
+                failures++;
+                if (state == STATE_HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+                    state = STATE_OPEN;
+                }
+                nextAttemptAt = now + getBackoffMillis(failures, mRandom);
+                break;
+            default:
+                // The server answered, so it is up.  The requests it turned down are held back
+                // on their own; see record(Tally, long).
+                state = STATE_CLOSED;
+                failures = 0;
+                nextAttemptAt = 0;
+        }
+        mPrefs.edit()
+                .putInt(KEY_STATE, state)
+                .putInt(KEY_FAILURES, failures)
+                .putLong(KEY_NEXT_ATTEMPT, nextAttemptAt)
+                .commit();
+    }
+
+    /**
+     * Records how a sync that was allowed to use the network went, and holds back the requests
+     * that failed for good until {@link #PERMANENT_BACKOFF_MILLIS} went by: asking again soon
+     * would get the same answer.  This should not be called from the UI thread because it uses
+     * commit.
+     */
+    public synchronized void record(Tally tally, long now) {
+        record(tally.getOutcome(), now);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String key : tally.mSucceededKeys) {
+            editor.remove(KEY_HELD_BACK_PREFIX + key);
+        }
+        for (String key : tally.mFailedKeys) {
+            editor.putLong(KEY_HELD_BACK_PREFIX + key, now + PERMANENT_BACKOFF_MILLIS);
+        }
+        editor.commit();
+    }
+
+    /**
+     * @return whether the request with the given key failed for good too recently to be sent
+     * again.
+     */
+    public synchronized boolean isHeldBack(String key, long now) {
+        return now < mPrefs.getLong(KEY_HELD_BACK_PREFIX + key, 0);
+    }
+
+    public synchronized int getState() {
+        return mPrefs.getInt(KEY_STATE, STATE_CLOSED);
+    }
+
+    /**
+     * @return the number of transient failures in a row.
+     */
+    public synchronized int getFailureCount() {
+        return mPrefs.getInt(KEY_FAILURES, 0);
+    }
+
+    /**
+     * @return the time before which no sync may use the network, 0 if there is none.
+     */
+    public synchronized long getNextAttemptAt() {
+        return mPrefs.getLong(KEY_NEXT_ATTEMPT, 0);
+    }
+
+    /**
+     * @return how long to wait after the given number of failures in a row: the base backoff
+     * doubled for every failure after the first, capped, of which a random part up to half is
+     * taken off so that devices that failed together do not come back together.
+     */
+    static long getBackoffMillis(int failures, Random random) {
+        long backoff = BASE_BACKOFF_MILLIS;
+        for (int i = 1; i < failures && backoff < MAX_BACKOFF_MILLIS; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, MAX_BACKOFF_MILLIS);
+        long half = backoff / 2;
+        return half + (long) (random.nextDouble() * (backoff - half));
+    }
+
+    /**
+     * @return the outcome of a request that OWM answered with the given code, either the HTTP
+     * status or the cod of the body.  A location OWM does not know is a valid answer.
+     */
+    static int classifyCode(int code) {
+        if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_NOT_MODIFIED
+                || code == HttpURLConnection.HTTP_NOT_FOUND) {
+            return OUTCOME_SUCCESS;
+        }
+        if (code == HTTP_TOO_MANY_REQUESTS || code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            return OUTCOME_TRANSIENT;
+        }
+        return OUTCOME_PERMANENT;
+    }
+
+    /**
+     * @return the outcome of a request that failed with the given error.
+     */
+    static int classify(Exception error) {
+        if (error instanceof OwmHttpException) {
+            return classifyCode(((OwmHttpException) error).getCode());
+        }
+        if (error instanceof JSONException) {
+            return OUTCOME_PERMANENT;
+        }
+        // Connection failures, timeouts and anything else that went wrong on the way.
+        return OUTCOME_TRANSIENT;
+    }
+}
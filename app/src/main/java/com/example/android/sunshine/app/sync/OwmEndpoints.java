@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+/**
+ * Where the OpenWeatherMap API is reached.  The base URL comes from the build, which points it
+ * at the live API unless the owmBaseUrl Gradle property says otherwise, so that the sync can run
+ * against the owmstub server instead; the sync benchmark points it at a stub of its own.
+ */
+final class OwmEndpoints {
+    private static final String DAILY_PATH = "forecast/daily?";
+    private static final String HOURLY_PATH = "forecast?";
+    private static final String GROUP_PATH = "group?";
+
+    private static volatile String sBaseUrl = BuildConfig.OWM_BASE_URL;
+
+    private OwmEndpoints() {
+    }
+
+    static String getDailyUrl() {
+        return sBaseUrl + DAILY_PATH;
+    }
+
+    static String getHourlyUrl() {
+        return sBaseUrl + HOURLY_PATH;
+    }
+
+    static String getGroupUrl() {
+        return sBaseUrl + GROUP_PATH;
+    }
+
+    /**
+     * @param baseUrl the URL the endpoint paths are appended to, ending with a slash, or null
+     *                for the one of the build
+     */
+    static void setBaseUrl(String baseUrl) {
+        sBaseUrl = baseUrl != null ? baseUrl : BuildConfig.OWM_BASE_URL;
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.app.BuildConfig;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fetches the current weather of many cities with as few requests as OpenWeatherMap allows,
+ * using its group endpoint.  OWM only offers current weather for groups, not daily forecasts,
+ * so this is used to refresh today between full forecast fetches.
+ */
+public class OwmGroupFetcher {
+    private static final String LOG_TAG = OwmGroupFetcher.class.getSimpleName();
+
+    private static final String ID_PARAM = "id";
+    private static final String UNITS_PARAM = "units";
+    private static final String APPID_PARAM = "APPID";
+
+    // OWM rejects group requests for more cities than this.
+    static final int MAX_IDS_PER_REQUEST = 20;
+
+    private final String mBaseUrl;
+    private int mRequestCount;
+
+    public OwmGroupFetcher() {
+        this(OwmEndpoints.getGroupUrl());
+    }
+
+    OwmGroupFetcher(String baseUrl) {
+        mBaseUrl = baseUrl;
+    }
+
+    /**
+     * Fetches the current weather of the given cities.  A request that fails only loses the
+     * cities it asked for; callers should fetch whatever is missing from the result on its own.
+     *
+     * @return the conditions by city id
+     */
+    public Map<Long, OwmGroupParser.CurrentConditions> fetch(List<Long> cityIds, String units) {
+        Map<Long, OwmGroupParser.CurrentConditions> conditions =
+                new HashMap<Long, OwmGroupParser.CurrentConditions>();
+        for (int from = 0; from < cityIds.size(); from += MAX_IDS_PER_REQUEST) {
+            List<Long> group = cityIds.subList(from,
+                    Math.min(from + MAX_IDS_PER_REQUEST, cityIds.size()));
+            try {
+                for (OwmGroupParser.CurrentConditions city : fetchGroup(group, units)) {
+                    conditions.put(city.cityId, city);
+                }
+            } catch (IOException | JSONException e) {
+                Log.w(LOG_TAG, "Group request for " + group.size() + " cities failed", e);
+            }
+        }
+        return conditions;
+    }
+
+    /**
+     * @return the number of requests made so far.
+     */
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+
+    private List<OwmGroupParser.CurrentConditions> fetchGroup(List<Long> cityIds, String units)
+            throws IOException, JSONException {
+        Uri builtUri = Uri.parse(mBaseUrl).buildUpon()
+                .appendQueryParameter(ID_PARAM, TextUtils.join(",", cityIds))
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
+                .build();
+
+        mRequestCount++;
+        HttpURLConnection urlConnection = null;
+        BufferedReader reader = null;
+        try {
+            urlConnection = (HttpURLConnection) new URL(builtUri.toString()).openConnection();
+            urlConnection.setRequestMethod("GET");
+            urlConnection.setConnectTimeout(ForecastFetcher.CONNECT_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(ForecastFetcher.READ_TIMEOUT_MILLIS);
+            urlConnection.setRequestProperty("Accept-Encoding", "gzip");
+            urlConnection.connect();
+
+            InputStream inputStream = urlConnection.getInputStream();
+            if ("gzip".equalsIgnoreCase(urlConnection.getContentEncoding())) {
+                inputStream = new GZIPInputStream(inputStream);
+            }
+            reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+
+            List<OwmGroupParser.CurrentConditions> cities =
+                    new ArrayList<OwmGroupParser.CurrentConditions>(cityIds.size());
+            int code = new OwmGroupParser().parse(reader, cities);
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Group request answered " + code);
+            }
+            return cities;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+        }
+    }
+}
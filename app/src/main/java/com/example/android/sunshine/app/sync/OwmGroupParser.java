@@ -0,0 +1,221 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.util.List;
+
+/**
+ * Pull parser for the OpenWeatherMap group response, which holds the current weather of up to
+ * {@link OwmGroupFetcher#MAX_IDS_PER_REQUEST} cities.  Every city is reported with its id so
+ * the combined response can be split back into the locations it was requested for.
+ */
+public class OwmGroupParser {
+
+    private static final String OWM_LIST = "list";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to check that a city carried every field the weather table requires.  Calm
+    // wind may come without a direction, so that one is optional.
+    private static final int FIELD_CITY_ID = 1;
+    private static final int FIELD_CITY_NAME = 1 << 1;
+    private static final int FIELD_COORD = 1 << 2;
+    private static final int FIELD_TEMPERATURE = 1 << 3;
+    private static final int FIELD_PRESSURE = 1 << 4;
+    private static final int FIELD_HUMIDITY = 1 << 5;
+    private static final int FIELD_WINDSPEED = 1 << 6;
+    private static final int FIELD_DESCRIPTION = 1 << 7;
+    private static final int FIELD_WEATHER_ID = 1 << 8;
+    private static final int ALL_CITY_FIELDS = (1 << 9) - 1;
+
+    /**
+     * The current weather of one city.
+     */
+    public static class CurrentConditions {
+        public long cityId;
+        public String cityName;
+        public double latitude;
+        public double longitude;
+        public double temperature;
+        public double pressure;
+        public int humidity;
+        public double windSpeed;
+        public double windDirection;
+        public String description;
+        public int weatherId;
+    }
+
+    /**
+     * Reads a complete group document from the given reader.
+     *
+     * @param in the response body, positioned at the start of the document
+     * @param out receives the conditions of every city in the response
+     * @return the "cod" status code of the response, {@link HttpURLConnection#HTTP_OK} if the
+     * response did not carry one.  Parsing stops as soon as an error code has been read.
+     * @throws JSONException if the document is not a well formed group response
+     * @throws IOException if reading from the underlying stream fails
+     */
+    public int parse(Reader in, List<CurrentConditions> out) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readGroup(reader, out);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            JSONException jsonException = new JSONException(String.valueOf(e.getMessage()));
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+    }
+
+    private int readGroup(JsonReader reader, List<CurrentConditions> out)
+            throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                int code = reader.nextInt();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    return code;
+                }
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    out.add(readCity(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    private CurrentConditions readCity(JsonReader reader) throws IOException, JSONException {
+        CurrentConditions conditions = new CurrentConditions();
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                conditions.cityId = reader.nextLong();
+                seen |= FIELD_CITY_ID;
+            } else if (OWM_CITY_NAME.equals(name)) {
+                conditions.cityName = reader.nextString();
+                seen |= FIELD_CITY_NAME;
+            } else if (OWM_COORD.equals(name)) {
+                int coord = 0;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        conditions.latitude = reader.nextDouble();
+                        coord |= 1;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        conditions.longitude = reader.nextDouble();
+                        coord |= 2;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (coord == 3) {
+                    seen |= FIELD_COORD;
+                }
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        conditions.temperature = reader.nextDouble();
+                        seen |= FIELD_TEMPERATURE;
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        conditions.pressure = reader.nextDouble();
+                        seen |= FIELD_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        conditions.humidity = reader.nextInt();
+                        seen |= FIELD_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        conditions.windSpeed = reader.nextDouble();
+                        seen |= FIELD_WINDSPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        conditions.windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Like in the forecast, only the first element of "weather" is used.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            conditions.description = reader.nextString();
+                            seen |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            conditions.weatherId = reader.nextInt();
+                            seen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != ALL_CITY_FIELDS) {
+            throw new JSONException("Incomplete city " + conditions.cityId + " in group");
+        }
+        return conditions;
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.android.sunshine.app.sync;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Pull parser for the OpenWeatherMap 5 day / 3 hour forecast response.  Like
+ * {@link com.example.android.sunshine.owmparse.OwmForecastParser}, every step is handed to a {@link Callback} as soon as its
+ * object has been consumed, so the roughly eight times larger payload needs no more memory
+ * than the daily one.
+ */
+public class OwmHourlyStreamParser {
+
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_ID = "id";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Every step of the forecast is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+    // Start of the step, in seconds since the epoch.
+    private static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object.
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+
+    private static final String OWM_WIND = "wind";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private static final String OWM_MESSAGE_CODE = "cod";
+
+    // Bits used to check that a step carried every field the hourly table requires.  Calm
+    // wind may come without a direction, so that one is optional.
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_TEMPERATURE = 1 << 1;
+    private static final int FIELD_PRESSURE = 1 << 2;
+    private static final int FIELD_HUMIDITY = 1 << 3;
+    private static final int FIELD_WINDSPEED = 1 << 4;
+    private static final int FIELD_DESCRIPTION = 1 << 5;
+    private static final int FIELD_WEATHER_ID = 1 << 6;
+    private static final int ALL_STEP_FIELDS = (1 << 7) - 1;
+
+    /**
+     * Receives the parts of the forecast in the order they appear in the stream.  OWM sends the
+     * list before the city, so callers must be ready for steps that arrive first.
+     */
+    public interface Callback {
+        void onCity(long cityId, String cityName, double latitude, double longitude);
+
+        /**
+         * @param time the start of the step, in milliseconds since the epoch
+         */
+        void onStep(int index, long time, double temperature, double pressure, int humidity,
+                    double windSpeed, double windDirection, String description, int weatherId);
+    }
+
+    /**
+     * Reads a complete forecast document from the given reader.
+     *
+     * @param in the response body, positioned at the start of the document
+     * @param callback receives the city and every step of the forecast
+     * @return the "cod" status code of the response, {@link HttpURLConnection#HTTP_OK} if the
+     * response did not carry one.  Parsing stops as soon as an error code has been read.
+     * @throws JSONException if the document is not a well formed forecast
+     * @throws IOException if reading from the underlying stream fails
+     */
+    public int parse(Reader in, Callback callback) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            return readForecast(reader, callback);
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            JSONException jsonException = new JSONException(String.valueOf(e.getMessage()));
+            jsonException.initCause(e);
+            throw jsonException;
+        }
+    }
+
+    private int readForecast(JsonReader reader, Callback callback)
+            throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                int code = reader.nextInt();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    return code;
+                }
+            } else if (OWM_CITY.equals(name)) {
+                readCity(reader, callback);
+            } else if (OWM_LIST.equals(name)) {
+                int index = 0;
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readStep(reader, index++, callback);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return HttpURLConnection.HTTP_OK;
+    }
+
+    private void readCity(JsonReader reader, Callback callback) throws IOException, JSONException {
+        long cityId = 0;
+        String cityName = null;
+        double latitude = 0;
+        double longitude = 0;
+        int coord = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_ID.equals(name)) {
+                cityId = reader.nextLong();
+            } else if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        latitude = reader.nextDouble();
+                        coord |= 1;
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        longitude = reader.nextDouble();
+                        coord |= 2;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || coord != 3) {
+            throw new JSONException("Incomplete city in hourly forecast");
+        }
+        callback.onCity(cityId, cityName, latitude, longitude);
+    }
+
+    private void readStep(JsonReader reader, int index, Callback callback)
+            throws IOException, JSONException {
+        long time = 0;
+        double temperature = 0;
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        String description = null;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                time = reader.nextLong() * 1000;
+                seen |= FIELD_TIME;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        temperature = reader.nextDouble();
+                        seen |= FIELD_TEMPERATURE;
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                        seen |= FIELD_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = reader.nextInt();
+                        seen |= FIELD_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                        seen |= FIELD_WINDSPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        windDirection = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Like in the daily forecast, only the first element of "weather" is used.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (!first || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    first = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (OWM_DESCRIPTION.equals(weatherName)) {
+                            description = reader.nextString();
+                            seen |= FIELD_DESCRIPTION;
+                        } else if (OWM_WEATHER_ID.equals(weatherName)) {
+                            weatherId = reader.nextInt();
+                            seen |= FIELD_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (seen != ALL_STEP_FIELDS) {
+            throw new JSONException("Incomplete hourly forecast for step " + index);
+        }
+        callback.onStep(index, time, temperature, pressure, humidity, windSpeed, windDirection,
+                description, weatherId);
+    }
+}
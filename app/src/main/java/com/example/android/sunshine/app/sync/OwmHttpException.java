@@ -0,0 +1,20 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown when OpenWeatherMap answers a request with an HTTP error status, so that callers can
+ * tell a server that is down from a request that will never succeed.
+ */
+public class OwmHttpException extends IOException {
+    private final int mCode;
+
+    public OwmHttpException(int code) {
+        super("OpenWeatherMap answered HTTP " + code);
+        mCode = code;
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+}
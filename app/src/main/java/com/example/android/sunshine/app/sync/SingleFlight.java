@@ -0,0 +1,138 @@
+package com.example.android.sunshine.app.sync;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs at most one call per key at a time.  A caller that asks for a key while a call for it is
+ * in flight waits for that call and shares its result instead of starting another one, and a
+ * completed result keeps being shared for a short window so that a burst of identical requests
+ * runs once.  Failed calls are shared with the callers that waited for them, but not kept, so
+ * that a retry runs again: a call fails by throwing, or by returning null when it handles its
+ * errors itself.
+ */
+public class SingleFlight<T> {
+
+    public interface Call<T> {
+        /**
+         * @return the result, or null if the call failed
+         */
+        T call();
+    }
+
+    private static class Flight<T> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        T mResult;
+        RuntimeException mError;
+        // 0 while the call is in flight.
+        long mCompletedAt;
+    }
+
+    private final long mWindowMillis;
+    private final Map<String, Flight<T>> mFlights = new HashMap<String, Flight<T>>();
+    private int mExecutedCount;
+    private int mCoalescedCount;
+
+    /**
+     * @param windowMillis how long a completed result is handed to identical calls
+     */
+    public SingleFlight(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Runs the call, unless one for the same key is in flight or completed within the window,
+     * in which case that one's result is returned.
+     *
+     * @return the result of the call, or null if it failed or the thread was interrupted while
+     * waiting for a call in flight
+     */
+    public T execute(String key, Call<T> call) {
+        Flight<T> flight;
+        boolean owner = false;
+        synchronized (this) {
+            removeExpired();
+            flight = mFlights.get(key);
+            if (flight != null) {
+                mCoalescedCount++;
+            } else {
+                flight = new Flight<T>();
+                mFlights.put(key, flight);
+                mExecutedCount++;
+                owner = true;
+            }
+        }
+        // The call runs without the lock so that identical calls can attach meanwhile.
+        return owner ? run(key, flight, call) : await(flight);
+    }
+
+    /**
+     * Records a request for the key as coalesced if a call for it is in flight or completed
+     * within the window.  Lets callers that only schedule work drop requests that would repeat
+     * it.
+     *
+     * @return true if the request is covered by a call in flight or just completed
+     */
+    public synchronized boolean coalesce(String key) {
+        removeExpired();
+        if (mFlights.containsKey(key)) {
+            mCoalescedCount++;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized int getExecutedCount() {
+        return mExecutedCount;
+    }
+
+    public synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    private T run(String key, Flight<T> flight, Call<T> call) {
+        try {
+            flight.mResult = call.call();
+            return flight.mResult;
+        } catch (RuntimeException e) {
+            flight.mError = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                flight.mCompletedAt = SystemClock.elapsedRealtime();
+                if (flight.mError != null || flight.mResult == null || mWindowMillis <= 0) {
+                    mFlights.remove(key);
+                }
+            }
+            flight.mDone.countDown();
+        }
+    }
+
+    private T await(Flight<T> flight) {
+        try {
+            flight.mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (flight.mError != null) {
+            throw flight.mError;
+        }
+        return flight.mResult;
+    }
+
+    private void removeExpired() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Flight<T>> flights = mFlights.values().iterator();
+        while (flights.hasNext()) {
+            Flight<T> flight = flights.next();
+            if (flight.mCompletedAt != 0 && now - flight.mCompletedAt >= mWindowMillis) {
+                flights.remove();
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
@@ -32,60 +33,120 @@ import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
-import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.DisplayCache;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.ForecastSnapshot;
+import com.example.android.sunshine.app.data.ForecastTransaction;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRows;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
+import com.example.android.sunshine.owmparse.OwmForecastParser;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Wearable;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener{
 
+    // Identical syncs that overlap or follow each other closely run once.
+    private static final SingleFlight<Integer> sSyncFlights =
+            new SingleFlight<Integer>(SunshineSyncAdapter.COALESCE_WINDOW_MILLIS);
+
     private GoogleApiClient mGoogleApiClient;
-    private Double mHighTemp, mLowTemp;
-    private int mWeatherId;
+    private final ForecastCities mCities;
+    private final AdaptiveSyncScheduler mScheduler;
+    private final OwmCircuitBreaker mBreaker;
+    private final SyncHistory mHistory;
+    private final FanOutDispatcher mFanOut;
+    // The stages of the sync in progress.  Syncs of this adapter run one at a time.
+    private SyncTrace mTrace = new SyncTrace();
+    // Today's forecast for the wear face; sent from the fan-out and from onConnected.
+    private volatile Double mHighTemp, mLowTemp;
+    private volatile int mWeatherId;
 
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
+    // Interval at which to sync with the weather, in seconds, until the AdaptiveSyncScheduler
+    // picks another one.
     // 60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Number of weather rows written per batch of the forecast transaction while a forecast is
+    // parsed, which bounds what a sync holds in memory whatever the payload.
+    static final int INGEST_BATCH_SIZE = 32;
+    // Number of days of forecast fetched for every location.
+    static final int NUM_DAYS = 14;
+    // Length of one step of the hourly forecast.
+    static final long HOURLY_STEP_MILLIS = 3 * 60 * 60 * 1000;
+    // How long a completed sync absorbs identical sync requests.
+    static final long COALESCE_WINDOW_MILLIS = 10 * 1000;
+    // How long every consumer of new data gets before the fan-out gives up on it.  The
+    // notification waits for its art for a while, and falls back to the bundled one after that.
+    static final long WIDGETS_TIMEOUT_MILLIS = 2 * 1000;
+    static final long MUZEI_TIMEOUT_MILLIS = 2 * 1000;
+    static final long NOTIFICATION_TIMEOUT_MILLIS = 15 * 1000;
+    static final long NOTIFICATION_ART_TIMEOUT_MILLIS = 10 * 1000;
+    static final long WEAR_TIMEOUT_MILLIS = 5 * 1000;
+    // How long a full forecast may be kept current through group refreshes of today.
+    static final long GROUP_FORECAST_MAX_AGE_MILLIS = DAY_IN_MILLIS / 2;
+
+    // Every location fetches its whole forecast.
+    static final int FETCH_MODE_PER_LOCATION = 0;
+    // Locations with a recent forecast only refresh today, grouped into as few requests as OWM
+    // allows; the others fetch their whole forecast.
+    static final int FETCH_MODE_GROUP = 1;
+
+    // What performSync returns when no forecast came back at all: the circuit was open, every
+    // request failed, or the sync was canceled before anything was fetched.  Not the same as a
+    // forecast that came back unchanged.
+    static final int SYNC_NO_DATA = -1;
+
+
+    // The stages the parser calls into while it runs.
+    private static final int[] PARSE_NESTED_STAGES = {
+            SyncTrace.STAGE_ADD_LOCATION, SyncTrace.STAGE_BULK_INSERT
+    };
 
-
-    private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+    private static final String[] TODAY_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
             WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
     };
 
     // these indices must match the projection
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
-    private static final int INDEX_SHORT_DESC = 3;
+    private static final int INDEX_TODAY_DATE = 0;
+    private static final int INDEX_TODAY_MAX_TEMP = 1;
+    private static final int INDEX_TODAY_MIN_TEMP = 2;
+    private static final int INDEX_TODAY_WEATHER_ID = 3;
 
 
     @Retention(RetentionPolicy.SOURCE)
@@ -100,6 +161,11 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
+        mCities = new ForecastCities(context);
+        mScheduler = new AdaptiveSyncScheduler(context);
+        mBreaker = new OwmCircuitBreaker(context);
+        mHistory = new SyncHistory(context);
+        mFanOut = new FanOutDispatcher(context);
         mGoogleApiClient = new GoogleApiClient.Builder(getContext())
                 .addApi(Wearable.API)
                 .addConnectionCallbacks(this)
@@ -109,107 +175,684 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
     }
 
     @Override
-    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(LOG_TAG, "Starting sync");
+    public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, final SyncResult syncResult) {
+        final int fetchMode = getFetchMode(extras);
+        // A refresh the user asked for is waited for as much as an expedited sync.
+        final boolean expedited = extras.getBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, false)
+                || extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false);
+        final List<ForecastRequest> requests = getSyncRequests(getContext(), NUM_DAYS);
+        String key = getSyncKey(requests, fetchMode);
+        Log.d(LOG_TAG, "Starting sync " + key);
+
+        Integer result = sSyncFlights.execute(key, new SingleFlight.Call<Integer>() {
+            @Override
+            public Integer call() {
+                int changed = performSync(requests, fetchMode, expedited, syncResult, null);
+                // A sync that fetched nothing says nothing about how calm the forecast is.
+                if (changed != SYNC_NO_DATA) {
+                    mScheduler.onSyncComplete(changed);
+                }
+                // A failed sync is not kept, so that a retry right after it fetches again.
+                return syncResult.hasError() ? null : changed;
+            }
+        });
+        if (result == null && !syncResult.hasError()) {
+            // This sync waited for an identical one that failed, and failed with it.
+            syncResult.stats.numIoExceptions++;
+        }
+        Log.d(LOG_TAG, "Syncs executed: " + getExecutedSyncCount()
+                + ", coalesced: " + getCoalescedSyncCount());
+    }
 
-        // We no longer need just the location String, but also potentially the latitude and
-        // longitude, in case we are syncing based on a new Place Picker API result.
-        Context context = getContext();
-        String locationQuery = Utility.getPreferredLocation(context);
-        String locationLatitude = String.valueOf(Utility.getLocationLatitude(context));
-        String locationLongitude = String.valueOf(Utility.getLocationLongitude(context));
+    /**
+     * Fetches and stores the forecasts of the given locations, the preferred one first.
+     *
+     * @param expedited whether the user asked for this sync or is waiting for it, in which case
+     *                  the circuit breaker lets it through at least as a probe, requests that
+     *                  failed for good are tried again, and a preferred location without a
+     *                  forecast gets today's row before everything else
+     * @param syncResult where failures are reported, so that the sync framework retries no
+     *                   sooner than the circuit breaker allows
+     * @param done told once the sync is over, fan-out and history included, or null.  It is how
+     *             the sync benchmark times the whole path, which returning does not end.
+     * @return the number of weather rows added or changed, or {@link #SYNC_NO_DATA} if no
+     * forecast came back.  Rows OWM sent again with the values they already had do not count.
+     */
+    int performSync(List<ForecastRequest> requests, int fetchMode, boolean expedited,
+                    SyncResult syncResult, final FanOutDispatcher.Listener done) {
+        long start = SystemClock.elapsedRealtime();
+        ForecastRequest preferred = requests.get(0);
+        int insertedCount = 0;
+        int changedCount = 0;
+        boolean preferredChanged = false;
+
+        // After failures the network is left alone for a while, and the forecasts already in
+        // the database are what the UI shows.
+        long now = System.currentTimeMillis();
+        int attempt = mBreaker.checkAttempt(now, expedited);
+        if (attempt == OwmCircuitBreaker.ATTEMPT_NONE) {
+            Log.d(LOG_TAG, "Sync skipped, serving cached forecasts. Circuit state "
+                    + mBreaker.getState() + ", next attempt at " + mBreaker.getNextAttemptAt());
+            syncResult.stats.numIoExceptions++;
+            syncResult.delayUntil = mBreaker.getNextAttemptAt() / 1000;
+            if (done != null) {
+                done.onFanOutComplete();
+            }
+            return SYNC_NO_DATA;
+        }
+        if (attempt == OwmCircuitBreaker.ATTEMPT_PROBE) {
+            // One full request for the preferred location tells whether the server is back.
+            Log.d(LOG_TAG, "Probing " + preferred.getLocationSetting());
+            requests.retainAll(Collections.singleton(preferred));
+            fetchMode = FETCH_MODE_PER_LOCATION;
+        } else if (!expedited) {
+            // A request OWM turned down for good gets the same answer for a while; the other
+            // locations sync as usual.
+            for (Iterator<ForecastRequest> i = requests.iterator(); i.hasNext(); ) {
+                ForecastRequest request = i.next();
+                if (mBreaker.isHeldBack(request.getKey(), now)) {
+                    Log.d(LOG_TAG, "Holding back " + request.getLocationSetting());
+                    i.remove();
+                }
+            }
+        }
+        OwmCircuitBreaker.Tally tally = new OwmCircuitBreaker.Tally();
+        long startedAt = System.currentTimeMillis();
+        mTrace = new SyncTrace();
+        // Today's row of each location the group request refreshed, written along with the
+        // forecasts of the others.
+        WeatherRows groupRows = new WeatherRows(requests.size());
+
+        // Locations with a recent forecast only need today refreshed, which the group endpoint
+        // does for up to twenty of them per request.
+        OwmGroupFetcher groupFetcher = new OwmGroupFetcher();
+        if (fetchMode == FETCH_MODE_GROUP) {
+            Set<ForecastRequest> refreshed =
+                    syncGroup(requests, preferred, groupFetcher, groupRows);
+            requests.removeAll(refreshed);
+            insertedCount += refreshed.size();
+            preferredChanged = refreshed.contains(preferred);
+        }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        // The validators of the last ingest only describe what is in the database as long as
+        // the forecast for the location is still there.
+        boolean[] conditional = new boolean[requests.size()];
+        for (int i = 0; i < conditional.length; i++) {
+            conditional[i] = hasForecast(requests.get(i).getLocationSetting());
+        }
+
+        ForecastFetcher fetcher = new ForecastFetcher(getContext());
+        fetcher.setTrace(mTrace);
+        ForecastFetchPool pool = new ForecastFetchPool(fetcher);
+        List<ForecastFetchPool.Result> results;
+        try {
+            // A new location leaves the user looking at an empty list until its forecast lands.
+            // Today's row comes first in a request of its own, and the full forecast follows to
+            // fill in the rest of the days for the same location.
+            if (expedited && fetchMode == FETCH_MODE_PER_LOCATION && !requests.isEmpty()
+                    && requests.get(0) == preferred && !conditional[0]) {
+                changedCount += syncToday(pool, preferred, start, tally);
+            }
+            long fetchStart = SyncTrace.now();
+            results = pool.fetchAll(requests, conditional);
+            mTrace.add(SyncTrace.STAGE_FETCH, fetchStart);
+        } catch (InterruptedIOException e) {
+            Log.d(LOG_TAG, "Sync canceled");
+            // What the group request refreshed is still worth keeping.
+            changedCount += replaceForecast(groupRows);
+            mTrace.finish();
+            mScheduler.recordRequests(fetcher.getRequestCount()
+                    + groupFetcher.getRequestCount());
+            recordHistory(mTrace, startedAt, SyncHistory.OUTCOME_CANCELED, insertedCount);
+            if (done != null) {
+                done.onFanOutComplete();
+            }
+            return insertedCount == 0 ? SYNC_NO_DATA : changedCount;
+        }
+
+        // Parsing stays on this thread, and each forecast is written in batches as it is parsed,
+        // but nothing is committed or announced to observers until every location went
+        // through: the new days of every location and the prune of the expired ones are one
+        // transaction and one notification.
+        int changed;
+        PendingCommits commits = new PendingCommits();
+        ForecastTransaction transaction =
+                ForecastTransaction.begin(getContext().getContentResolver());
+        try {
+            writeForecast(transaction, groupRows);
+            for (ForecastFetchPool.Result result : results) {
+                boolean isPreferred = result.getRequest() == preferred;
+                int inserted = syncLocation(result, isPreferred, tally, transaction, commits);
+                insertedCount += inserted;
+                if (isPreferred && inserted > 0) {
+                    preferredChanged = true;
+                }
+            }
+            changed = commitForecast(transaction);
+            commits.commit();
+        } finally {
+            transaction.close();
+            commits.release();
+        }
+        // A forecast that came back as it was stored changes nothing the fan-out shows, and the
+        // fan-out only shows the preferred location, whatever the others changed.
+        changedCount += changed;
+        if (preferredChanged
+                && transaction.getChangedCount(preferred.getLocationSetting()) == 0) {
+            Log.d(LOG_TAG, "Forecast parsed but unchanged");
+            preferredChanged = false;
+        }
+
+        // Only the preferred location shows the steps of the day, so only it gets them.  A probe
+        // is a single request by definition.
+        if (attempt == OwmCircuitBreaker.ATTEMPT_ALL) {
+            syncHourly(fetcher, preferred, preferredChanged, expedited, tally);
+        }
+        mScheduler.recordRequests(fetcher.getRequestCount() + groupFetcher.getRequestCount());
+
+        // The data is committed, which is where the sync ends.  The widgets, Muzei, the
+        // notification and the wear face only show the preferred location, and catch up on
+        // their own; the history is written once they are done so it holds their times too.
+        // They all read the snapshot published here rather than query the provider each, and
+        // show the display strings worked out here rather than format them each.
+        if (preferredChanged) {
+            DisplayCache.rebuild(getContext(), ForecastSnapshot.publish(getContext()));
+        }
+        final SyncTrace trace = mTrace;
+        trace.finish();
+        final long historyStartedAt = startedAt;
+        final int outcome = recordOutcome(tally, syncResult);
+        final int historyInsertedCount = insertedCount;
+        FanOutDispatcher.Listener recordHistory = new FanOutDispatcher.Listener() {
+            @Override
+            public void onFanOutComplete() {
+                recordHistory(trace, historyStartedAt, outcome, historyInsertedCount);
+                // The readers of the fan-out are done too, so the whole log can go back into
+                // the database now.
+                getContext().getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                        WeatherContract.METHOD_CHECKPOINT, null, null);
+                if (done != null) {
+                    done.onFanOutComplete();
+                }
+            }
+        };
+        if (preferredChanged) {
+            fanOut(trace, true, recordHistory);
+        } else {
+            recordHistory.onFanOutComplete();
+        }
+        Log.d(LOG_TAG, "Sync Complete. " + insertedCount + " Inserted in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        if (insertedCount == 0 && outcome != OwmCircuitBreaker.OUTCOME_SUCCESS) {
+            return SYNC_NO_DATA;
+        }
+        return changedCount;
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Hands the outcome of the requests of a sync to the circuit breaker.  A failure worth
+     * retrying is reported to the sync framework as a soft error, delayed until the breaker
+     * allows the next attempt; one that is not is reported as a hard error, which is not
+     * retried.
+     *
+     * @return the outcome of the sync
+     */
+    private int recordOutcome(OwmCircuitBreaker.Tally tally, SyncResult syncResult) {
+        int outcome = tally.getOutcome();
+        mBreaker.record(tally, System.currentTimeMillis());
+        if (outcome == OwmCircuitBreaker.OUTCOME_TRANSIENT) {
+            syncResult.stats.numIoExceptions++;
+            syncResult.delayUntil = mBreaker.getNextAttemptAt() / 1000;
+        } else if (outcome == OwmCircuitBreaker.OUTCOME_PERMANENT) {
+            syncResult.stats.numParseExceptions++;
+        }
+        Log.d(LOG_TAG, "Requests: " + tally + "; circuit state " + mBreaker.getState()
+                + ", failures in a row " + mBreaker.getFailureCount());
+        return outcome;
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    /**
+     * Keeps the stage times of a sync that ended in the sync history.
+     */
+    private void recordHistory(SyncTrace trace, long startedAt, int outcome, int insertedCount) {
+        mHistory.add(SyncHistory.Record.fromTrace(trace, startedAt, outcome, insertedCount));
+        Log.d(LOG_TAG, "Sync took " + trace.getMillis(SyncTrace.STAGE_TOTAL) + " ms, "
+                + trace.getRequestCount() + " requests, " + trace.getWireBytes()
+                + " bytes over the network");
+    }
 
+    /**
+     * Lets everything that shows the preferred location outside of the app know about new
+     * data, concurrently and without waiting for it.
+     *
+     * @param trace where the time of every consumer is charged, or null
+     * @param everything false to only update what shows today: the widgets and the wear face
+     * @param listener told once every consumer is done, may be null
+     */
+    private void fanOut(SyncTrace trace, boolean everything, FanOutDispatcher.Listener listener) {
+        List<FanOutDispatcher.Consumer> consumers = new ArrayList<FanOutDispatcher.Consumer>(4);
+        consumers.add(new FanOutDispatcher.Consumer("widgets", SyncTrace.STAGE_WIDGETS,
+                WIDGETS_TIMEOUT_MILLIS) {
+            @Override
+            public void consume() {
+                updateWidgets();
+            }
+        });
+        consumers.add(new FanOutDispatcher.Consumer("wear", SyncTrace.STAGE_WEAR,
+                WEAR_TIMEOUT_MILLIS) {
+            @Override
+            public void consume() {
+                sendWearData();
+            }
+        });
+        if (everything) {
+            consumers.add(new FanOutDispatcher.Consumer("muzei", SyncTrace.STAGE_MUZEI,
+                    MUZEI_TIMEOUT_MILLIS) {
+                @Override
+                public void consume() {
+                    updateMuzei();
+                }
+            });
+            consumers.add(new FanOutDispatcher.Consumer("notification",
+                    SyncTrace.STAGE_NOTIFICATION, NOTIFICATION_TIMEOUT_MILLIS) {
+                @Override
+                public void consume() {
+                    notifyWeather();
+                }
+            });
+        }
+        mFanOut.dispatch(consumers, trace, listener);
+    }
+
+    /**
+     * Fetches and stores only today's forecast for the preferred location, and lets the forecast
+     * list, the widgets and the wear face know at once.
+     *
+     * @return the number of weather rows added or changed.
+     */
+    private int syncToday(ForecastFetchPool pool, ForecastRequest preferred, long start,
+                           OwmCircuitBreaker.Tally tally) throws InterruptedIOException {
+        ForecastRequest today = preferred.withNumDays(1);
+        long fetchStart = SyncTrace.now();
+        List<ForecastFetchPool.Result> results =
+                pool.fetchAll(Collections.singletonList(today), new boolean[] {false});
+        mTrace.add(SyncTrace.STAGE_FETCH, fetchStart);
+        // The ingester keeps today's forecast for the wear face.
+        int changed;
+        int inserted;
+        PendingCommits commits = new PendingCommits();
+        ForecastTransaction transaction =
+                ForecastTransaction.begin(getContext().getContentResolver());
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String LAT_PARAM = "lat";
-            final String LON_PARAM = "lon";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri.Builder uriBuilder = Uri.parse(FORECAST_BASE_URL).buildUpon();
-
-            // Instead of always building the query based off of the location string, we want to
-            // potentially build a query using a lat/lon value. This will be the case when we are
-            // syncing based off of a new location from the Place Picker API. So we need to check
-            // if we have a lat/lon to work with, and use those when we do. Otherwise, the weather
-            // service may not understand the location address provided by the Place Picker API
-            // and the user could end up with no weather! The horror!
-            if (Utility.isLocationLatLonAvailable(context)) {
-                uriBuilder.appendQueryParameter(LAT_PARAM, locationLatitude)
-                        .appendQueryParameter(LON_PARAM, locationLongitude);
-            } else {
-                uriBuilder.appendQueryParameter(QUERY_PARAM, locationQuery);
-            }
-
-            Uri builtUri = uriBuilder.appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            inserted = syncLocation(results.get(0), true, tally, transaction, commits);
+            changed = commitForecast(transaction);
+            commits.commit();
+        } finally {
+            transaction.close();
+            commits.release();
+        }
+        if (inserted > 0) {
+            DisplayCache.rebuild(getContext(), ForecastSnapshot.publish(getContext()));
+            // The full fan-out that follows charges the same stages, and the history keeps the
+            // time of that one; this one only shows up in the log.
+            fanOut(null, false, null);
+            Log.d(LOG_TAG, "First row for " + today.getLocationSetting() + " in "
+                    + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+        return changed;
+    }
+
+    /**
+     * @return a key that is the same for syncs that fetch the same: the same locations, with the
+     * same parameters, in the same mode.
+     */
+    static String getSyncKey(List<ForecastRequest> requests, int fetchMode) {
+        // The saved locations come out of a set, in no particular order.
+        List<String> savedKeys = new ArrayList<String>(requests.size());
+        for (int i = 1; i < requests.size(); i++) {
+            savedKeys.add(requests.get(i).getKey());
+        }
+        Collections.sort(savedKeys);
+
+        StringBuilder key = new StringBuilder().append(fetchMode)
+                .append('|').append(requests.get(0).getKey());
+        for (String savedKey : savedKeys) {
+            key.append('|').append(savedKey);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the number of syncs that fetched and stored forecasts.
+     */
+    public static int getExecutedSyncCount() {
+        return sSyncFlights.getExecutedCount();
+    }
+
+    /**
+     * @return the number of sync requests and syncs that were absorbed by an identical sync
+     * running at the time or completed just before.
+     */
+    public static int getCoalescedSyncCount() {
+        return sSyncFlights.getCoalescedCount();
+    }
+
+    /**
+     * A manual sync, such as a refresh the user asked for, fetches every forecast in full.
+     * Periodic syncs group what they can.
+     */
+    static int getFetchMode(Bundle extras) {
+        return extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)
+                ? FETCH_MODE_PER_LOCATION : FETCH_MODE_GROUP;
+    }
+
+    /**
+     * Refreshes today's row of every location whose full forecast is recent, with as few group
+     * requests as OWM allows.  The group endpoint only knows the current weather, so the
+     * conditions of today are replaced and its high and low are widened by the current
+     * temperature; the rest of the forecast is left alone.  Today's rows are added to the given
+     * batch, and replace the stored ones when it is written.
+     *
+     * A row is only rewritten when the weather differs materially from what it says: another
+     * condition, or a temperature outside its high and low.  The humidity, pressure and wind of
+     * the moment change with every refresh, and writing them over the forecast for the day
+     * would count as a change of the forecast almost every time.
+     *
+     * @param fetcher the fetcher to send the group requests with, which counts them
+     * @return the requests whose location was refreshed.  The others need a full fetch, either
+     * because their forecast is too old or because the group request failed.
+     */
+    private Set<ForecastRequest> syncGroup(List<ForecastRequest> requests,
+                                           ForecastRequest preferred, OwmGroupFetcher fetcher,
+                                           WeatherRows rows) {
+        Set<ForecastRequest> refreshed = new HashSet<ForecastRequest>();
+        long now = System.currentTimeMillis();
+
+        Map<ForecastRequest, ContentValues> todayRows =
+                new HashMap<ForecastRequest, ContentValues>();
+        List<Long> cityIds = new ArrayList<Long>();
+        for (ForecastRequest request : requests) {
+            String locationSetting = request.getLocationSetting();
+            long cityId = mCities.getCityId(locationSetting);
+            long forecastAge = now - mCities.getForecastTime(locationSetting);
+            if (cityId == 0 || forecastAge >= GROUP_FORECAST_MAX_AGE_MILLIS) {
+                continue;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
+            ContentValues today = queryToday(locationSetting, now);
+            if (today != null) {
+                todayRows.put(request, today);
+                cityIds.add(cityId);
+            }
+        }
+        if (cityIds.isEmpty()) {
+            return refreshed;
+        }
+
+        int requestsBefore = fetcher.getRequestCount();
+        long groupStart = SyncTrace.now();
+        Map<Long, OwmGroupParser.CurrentConditions> conditions =
+                fetcher.fetch(cityIds, preferred.getUnits());
+        mTrace.add(SyncTrace.STAGE_GROUP, groupStart);
+
+        for (Map.Entry<ForecastRequest, ContentValues> entry : todayRows.entrySet()) {
+            ForecastRequest request = entry.getKey();
+            String locationSetting = request.getLocationSetting();
+            OwmGroupParser.CurrentConditions current =
+                    conditions.get(mCities.getCityId(locationSetting));
+            if (current == null) {
+                continue;
+            }
+
+            ContentValues weatherValues = entry.getValue();
+            double storedHigh =
+                    weatherValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            double storedLow =
+                    weatherValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+            int storedWeatherId =
+                    weatherValues.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            double high = Math.max(storedHigh, current.temperature);
+            double low = Math.min(storedLow, current.temperature);
+            int weatherId = storedWeatherId;
+            if (current.weatherId != storedWeatherId || high != storedHigh || low != storedLow) {
+                // Today's row is replaced thanks to the unique (date, location) constraint.
+                rows.add(addLocation(locationSetting, current.cityName, current.latitude,
+                                current.longitude),
+                        weatherValues.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                        current.humidity, current.pressure, current.windSpeed,
+                        current.windDirection, high, low, current.description,
+                        current.weatherId);
+                weatherId = current.weatherId;
+            }
+            refreshed.add(request);
+
+            boolean isPreferred = request == preferred;
+            if (isPreferred) {
+                setWearData(high, low, weatherId);
+            }
+            setLocationStatus(getContext(), locationSetting, isPreferred, LOCATION_STATUS_OK);
+        }
+
+        Log.d(LOG_TAG, "Group refreshed " + refreshed.size() + " of " + cityIds.size()
+                + " locations with " + (fetcher.getRequestCount() - requestsBefore)
+                + " requests");
+        return refreshed;
+    }
 
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+    /**
+     * @return the date, high, low and weather id of today's row for the location, or null if
+     * there is none.
+     */
+    private ContentValues queryToday(String locationSetting, long now) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting, now),
+                TODAY_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
             }
+            ContentValues today = new ContentValues();
+            today.put(WeatherContract.WeatherEntry.COLUMN_DATE, cursor.getLong(INDEX_TODAY_DATE));
+            today.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                    cursor.getDouble(INDEX_TODAY_MAX_TEMP));
+            today.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                    cursor.getDouble(INDEX_TODAY_MIN_TEMP));
+            today.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+                    cursor.getInt(INDEX_TODAY_WEATHER_ID));
+            return today;
+        } finally {
+            cursor.close();
+        }
+    }
 
-            if (buffer.length() == 0) {
+    /**
+     * @return the requests to make in one sync: the preferred location first, followed by the
+     * saved locations.
+     */
+    static List<ForecastRequest> getSyncRequests(Context context, int numDays) {
+        ForecastRequest preferred = ForecastRequest.forPreferredLocation(context, numDays);
+        List<ForecastRequest> requests = new ArrayList<ForecastRequest>();
+        requests.add(preferred);
+        for (String locationSetting : Utility.getSavedLocations(context)) {
+            if (!locationSetting.equals(preferred.getLocationSetting())) {
+                requests.add(ForecastRequest.forLocation(locationSetting, numDays));
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Parses the forecast fetched for one location, and records the status of that location.
+     * The rows are written in batches into the given transaction, which the caller commits
+     * along with the rest of the run.  The response is handed to the given commits, which
+     * remember it only once the rows are committed and release it in any case.
+     *
+     * @param preferred whether this is the preferred location, whose status the UI shows
+     * @param tally where the outcome of the request is added up for the circuit breaker
+     * @param transaction where the weather rows of the location are written
+     * @param commits where the response is held until the transaction is committed
+     * @return the number of weather rows written for the location.
+     */
+    private int syncLocation(ForecastFetchPool.Result result, boolean preferred,
+                             OwmCircuitBreaker.Tally tally, ForecastTransaction transaction,
+                             PendingCommits commits) {
+        String locationSetting = result.getRequest().getLocationSetting();
+        // Only a complete forecast can be kept current through group refreshes.
+        boolean fullForecast = result.getRequest().getNumDays() == NUM_DAYS;
+        String requestKey = result.getRequest().getKey();
+        ForecastFetcher.Response response = result.getResponse();
+        if (response == null) {
+            IOException error = result.getError();
+            Log.e(LOG_TAG, "Error fetching " + locationSetting, error);
+            tally.add(requestKey, OwmCircuitBreaker.classify(error));
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            boolean unknownLocation = error instanceof OwmHttpException
+                    && ((OwmHttpException) error).getCode() == HttpURLConnection.HTTP_NOT_FOUND;
+            setLocationStatus(getContext(), locationSetting, preferred, unknownLocation
+                    ? LOCATION_STATUS_INVALID : LOCATION_STATUS_SERVER_DOWN);
+            return 0;
+        }
+        commits.hold(response);
+
+        // This needs to be declared outside the try/catch
+        // so that it can be closed in the finally block.
+        BufferedReader reader = null;
+        ForecastIngester ingester = new ForecastIngester(locationSetting, preferred,
+                transaction);
+
+        try {
+            if (response.getResult() != ForecastFetcher.RESULT_CHANGED) {
+                // Nothing changed since the last sync: no parsing, no writes, no notifications.
+                Log.d(LOG_TAG, "Forecast unchanged for " + locationSetting);
+                tally.add(requestKey, OwmCircuitBreaker.OUTCOME_SUCCESS);
+                commits.add(response, fullForecast ? locationSetting : null, 0);
+                setLocationStatus(getContext(), locationSetting, preferred, LOCATION_STATUS_OK);
+                return 0;
+            }
+
+            File body = response.getBody();
+            if (body.length() == 0) {
                 // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+                tally.add(requestKey, OwmCircuitBreaker.OUTCOME_TRANSIENT);
+                setLocationStatus(getContext(), locationSetting, preferred,
+                        LOCATION_STATUS_SERVER_DOWN);
+                return 0;
+            }
+
+            // The body is never held as a whole: it is tokenized straight off the spool file
+            // and written to the provider in batches.
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(body), "UTF-8"));
+            @LocationStatus int status = ingestForecast(reader, ingester, requestKey,
+                    tally);
+            if (status == LOCATION_STATUS_OK) {
+                commits.add(response, fullForecast ? locationSetting : null,
+                        ingester.getCityId());
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+            setLocationStatus(getContext(), locationSetting, preferred, status);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
+            tally.add(requestKey, OwmCircuitBreaker.classify(e));
+            setLocationStatus(getContext(), locationSetting, preferred,
+                    LOCATION_STATUS_SERVER_DOWN);
         } catch (JSONException e) {
             Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+            tally.add(requestKey, OwmCircuitBreaker.classify(e));
+            setLocationStatus(getContext(), locationSetting, preferred,
+                    LOCATION_STATUS_SERVER_INVALID);
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final IOException e) {
+                    Log.e(LOG_TAG, "Error closing stream", e);
+                }
+            }
+        }
+        // Rows parsed before a failure are written too, so they count.
+        return ingester.getInsertedCount();
+    }
+
+    /**
+     * Fetches the 3 hour forecast of the given location and writes it to the hourly table as it
+     * is parsed, in batches, without notifying observers on the way.  Steps replace the ones
+     * stored for the same time and steps that are over are pruned, so the table only ever holds
+     * what is still ahead.
+     *
+     * The request goes through the same fetcher as the daily forecast, so it is conditional,
+     * served from the response cache and charged to the trace the same way.  While the daily
+     * forecast of the location is unchanged the steps already stored are kept as they are and
+     * only the prune runs.
+     *
+     * @param dailyChanged whether this sync changed the daily forecast of the location
+     * @param userWaiting whether the user is waiting for this sync, in which case the request is
+     *                    sent even if it failed for good recently
+     * @param tally where the outcome of the request is added up for the circuit breaker
+     * @return the number of hourly rows written.
+     */
+    private int syncHourly(ForecastFetcher fetcher, ForecastRequest request,
+                           boolean dailyChanged, boolean userWaiting,
+                           OwmCircuitBreaker.Tally tally) {
+        String locationSetting = request.getLocationSetting();
+        HourlyIngester ingester = new HourlyIngester(locationSetting, System.currentTimeMillis());
+        // As for the daily forecast, the validators only describe steps that are still stored.
+        boolean conditional = hasHourly(locationSetting);
+        if (!userWaiting && mBreaker.isHeldBack(request.hourly().getKey(),
+                System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "Holding back the hourly forecast of " + locationSetting);
+        } else if (dailyChanged || !conditional) {
+            fetchHourly(fetcher, request.hourly(), conditional, ingester, tally);
+        } else {
+            Log.d(LOG_TAG, "Forecast unchanged, keeping the hourly one for " + locationSetting);
+        }
+
+        ContentResolver resolver = getContext().getContentResolver();
+        int deleted = resolver.delete(
+                WeatherContract.buildNoNotifyUri(WeatherContract.HourlyEntry.CONTENT_URI),
+                WeatherContract.HourlyEntry.COLUMN_TIME + " <= ?",
+                new String[] {Long.toString(System.currentTimeMillis() - HOURLY_STEP_MILLIS)});
+        int inserted = ingester.getInsertedCount();
+        if (inserted > 0 || deleted > 0) {
+            resolver.notifyChange(WeatherContract.HourlyEntry.CONTENT_URI, null, false);
+        }
+        Log.d(LOG_TAG, inserted + " hourly rows inserted, " + deleted + " pruned for "
+                + locationSetting);
+        return inserted;
+    }
+
+    private void fetchHourly(ForecastFetcher fetcher, ForecastRequest request,
+                             boolean conditional, HourlyIngester ingester,
+                             OwmCircuitBreaker.Tally tally) {
+        String locationSetting = request.getLocationSetting();
+        ForecastFetcher.Response response = null;
+        BufferedReader reader = null;
+        try {
+            response = fetcher.fetch(request, conditional);
+            if (response.getResult() != ForecastFetcher.RESULT_CHANGED) {
+                Log.d(LOG_TAG, "Hourly forecast unchanged for " + locationSetting);
+                tally.add(request.getKey(), OwmCircuitBreaker.OUTCOME_SUCCESS);
+                response.commit();
+                return;
             }
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(response.getBody()), "UTF-8"));
+            int code = new OwmHourlyStreamParser().parse(reader, ingester);
+            tally.add(request.getKey(), OwmCircuitBreaker.classifyCode(code));
+            if (code == HttpURLConnection.HTTP_OK) {
+                ingester.finish();
+                response.commit();
+            }
+        } catch (InterruptedIOException e) {
+            Log.d(LOG_TAG, "Hourly sync canceled for " + locationSetting);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error fetching hourly forecast for " + locationSetting, e);
+            tally.add(request.getKey(), OwmCircuitBreaker.classify(e));
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            tally.add(request.getKey(), OwmCircuitBreaker.classify(e));
+        } finally {
             if (reader != null) {
                 try {
                     reader.close();
@@ -217,19 +860,140 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     Log.e(LOG_TAG, "Error closing stream", e);
                 }
             }
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+    /**
+     * Turns the steps handed out by {@link OwmHourlyStreamParser} into hourly rows and bulk
+     * inserts them whenever {@link #INGEST_BATCH_SIZE} rows are pending.  Steps that are
+     * already over are skipped.
+     */
+    private class HourlyIngester implements OwmHourlyStreamParser.Callback {
+        private final String mLocationSetting;
+        private final long mNow;
+        private final ArrayList<ContentValues> mPending =
+                new ArrayList<ContentValues>(INGEST_BATCH_SIZE);
+        private long mLocationId = -1;
+        private int mInsertedCount;
+
+        HourlyIngester(String locationSetting, long now) {
+            mLocationSetting = locationSetting;
+            mNow = now;
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double latitude, double longitude) {
+            mLocationId = addLocation(mLocationSetting, cityName, latitude, longitude);
+            // OWM sends the list first, so every step so far is waiting for its location key.
+            for (ContentValues hourlyValues : mPending) {
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, mLocationId);
+            }
+            if (mPending.size() >= INGEST_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        public void onStep(int index, long time, double temperature, double pressure,
+                           int humidity, double windSpeed, double windDirection,
+                           String description, int weatherId) {
+            if (time + HOURLY_STEP_MILLIS <= mNow) {
+                return;
+            }
+            ContentValues hourlyValues = new ContentValues();
+            if (mLocationId != -1) {
+                hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, mLocationId);
+            }
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TIME, time);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP, temperature);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY, humidity);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE, pressure);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, windSpeed);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, windDirection);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_SHORT_DESC, description);
+            hourlyValues.put(WeatherContract.HourlyEntry.COLUMN_WEATHER_ID, weatherId);
+            mPending.add(hourlyValues);
+
+            if (mLocationId != -1 && mPending.size() >= INGEST_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes whatever is still pending.  Must be called once the parser returned.
+         */
+        void finish() throws JSONException {
+            if (mLocationId == -1) {
+                throw new JSONException("No city in hourly forecast for " + mLocationSetting);
+            }
+            flush();
+        }
+
+        private void flush() {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            ContentValues[] cvArray = new ContentValues[mPending.size()];
+            mPending.toArray(cvArray);
+            mPending.clear();
+            long insertStart = SyncTrace.now();
+            mInsertedCount += getContext().getContentResolver().bulkInsert(
+                    WeatherContract.buildNoNotifyUri(WeatherContract.HourlyEntry.CONTENT_URI),
+                    cvArray);
+            mTrace.add(SyncTrace.STAGE_BULK_INSERT, insertStart);
+        }
+
+        int getInsertedCount() {
+            return mInsertedCount;
+        }
+    }
+
+    /**
+     * @return true if the database holds weather from today on for the given location.
+     */
+    private boolean hasForecast(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return true if the database holds steps of the 3 hour forecast for the given location.
+     */
+    private boolean hasHourly(String locationSetting) {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting),
+                new String[]{WeatherContract.HourlyEntry.TABLE_NAME + "." +
+                        WeatherContract.HourlyEntry._ID},
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
         }
-        return;
     }
 
     @Override
     public void onConnected(@Nullable Bundle bundle) {
         Log.e(LOG_TAG, "onConnected: success");
-        if (mHighTemp != null && mLowTemp != null) {
-            WearDataManager.sendDataToWear(mGoogleApiClient,
-                    String.valueOf(mHighTemp.intValue()),
-                    String.valueOf(mLowTemp.intValue()),
-                    mWeatherId);
-        }
+        sendWearData();
     }
 
 
@@ -246,83 +1010,117 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * Read the forecast from the given stream and write its rows to the transaction of the run
+     * as it is parsed.
+     *
+     * The rows are held as primitive columns, at most {@link #INGEST_BATCH_SIZE} at a time, so
+     * the memory used here does not grow with the number of days the response holds.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * @param requestKey the key of the request the forecast answered
+     * @param tally where the code OWM answered with is added up for the circuit breaker
+     * @return the status of the location: OK if the forecast was stored, otherwise the error
+     * code OWM answered with.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
-
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
-
-        // These are the names of the JSON objects that need to be extracted.
-
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
-
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
-
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
-
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
-
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
-
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    private @LocationStatus int ingestForecast(Reader forecastReader, ForecastIngester ingester,
+                                               String requestKey, OwmCircuitBreaker.Tally tally)
+            throws IOException, JSONException {
+        // The parser calls back into addLocation, which times itself.
+        long parseStart = SyncTrace.now();
+        long nestedBefore = mTrace.sum(PARSE_NESTED_STAGES);
+        int errorCode = new OwmForecastParser().parse(forecastReader, ingester);
+        mTrace.addExclusive(SyncTrace.STAGE_PARSE, parseStart, nestedBefore,
+                PARSE_NESTED_STAGES);
+        tally.add(requestKey, OwmCircuitBreaker.classifyCode(errorCode));
+
+        // do we have an error?
+        switch (errorCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return LOCATION_STATUS_INVALID;
+            default:
+                return LOCATION_STATUS_SERVER_DOWN;
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        ingester.finish();
+        Log.d(LOG_TAG, ingester.getInsertedCount() + " Inserted for "
+                + ingester.getLocationSetting());
+        return LOCATION_STATUS_OK;
+    }
 
-        try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            Context context = getContext();
+    /**
+     * What a run learned about the forecasts it ingested: the validators and cached bodies of
+     * the responses, and the time and city of each full forecast.  None of it may be saved
+     * before the rows are committed, or a failed write would leave the next syncs skipping a
+     * forecast that was never stored.
+     */
+    private class PendingCommits {
+        // Every response of the run, whose spool file goes once the run is over.
+        private final List<ForecastFetcher.Response> mHeld =
+                new ArrayList<ForecastFetcher.Response>();
+        private final List<ForecastFetcher.Response> mIngested =
+                new ArrayList<ForecastFetcher.Response>();
+        private final Map<String, Long> mFullForecasts = new HashMap<String, Long>();
+
+        void hold(ForecastFetcher.Response response) {
+            mHeld.add(response);
+        }
 
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
-                }
+        /**
+         * @param fullForecastSetting the location setting if the response is a full forecast,
+         * or null
+         * @param cityId the city id of the forecast, 0 to keep the one already known
+         */
+        void add(ForecastFetcher.Response response, String fullForecastSetting, long cityId) {
+            mIngested.add(response);
+            if (fullForecastSetting != null) {
+                mFullForecasts.put(fullForecastSetting, cityId);
             }
+        }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+        /**
+         * Saves what was added.  Call it once the transaction is committed.
+         */
+        void commit() {
+            for (ForecastFetcher.Response response : mIngested) {
+                response.commit();
+            }
+            for (Map.Entry<String, Long> entry : mFullForecasts.entrySet()) {
+                mCities.save(entry.getKey(), entry.getValue());
+            }
+            mIngested.clear();
+            mFullForecasts.clear();
+        }
 
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+        void release() {
+            for (ForecastFetcher.Response response : mHeld) {
+                response.release();
+            }
+            mHeld.clear();
+        }
+    }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+    /**
+     * Turns the days handed out by {@link OwmForecastParser} into weather rows, held as
+     * primitive columns rather than a ContentValues each, and writes them in batches of
+     * {@link #INGEST_BATCH_SIZE} once the city told which location they belong to.
+     */
+    private class ForecastIngester implements OwmForecastParser.Callback {
+        private final String mLocationSetting;
+        private final boolean mUpdateWear;
+        private final WeatherRows mPending = new WeatherRows(INGEST_BATCH_SIZE);
+        private final ForecastTransaction mTransaction;
+        private final Time mDayTime;
+        private final int mJulianStartDay;
+        private long mLocationId = -1;
+        private long mCityId;
+        private int mInsertedCount;
+
+        ForecastIngester(String locationSetting, boolean updateWear,
+                         ForecastTransaction transaction) {
+            mLocationSetting = locationSetting;
+            mUpdateWear = updateWear;
+            mTransaction = transaction;
 
             // OWM returns daily forecasts based upon the local time of the city that is being
             // asked for, which means that we need to know the GMT offset to translate this data
@@ -331,97 +1129,128 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
             // Since this data is also sent in-order and the first day is always the
             // current day, we're going to take advantage of that to get a nice
             // normalized UTC date for all of our weather.
-
             Time dayTime = new Time();
             dayTime.setToNow();
 
             // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+            mJulianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
 
             // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
-
-                if(i==0)
-                updateWearData(high, low, weatherId);
-            }
-
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
+            mDayTime = new Time();
+        }
 
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
+        @Override
+        public void onCity(long cityId, String cityName, double latitude, double longitude) {
+            mCityId = cityId;
+            mLocationId = addLocation(mLocationSetting, cityName, latitude, longitude);
+            // Days that arrived before the city are still waiting for their location key.
+            mPending.setLocationId(mLocationId);
+            if (mPending.size() >= INGEST_BATCH_SIZE) {
+                flush();
             }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+        }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = mDayTime.setJulianDay(mJulianStartDay + index);
+
+            // Until the city arrives the location is -1, and onCity fills it in.
+            mPending.add(mLocationId, dateTime, humidity, pressure, windSpeed, windDirection,
+                    high, low, description, weatherId);
+
+            if (index == 0 && mUpdateWear)
+                setWearData(high, low, weatherId);
+
+            // Rows can only be written once the city told us which location they belong to.
+            if (mLocationId != -1 && mPending.size() >= INGEST_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes whatever is still pending.  Must be called once the parser returned.
+         */
+        void finish() throws JSONException {
+            if (mLocationId == -1) {
+                throw new JSONException("No city in forecast for " + mLocationSetting);
+            }
+            flush();
         }
+
+        private void flush() {
+            writeForecast(mTransaction, mPending);
+            mInsertedCount += mPending.size();
+            mPending.clear();
+        }
+
+        String getLocationSetting() {
+            return mLocationSetting;
+        }
+
+        long getCityId() {
+            return mCityId;
+        }
+
+        int getInsertedCount() {
+            return mInsertedCount;
+        }
+    }
+
+    /**
+     * Writes a batch of weather rows and deletes the days that are over, in one transaction,
+     * and notifies the observers of the weather once if anything changed.  Readers never see
+     * the new days next to the expired ones, and loaders query again once, if at all.  A run
+     * that wrote nothing, because every forecast came back unchanged, still prunes.
+     *
+     * @return the number of rows that were added or changed; rows OWM sent again as they were
+     * do not count.
+     */
+    private int replaceForecast(WeatherRows rows) {
+        // The delete is part of the same transaction, so its time is in this stage.
+        long insertStart = SyncTrace.now();
+        int changed = rows.replaceForecast(getContext().getContentResolver(), getPruneDate());
+        mTrace.add(SyncTrace.STAGE_BULK_INSERT, insertStart);
+        return changed;
+    }
+
+    /**
+     * Writes a batch of weather rows into the transaction of the run.
+     *
+     * @return the number of rows of the batch that were added or changed.
+     */
+    private int writeForecast(ForecastTransaction transaction, WeatherRows rows) {
+        long insertStart = SyncTrace.now();
+        int changed = transaction.write(rows);
+        mTrace.add(SyncTrace.STAGE_BULK_INSERT, insertStart);
+        return changed;
+    }
+
+    /**
+     * Deletes the days that are over and commits the transaction of the run, which notifies the
+     * observers of the weather once if anything changed.  A run that wrote nothing, because
+     * every forecast came back unchanged, still prunes.
+     *
+     * @return the number of rows the run added or changed; rows OWM sent again as they were do
+     * not count.
+     */
+    private int commitForecast(ForecastTransaction transaction) {
+        long insertStart = SyncTrace.now();
+        int changed = transaction.commit(getPruneDate());
+        mTrace.add(SyncTrace.STAGE_BULK_INSERT, insertStart);
+        return changed;
+    }
+
+    /**
+     * @return the last date that is no longer part of the forecast window.
+     */
+    private static long getPruneDate() {
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        return new Time().setJulianDay(julianStartDay - 1);
     }
 
     private void updateWidgets() {
@@ -457,18 +1286,15 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
 
             if (System.currentTimeMillis() - lastSync >= DAY_IN_MILLIS) {
                 // Last sync was more than 1 day ago, let's send a notification with the weather.
-                String locationQuery = Utility.getPreferredLocation(context);
-
-                Uri weatherUri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationQuery, System.currentTimeMillis());
+                // The sync published today's forecast right before telling us
+                ForecastSnapshot.Day today =
+                        ForecastSnapshot.get(context).getDay(System.currentTimeMillis());
 
-                // we'll query our contentProvider, as always
-                Cursor cursor = context.getContentResolver().query(weatherUri, NOTIFY_WEATHER_PROJECTION, null, null, null);
-
-                if (cursor.moveToFirst()) {
-                    int weatherId = cursor.getInt(INDEX_WEATHER_ID);
-                    double high = cursor.getDouble(INDEX_MAX_TEMP);
-                    double low = cursor.getDouble(INDEX_MIN_TEMP);
-                    String desc = cursor.getString(INDEX_SHORT_DESC);
+                if (today != null) {
+                    int weatherId = today.weatherId;
+                    double high = today.high;
+                    double low = today.low;
+                    String desc = today.description;
 
                     int iconId = Utility.getIconResourceForWeatherCondition(weatherId);
                     Resources resources = context.getResources();
@@ -494,8 +1320,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                                 .asBitmap()
                                 .error(artResourceId)
                                 .fitCenter()
-                                .into(largeIconWidth, largeIconHeight).get();
-                    } catch (InterruptedException | ExecutionException e) {
+                                .into(largeIconWidth, largeIconHeight)
+                                .get(NOTIFICATION_ART_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException | ExecutionException | TimeoutException e) {
                         Log.e(LOG_TAG, "Error retrieving large icon from " + artUrl, e);
                         largeIcon = BitmapFactory.decodeResource(resources, artResourceId);
                     }
@@ -544,7 +1371,6 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
                     editor.putLong(lastNotificationKey, System.currentTimeMillis());
                     editor.commit();
                 }
-                cursor.close();
             }
         }
     }
@@ -559,6 +1385,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        long start = SyncTrace.now();
         long locationId;
 
         // First, check if the location with this city name exists in the db
@@ -595,6 +1422,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         }
 
         locationCursor.close();
+        mTrace.add(SyncTrace.STAGE_ADD_LOCATION, start);
         // Wait, that worked?  Yes!
         return locationId;
     }
@@ -623,6 +1451,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        // A sync of the same locations that is running or just finished already brings what
+        // this one would.
+        String key = getSyncKey(getSyncRequests(context, NUM_DAYS), FETCH_MODE_PER_LOCATION);
+        if (sSyncFlights.coalesce(key)) {
+            restoreLocationStatus(context);
+            return;
+        }
+
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
@@ -673,7 +1509,9 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        int syncInterval = AdaptiveSyncScheduler.getInterval(context);
+        SunshineSyncAdapter.configurePeriodicSync(context, syncInterval,
+                AdaptiveSyncScheduler.getFlexTime(syncInterval));
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -694,27 +1532,51 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter implements
      * Sets the location status into shared preference.  This function should not be called from
      * the UI thread because it uses commit to write to the shared preferences.
      * @param c Context to get the PreferenceManager from.
+     * @param locationSetting The location the status belongs to
+     * @param preferred Whether it is the preferred location, whose status the UI listens to
      * @param locationStatus The IntDef value to set
      */
-    static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
+    static private void setLocationStatus(Context c, String locationSetting, boolean preferred,
+                                          @LocationStatus int locationStatus){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
+        spe.putInt(Utility.getLocationStatusKey(c, locationSetting), locationStatus);
+        if (preferred) {
+            spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
+        }
         spe.commit();
     }
 
 
+    /**
+     * Callers reset the location status when they expect a new sync.  When their request is
+     * coalesced, this puts back the status the last sync of the preferred location recorded; a
+     * sync still in flight overwrites it once it completes.
+     * @param c Context to get the PreferenceManager from.
+     */
+    static private void restoreLocationStatus(Context c) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
+        sp.edit().putInt(c.getString(R.string.pref_location_status_key),
+                Utility.getLocationStatus(c, Utility.getPreferredLocation(c))).apply();
+    }
+
+
     //wear module
-    private void updateWearData(double high, double low, int weatherId) {
-        Log.e(LOG_TAG, "updateWearData: started");
+    private void setWearData(double high, double low, int weatherId) {
+        mWeatherId = weatherId;
         mHighTemp = high;
         mLowTemp = low;
-        mWeatherId = weatherId;
+    }
+
+    private void sendWearData() {
+        Log.e(LOG_TAG, "sendWearData: started");
+        Double high = mHighTemp;
+        Double low = mLowTemp;
         if (mGoogleApiClient != null && mGoogleApiClient.isConnected() &&
-                mHighTemp != null && mLowTemp != null) {
+                high != null && low != null) {
             WearDataManager.sendDataToWear(mGoogleApiClient,
-                    String.valueOf(mHighTemp.intValue()),
-                    String.valueOf(mLowTemp.intValue()),
+                    String.valueOf(high.intValue()),
+                    String.valueOf(low.intValue()),
                     mWeatherId);
         }
     }
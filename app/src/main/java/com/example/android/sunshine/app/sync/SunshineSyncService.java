@@ -1,10 +1,14 @@
 package com.example.android.sunshine.app.sync;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class SunshineSyncService extends Service {
     private static final Object sSyncAdapterLock = new Object();
     private static SunshineSyncAdapter sSunshineSyncAdapter = null;
@@ -23,4 +27,23 @@ public class SunshineSyncService extends Service {
     public IBinder onBind(Intent intent) {
         return sSunshineSyncAdapter.getSyncAdapterBinder();
     }
-}
\ No newline at end of file
+
+    /**
+     * Reports the recent syncs with
+     * {@code adb shell dumpsys activity service .sync.SunshineSyncService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpReport(this, writer);
+    }
+
+    /**
+     * Writes how the syncs of this process were coalesced and the stage times of the recent
+     * ones.  Reads a file, so this should not be called from the UI thread.
+     */
+    public static void dumpReport(Context context, PrintWriter writer) {
+        writer.println("Syncs executed: " + SunshineSyncAdapter.getExecutedSyncCount()
+                + ", coalesced: " + SunshineSyncAdapter.getCoalescedSyncCount());
+        new SyncHistory(context).dump(writer);
+    }
+}
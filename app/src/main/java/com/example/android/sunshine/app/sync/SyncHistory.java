@@ -0,0 +1,306 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Keeps the last {@link #CAPACITY} sync runs, with the time of every stage as measured by
+ * {@link SyncTrace}, in a file of fixed size that survives the process.  Runs are written over
+ * the oldest once the file is full, so it never grows, and can be summed up as p50/p95 per stage
+ * to spot regressions and tell what made a slow sync slow.
+ *
+ * The file starts with a header of four ints: a magic number, the version of the layout, the
+ * capacity and the number of runs ever written; every run then takes {@link #RECORD_SIZE}
+ * bytes, at the slot its number modulo the capacity points to.  A file whose header does not
+ * match is started over.
+ */
+public class SyncHistory {
+    private static final String LOG_TAG = SyncHistory.class.getSimpleName();
+
+    private static final String FILE_NAME = "sync_history.bin";
+    static final int CAPACITY = 64;
+
+    private static final int MAGIC = 0x53594e43;
+    // Bump whenever the layout of a record changes, including the number of stages.
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 4;
+    private static final int OFFSET_COUNT = 3 * 4;
+    static final int RECORD_SIZE = 8 + 4 + 4 + 4 + 8 + 8 + 4 * SyncTrace.STAGE_COUNT;
+
+    // Outcomes of runs that did not report to the circuit breaker.
+    static final int OUTCOME_CANCELED = -1;
+
+    // Every instance works on the same file.
+    private static final Object sLock = new Object();
+
+    /**
+     * One sync run.
+     */
+    public static class Record {
+        final long startedAt;
+        final int outcome;
+        final int insertedCount;
+        final int requestCount;
+        final long wireBytes;
+        final long bodyBytes;
+        final int[] stageMillis;
+
+        Record(long startedAt, int outcome, int insertedCount, int requestCount, long wireBytes,
+               long bodyBytes, int[] stageMillis) {
+            this.startedAt = startedAt;
+            this.outcome = outcome;
+            this.insertedCount = insertedCount;
+            this.requestCount = requestCount;
+            this.wireBytes = wireBytes;
+            this.bodyBytes = bodyBytes;
+            this.stageMillis = stageMillis;
+        }
+
+        /**
+         * @param startedAt the wall time the sync started at, for the report only
+         * @param outcome one of the OUTCOME constants of {@link OwmCircuitBreaker}, or
+         *                {@link #OUTCOME_CANCELED}
+         */
+        static Record fromTrace(SyncTrace trace, long startedAt, int outcome, int insertedCount) {
+            int[] stageMillis = new int[SyncTrace.STAGE_COUNT];
+            for (int stage = 0; stage < stageMillis.length; stage++) {
+                stageMillis[stage] = trace.getMillis(stage);
+            }
+            return new Record(startedAt, outcome, insertedCount, trace.getRequestCount(),
+                    trace.getWireBytes(), trace.getBodyBytes(), stageMillis);
+        }
+    }
+
+    private final File mFile;
+    private final int mCapacity;
+
+    public SyncHistory(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME), CAPACITY);
+    }
+
+    SyncHistory(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Writes the run over the oldest one if the history is full.  Failures are logged: the
+     * history is a diagnostic and must never fail a sync.
+     */
+    public void add(Record record) {
+        synchronized (sLock) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "rw");
+                int count = readCount(file, true);
+                file.seek(HEADER_SIZE + (long) (count % mCapacity) * RECORD_SIZE);
+                file.writeLong(record.startedAt);
+                file.writeInt(record.outcome);
+                file.writeInt(record.insertedCount);
+                file.writeInt(record.requestCount);
+                file.writeLong(record.wireBytes);
+                file.writeLong(record.bodyBytes);
+                for (int millis : record.stageMillis) {
+                    file.writeInt(millis);
+                }
+                // The count goes last, so that a run cut short leaves the previous ones intact.
+                file.seek(OFFSET_COUNT);
+                file.writeInt(count + 1);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error writing sync history", e);
+            } finally {
+                close(file);
+            }
+        }
+    }
+
+    /**
+     * @return the runs kept, newest first.
+     */
+    public List<Record> getRecords() {
+        List<Record> records = new ArrayList<Record>();
+        synchronized (sLock) {
+            if (!mFile.exists()) {
+                return records;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "r");
+                int count = readCount(file, false);
+                int kept = Math.min(count, mCapacity);
+                for (int i = 1; i <= kept; i++) {
+                    file.seek(HEADER_SIZE + (long) ((count - i) % mCapacity) * RECORD_SIZE);
+                    long startedAt = file.readLong();
+                    int outcome = file.readInt();
+                    int insertedCount = file.readInt();
+                    int requestCount = file.readInt();
+                    long wireBytes = file.readLong();
+                    long bodyBytes = file.readLong();
+                    int[] stageMillis = new int[SyncTrace.STAGE_COUNT];
+                    for (int stage = 0; stage < stageMillis.length; stage++) {
+                        stageMillis[stage] = file.readInt();
+                    }
+                    records.add(new Record(startedAt, outcome, insertedCount, requestCount,
+                            wireBytes, bodyBytes, stageMillis));
+                }
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading sync history", e);
+            } finally {
+                close(file);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return the number of runs ever written, including the ones overwritten since.
+     */
+    public int getTotalCount() {
+        synchronized (sLock) {
+            if (!mFile.exists()) {
+                return 0;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "r");
+                return readCount(file, false);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error reading sync history", e);
+                return 0;
+            } finally {
+                close(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the number of runs written from the header, and starts the file over if the header
+     * is missing or was written for another layout or capacity.  A file opened for reading only
+     * is left as it is and reads as empty.
+     */
+    private int readCount(RandomAccessFile file, boolean writable) throws IOException {
+        if (file.length() >= HEADER_SIZE) {
+            file.seek(0);
+            int magic = file.readInt();
+            int version = file.readInt();
+            int capacity = file.readInt();
+            int count = file.readInt();
+            if (magic == MAGIC && version == VERSION && capacity == mCapacity && count >= 0
+                    && file.length() >= HEADER_SIZE + (long) Math.min(count, mCapacity)
+                    * RECORD_SIZE) {
+                return count;
+            }
+        }
+        if (writable) {
+            file.setLength(0);
+            file.seek(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.writeInt(mCapacity);
+            file.writeInt(0);
+        }
+        return 0;
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error closing sync history", e);
+            }
+        }
+    }
+
+    /**
+     * @return the value below which the given percentage of the values fall, by nearest rank,
+     * or 0 if there are none.  The array is sorted in place.
+     */
+    static long getPercentile(long[] values, int percent) {
+        if (values.length == 0) {
+            return 0;
+        }
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(percent / 100.0 * values.length);
+        return values[Math.max(rank, 1) - 1];
+    }
+
+    static long getStagePercentile(List<Record> records, int stage, int percent) {
+        long[] values = new long[records.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = records.get(i).stageMillis[stage];
+        }
+        return getPercentile(values, percent);
+    }
+
+    private static String getOutcomeName(int outcome) {
+        switch (outcome) {
+            case OwmCircuitBreaker.OUTCOME_SUCCESS:
+                return "ok";
+            case OwmCircuitBreaker.OUTCOME_TRANSIENT:
+                return "transient";
+            case OwmCircuitBreaker.OUTCOME_PERMANENT:
+                return "permanent";
+            case OUTCOME_CANCELED:
+                return "canceled";
+            default:
+                return "outcome " + outcome;
+        }
+    }
+
+    /**
+     * Writes p50/p95 per stage over the runs kept, followed by every run, newest first.
+     */
+    public void dump(PrintWriter writer) {
+        List<Record> records = getRecords();
+        writer.println("Sync history: " + records.size() + " runs kept of "
+                + getTotalCount() + " written");
+        if (records.isEmpty()) {
+            return;
+        }
+
+        writer.println(String.format(Locale.US, "  %-14s %8s %8s", "stage", "p50 ms", "p95 ms"));
+        for (int stage = 0; stage < SyncTrace.STAGE_COUNT; stage++) {
+            writer.println(String.format(Locale.US, "  %-14s %8d %8d",
+                    SyncTrace.STAGE_NAMES[stage],
+                    getStagePercentile(records, stage, 50),
+                    getStagePercentile(records, stage, 95)));
+        }
+        long[] wireBytes = new long[records.size()];
+        for (int i = 0; i < wireBytes.length; i++) {
+            wireBytes[i] = records.get(i).wireBytes;
+        }
+        writer.println(String.format(Locale.US, "  %-14s %8d %8d", "wire bytes",
+                getPercentile(wireBytes, 50), getPercentile(wireBytes, 95)));
+
+        writer.println("Runs, newest first:");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        for (Record record : records) {
+            StringBuilder line = new StringBuilder("  ")
+                    .append(format.format(new Date(record.startedAt)))
+                    .append(' ').append(getOutcomeName(record.outcome))
+                    .append(' ').append(record.insertedCount).append(" rows ")
+                    .append(record.requestCount).append(" requests ")
+                    .append(record.wireBytes).append('/').append(record.bodyBytes)
+                    .append(" bytes");
+            for (int stage = 0; stage < SyncTrace.STAGE_COUNT; stage++) {
+                if (record.stageMillis[stage] > 0) {
+                    line.append(' ').append(SyncTrace.STAGE_NAMES[stage])
+                            .append('=').append(record.stageMillis[stage]);
+                }
+            }
+            writer.println(line);
+        }
+    }
+}
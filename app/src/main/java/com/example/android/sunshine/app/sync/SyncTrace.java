@@ -0,0 +1,109 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Adds up where the time of one sync goes, stage by stage, along with the bytes it moved.
+ *
+ * Times come from {@link System#nanoTime()}, which is monotonic, so a clock change during a sync
+ * cannot skew them.  Connect and download run on the fetch threads, several at a time, so their
+ * stages add up the time of every request rather than wall time; {@link #STAGE_FETCH} holds
+ * the wall time of the fetch phase.  {@link #STAGE_TOTAL} stops once the data is committed;
+ * the widgets, Muzei, notification and wear stages are measured by the {@link FanOutDispatcher}
+ * from then on, each on its own thread.
+ */
+public class SyncTrace {
+    static final int STAGE_CONNECT = 0;
+    static final int STAGE_DOWNLOAD = 1;
+    static final int STAGE_FETCH = 2;
+    static final int STAGE_GROUP = 3;
+    static final int STAGE_PARSE = 4;
+    static final int STAGE_ADD_LOCATION = 5;
+    static final int STAGE_BULK_INSERT = 6;
+    static final int STAGE_WIDGETS = 7;
+    static final int STAGE_MUZEI = 8;
+    static final int STAGE_NOTIFICATION = 9;
+    static final int STAGE_WEAR = 10;
+    static final int STAGE_TOTAL = 11;
+    static final int STAGE_COUNT = 12;
+
+    // these names must match the stages
+    static final String[] STAGE_NAMES = {
+            "connect", "download", "fetch", "group", "parse", "addLocation", "bulkInsert",
+            "widgets", "muzei", "notification", "wear", "total"
+    };
+
+    private final long mStartNanos = now();
+    private final long[] mNanos = new long[STAGE_COUNT];
+    private int mRequestCount;
+    private long mWireBytes;
+    private long mBodyBytes;
+
+    static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Charges the time since start to the stage.
+     *
+     * @return the current time, so that the next stage can start from it
+     */
+    public long add(int stage, long startNanos) {
+        long now = now();
+        synchronized (this) {
+            mNanos[stage] += now - startNanos;
+        }
+        return now;
+    }
+
+    /**
+     * Charges the time since start to the stage, less what the nested stages were charged
+     * meanwhile.  The nested stages must only be charged from the calling thread.
+     *
+     * @param nestedBefore what {@link #sum(int...)} returned for the nested stages at start
+     */
+    public void addExclusive(int stage, long startNanos, long nestedBefore, int... nested) {
+        long elapsed = now() - startNanos;
+        synchronized (this) {
+            mNanos[stage] += elapsed - (sum(nested) - nestedBefore);
+        }
+    }
+
+    /**
+     * Counts a request that went over the network.
+     */
+    public synchronized void addRequest(long wireBytes, long bodyBytes) {
+        mRequestCount++;
+        mWireBytes += wireBytes;
+        mBodyBytes += bodyBytes;
+    }
+
+    /**
+     * Stops the clock of {@link #STAGE_TOTAL}.
+     */
+    public synchronized void finish() {
+        mNanos[STAGE_TOTAL] = now() - mStartNanos;
+    }
+
+    public synchronized long sum(int... stages) {
+        long nanos = 0;
+        for (int stage : stages) {
+            nanos += mNanos[stage];
+        }
+        return nanos;
+    }
+
+    public synchronized int getMillis(int stage) {
+        return (int) (mNanos[stage] / 1000000);
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getWireBytes() {
+        return mWireBytes;
+    }
+
+    public synchronized long getBodyBytes() {
+        return mBodyBytes;
+    }
+}
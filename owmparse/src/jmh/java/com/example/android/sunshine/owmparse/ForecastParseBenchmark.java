@@ -0,0 +1,101 @@
+package com.example.android.sunshine.owmparse;
+
+import com.example.android.sunshine.owmstub.SyntheticForecast;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the three ways of turning a daily forecast into rows: building an org.json tree,
+ * pulling tokens off a JsonReader, and binding straight from the characters, which is what the
+ * app ships.  Run it with {@code ./gradlew :owmparse:jmh}; the build turns on the gc profiler,
+ * so next to ops/s every result carries gc.alloc.rate (MB/s) and gc.alloc.rate.norm (B/op).
+ *
+ * The payload sizes are the current feed (14 days), the longest daily feed OWM serves (16), the
+ * size of the 3 hourly feed for 5 and 50 days (40, 400), and the stub's limit (1000).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ForecastParseBenchmark {
+
+    // A fixed day, so that every run parses the same bytes.
+    private static final long NOW = 1476230400L;
+
+    @Param({"14", "16", "40", "400", "1000"})
+    public int days;
+
+    private String mJson;
+
+    @Setup
+    public void setUp() {
+        mJson = SyntheticForecast.daily("94043", days, NOW);
+    }
+
+    // Consumes every value, the way the sync adapter's ingester does.
+    private static final class BlackholeCallback implements OwmForecastParser.Callback {
+        private final Blackhole mBlackhole;
+
+        BlackholeCallback(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double latitude, double longitude) {
+            mBlackhole.consume(cityId);
+            mBlackhole.consume(cityName);
+            mBlackhole.consume(latitude);
+            mBlackhole.consume(longitude);
+        }
+
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            mBlackhole.consume(index);
+            mBlackhole.consume(pressure);
+            mBlackhole.consume(humidity);
+            mBlackhole.consume(windSpeed);
+            mBlackhole.consume(windDirection);
+            mBlackhole.consume(high);
+            mBlackhole.consume(low);
+            mBlackhole.consume(description);
+            mBlackhole.consume(weatherId);
+        }
+    }
+
+    @Benchmark
+    public int tree(Blackhole blackhole) throws Exception {
+        return new TreeForecastParser().parse(new StringReader(mJson),
+                new BlackholeCallback(blackhole));
+    }
+
+    @Benchmark
+    public int streaming(Blackhole blackhole) throws Exception {
+        return new StreamingForecastParser().parse(new StringReader(mJson),
+                new BlackholeCallback(blackhole));
+    }
+
+    // A new parser per document, as the sync adapter makes one per location.
+    @Benchmark
+    public int binding(Blackhole blackhole) throws Exception {
+        return new OwmForecastParser().parse(new StringReader(mJson),
+                new BlackholeCallback(blackhole));
+    }
+}
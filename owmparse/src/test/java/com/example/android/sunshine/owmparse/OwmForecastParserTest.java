@@ -0,0 +1,181 @@
+package com.example.android.sunshine.owmparse;
+
+import com.example.android.sunshine.owmstub.ResponseCorpus;
+import com.example.android.sunshine.owmstub.SyntheticForecast;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/*
+    Checks that the binding parser hands out exactly what the tree and streaming strategies do,
+    for the recorded sample and for synthetic forecasts up to 1000 days, read whole or one
+    character at a time, and that it rejects what they reject.
+ */
+public class OwmForecastParserTest {
+
+    private static final long NOW = 1476230400L;
+    private static final int[] PAYLOAD_SIZES = {1, 14, 16, 40, 400, 1000};
+
+    // Writes down every callback, so that two parses can be compared as a whole.
+    static class RecordingCallback implements OwmForecastParser.Callback {
+        final List<String> mEvents = new ArrayList<String>();
+        final List<String> mDescriptions = new ArrayList<String>();
+
+        @Override
+        public void onCity(long cityId, String cityName, double latitude, double longitude) {
+            mEvents.add("city " + cityId + " " + cityName + " " + latitude + " " + longitude);
+        }
+
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            mEvents.add("day " + index + " " + pressure + " " + humidity + " " + windSpeed + " "
+                    + windDirection + " " + high + " " + low + " " + description + " "
+                    + weatherId);
+            mDescriptions.add(description);
+        }
+    }
+
+    // Hands out one character per read, so that every token straddles a refill.
+    static class TrickleReader extends Reader {
+        private final String mText;
+        private int mPos;
+
+        TrickleReader(String text) {
+            mText = text;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (mPos == mText.length()) {
+                return -1;
+            }
+            buffer[offset] = mText.charAt(mPos++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static List<String> bind(Reader in) throws IOException, JSONException {
+        RecordingCallback callback = new RecordingCallback();
+        assertEquals(200, new OwmForecastParser().parse(in, callback));
+        return callback.mEvents;
+    }
+
+    private static void assertSameAsReferences(String json) throws IOException, JSONException {
+        RecordingCallback tree = new RecordingCallback();
+        assertEquals(200, new TreeForecastParser().parse(new StringReader(json), tree));
+        RecordingCallback streaming = new RecordingCallback();
+        assertEquals(200, new StreamingForecastParser().parse(new StringReader(json), streaming));
+        assertEquals(tree.mEvents, streaming.mEvents);
+
+        assertEquals(tree.mEvents, bind(new StringReader(json)));
+        assertEquals(tree.mEvents, bind(new TrickleReader(json)));
+    }
+
+    @Test
+    public void matchesReferencesOnRecordedSample() throws IOException, JSONException {
+        byte[] sample = new ResponseCorpus(null).find(ResponseCorpus.DAILY, "94043");
+        assertNotNull(sample);
+        assertSameAsReferences(new String(sample, "UTF-8"));
+    }
+
+    @Test
+    public void matchesReferencesOnSyntheticPayloads() throws IOException, JSONException {
+        for (int days : PAYLOAD_SIZES) {
+            String json = SyntheticForecast.daily("springfield", days, NOW);
+            assertSameAsReferences(json);
+            assertEquals(days + 1, bind(new StringReader(json)).size());
+        }
+    }
+
+    @Test
+    public void matchesReferencesOnUnusualNumbersAndStrings() throws IOException, JSONException {
+        String json = "{ \"cod\" : 200 , \"extra\": [true, null, {\"a\": [1, -2.5e3]}],\n"
+                + "\"city\": {\"id\": 123456789012, \"name\": \"S\\u00e3o \\\"Paulo\\\"\\/SP\","
+                + "\"coord\": {\"lon\": -46.63611, \"lat\": -2.35E1}},\n"
+                + "\"list\": [{\"temp\": {\"min\": -0.0, \"max\": 1e2},"
+                + " \"pressure\": 1013.2500000000000001, \"humidity\": 55.0,"
+                + " \"weather\": [{\"id\": \"800\", \"main\": \"Clear\\tsky\"},"
+                + " {\"id\": 500, \"main\": \"Rain\"}],"
+                + " \"speed\": 0.1, \"deg\": 359.99999999999994, \"clouds\": 0}]}";
+        assertSameAsReferences(json);
+    }
+
+    @Test
+    public void skipsWeatherElementsThatAreNotObjects() throws IOException, JSONException {
+        // The tree strategy fails on these, so only the streaming one is a reference here.
+        String json = "{\"cod\": \"200\", \"list\": [{\"temp\": {\"min\": 1, \"max\": 2},"
+                + " \"pressure\": 1000, \"humidity\": 50,"
+                + " \"weather\": [\"skipped\", null, {\"id\": 800, \"main\": \"Clear\"},"
+                + " {\"id\": 500, \"main\": \"Rain\"}],"
+                + " \"speed\": 3, \"deg\": 90}]}";
+        RecordingCallback streaming = new RecordingCallback();
+        assertEquals(200, new StreamingForecastParser().parse(new StringReader(json), streaming));
+        assertEquals(streaming.mEvents, bind(new StringReader(json)));
+        assertEquals(streaming.mEvents, bind(new TrickleReader(json)));
+    }
+
+    @Test
+    public void sharesRepeatedDescriptions() throws IOException, JSONException {
+        RecordingCallback callback = new RecordingCallback();
+        new OwmForecastParser().parse(
+                new StringReader(SyntheticForecast.daily("springfield", 100, NOW)), callback);
+        for (int i = 1; i < callback.mDescriptions.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (callback.mDescriptions.get(i).equals(callback.mDescriptions.get(j))) {
+                    assertSame(callback.mDescriptions.get(j), callback.mDescriptions.get(i));
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void errorCodeStopsParsing() throws IOException, JSONException {
+        String json = "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+        assertEquals(404, new OwmForecastParser().parse(new StringReader(json),
+                new RecordingCallback()));
+    }
+
+    @Test
+    public void rejectsBadDocuments() throws IOException {
+        String[] documents = {
+                // A day without temperatures.
+                "{\"cod\":\"200\",\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}},"
+                        + "\"list\":[{\"pressure\":1000,\"humidity\":50}]}",
+                // A city without coordinates.
+                "{\"city\":{\"name\":\"x\"},\"list\":[]}",
+                "{\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}},\"list\":[}",
+                "{\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2},},\"list\":[]}",
+                "{\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1.,\"lon\":2}},\"list\":[]}",
+                "{\"city\":{\"name\":\"x\",\"coord\":{\"lat\":1,\"lon\":2}} \"list\":[]}",
+                "{\"city\":{\"name\":\"x\\q\",\"coord\":{\"lat\":1,\"lon\":2}},\"list\":[]}",
+                "{\"cod\":\"200.5\"}",
+                "{\"city\":{\"name\":\"unterminated",
+                "",
+        };
+        for (String json : documents) {
+            try {
+                new OwmForecastParser().parse(new StringReader(json), new RecordingCallback());
+                fail("Error: " + json + " should not parse");
+            } catch (JSONException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.android.sunshine.owmparse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * The tree strategy: what getWeatherDataFromJson in the sync adapter did originally.  The whole
+ * response is read into a String and built into a {@link JSONObject} tree before a single day is
+ * looked at.  Kept to check the production parser against and to benchmark it with.
+ */
+class TreeForecastParser {
+
+    int parse(Reader in, OwmForecastParser.Callback callback) throws IOException, JSONException {
+        StringBuilder buffer = new StringBuilder();
+        char[] chunk = new char[1024];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.append(chunk, 0, read);
+        }
+        JSONObject forecastJson = new JSONObject(buffer.toString());
+
+        // do we have an error?
+        if (forecastJson.has("cod")) {
+            int errorCode = forecastJson.getInt("cod");
+            if (errorCode != HttpURLConnection.HTTP_OK) {
+                return errorCode;
+            }
+        }
+
+        JSONObject cityJson = forecastJson.getJSONObject("city");
+        JSONObject cityCoord = cityJson.getJSONObject("coord");
+        callback.onCity(cityJson.optLong("id"), cityJson.getString("name"),
+                cityCoord.getDouble("lat"), cityCoord.getDouble("lon"));
+
+        JSONArray weatherArray = forecastJson.getJSONArray("list");
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject = dayForecast.getJSONArray("weather").getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject("temp");
+
+            callback.onDay(i, dayForecast.getDouble("pressure"), dayForecast.getInt("humidity"),
+                    dayForecast.getDouble("speed"), dayForecast.getDouble("deg"),
+                    temperatureObject.getDouble("max"), temperatureObject.getDouble("min"),
+                    weatherObject.getString("main"), weatherObject.getInt("id"));
+        }
+        return HttpURLConnection.HTTP_OK;
+    }
+}
@@ -0,0 +1,209 @@
+package com.example.android.sunshine.owmstub;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * How badly the stub server behaves: how long it waits before answering, how fast it sends,
+ * how often it fails and how.  Profiles are immutable; build them with a {@link Builder}.
+ *
+ * Every random decision is drawn from a generator seeded with {@link #getSeed()}, so the same
+ * profile fails the same requests of a run that makes its requests in the same order.
+ */
+public final class FaultProfile {
+
+    /** Answers at once, at full speed, and never fails. */
+    public static final FaultProfile NONE = new Builder().build();
+
+    private final long mLatencyMillis;
+    private final long mJitterMillis;
+    private final long mBytesPerSecond;
+    private final double mErrorRate;
+    private final int mErrorCode;
+    private final double mDropRate;
+    private final boolean mGzip;
+    private final boolean mValidators;
+    private final long mSeed;
+    private final Set<String> mUnknownLocations;
+
+    private FaultProfile(Builder builder) {
+        mLatencyMillis = builder.mLatencyMillis;
+        mJitterMillis = builder.mJitterMillis;
+        mBytesPerSecond = builder.mBytesPerSecond;
+        mErrorRate = builder.mErrorRate;
+        mErrorCode = builder.mErrorCode;
+        mDropRate = builder.mDropRate;
+        mGzip = builder.mGzip;
+        mValidators = builder.mValidators;
+        mSeed = builder.mSeed;
+        mUnknownLocations = Collections.unmodifiableSet(
+                new HashSet<String>(builder.mUnknownLocations));
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * @return how many body bytes a response is sent with per second, 0 for no limit
+     */
+    public long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public double getErrorRate() {
+        return mErrorRate;
+    }
+
+    public int getErrorCode() {
+        return mErrorCode;
+    }
+
+    public double getDropRate() {
+        return mDropRate;
+    }
+
+    public boolean isGzip() {
+        return mGzip;
+    }
+
+    public boolean hasValidators() {
+        return mValidators;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * @return whether OWM would answer "city not found" for the given location query
+     */
+    public boolean isUnknownLocation(String locationKey) {
+        return mUnknownLocations.contains(locationKey.toLowerCase(Locale.US));
+    }
+
+    public Builder buildUpon() {
+        Builder builder = new Builder()
+                .latency(mLatencyMillis, mJitterMillis)
+                .bandwidth(mBytesPerSecond)
+                .errors(mErrorRate, mErrorCode)
+                .drops(mDropRate)
+                .gzip(mGzip)
+                .validators(mValidators)
+                .seed(mSeed);
+        builder.mUnknownLocations.addAll(mUnknownLocations);
+        return builder;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + mLatencyMillis + "+-" + mJitterMillis + "ms"
+                + ", bandwidth=" + (mBytesPerSecond == 0 ? "unlimited" : mBytesPerSecond + "B/s")
+                + ", errors=" + mErrorRate + "x" + mErrorCode
+                + ", drops=" + mDropRate
+                + ", gzip=" + mGzip
+                + ", validators=" + mValidators
+                + ", seed=" + mSeed;
+    }
+
+    public static final class Builder {
+        private long mLatencyMillis;
+        private long mJitterMillis;
+        private long mBytesPerSecond;
+        private double mErrorRate;
+        private int mErrorCode = 503;
+        private double mDropRate;
+        private boolean mGzip = true;
+        private boolean mValidators = true;
+        private long mSeed = 1;
+        private final Set<String> mUnknownLocations = new HashSet<String>();
+
+        /**
+         * Waits this long, give or take up to the jitter, before answering a request.
+         */
+        public Builder latency(long latencyMillis, long jitterMillis) {
+            if (latencyMillis < 0 || jitterMillis < 0 || jitterMillis > latencyMillis) {
+                throw new IllegalArgumentException("Bad latency " + latencyMillis + "+-"
+                        + jitterMillis);
+            }
+            mLatencyMillis = latencyMillis;
+            mJitterMillis = jitterMillis;
+            return this;
+        }
+
+        /**
+         * Sends response bodies no faster than this, 0 for no limit.
+         */
+        public Builder bandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Bad bandwidth " + bytesPerSecond);
+            }
+            mBytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Answers this share of the requests with the given HTTP status instead of the forecast.
+         */
+        public Builder errors(double rate, int code) {
+            checkRate(rate);
+            mErrorRate = rate;
+            mErrorCode = code;
+            return this;
+        }
+
+        /**
+         * Closes the connection of this share of the requests halfway through the body.
+         */
+        public Builder drops(double rate) {
+            checkRate(rate);
+            mDropRate = rate;
+            return this;
+        }
+
+        /**
+         * Whether bodies are gzip compressed for clients that accept it, as OWM does.
+         */
+        public Builder gzip(boolean gzip) {
+            mGzip = gzip;
+            return this;
+        }
+
+        /**
+         * Whether responses carry an ETag and conditional requests are answered with 304.
+         */
+        public Builder validators(boolean validators) {
+            mValidators = validators;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * Answers queries for this location with 404, like OWM does for a city it does not know.
+         */
+        public Builder unknownLocation(String locationKey) {
+            mUnknownLocations.add(locationKey.toLowerCase(Locale.US));
+            return this;
+        }
+
+        public FaultProfile build() {
+            return new FaultProfile(this);
+        }
+
+        private static void checkRate(double rate) {
+            if (rate < 0 || rate > 1) {
+                throw new IllegalArgumentException("Bad rate " + rate);
+            }
+        }
+    }
+}
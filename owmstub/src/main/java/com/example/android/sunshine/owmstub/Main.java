@@ -0,0 +1,113 @@
+package com.example.android.sunshine.owmstub;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the stub server from the command line until it is killed.  Point a debug build at it
+ * with {@code ./gradlew installDebug -PowmBaseUrl=http://10.0.2.2:8089/data/2.5/} from the
+ * emulator, or the printed URL from the host.
+ */
+public final class Main {
+    private static final int DEFAULT_PORT = 8089;
+
+    private static final String USAGE = "Usage: owmstub [options]\n"
+            + "  --port N             port to listen on, default " + DEFAULT_PORT + "\n"
+            + "  --latency MS         delay before each response\n"
+            + "  --jitter MS          random variation of the delay, at most the latency\n"
+            + "  --bandwidth B        body bytes per second, 0 for no limit\n"
+            + "  --error-rate R       share of requests answered with an error, 0 to 1\n"
+            + "  --error-code N       HTTP status of injected errors, default 503\n"
+            + "  --drop-rate R        share of responses cut off halfway, 0 to 1\n"
+            + "  --unknown LOCATION   answer 404 city not found for this location\n"
+            + "  --seed N             seed of the random faults, default 1\n"
+            + "  --corpus DIR         directory of recorded responses\n"
+            + "  --record URL         record responses missing from the corpus from this API\n"
+            + "  --no-gzip            never compress responses\n"
+            + "  --no-validators      send no ETags and ignore conditional requests\n";
+
+    private Main() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        long latency = 0;
+        long jitter = 0;
+        File corpusDir = null;
+        String upstream = null;
+        FaultProfile.Builder profile = new FaultProfile.Builder();
+        double errorRate = 0;
+        int errorCode = 503;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--no-gzip".equals(arg)) {
+                    profile.gzip(false);
+                    continue;
+                } else if ("--no-validators".equals(arg)) {
+                    profile.validators(false);
+                    continue;
+                } else if ("--help".equals(arg) || i + 1 == args.length) {
+                    usage();
+                    return;
+                }
+                String value = args[++i];
+                if ("--port".equals(arg)) {
+                    port = Integer.parseInt(value);
+                } else if ("--latency".equals(arg)) {
+                    latency = Long.parseLong(value);
+                } else if ("--jitter".equals(arg)) {
+                    jitter = Long.parseLong(value);
+                } else if ("--bandwidth".equals(arg)) {
+                    profile.bandwidth(Long.parseLong(value));
+                } else if ("--error-rate".equals(arg)) {
+                    errorRate = Double.parseDouble(value);
+                } else if ("--error-code".equals(arg)) {
+                    errorCode = Integer.parseInt(value);
+                } else if ("--drop-rate".equals(arg)) {
+                    profile.drops(Double.parseDouble(value));
+                } else if ("--unknown".equals(arg)) {
+                    profile.unknownLocation(value);
+                } else if ("--seed".equals(arg)) {
+                    profile.seed(Long.parseLong(value));
+                } else if ("--corpus".equals(arg)) {
+                    corpusDir = new File(value);
+                } else if ("--record".equals(arg)) {
+                    upstream = value.endsWith("/") ? value : value + "/";
+                } else {
+                    usage();
+                    return;
+                }
+            }
+            profile.latency(latency, jitter).errors(errorRate, errorCode);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            return;
+        }
+        if (upstream != null && corpusDir == null) {
+            System.err.println("--record needs a --corpus directory to record into");
+            usage();
+            return;
+        }
+
+        FaultProfile faults = profile.build();
+        final OwmStubServer server = new OwmStubServer(new ResponseCorpus(corpusDir), faults);
+        server.setRecordUpstream(upstream);
+        server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(server.getRequestCount() + " requests, "
+                        + server.getErrorCount() + " faults, "
+                        + server.getBytesSent() + " bytes sent");
+                server.shutdown();
+            }
+        });
+        System.out.println("Serving " + server.getBaseUrl() + " with " + faults);
+    }
+
+    private static void usage() {
+        System.err.print(USAGE);
+    }
+}
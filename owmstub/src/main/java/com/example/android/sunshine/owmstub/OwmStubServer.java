@@ -0,0 +1,537 @@
+package com.example.android.sunshine.owmstub;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A stand-in for the OpenWeatherMap API on the loopback interface.  It answers the three
+ * endpoints the app uses, forecast/daily, forecast and group, from a {@link ResponseCorpus}
+ * where it has a recorded response and from {@link SyntheticForecast} where it does not, and
+ * misbehaves as its {@link FaultProfile} says.
+ *
+ * One request is served per connection, which is closed after the response, so that a dropped
+ * response never leaves a connection in an unknown state.
+ */
+public class OwmStubServer {
+    private static final Logger LOG = Logger.getLogger(OwmStubServer.class.getName());
+
+    public static final String API_PATH = "/data/2.5/";
+
+    private static final String DAILY_PATH = API_PATH + "forecast/daily";
+    private static final String HOURLY_PATH = API_PATH + "forecast";
+    private static final String GROUP_PATH = API_PATH + "group";
+
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    // Throttled bodies are written in this many chunks per second.
+    private static final int CHUNKS_PER_SECOND = 20;
+    private static final int UPSTREAM_TIMEOUT_MILLIS = 15 * 1000;
+
+    private final ResponseCorpus mCorpus;
+    private volatile FaultProfile mProfile;
+    private volatile String mUpstreamUrl;
+
+    private Random mRandom;
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    public OwmStubServer(ResponseCorpus corpus, FaultProfile profile) {
+        mCorpus = corpus;
+        setProfile(profile);
+    }
+
+    /**
+     * Starts serving on a free port.
+     */
+    public void start() throws IOException {
+        start(0);
+    }
+
+    public synchronized void start(int port) throws IOException {
+        if (mServerSocket != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        final ServerSocket serverSocket = mServerSocket;
+        final ExecutorService executor = mExecutor;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            LOG.log(Level.WARNING, "Accept failed", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void shutdown() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error closing server socket", e);
+        }
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mServerSocket = null;
+        mExecutor = null;
+    }
+
+    public synchronized int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return the URL the app's endpoint paths are appended to, ending with a slash
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + getPort() + API_PATH;
+    }
+
+    /**
+     * Changes how the server behaves from the next request on, and restarts its random
+     * decisions from the profile's seed.
+     */
+    public void setProfile(FaultProfile profile) {
+        synchronized (this) {
+            mRandom = new Random(profile.getSeed());
+        }
+        mProfile = profile;
+    }
+
+    public FaultProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Sends requests for locations the corpus has no response for to the real API, and records
+     * what it answers, so that a corpus can be captured once and replayed offline afterwards.
+     *
+     * @param upstreamUrl the base URL of the real API, e.g.
+     *                    http://api.openweathermap.org/data/2.5/, or null to stop recording
+     */
+    public void setRecordUpstream(String upstreamUrl) {
+        mUpstreamUrl = upstreamUrl;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return the number of requests answered with an injected error or dropped
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return the number of body bytes sent, as they went over the wire
+     */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public void resetCounts() {
+        mRequestCount.set(0);
+        mErrorCount.set(0);
+        mBytesSent.set(0);
+    }
+
+    private void serve(Socket socket) {
+        try {
+            try {
+                Request request = Request.read(new BufferedInputStream(socket.getInputStream()));
+                if (request != null) {
+                    mRequestCount.incrementAndGet();
+                    respond(request, socket.getOutputStream());
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (SocketException e) {
+            // The client went away, which clients are free to do.
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Error serving request", e);
+        } catch (InterruptedException e) {
+            // Shutting down.
+        }
+    }
+
+    private void respond(Request request, OutputStream out)
+            throws IOException, InterruptedException {
+        FaultProfile profile = mProfile;
+        double errorDraw;
+        double dropDraw;
+        long latencyMillis;
+        synchronized (this) {
+            errorDraw = mRandom.nextDouble();
+            dropDraw = mRandom.nextDouble();
+            latencyMillis = profile.getLatencyMillis() + (profile.getJitterMillis() == 0 ? 0
+                    : Math.round((mRandom.nextDouble() * 2 - 1) * profile.getJitterMillis()));
+        }
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+
+        String endpoint;
+        String locationKey;
+        if (request.path.equals(DAILY_PATH)) {
+            endpoint = ResponseCorpus.DAILY;
+            locationKey = request.getLocationKey();
+        } else if (request.path.equals(HOURLY_PATH)) {
+            endpoint = ResponseCorpus.HOURLY;
+            locationKey = request.getLocationKey();
+        } else if (request.path.equals(GROUP_PATH)) {
+            endpoint = ResponseCorpus.GROUP;
+            locationKey = request.getParameter("id");
+        } else {
+            writeResponse(out, 404, null, errorBody(404, "Internal error"), profile, request, false);
+            return;
+        }
+        if (locationKey == null || locationKey.isEmpty()) {
+            writeResponse(out, 400, null, errorBody(400, "Nothing to geocode"), profile, request,
+                    false);
+            return;
+        }
+
+        if (errorDraw < profile.getErrorRate()) {
+            mErrorCount.incrementAndGet();
+            writeResponse(out, profile.getErrorCode(), null,
+                    errorBody(profile.getErrorCode(), "Injected error"), profile, request, false);
+            return;
+        }
+        if (profile.isUnknownLocation(locationKey)) {
+            writeResponse(out, 404, null, errorBody(404, "city not found"), profile, request,
+                    false);
+            return;
+        }
+
+        byte[] body = findBody(endpoint, locationKey, request);
+        String etag = null;
+        if (profile.hasValidators()) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            etag = '"' + Long.toHexString(crc.getValue()) + '"';
+            if (etag.equals(request.headers.get("if-none-match"))) {
+                writeResponse(out, 304, etag, null, profile, request, false);
+                return;
+            }
+        }
+        boolean drop = dropDraw < profile.getDropRate();
+        if (drop) {
+            mErrorCount.incrementAndGet();
+        }
+        writeResponse(out, 200, etag, body, profile, request, drop);
+    }
+
+    private byte[] findBody(String endpoint, String locationKey, Request request)
+            throws IOException {
+        byte[] body = mCorpus.find(endpoint, locationKey);
+        if (body != null) {
+            return body;
+        }
+        String upstreamUrl = mUpstreamUrl;
+        if (upstreamUrl != null) {
+            body = fetchUpstream(upstreamUrl, request);
+            if (body != null) {
+                mCorpus.save(endpoint, locationKey, body);
+                return body;
+            }
+        }
+        long now = System.currentTimeMillis() / 1000;
+        if (ResponseCorpus.DAILY.equals(endpoint)) {
+            return ResponseCorpus.toBytes(SyntheticForecast.daily(locationKey,
+                    request.getIntParameter("cnt", 7), now));
+        } else if (ResponseCorpus.HOURLY.equals(endpoint)) {
+            return ResponseCorpus.toBytes(SyntheticForecast.hourly(locationKey, now));
+        }
+        List<Long> cityIds = new ArrayList<Long>();
+        for (String id : locationKey.split(",")) {
+            try {
+                cityIds.add(Long.parseLong(id.trim()));
+            } catch (NumberFormatException e) {
+                // OWM leaves out ids it cannot read, and so does the stub.
+            }
+        }
+        return ResponseCorpus.toBytes(SyntheticForecast.group(cityIds, now));
+    }
+
+    private static byte[] fetchUpstream(String upstreamUrl, Request request) {
+        HttpURLConnection connection = null;
+        try {
+            String relative = request.path.substring(API_PATH.length());
+            URL url = new URL(upstreamUrl + relative
+                    + (request.query != null ? "?" + request.query : ""));
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(UPSTREAM_TIMEOUT_MILLIS);
+            connection.setReadTimeout(UPSTREAM_TIMEOUT_MILLIS);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                LOG.warning("Upstream answered " + connection.getResponseCode() + " for "
+                        + request.path);
+                return null;
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return ResponseCorpus.readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Upstream request failed", e);
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private void writeResponse(OutputStream out, int code, String etag, byte[] body,
+                               FaultProfile profile, Request request, boolean drop)
+            throws IOException, InterruptedException {
+        boolean gzip = body != null && profile.isGzip() && request.acceptsGzip();
+        if (gzip) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+            gzipOut.write(body);
+            gzipOut.close();
+            body = compressed.toByteArray();
+        }
+
+        StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n")
+                .append("Server: owmstub\r\n")
+                .append("Connection: close\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json; charset=utf-8\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+        } else {
+            head.append("Content-Length: 0\r\n");
+        }
+        if (gzip) {
+            head.append("Content-Encoding: gzip\r\n");
+        }
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        out.write(head.append("\r\n").toString().getBytes("US-ASCII"));
+        if (body == null) {
+            out.flush();
+            return;
+        }
+
+        // A dropped response promises the whole body and closes the connection halfway.
+        int length = drop ? body.length / 2 : body.length;
+        long bytesPerSecond = profile.getBytesPerSecond();
+        if (bytesPerSecond == 0) {
+            out.write(body, 0, length);
+            mBytesSent.addAndGet(length);
+        } else {
+            int chunk = (int) Math.max(1, bytesPerSecond / CHUNKS_PER_SECOND);
+            long start = System.nanoTime();
+            for (int offset = 0; offset < length; offset += chunk) {
+                int count = Math.min(chunk, length - offset);
+                out.write(body, offset, count);
+                out.flush();
+                mBytesSent.addAndGet(count);
+                // Sleep until the bytes sent so far are due at the configured rate.
+                long dueNanos = (offset + count) * 1000000000L / bytesPerSecond;
+                long aheadMillis = (dueNanos - (System.nanoTime() - start)) / 1000000;
+                if (aheadMillis > 0) {
+                    Thread.sleep(aheadMillis);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static byte[] errorBody(int code, String message) {
+        return ResponseCorpus.toBytes("{\"cod\":\"" + code + "\",\"message\":\"" + message + "\"}");
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 401:
+                return "Unauthorized";
+            case 404:
+                return "Not Found";
+            case 429:
+                return "Too Many Requests";
+            case 500:
+                return "Internal Server Error";
+            case 502:
+                return "Bad Gateway";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Error";
+        }
+    }
+
+    /**
+     * The parts of an HTTP request the stub looks at.
+     */
+    static final class Request {
+        final String path;
+        final String query;
+        final Map<String, String> parameters;
+        final Map<String, String> headers;
+
+        private Request(String path, String query, Map<String, String> parameters,
+                        Map<String, String> headers) {
+            this.path = path;
+            this.query = query;
+            this.parameters = parameters;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the request, or null if the client closed the connection without sending one
+         */
+        static Request read(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null || requestLine.isEmpty()) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Bad request line " + requestLine);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+
+            String target = parts[1];
+            int question = target.indexOf('?');
+            String path = question < 0 ? target : target.substring(0, question);
+            String query = question < 0 ? null : target.substring(question + 1);
+            Map<String, String> parameters = new HashMap<String, String>();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        parameters.put(decode(pair.substring(0, equals)),
+                                decode(pair.substring(equals + 1)));
+                    }
+                }
+            }
+            return new Request(path, query, parameters, headers);
+        }
+
+        String getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        int getIntParameter(String name, int defaultValue) {
+            String value = parameters.get(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+
+        /**
+         * @return the location asked for, as the app's ForecastRequest keys it: the lower case
+         * query, or "lat,lon"
+         */
+        String getLocationKey() {
+            String q = parameters.get("q");
+            if (q != null) {
+                return q.trim().toLowerCase(Locale.US);
+            }
+            String lat = parameters.get("lat");
+            String lon = parameters.get("lon");
+            return lat != null && lon != null ? lat.trim() + "," + lon.trim() : null;
+        }
+
+        boolean acceptsGzip() {
+            String accept = headers.get("accept-encoding");
+            return accept != null && accept.toLowerCase(Locale.US).contains("gzip");
+        }
+
+        private static String decode(String value) throws UnsupportedEncodingException {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    int end = line.length();
+                    return end > 0 && line.charAt(end - 1) == '\r'
+                            ? line.substring(0, end - 1) : line.toString();
+                }
+                if (line.length() >= MAX_HEADER_BYTES) {
+                    throw new IOException("Header line too long");
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
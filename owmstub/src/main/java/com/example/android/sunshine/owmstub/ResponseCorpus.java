@@ -0,0 +1,113 @@
+package com.example.android.sunshine.owmstub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Recorded OWM responses, one file per endpoint and location, named
+ * {@code <endpoint>-<location>.json}.  A directory given on the command line is searched first,
+ * then the samples packaged under {@code /corpus/}; a location found in neither is generated by
+ * {@link SyntheticForecast}.
+ */
+public class ResponseCorpus {
+
+    public static final String DAILY = "daily";
+    public static final String HOURLY = "hourly";
+    public static final String GROUP = "group";
+
+    private static final String RESOURCE_DIR = "/corpus/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+
+    /**
+     * @param directory where recorded responses are looked up and saved, or null for the
+     *                  packaged samples only
+     */
+    public ResponseCorpus(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the recorded body for the location, or null if there is none
+     */
+    public byte[] find(String endpoint, String locationKey) throws IOException {
+        String name = getFileName(endpoint, locationKey);
+        if (mDirectory != null) {
+            File file = new File(mDirectory, name);
+            if (file.isFile()) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    return readFully(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        InputStream in = ResponseCorpus.class.getResourceAsStream(RESOURCE_DIR + name);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Records a body for the location, so later runs are served it without going upstream.
+     */
+    public void save(String endpoint, String locationKey, byte[] body) throws IOException {
+        if (mDirectory == null) {
+            throw new IOException("No corpus directory to record into");
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        // Write next to the file and rename, so a concurrent reader never sees half of it.
+        File file = new File(mDirectory, getFileName(endpoint, locationKey));
+        File temp = new File(mDirectory, file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write " + file);
+        }
+    }
+
+    static String getFileName(String endpoint, String locationKey) {
+        StringBuilder name = new StringBuilder(endpoint).append('-');
+        String key = locationKey.trim().toLowerCase(Locale.US);
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            name.append(Character.isLetterOrDigit(c) || c == '.' || c == '-' ? c : '_');
+        }
+        return name.append(".json").toString();
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] toBytes(String body) {
+        return body.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.sunshine.owmstub;
+
+import java.util.List;
+
+/**
+ * Generates OWM shaped responses of any size for any location.  The weather is a function of
+ * the location and the day alone, so the same request always gets the same body, byte for byte,
+ * and the server can hand out stable validators for it.
+ */
+public final class SyntheticForecast {
+
+    // OWM's daily endpoint refuses more than this; the stub goes further on purpose, so that
+    // the sync can be measured with payloads far past what the app asks for.
+    public static final int MAX_DAYS = 1000;
+    // The 5 day / 3 hour forecast always holds this many steps.
+    public static final int HOURLY_STEPS = 40;
+
+    private static final long DAY_SECONDS = 24 * 60 * 60;
+    private static final long STEP_SECONDS = 3 * 60 * 60;
+
+    private static final int[] WEATHER_IDS = {800, 801, 802, 500, 501, 211, 600, 741};
+    private static final String[] WEATHER_MAINS = {
+            "Clear", "Clouds", "Clouds", "Rain", "Rain", "Thunderstorm", "Snow", "Fog"
+    };
+
+    private SyntheticForecast() {
+    }
+
+    /**
+     * @return a stable, positive OWM style city id for the location
+     */
+    public static long getCityId(String locationKey) {
+        return 1000000 + (locationKey.hashCode() & 0x7fffffff) % 9000000;
+    }
+
+    /**
+     * @param locationKey the q parameter, or "lat,lon" for coordinate queries
+     * @param days number of days, clamped to 1..{@link #MAX_DAYS}
+     * @param now the current time, in seconds since the epoch; the forecast starts at its day
+     */
+    public static String daily(String locationKey, int days, long now) {
+        days = Math.max(1, Math.min(MAX_DAYS, days));
+        long cityId = getCityId(locationKey);
+        long firstDay = now - now % DAY_SECONDS;
+        // About 230 bytes per day.
+        StringBuilder json = new StringBuilder(256 + days * 240);
+        json.append("{\"city\":");
+        appendCity(json, cityId, cityName(locationKey));
+        json.append(",\"cod\":\"200\",\"message\":0,\"cnt\":").append(days).append(",\"list\":[");
+        for (int day = 0; day < days; day++) {
+            long dayIndex = firstDay / DAY_SECONDS + day;
+            int weather = weatherIndex(cityId, dayIndex);
+            double high = round(temperature(cityId, dayIndex) + 6);
+            double low = round(temperature(cityId, dayIndex) - 6);
+            if (day > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(firstDay + day * DAY_SECONDS + 12 * 60 * 60)
+                    .append(",\"temp\":{\"day\":").append(round((high + low) / 2))
+                    .append(",\"min\":").append(low)
+                    .append(",\"max\":").append(high)
+                    .append(",\"night\":").append(low)
+                    .append(",\"eve\":").append(round(high - 2))
+                    .append(",\"morn\":").append(round(low + 1))
+                    .append("},\"pressure\":").append(pressure(cityId, dayIndex))
+                    .append(",\"humidity\":").append(humidity(cityId, dayIndex))
+                    .append(",\"weather\":");
+            appendWeather(json, weather);
+            json.append(",\"speed\":").append(windSpeed(cityId, dayIndex))
+                    .append(",\"deg\":").append(windDirection(cityId, dayIndex))
+                    .append(",\"clouds\":").append(weather == 0 ? 0 : 75)
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return the 5 day / 3 hour forecast, starting at the step that holds now
+     */
+    public static String hourly(String locationKey, long now) {
+        long cityId = getCityId(locationKey);
+        long firstStep = now - now % STEP_SECONDS;
+        StringBuilder json = new StringBuilder(256 + HOURLY_STEPS * 300);
+        json.append("{\"cod\":\"200\",\"message\":0,\"cnt\":").append(HOURLY_STEPS)
+                .append(",\"list\":[");
+        for (int step = 0; step < HOURLY_STEPS; step++) {
+            long time = firstStep + step * STEP_SECONDS;
+            long stepIndex = time / STEP_SECONDS;
+            double temperature = round(temperature(cityId, stepIndex / 8)
+                    + 5 * Math.sin(stepIndex % 8 * Math.PI / 4));
+            if (step > 0) {
+                json.append(',');
+            }
+            json.append("{\"dt\":").append(time)
+                    .append(",\"main\":{\"temp\":").append(temperature)
+                    .append(",\"temp_min\":").append(round(temperature - 1))
+                    .append(",\"temp_max\":").append(round(temperature + 1))
+                    .append(",\"pressure\":").append(pressure(cityId, stepIndex))
+                    .append(",\"humidity\":").append(humidity(cityId, stepIndex))
+                    .append("},\"weather\":");
+            appendWeather(json, weatherIndex(cityId, stepIndex / 8));
+            json.append(",\"wind\":{\"speed\":").append(windSpeed(cityId, stepIndex))
+                    .append(",\"deg\":").append(windDirection(cityId, stepIndex))
+                    .append("}}");
+        }
+        json.append("],\"city\":");
+        appendCity(json, cityId, cityName(locationKey));
+        return json.append('}').toString();
+    }
+
+    /**
+     * @return the current weather of the given cities, as the group endpoint returns it
+     */
+    public static String group(List<Long> cityIds, long now) {
+        long dayIndex = now / DAY_SECONDS;
+        StringBuilder json = new StringBuilder(64 + cityIds.size() * 300);
+        json.append("{\"cnt\":").append(cityIds.size()).append(",\"list\":[");
+        for (int i = 0; i < cityIds.size(); i++) {
+            long cityId = cityIds.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"coord\":{\"lon\":").append(longitude(cityId))
+                    .append(",\"lat\":").append(latitude(cityId))
+                    .append("},\"weather\":");
+            appendWeather(json, weatherIndex(cityId, dayIndex));
+            json.append(",\"main\":{\"temp\":").append(round(temperature(cityId, dayIndex)))
+                    .append(",\"pressure\":").append(pressure(cityId, dayIndex))
+                    .append(",\"humidity\":").append(humidity(cityId, dayIndex))
+                    .append("},\"wind\":{\"speed\":").append(windSpeed(cityId, dayIndex))
+                    .append(",\"deg\":").append(windDirection(cityId, dayIndex))
+                    .append("},\"dt\":").append(now)
+                    .append(",\"id\":").append(cityId)
+                    .append(",\"name\":\"City ").append(cityId).append("\"}");
+        }
+        return json.append("]}").toString();
+    }
+
+    private static String cityName(String locationKey) {
+        // Quotes and backslashes would need escaping; nothing else in a query does.
+        return locationKey.replace('"', '\'').replace('\\', '/');
+    }
+
+    private static void appendCity(StringBuilder json, long cityId, String name) {
+        json.append("{\"id\":").append(cityId)
+                .append(",\"name\":\"").append(name)
+                .append("\",\"coord\":{\"lon\":").append(longitude(cityId))
+                .append(",\"lat\":").append(latitude(cityId))
+                .append("},\"country\":\"XX\",\"population\":0}");
+    }
+
+    private static void appendWeather(StringBuilder json, int weather) {
+        json.append("[{\"id\":").append(WEATHER_IDS[weather])
+                .append(",\"main\":\"").append(WEATHER_MAINS[weather])
+                .append("\",\"description\":\"").append(WEATHER_MAINS[weather].toLowerCase())
+                .append("\",\"icon\":\"01d\"}]");
+    }
+
+    // Cheap, stable pseudo random numbers from the city and the day or step.
+    private static int mix(long cityId, long index, int salt) {
+        long h = cityId * 0x9E3779B97F4A7C15L + index * 0xC2B2AE3D27D4EB4FL + salt;
+        h ^= h >>> 31;
+        h *= 0x94D049BB133111EBL;
+        h ^= h >>> 29;
+        return (int) (h & 0x7fffffff);
+    }
+
+    private static int weatherIndex(long cityId, long index) {
+        return mix(cityId, index, 1) % WEATHER_IDS.length;
+    }
+
+    // Northern seasons, warmest in mid July, plus a few degrees of day to day noise.
+    private static double temperature(long cityId, long dayIndex) {
+        double season = Math.cos((dayIndex % 365.25 - 196) * 2 * Math.PI / 365.25);
+        return 12 + 10 * season + mix(cityId, dayIndex, 2) % 60 / 10.0;
+    }
+
+    private static double pressure(long cityId, long index) {
+        return round(990 + mix(cityId, index, 3) % 400 / 10.0);
+    }
+
+    private static int humidity(long cityId, long index) {
+        return 30 + mix(cityId, index, 4) % 70;
+    }
+
+    private static double windSpeed(long cityId, long index) {
+        return round(mix(cityId, index, 5) % 150 / 10.0);
+    }
+
+    private static int windDirection(long cityId, long index) {
+        return mix(cityId, index, 6) % 360;
+    }
+
+    private static double latitude(long cityId) {
+        return round(-60 + cityId % 1200 / 10.0);
+    }
+
+    private static double longitude(long cityId) {
+        return round(-180 + cityId % 3600 / 10.0);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
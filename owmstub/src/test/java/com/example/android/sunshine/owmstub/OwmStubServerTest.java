@@ -0,0 +1,152 @@
+package com.example.android.sunshine.owmstub;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+    Checks that the stub answers like OWM does, with the packaged corpus where it has a response
+    and with synthetic forecasts of any size where it does not, and that each fault of the
+    profile shows up on the wire.
+ */
+public class OwmStubServerTest {
+
+    private OwmStubServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new OwmStubServer(new ResponseCorpus(null), FaultProfile.NONE);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+    private HttpURLConnection open(String pathAndQuery) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.getBaseUrl() + pathAndQuery).openConnection();
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    private static String readBody(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < 400
+                ? connection.getInputStream() : connection.getErrorStream();
+        if ("gzip".equals(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        try {
+            return new String(ResponseCorpus.readFully(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int count(String body, String regex) {
+        Matcher matcher = Pattern.compile(regex).matcher(body);
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void servesSyntheticForecastOfAnySize() throws IOException {
+        HttpURLConnection connection = open("forecast/daily?q=springfield&units=metric&cnt=1000");
+        assertEquals(200, connection.getResponseCode());
+        String body = readBody(connection);
+        assertTrue(body.contains("\"cnt\":1000"));
+        assertEquals(1000, count(body, "\\{\"dt\":"));
+
+        // The same request gets the same body.
+        assertEquals(body, readBody(open("forecast/daily?q=Springfield&units=metric&cnt=1000")));
+    }
+
+    @Test
+    public void servesHourlyAndGroup() throws IOException {
+        String hourly = readBody(open("forecast?lat=37.4&lon=-122.1&units=metric"));
+        assertEquals(SyntheticForecast.HOURLY_STEPS, count(hourly, "\\{\"dt\":"));
+
+        long cityId = SyntheticForecast.getCityId("springfield");
+        String group = readBody(open("group?id=" + cityId + ",42&units=metric"));
+        assertTrue(group.contains("\"cnt\":2"));
+        assertTrue(group.contains("\"id\":" + cityId));
+    }
+
+    @Test
+    public void servesCorpusWithValidators() throws IOException {
+        HttpURLConnection connection = open("forecast/daily?q=94043&units=metric&cnt=14");
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(readBody(connection).contains("Mountain View"));
+        String etag = connection.getHeaderField("ETag");
+        assertNotNull(etag);
+
+        connection = open("forecast/daily?q=94043&units=metric&cnt=14");
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+    }
+
+    @Test
+    public void injectsErrors() throws IOException {
+        mServer.setProfile(new FaultProfile.Builder().errors(1, 503).build());
+        HttpURLConnection connection = open("forecast/daily?q=springfield&cnt=7");
+        assertEquals(503, connection.getResponseCode());
+        assertTrue(readBody(connection).contains("\"cod\":\"503\""));
+        assertEquals(1, mServer.getErrorCount());
+
+        mServer.setProfile(new FaultProfile.Builder().unknownLocation("Atlantis").build());
+        connection = open("forecast/daily?q=atlantis&cnt=7");
+        assertEquals(404, connection.getResponseCode());
+        assertTrue(readBody(connection).contains("city not found"));
+    }
+
+    @Test
+    public void dropsResponses() throws IOException {
+        mServer.setProfile(new FaultProfile.Builder().drops(1).gzip(false).build());
+        HttpURLConnection connection = open("forecast/daily?q=springfield&cnt=100");
+        assertEquals(200, connection.getResponseCode());
+        // Some clients throw on the early end of the stream, the JDK's just ends it; either way
+        // the body must fall short of the promised length.
+        try {
+            String body = readBody(connection);
+            assertTrue(body.length() < connection.getContentLength());
+        } catch (IOException expected) {
+        }
+        assertEquals(1, mServer.getErrorCount());
+    }
+
+    @Test
+    public void addsLatency() throws IOException {
+        mServer.setProfile(new FaultProfile.Builder().latency(200, 0).build());
+        long start = System.nanoTime();
+        assertEquals(200, open("forecast/daily?q=springfield&cnt=7").getResponseCode());
+        assertTrue(System.nanoTime() - start >= 200 * 1000000L);
+    }
+
+    @Test
+    public void limitsBandwidth() throws IOException {
+        // About 23 kB of uncompressed body at 64 kB/s must take about a third of a second.
+        mServer.setProfile(new FaultProfile.Builder().bandwidth(64 * 1024).gzip(false).build());
+        long start = System.nanoTime();
+        String body = readBody(open("forecast/daily?q=springfield&cnt=100"));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        long expectedMillis = body.length() * 1000L / (64 * 1024);
+        assertTrue("took " + elapsedMillis + " ms, expected " + expectedMillis,
+                elapsedMillis >= expectedMillis * 9 / 10);
+    }
+}